@@ -0,0 +1,83 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.MemcachedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import static ru.hh.memcached.BenchmarkUtils.REGION;
+
+/** Throughput of {@link HHBalancingMemcachedClient} depending on numOfInstances, to choose numOfInstances in {@link HHMemcachedClientFactory}. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+public class BalancingBenchmark {
+
+  @Param({"1", "2", "4"})
+  private int numOfInstances;
+
+  @Param({"RANDOM", "KEY_AFFINE"})
+  private String balancingMode;
+
+  @Param({"100"})
+  private int numOfKeys;
+
+  private EmbeddedMemcachedServer server;
+  private MemcachedClient[] spyClients;
+  private HHMemcachedClient hhMemcachedClient;
+  private String[] keys;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = EmbeddedMemcachedServer.start();
+    spyClients = new MemcachedClient[numOfInstances];
+    HHMemcachedClient[] hhSpyClients = new HHMemcachedClient[numOfInstances];
+    for (int i = 0; i < numOfInstances; i++) {
+      spyClients[i] = BenchmarkUtils.createSpyClient(server);
+      hhSpyClients[i] = new HHSpyMemcachedClient(spyClients[i]);
+    }
+    hhMemcachedClient = new HHBalancingMemcachedClient(hhSpyClients, HHBalancingMemcachedClient.Mode.valueOf(balancingMode));
+
+    keys = BenchmarkUtils.createKeys(numOfKeys);
+    BenchmarkUtils.fill(hhMemcachedClient, keys);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    for (MemcachedClient spyClient : spyClients) {
+      spyClient.shutdown();
+    }
+    server.close();
+  }
+
+  @Benchmark
+  public Object get() {
+    return hhMemcachedClient.get(REGION, keys[0]);
+  }
+
+  @Benchmark
+  public Map<String, Object> getSome() {
+    return hhMemcachedClient.getSome(REGION, keys);
+  }
+
+  @Benchmark
+  public Boolean set() {
+    return hhMemcachedClient.set(REGION, keys[0], 0, "value").join();
+  }
+}
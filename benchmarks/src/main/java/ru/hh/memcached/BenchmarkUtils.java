@@ -0,0 +1,93 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedClient;
+import static org.mockito.Mockito.mock;
+import ru.hh.nab.metrics.StatsDSender;
+
+class BenchmarkUtils {
+  static final String REGION = "region";
+  static final int OP_TIMEOUT_MS = 1000;
+
+  // sends nothing, so that only collecting of metrics is measured
+  static StatsDSender createStatsDSender() {
+    return mock(StatsDSender.class);
+  }
+
+  static HHMonitoringMemcachedClient createMonitoringClient(HHMemcachedClient hhMemcachedClient) {
+    return new HHMonitoringMemcachedClient(hhMemcachedClient, "benchmark", createStatsDSender(), 60, 500, 1000, 20, 500);
+  }
+
+  /** Spy client with the same connection settings as {@link HHMemcachedClientFactory} uses by default. */
+  static MemcachedClient createSpyClient(EmbeddedMemcachedServer server) throws IOException {
+    return new MemcachedClient(
+        new ConnectionFactoryBuilder()
+            .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+            .setOpTimeout(OP_TIMEOUT_MS)
+            .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+            .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+            .setDaemon(true)
+            .setUseNagleAlgorithm(false)
+            .build(),
+        List.of(server.getAddress())
+    );
+  }
+
+  static String[] createKeys(int numOfKeys) {
+    String[] keys = new String[numOfKeys];
+    for (int i = 0; i < numOfKeys; i++) {
+      keys[i] = "key" + i;
+    }
+    return keys;
+  }
+
+  // every other key is a hit
+  static void fill(HHMemcachedClient hhMemcachedClient, String[] keys) {
+    for (int i = 0; i < keys.length; i += 2) {
+      hhMemcachedClient.set(REGION, keys[i], 0, "value" + i).join();
+    }
+  }
+
+  /** Runs listeners in the thread that completes the future, so that only the adapter itself is measured. */
+  static ExecutorService createDirectExecutorService() {
+    return new AbstractExecutorService() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+
+      @Override
+      public void shutdown() {
+      }
+
+      @Override
+      public List<Runnable> shutdownNow() {
+        return List.of();
+      }
+
+      @Override
+      public boolean isShutdown() {
+        return false;
+      }
+
+      @Override
+      public boolean isTerminated() {
+        return false;
+      }
+
+      @Override
+      public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return false;
+      }
+    };
+  }
+
+  private BenchmarkUtils() {
+  }
+}
@@ -0,0 +1,96 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import static ru.hh.memcached.BenchmarkUtils.REGION;
+
+/** Client created by {@link HHMemcachedClientFactory} against several {@link EmbeddedMemcachedServer}s with the given latency.<br/>
+ *  For a soak test run it with long iterations, e.g. {@code -i 60 -r 60s}. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(16)
+public class ClientFactoryBenchmark {
+
+  @Param({"3"})
+  private int numOfServers;
+
+  @Param({"0", "500"})
+  private int latencyMicros;
+
+  @Param({"1", "2"})
+  private int numOfInstances;
+
+  @Param({"100"})
+  private int numOfKeys;
+
+  private List<EmbeddedMemcachedServer> servers;
+  private HHMemcachedClient hhMemcachedClient;
+  private String[] keys;
+
+  @Setup
+  public void setUp() throws IOException {
+    servers = EmbeddedMemcachedServer.start(numOfServers);
+    for (EmbeddedMemcachedServer server : servers) {
+      server.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+    }
+
+    Properties properties = new Properties();
+    properties.setProperty("servers", EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("numOfInstances", Integer.toString(numOfInstances));
+    properties.setProperty("opTimeoutMs", Integer.toString(BenchmarkUtils.OP_TIMEOUT_MS));
+    properties.setProperty("opQueueMaxBlockTime", "100");
+    properties.setProperty("opQueueCapacity", "16384");
+    properties.setProperty("readOpQueueCapacity", "16384");
+    properties.setProperty("writeOpQueueCapacity", "16384");
+    properties.setProperty("maxReconnectDelay", "1");
+    properties.setProperty("timeoutExceptionThreshold", "1000");
+    properties.setProperty("sendStats", "true");
+    properties.setProperty("sendQueuesStats", "true");
+    hhMemcachedClient = HHMemcachedClientFactory.create(properties, "benchmark", BenchmarkUtils.createStatsDSender());
+
+    keys = BenchmarkUtils.createKeys(numOfKeys);
+    BenchmarkUtils.fill(hhMemcachedClient, keys);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    for (EmbeddedMemcachedServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Benchmark
+  public Object get() {
+    return hhMemcachedClient.get(REGION, keys[0]);
+  }
+
+  @Benchmark
+  public Map<String, Object> getSome() {
+    return hhMemcachedClient.getSome(REGION, keys);
+  }
+
+  @Benchmark
+  public Boolean set() {
+    return hhMemcachedClient.set(REGION, keys[0], 0, "value").join();
+  }
+}
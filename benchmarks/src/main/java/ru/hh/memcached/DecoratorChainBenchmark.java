@@ -0,0 +1,99 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.MemcachedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import static ru.hh.memcached.BenchmarkUtils.REGION;
+
+/** Overhead of each decorator over {@link HHSpyMemcachedClient} talking to {@link EmbeddedMemcachedServer}.<br/>
+ *  Compare every decorator with SPY, add {@code -prof gc} to see allocations per operation. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+public class DecoratorChainBenchmark {
+
+  public enum Decorator {
+    SPY,
+    MONITORING,
+    EXCEPTION_SWALLOWER,
+    MONITORING_AND_EXCEPTION_SWALLOWER
+  }
+
+  @Param
+  private Decorator decorator;
+
+  @Param({"100"})
+  private int numOfKeys;
+
+  private EmbeddedMemcachedServer server;
+  private MemcachedClient spyClient;
+  private HHMemcachedClient hhMemcachedClient;
+  private String[] keys;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = EmbeddedMemcachedServer.start();
+    spyClient = BenchmarkUtils.createSpyClient(server);
+    HHMemcachedClient hhSpyClient = new HHSpyMemcachedClient(spyClient);
+    switch (decorator) {
+      case SPY:
+        hhMemcachedClient = hhSpyClient;
+        break;
+      case MONITORING:
+        hhMemcachedClient = BenchmarkUtils.createMonitoringClient(hhSpyClient);
+        break;
+      case EXCEPTION_SWALLOWER:
+        hhMemcachedClient = new HHExceptionSwallowerMemcachedClient(hhSpyClient);
+        break;
+      default:
+        hhMemcachedClient = new HHExceptionSwallowerMemcachedClient(BenchmarkUtils.createMonitoringClient(hhSpyClient));
+    }
+
+    keys = BenchmarkUtils.createKeys(numOfKeys);
+    BenchmarkUtils.fill(hhSpyClient, keys);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    spyClient.shutdown();
+    server.close();
+  }
+
+  @Benchmark
+  public Object get() {
+    return hhMemcachedClient.get(REGION, keys[0]);
+  }
+
+  @Benchmark
+  public Object asyncGet() {
+    return hhMemcachedClient.asyncGet(REGION, keys[0]).join();
+  }
+
+  @Benchmark
+  public Map<String, Object> getSome() {
+    return hhMemcachedClient.getSome(REGION, keys);
+  }
+
+  @Benchmark
+  public Boolean set() {
+    return hhMemcachedClient.set(REGION, keys[0], 0, "value").join();
+  }
+}
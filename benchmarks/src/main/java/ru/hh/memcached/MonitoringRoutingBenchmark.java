@@ -0,0 +1,158 @@
+package ru.hh.memcached;
+
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.KetamaNodeLocator;
+import net.spy.memcached.MemcachedNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.Tag;
+
+/** Cost of ketama routing in {@link HHMonitoringMemcachedClient}.<br/>
+ *  Monitoring looks up the primary node once per key of an operation ({@code nodeLookup=perOperation}).
+ *  {@code nodeLookup=perMetric} runs a copy of the time and hit/miss stats that monitoring had before,
+ *  with a lookup and new tags for each metric, so the difference of the two is the CPU saved per get and per getSome
+ *  inside monitoring; lookups of the layers below monitoring are the same in both. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+// mockito 1.x needs reflective access to define mock classes on new jdks
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class MonitoringRoutingBenchmark {
+  private static final String REGION = "region";
+  private static final Tag HIT_TAG = new Tag("hitMiss", "hit");
+  private static final Tag MISS_TAG = new Tag("hitMiss", "miss");
+
+  @Param({"10"})
+  private int numOfNodes;
+
+  @Param({"500"})
+  private int numOfKeys;
+
+  @Param({"perOperation", "perMetric"})
+  private String nodeLookup;
+
+  private KetamaNodeLocator locator;
+  private HHMemcachedClient hhMemcachedClient;
+  private HHMemcachedClient monitoringClient;
+  private boolean lookupPerMetric;
+  // the same sizes as monitoring of BenchmarkUtils has
+  private final Counters hitMissCounters = new Counters(500);
+  private final Histograms histograms = new Histograms(1000, 20);
+  private String[] keys;
+
+  @Setup
+  public void setUp() {
+    List<MemcachedNode> nodes = new ArrayList<>(numOfNodes);
+    for (int i = 0; i < numOfNodes; i++) {
+      nodes.add(createNode(new InetSocketAddress("127.0.0.1", 11211 + i)));
+    }
+    locator = new KetamaNodeLocator(nodes, DefaultHashAlgorithm.KETAMA_HASH);
+
+    hhMemcachedClient = new HHMemcachedTestClient() {
+      @Override
+      public InetSocketAddress getPrimaryNodeAddress(String key) {
+        return (InetSocketAddress) locator.getPrimary(key).getSocketAddress();
+      }
+    };
+    keys = new String[numOfKeys];
+    for (int i = 0; i < numOfKeys; i++) {
+      keys[i] = "key" + i;
+      // half of the keys are hits
+      if (i % 2 == 0) {
+        hhMemcachedClient.set(REGION, keys[i], 0, "value" + i);
+      }
+    }
+
+    monitoringClient = BenchmarkUtils.createMonitoringClient(hhMemcachedClient);
+    lookupPerMetric = nodeLookup.equals("perMetric");
+  }
+
+  @Benchmark
+  public MemcachedNode primaryNodeLookup() {
+    return locator.getPrimary(getKey(REGION, keys[0]));
+  }
+
+  @Benchmark
+  public Object get() {
+    if (!lookupPerMetric) {
+      return monitoringClient.get(REGION, keys[0]);
+    }
+    long time = System.currentTimeMillis();
+    Object value = hhMemcachedClient.get(REGION, keys[0]);
+    sendExecutionTimeStatsWithLookup(REGION, keys[0], time, System.currentTimeMillis());
+    sendHitMissStatsWithLookup(value, REGION, keys[0]);
+    return value;
+  }
+
+  @Benchmark
+  public Map<String, Object> getSome() {
+    if (!lookupPerMetric) {
+      return monitoringClient.getSome(REGION, keys);
+    }
+    long time = System.currentTimeMillis();
+    Map<String, Object> keyToValue = hhMemcachedClient.getSome(REGION, keys);
+    long timeEnd = System.currentTimeMillis();
+    for (String key : keys) {
+      sendExecutionTimeStatsWithLookup(REGION, key, time, timeEnd);
+      sendHitMissStatsWithLookup(keyToValue.get(key), REGION, key);
+    }
+    return keyToValue;
+  }
+
+  // stats of monitoring before the node was looked up once per operation
+
+  private void sendExecutionTimeStatsWithLookup(String region, String key, long timeStart, long timeEnd) {
+    histograms.save((int) (timeEnd - timeStart), new Tag("primaryNode", getPrimaryNode(region, key)));
+  }
+
+  private void sendHitMissStatsWithLookup(Object object, String region, String key) {
+    Tag regionTag = new Tag("region", region);
+    Tag primaryNodeTag = new Tag("primaryNode", getPrimaryNode(region, key));
+    hitMissCounters.add(1, object == null ? MISS_TAG : HIT_TAG, regionTag, primaryNodeTag);
+  }
+
+  private String getPrimaryNode(String region, String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(getKey(region, key)).getHostString();
+  }
+
+  private static MemcachedNode createNode(InetSocketAddress address) {
+    return (MemcachedNode) Proxy.newProxyInstance(
+        MemcachedNode.class.getClassLoader(),
+        new Class<?>[]{MemcachedNode.class},
+        (proxy, method, args) -> {
+          switch (method.getName()) {
+            case "getSocketAddress":
+              return address;
+            case "toString":
+              return address.toString();
+            case "hashCode":
+              return System.identityHashCode(proxy);
+            case "equals":
+              return proxy == args[0];
+            default:
+              throw new UnsupportedOperationException(method.getName());
+          }
+        }
+    );
+  }
+}
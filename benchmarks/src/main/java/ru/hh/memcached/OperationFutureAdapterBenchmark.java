@@ -0,0 +1,66 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationStatus;
+import net.spy.memcached.ops.StatusCode;
+import net.spy.memcached.protocol.binary.BinaryOperationFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Cost of wrapping spy futures into {@link OperationToCompletableFutureAdapter}, without network. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OperationFutureAdapterBenchmark {
+  private static final OperationStatus OK_STATUS = new OperationStatus(true, "OK", StatusCode.SUCCESS);
+
+  private final ExecutorService listenerExecutorService = BenchmarkUtils.createDirectExecutorService();
+  // the future asks its operation if it was cancelled or timed out
+  private final Operation operation = new BinaryOperationFactory().noop(null);
+
+  @Benchmark
+  public Boolean operationFuture() throws Exception {
+    OperationFuture<Boolean> operationFuture = createOperationFuture();
+    return operationFuture.get();
+  }
+
+  @Benchmark
+  public Boolean adapter() {
+    OperationFuture<Boolean> operationFuture = createOperationFuture();
+    OperationToCompletableFutureAdapter<Boolean> adapter = new OperationToCompletableFutureAdapter<>(operationFuture);
+    operationFuture.signalComplete();
+    return adapter.join();
+  }
+
+  @Benchmark
+  public Boolean adapterWithTimeout() {
+    OperationFuture<Boolean> operationFuture = createOperationFuture();
+    OperationToCompletableFutureAdapter<Boolean> adapter =
+        new OperationToCompletableFutureAdapter<>(operationFuture, BenchmarkUtils.OP_TIMEOUT_MS);
+    operationFuture.signalComplete();
+    return adapter.join();
+  }
+
+  // future of an operation which has already received the response
+  private OperationFuture<Boolean> createOperationFuture() {
+    OperationFuture<Boolean> operationFuture =
+        new OperationFuture<>("key", new CountDownLatch(0), BenchmarkUtils.OP_TIMEOUT_MS, listenerExecutorService);
+    operationFuture.setOperation(operation);
+    operationFuture.set(true, OK_STATUS);
+    return operationFuture;
+  }
+}
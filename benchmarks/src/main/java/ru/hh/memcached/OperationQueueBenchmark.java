@@ -0,0 +1,71 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ru.hh.nab.metrics.Max;
+
+/** Contention of application threads that put operations to the queue of one node, while the connection thread takes them. */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OperationQueueBenchmark {
+  private static final int CAPACITY = 16384;
+  private static final Object OPERATION = new Object();
+
+  @Param({"array", "monitoringArray", "mpsc", "monitoringMpsc"})
+  public String queueType;
+
+  private BlockingQueue<Object> queue;
+
+  @Setup
+  public void setUp() {
+    switch (queueType) {
+      case "array":
+        queue = new ArrayBlockingQueue<>(CAPACITY);
+        break;
+      case "monitoringArray":
+        queue = new MonitoringQueueFactory.MonitoringArrayBlockingQueue<>(CAPACITY, new Max(0));
+        break;
+      case "mpsc":
+        queue = new MpscArrayBlockingQueue<>(CAPACITY);
+        break;
+      case "monitoringMpsc":
+        queue = new MpscArrayBlockingQueue<>(CAPACITY, new Max(0), null);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown queue type " + queueType);
+    }
+  }
+
+  @Benchmark
+  @Group("contention")
+  @GroupThreads(4)
+  public boolean offer() {
+    // a full queue fails fast, as spy with opQueueMaxBlockTime=0
+    return queue.offer(OPERATION);
+  }
+
+  @Benchmark
+  @Group("contention")
+  @GroupThreads(1)
+  public Object poll() {
+    return queue.poll();
+  }
+}
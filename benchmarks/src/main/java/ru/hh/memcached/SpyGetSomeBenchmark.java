@@ -0,0 +1,70 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.MemcachedClient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import static ru.hh.memcached.BenchmarkUtils.REGION;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+
+/** Cost of region key remapping in {@link HHSpyMemcachedClient#getSome}: compare getSome with spyGetBulk, which reads the same keys. */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SpyGetSomeBenchmark {
+
+  @Param({"10", "100", "500"})
+  private int numOfKeys;
+
+  private EmbeddedMemcachedServer server;
+  private MemcachedClient spyClient;
+  private HHSpyMemcachedClient hhSpyClient;
+  private String[] keys;
+  private String[] keysWithRegion;
+
+  @Setup
+  public void setUp() throws IOException {
+    server = EmbeddedMemcachedServer.start();
+    spyClient = BenchmarkUtils.createSpyClient(server);
+    hhSpyClient = new HHSpyMemcachedClient(spyClient);
+
+    keys = BenchmarkUtils.createKeys(numOfKeys);
+    keysWithRegion = new String[numOfKeys];
+    for (int i = 0; i < numOfKeys; i++) {
+      keysWithRegion[i] = getKey(REGION, keys[i]);
+    }
+    BenchmarkUtils.fill(hhSpyClient, keys);
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    spyClient.shutdown();
+    server.close();
+  }
+
+  @Benchmark
+  public Map<String, Object> getSome() {
+    return hhSpyClient.getSome(REGION, keys);
+  }
+
+  @Benchmark
+  public Map<String, Object> spyGetBulk() throws InterruptedException, ExecutionException {
+    return spyClient.asyncGetBulk(keysWithRegion).getSome(BenchmarkUtils.OP_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+  }
+}
@@ -0,0 +1,39 @@
+package ru.hh.memcached;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
+import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.BulkGetCompletionListener;
+
+/** Completes with all values when every node has answered,
+ *  or with values that have been received so far when timeout has passed. */
+class BulkFutureToCompletableFutureAdapter<T> extends SpyFutureToCompletableFutureAdapter<Map<String, T>> {
+  private final BulkFuture<Map<String, T>> origFuture;
+  private final BulkGetCompletionListener bulkGetCompletionListener = this::completeWithResultOf;
+
+  BulkFutureToCompletableFutureAdapter(BulkFuture<Map<String, T>> origFuture, long timeoutMs) {
+    this(origFuture, timeoutMs, null);
+  }
+
+  /** @param decodeTimeConsumer gets nanoseconds of getting the values in the listener, that is of decoding them */
+  BulkFutureToCompletableFutureAdapter(BulkFuture<Map<String, T>> origFuture, long timeoutMs, @Nullable LongConsumer decodeTimeConsumer) {
+    super(timeoutMs, decodeTimeConsumer);
+    this.origFuture = origFuture;
+    origFuture.addListener(bulkGetCompletionListener);
+    scheduleTimeout();
+  }
+
+  @Override
+  Map<String, T> getOnTimeout() throws Exception {
+    // getSome marks not completed operations as timed out and returns what has been received
+    return origFuture.getSome(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  void cancelOrigFuture() {
+    origFuture.removeListener(bulkGetCompletionListener);
+    origFuture.cancel(false);
+  }
+}
@@ -0,0 +1,35 @@
+package ru.hh.memcached;
+
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.Transcoder;
+
+/** Never decodes in the transcoder thread of the spy client: a value is decoded by the thread that gets it from the future,
+ *  that is by the caller of a sync read or by the listener executor that completes an async read.<br/>
+ *  The spy client has one transcoder thread per instance, so it limits decoding to numOfInstances cores. */
+class CallerDecodingTranscoder<T> implements Transcoder<T> {
+  private final Transcoder<T> transcoder;
+
+  CallerDecodingTranscoder(Transcoder<T> transcoder) {
+    this.transcoder = transcoder;
+  }
+
+  @Override
+  public boolean asyncDecode(CachedData cachedData) {
+    return false;
+  }
+
+  @Override
+  public CachedData encode(T value) {
+    return transcoder.encode(value);
+  }
+
+  @Override
+  public T decode(CachedData cachedData) {
+    return transcoder.decode(cachedData);
+  }
+
+  @Override
+  public int getMaxSize() {
+    return transcoder.getMaxSize();
+  }
+}
@@ -0,0 +1,47 @@
+package ru.hh.memcached;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Size of encoded values and time of encoding and decoding per region, times are in microseconds. */
+class CodecStats {
+  private final Histograms encodedSizeHistograms;
+  private final Histograms encodeTimeHistograms;
+  private final Histograms decodeTimeHistograms;
+  private final Map<String, Tag> regionToTag = new ConcurrentHashMap<>();
+
+  CodecStats(String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec, int maxHistogramSize, int maxNumOfHistograms) {
+    encodedSizeHistograms = new Histograms(maxHistogramSize, maxNumOfHistograms);
+    encodeTimeHistograms = new Histograms(maxHistogramSize, maxNumOfHistograms);
+    decodeTimeHistograms = new Histograms(maxHistogramSize, maxNumOfHistograms);
+
+    statsDSender.sendPeriodically(() -> {
+      statsDSender.sendHistograms(serviceName + ".memcached.codec.encodedSize", encodedSizeHistograms, StatsDSender.DEFAULT_PERCENTILES);
+      statsDSender.sendHistograms(serviceName + ".memcached.codec.encodeTime", encodeTimeHistograms, StatsDSender.DEFAULT_PERCENTILES);
+      statsDSender.sendHistograms(serviceName + ".memcached.codec.decodeTime", decodeTimeHistograms, StatsDSender.DEFAULT_PERCENTILES);
+    }, metricsSendIntervalSec);
+  }
+
+  void saveEncode(String region, int encodedSize, long nanos) {
+    Tag regionTag = getRegionTag(region);
+    encodedSizeHistograms.save(encodedSize, regionTag);
+    encodeTimeHistograms.save(toMicros(nanos), regionTag);
+  }
+
+  void saveDecode(String region, long nanos) {
+    decodeTimeHistograms.save(toMicros(nanos), getRegionTag(region));
+  }
+
+  private Tag getRegionTag(String region) {
+    Tag regionTag = regionToTag.get(region);
+    return regionTag != null ? regionTag : regionToTag.computeIfAbsent(region, ignored -> new Tag("region", region));
+  }
+
+  private static int toMicros(long nanos) {
+    return (int) Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), Integer.MAX_VALUE);
+  }
+}
@@ -0,0 +1,123 @@
+package ru.hh.memcached;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+
+/** Transcoder of one region that encodes values with the codec of the region
+ *  and compresses them if they are not smaller than compressionThreshold.<br/>
+ *  Values written by the default transcoder before the region got its codec are still decoded by the default transcoder,
+ *  so a codec can be switched on without flushing the region. */
+class CodecTranscoder implements Transcoder<Object> {
+  // SerializingTranscoder uses the lower 16 bits of flags
+  private static final int CODEC_FLAG = 1 << 16;
+  private static final int GZIP_FLAG = 1 << 17;
+  private static final int DEFLATE_FLAG = 1 << 18;
+
+  enum Compression {
+    NONE,
+    GZIP,
+    /** faster than gzip and a few bytes smaller, no checksum */
+    DEFLATE
+  }
+
+  private final String region;
+  private final MemcachedCodec codec;
+  private final int compressionThreshold;
+  private final Compression compression;
+  @Nullable
+  private final CodecStats codecStats;
+  private final Transcoder<Object> defaultTranscoder = new SerializingTranscoder();
+
+  CodecTranscoder(String region, MemcachedCodec codec, int compressionThreshold, Compression compression, @Nullable CodecStats codecStats) {
+    this.region = region;
+    this.codec = codec;
+    this.compressionThreshold = compressionThreshold;
+    this.compression = compression;
+    this.codecStats = codecStats;
+  }
+
+  @Override
+  public boolean asyncDecode(CachedData cachedData) {
+    if ((cachedData.getFlags() & CODEC_FLAG) == 0) {
+      return defaultTranscoder.asyncDecode(cachedData);
+    }
+    // decompression is too heavy for the thread that completes the future
+    return (cachedData.getFlags() & (GZIP_FLAG | DEFLATE_FLAG)) != 0;
+  }
+
+  @Override
+  public CachedData encode(Object value) {
+    long startNanos = System.nanoTime();
+    byte[] data = codec.encode(value);
+    int flags = CODEC_FLAG;
+    if (compression != Compression.NONE && data.length >= compressionThreshold) {
+      byte[] compressedData = compress(data);
+      // already compressed data, for example images, may grow
+      if (compressedData.length < data.length) {
+        data = compressedData;
+        flags |= compression == Compression.GZIP ? GZIP_FLAG : DEFLATE_FLAG;
+      }
+    }
+    if (codecStats != null) {
+      codecStats.saveEncode(region, data.length, System.nanoTime() - startNanos);
+    }
+    return new CachedData(flags, data, getMaxSize());
+  }
+
+  @Override
+  public Object decode(CachedData cachedData) {
+    int flags = cachedData.getFlags();
+    if ((flags & CODEC_FLAG) == 0) {
+      return defaultTranscoder.decode(cachedData);
+    }
+
+    long startNanos = System.nanoTime();
+    byte[] data = cachedData.getData();
+    if ((flags & GZIP_FLAG) != 0) {
+      data = decompress(data, Compression.GZIP);
+    } else if ((flags & DEFLATE_FLAG) != 0) {
+      data = decompress(data, Compression.DEFLATE);
+    }
+    Object value = codec.decode(data);
+    if (codecStats != null) {
+      codecStats.saveDecode(region, System.nanoTime() - startNanos);
+    }
+    return value;
+  }
+
+  @Override
+  public int getMaxSize() {
+    return CachedData.MAX_SIZE;
+  }
+
+  private byte[] compress(byte[] data) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+    try (OutputStream outputStream = compression == Compression.GZIP ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes)) {
+      outputStream.write(data);
+    } catch (IOException e) {
+      throw new UncheckedIOException("failed to compress value of region " + region, e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private byte[] decompress(byte[] data, Compression dataCompression) {
+    ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+    try (InputStream inputStream = dataCompression == Compression.GZIP ? new GZIPInputStream(bytes) : new InflaterInputStream(bytes)) {
+      return inputStream.readAllBytes();
+    } catch (IOException e) {
+      throw new UncheckedIOException("failed to decompress value of region " + region, e);
+    }
+  }
+}
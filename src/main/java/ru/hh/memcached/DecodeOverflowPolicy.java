@@ -0,0 +1,57 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Tag;
+
+/** Runs tasks that do not fit into the queue of the decode pool in a separate overflow thread.<br/>
+ *  Spy submits completion listeners from the MemcachedConnection thread of an instance, so running a rejected task in the submitting thread
+ *  stalls all nodes of the instance, and dropping it leaves a future that never completes.<br/>
+ *  The overflow queue is bounded too. A task that does not fit into it, or comes after the pool is shut down, is dropped:
+ *  it runs in the submitting thread, where listeners of spy futures fail their futures instead of decoding values. */
+class DecodeOverflowPolicy implements RejectedExecutionHandler {
+  private static final Tag DECODE_QUEUE_TAG = new Tag("queue", "decode");
+  private static final Tag DECODE_OVERFLOW_QUEUE_TAG = new Tag("queue", "decodeOverflow");
+
+  private static final ThreadLocal<Boolean> droppingTask = ThreadLocal.withInitial(() -> false);
+
+  private final ThreadPoolExecutor overflowExecutor;
+  private final Counters rejectedCounters;
+
+  DecodeOverflowPolicy(int overflowQueueCapacity, Counters rejectedCounters) {
+    this.rejectedCounters = rejectedCounters;
+    overflowExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(overflowQueueCapacity), runnable -> {
+      Thread thread = new Thread(runnable, "memcached-decode-overflow");
+      thread.setDaemon(true);
+      return thread;
+    }, (task, executor) -> drop(task));
+  }
+
+  @Override
+  public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+    if (executor.isShutdown()) {
+      drop(task);
+      return;
+    }
+    rejectedCounters.add(1, DECODE_QUEUE_TAG);
+    overflowExecutor.execute(task);
+  }
+
+  /** @return true if the current thread runs a dropped task, then the value must not be decoded */
+  static boolean isDroppingTask() {
+    return droppingTask.get();
+  }
+
+  private void drop(Runnable task) {
+    rejectedCounters.add(1, DECODE_OVERFLOW_QUEUE_TAG);
+    droppingTask.set(true);
+    try {
+      task.run();
+    } finally {
+      droppingTask.set(false);
+    }
+  }
+}
@@ -0,0 +1,53 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
+import net.spy.memcached.internal.GetCompletionListener;
+import net.spy.memcached.internal.GetFuture;
+
+class GetFutureToCompletableFutureAdapter<T> extends SpyFutureToCompletableFutureAdapter<T> {
+  private final GetFuture<T> origFuture;
+  private final GetCompletionListener getCompletionListener = this::completeWithResultOf;
+
+  GetFutureToCompletableFutureAdapter(GetFuture<T> origFuture, long timeoutMs) {
+    this(origFuture, timeoutMs, null);
+  }
+
+  /** @param decodeTimeConsumer gets nanoseconds of getting the value in the listener, that is of decoding it */
+  GetFutureToCompletableFutureAdapter(GetFuture<T> origFuture, long timeoutMs, @Nullable LongConsumer decodeTimeConsumer) {
+    super(timeoutMs, decodeTimeConsumer);
+    this.origFuture = origFuture;
+    origFuture.addListener(getCompletionListener);
+    // nobody waits on the underlying future, so we have to fire its timeout ourselves
+    scheduleTimeout();
+  }
+
+  @Override
+  T getOnTimeout() throws Exception {
+    return origFuture.get(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  void cancelOrigFuture() {
+    origFuture.removeListener(getCompletionListener);
+    origFuture.cancel(false);
+  }
+
+  // see OperationToCompletableFutureAdapter
+  @Override
+  public T get() throws InterruptedException, ExecutionException {
+    try {
+      return origFuture.get(Math.max(0, timeoutNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      throw new RuntimeException("Timed out waiting for operation", e);
+    }
+  }
+
+  @Override
+  public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    return origFuture.get(timeout, unit);
+  }
+}
@@ -2,68 +2,204 @@ package ru.hh.memcached;
 
 import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
 
 class HHBalancingMemcachedClient implements HHMemcachedClient {
 
+  enum Mode {
+    /** each operation goes to a random instance */
+    RANDOM,
+    /** operations on the same region and key always go to the same instance,
+     *  so spy can merge gets of one key and the order of operations on a key is kept */
+    KEY_AFFINE,
+    /** each operation goes to the less loaded of two random instances, load is the number of operations in flight,
+     *  so an instance that falls behind because of GC or a large decode gets fewer operations */
+    LEAST_LOADED
+  }
+
   private final HHMemcachedClient[] clients;
+  private final Mode mode;
+  // counting wrappers of clients, only in LEAST_LOADED mode
+  private final HHInFlightCountingMemcachedClient[] countingClients;
 
   HHBalancingMemcachedClient(HHMemcachedClient[] clients) {
-    this.clients = clients;
+    this(clients, Mode.RANDOM);
+  }
+
+  HHBalancingMemcachedClient(HHMemcachedClient[] clients, Mode mode) {
+    this.mode = mode;
+    if (mode == Mode.LEAST_LOADED) {
+      countingClients = new HHInFlightCountingMemcachedClient[clients.length];
+      for (int i = 0; i < clients.length; i++) {
+        countingClients[i] = new HHInFlightCountingMemcachedClient(clients[i]);
+      }
+      this.clients = countingClients;
+    } else {
+      countingClients = null;
+      this.clients = clients;
+    }
   }
 
   @Nullable
   @Override
   public Object get(String region, String key) {
-    return getClient().get(region, key);
+    return getClient(region, key).get(region, key);
   }
 
+  /** In KEY_AFFINE mode keys of several instances are read by async getSome of each instance,
+   *  so getSome chunking does not apply to them, the timeout is the timeout of async reads of the region. */
   @Override
   public Map<String, Object> getSome(String region, String[] keys) {
-    return getClient().getSome(region, keys);
+    if (mode != Mode.KEY_AFFINE) {
+      return getClient().getSome(region, keys);
+    }
+
+    String[][] clientIndexToKeys = splitKeysByClient(region, keys);
+    HHMemcachedClient singleClient = getSingleClient(clientIndexToKeys);
+    if (singleClient != null) {
+      return singleClient.getSome(region, keys);
+    }
+    // wait for all instances at once instead of one after another
+    try {
+      return asyncGetSome(region, clientIndexToKeys).join();
+    } catch (CompletionException e) {
+      // same exceptions as a sync getSome of an instance would throw
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return getClient(region, key).asyncGet(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    if (mode != Mode.KEY_AFFINE) {
+      return getClient().asyncGetSome(region, keys);
+    }
+
+    String[][] clientIndexToKeys = splitKeysByClient(region, keys);
+    HHMemcachedClient singleClient = getSingleClient(clientIndexToKeys);
+    if (singleClient != null) {
+      return singleClient.asyncGetSome(region, keys);
+    }
+    return asyncGetSome(region, clientIndexToKeys);
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    if (mode != Mode.KEY_AFFINE) {
+      return getClient().streamGetSome(region, keys, partConsumer);
+    }
+
+    String[][] clientIndexToKeys = splitKeysByClient(region, keys);
+    HHMemcachedClient singleClient = getSingleClient(clientIndexToKeys);
+    if (singleClient != null) {
+      return singleClient.streamGetSome(region, keys, partConsumer);
+    }
+
+    CompletableFuture<?>[] futures = new CompletableFuture[clientIndexToKeys.length];
+    for (int i = 0; i < clientIndexToKeys.length; i++) {
+      futures[i] = clientIndexToKeys[i].length == 0
+          ? CompletableFuture.completedFuture(null)
+          : clients[i].streamGetSome(region, clientIndexToKeys[i], partConsumer);
+    }
+    return CompletableFuture.allOf(futures);
   }
 
   @Override
   public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
-    return getClient().set(region, key, exp, o);
+    return getClient(region, key).set(region, key, exp, o);
   }
 
   @Override
   public CompletableFuture<Boolean> delete(String region, String key) {
-    return getClient().delete(region, key);
+    return getClient(region, key).delete(region, key);
   }
 
   @Nullable
   @Override
   public CASPair gets(String region, String key) {
-    return getClient().gets(region, key);
+    return getClient(region, key).gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return getClient(region, key).asyncGets(region, key);
   }
 
   @Override
   public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
-    return getClient().add(region, key, exp, o);
+    return getClient(region, key).add(region, key, exp, o);
   }
 
   @Override
   public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
-    return getClient().asyncCas(region, key, casId, exp, o);
+    return getClient(region, key).asyncCas(region, key, casId, exp, o);
   }
 
   @Override
   public long increment(String region, String key, int by, int def) {
-    return getClient().increment(region, key, by, def);
+    return getClient(region, key).increment(region, key, by, def);
   }
 
   @Override
   public long increment(String region, String key, int by, int def, int ttl) {
-    return getClient().increment(region, key, by, def, ttl);
+    return getClient(region, key).increment(region, key, by, def, ttl);
   }
 
   @Override
   public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
-    return getClient().touch(region, key, ttl);
+    return getClient(region, key).touch(region, key, ttl);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    if (mode != Mode.KEY_AFFINE) {
+      return getClient().executeBatch(batch);
+    }
+
+    List<MemcachedBatch.Item> items = batch.getItems();
+    MemcachedBatch[] clientIndexToBatch = new MemcachedBatch[clients.length];
+    // index of each item in the batch of its client
+    int[] itemIndexToClientItemIndex = new int[items.size()];
+    int[] itemIndexToClientIndex = new int[items.size()];
+    for (int i = 0; i < items.size(); i++) {
+      MemcachedBatch.Item item = items.get(i);
+      int clientIndex = getClientIndex(item.region, item.key);
+      if (clientIndexToBatch[clientIndex] == null) {
+        clientIndexToBatch[clientIndex] = new MemcachedBatch();
+      }
+      itemIndexToClientIndex[i] = clientIndex;
+      itemIndexToClientItemIndex[i] = clientIndexToBatch[clientIndex].size();
+      clientIndexToBatch[clientIndex].add(item);
+    }
+
+    MemcachedBatchResult[] clientIndexToResult = new MemcachedBatchResult[clients.length];
+    for (int clientIndex = 0; clientIndex < clients.length; clientIndex++) {
+      if (clientIndexToBatch[clientIndex] != null) {
+        clientIndexToResult[clientIndex] = clients[clientIndex].executeBatch(clientIndexToBatch[clientIndex]);
+      }
+    }
+
+    List<CompletableFuture<Boolean>> itemResults = new ArrayList<>(items.size());
+    for (int i = 0; i < items.size(); i++) {
+      itemResults.add(clientIndexToResult[itemIndexToClientIndex[i]].getItemResult(itemIndexToClientItemIndex[i]));
+    }
+    return new MemcachedBatchResult(itemResults);
   }
 
   @Override
@@ -71,8 +207,95 @@ class HHBalancingMemcachedClient implements HHMemcachedClient {
     return getClient().getPrimaryNodeAddress(key);
   }
 
+  private CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[][] clientIndexToKeys) {
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Map<String, Object>>[] futures = new CompletableFuture[clientIndexToKeys.length];
+    for (int i = 0; i < clientIndexToKeys.length; i++) {
+      futures[i] = clientIndexToKeys[i].length == 0
+          ? CompletableFuture.completedFuture(Map.of())
+          : clients[i].asyncGetSome(region, clientIndexToKeys[i]);
+    }
+
+    return CompletableFuture.allOf(futures).thenApply(ignored -> {
+      Map<String, Object> keyToValue = new HashMap<>();
+      Set<InetSocketAddress> timedOutNodes = new HashSet<>();
+      for (CompletableFuture<Map<String, Object>> future : futures) {
+        Map<String, Object> clientKeyToValue = future.join();
+        keyToValue.putAll(clientKeyToValue);
+        timedOutNodes.addAll(PartialKeyToValue.getTimedOutNodes(clientKeyToValue));
+      }
+      return timedOutNodes.isEmpty() ? keyToValue : new PartialKeyToValue(keyToValue, timedOutNodes);
+    });
+  }
+
+  private String[][] splitKeysByClient(String region, String[] keys) {
+    int[] keyIndexToClientIndex = new int[keys.length];
+    int[] clientIndexToNumOfKeys = new int[clients.length];
+    for (int i = 0; i < keys.length; i++) {
+      int clientIndex = getClientIndex(region, keys[i]);
+      keyIndexToClientIndex[i] = clientIndex;
+      clientIndexToNumOfKeys[clientIndex]++;
+    }
+
+    String[][] clientIndexToKeys = new String[clients.length][];
+    for (int clientIndex = 0; clientIndex < clients.length; clientIndex++) {
+      clientIndexToKeys[clientIndex] = new String[clientIndexToNumOfKeys[clientIndex]];
+      clientIndexToNumOfKeys[clientIndex] = 0;
+    }
+    for (int i = 0; i < keys.length; i++) {
+      int clientIndex = keyIndexToClientIndex[i];
+      clientIndexToKeys[clientIndex][clientIndexToNumOfKeys[clientIndex]++] = keys[i];
+    }
+    return clientIndexToKeys;
+  }
+
+  @Nullable
+  private HHMemcachedClient getSingleClient(String[][] clientIndexToKeys) {
+    HHMemcachedClient singleClient = null;
+    for (int i = 0; i < clientIndexToKeys.length; i++) {
+      if (clientIndexToKeys[i].length > 0) {
+        if (singleClient != null) {
+          return null;
+        }
+        singleClient = clients[i];
+      }
+    }
+    return singleClient != null ? singleClient : getClient();
+  }
+
+  private HHMemcachedClient getClient(String region, String key) {
+    if (mode != Mode.KEY_AFFINE) {
+      return getClient();
+    }
+    return clients[getClientIndex(region, key)];
+  }
+
+  private int getClientIndex(String region, String key) {
+    int hash = 31 * region.hashCode() + key.hashCode();
+    // mix higher bits into lower ones, because only lower bits matter for a small number of instances
+    hash ^= hash >>> 16;
+    return Math.floorMod(hash, clients.length);
+  }
+
   private HHMemcachedClient getClient() {
+    if (mode == Mode.LEAST_LOADED && clients.length > 1) {
+      return getLeastLoadedClient();
+    }
     int delegateIndex = ThreadLocalRandom.current().nextInt(clients.length);
     return clients[delegateIndex];
   }
+
+  /** Power of two choices: comparing two random instances is almost as good as finding the least loaded one,
+   *  and does not send all operations to the same instance while counters are stale. */
+  private HHMemcachedClient getLeastLoadedClient() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int firstIndex = random.nextInt(countingClients.length);
+    int secondIndex = random.nextInt(countingClients.length - 1);
+    if (secondIndex >= firstIndex) {
+      secondIndex++;
+    }
+    HHInFlightCountingMemcachedClient first = countingClients[firstIndex];
+    HHInFlightCountingMemcachedClient second = countingClients[secondIndex];
+    return first.getNumOfInFlightOperations() <= second.getNumOfInFlightOperations() ? first : second;
+  }
 }
@@ -0,0 +1,506 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Fails fast operations of a node that times out or fails, instead of putting them to the queue of the node.<br/>
+ *  Each node has a breaker: when at least failureRatePercent of at least minNumOfCalls operations of the node in windowMs
+ *  have failed or timed out, the breaker opens and operations of the node return a miss / false / -1 immediately.<br/>
+ *  After openMs the breaker is half-open: one probe operation goes to the node, it closes the breaker if it succeeds
+ *  and opens the breaker again if it fails.<br/>
+ *  Multi-key operations skip keys of open nodes, they count as a failure of a node if they fail entirely
+ *  or if the node has timed out, bulk gets give keys of such a node as misses instead of failing.<br/>
+ *  The breaker finds the node of a key once per operation. While the breaker is closed, answers are counted without a lock. */
+class HHCircuitBreakerMemcachedClient implements HHMemcachedClient {
+  private static final Logger logger = LoggerFactory.getLogger(HHCircuitBreakerMemcachedClient.class);
+
+  enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final HHMemcachedClient hhMemcachedClient;
+  private final Settings settings;
+  private final LongSupplier nanoClock;
+  private final Map<InetSocketAddress, NodeCircuitBreaker> nodeToCircuitBreaker = new ConcurrentHashMap<>();
+  private final Counters transitionCounters;
+  private final Counters shortCircuitedCounters;
+
+  HHCircuitBreakerMemcachedClient(HHMemcachedClient hhMemcachedClient, Settings settings, String serviceName, StatsDSender statsDSender,
+                                  int metricsSendIntervalSec, int maxNumOfCounters) {
+    this(hhMemcachedClient, settings, System::nanoTime, maxNumOfCounters);
+
+    statsDSender.sendPeriodically(() -> {
+      statsDSender.sendCounters(serviceName + ".memcached.circuitBreaker.transitions", transitionCounters);
+      statsDSender.sendCounters(serviceName + ".memcached.circuitBreaker.shortCircuited", shortCircuitedCounters);
+    }, metricsSendIntervalSec);
+  }
+
+  HHCircuitBreakerMemcachedClient(HHMemcachedClient hhMemcachedClient, Settings settings, LongSupplier nanoClock, int maxNumOfCounters) {
+    this.hhMemcachedClient = hhMemcachedClient;
+    this.settings = settings;
+    this.nanoClock = nanoClock;
+    this.transitionCounters = new Counters(maxNumOfCounters);
+    this.shortCircuitedCounters = new Counters(maxNumOfCounters);
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    return call(region, key, null, () -> hhMemcachedClient.get(region, key));
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    AllowedKeys allowedKeys = allow(region, keys);
+    if (allowedKeys.keys.length == 0) {
+      return Collections.emptyMap();
+    }
+    Map<String, Object> keyToValue;
+    try {
+      keyToValue = hhMemcachedClient.getSome(region, allowedKeys.keys);
+    } catch (RuntimeException e) {
+      allowedKeys.onAnswer(e);
+      throw e;
+    }
+    allowedKeys.onAnswer(PartialKeyToValue.getTimedOutNodes(keyToValue));
+    return keyToValue;
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return callAsync(region, key, null, () -> hhMemcachedClient.asyncGet(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    AllowedKeys allowedKeys = allow(region, keys);
+    if (allowedKeys.keys.length == 0) {
+      return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+    CompletableFuture<Map<String, Object>> completableFuture = allowedKeys.watch(() -> hhMemcachedClient.asyncGetSome(region, allowedKeys.keys));
+    completableFuture.whenComplete((keyToValue, exception) -> {
+      if (exception == null) {
+        allowedKeys.onAnswer(PartialKeyToValue.getTimedOutNodes(keyToValue));
+      } else {
+        allowedKeys.onAnswer(exception);
+      }
+    });
+    return completableFuture;
+  }
+
+  /** Keys of open nodes are given as misses in the first part. */
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    AllowedKeys allowedKeys = allow(region, keys);
+    if (allowedKeys.keys.length < keys.length) {
+      partConsumer.accept(allowedKeys.getNotAllowedKeys(keys), Collections.emptyMap());
+    }
+    if (allowedKeys.keys.length == 0) {
+      return CompletableFuture.completedFuture(null);
+    }
+    Set<InetSocketAddress> timedOutNodes = ConcurrentHashMap.newKeySet();
+    CompletableFuture<Void> completableFuture = allowedKeys.watch(() -> hhMemcachedClient.streamGetSome(region, allowedKeys.keys,
+        (partKeys, partKeyToValue) -> {
+          timedOutNodes.addAll(PartialKeyToValue.getTimedOutNodes(partKeyToValue));
+          partConsumer.accept(partKeys, partKeyToValue);
+        }));
+    completableFuture.whenComplete((ignored, exception) -> {
+      if (exception == null) {
+        allowedKeys.onAnswer(timedOutNodes);
+      } else {
+        allowedKeys.onAnswer(exception);
+      }
+    });
+    return completableFuture;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    return callAsync(region, key, false, () -> hhMemcachedClient.set(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return callAsync(region, key, false, () -> hhMemcachedClient.delete(region, key));
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    return call(region, key, null, () -> hhMemcachedClient.gets(region, key));
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return callAsync(region, key, null, () -> hhMemcachedClient.asyncGets(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return callAsync(region, key, false, () -> hhMemcachedClient.add(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return callAsync(region, key, CASResponse.ERROR, () -> hhMemcachedClient.asyncCas(region, key, casId, exp, o));
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    return call(region, key, -1L, () -> hhMemcachedClient.increment(region, key, by, def));
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    return call(region, key, -1L, () -> hhMemcachedClient.increment(region, key, by, def, ttl));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return callAsync(region, key, false, () -> hhMemcachedClient.touch(region, key, ttl));
+  }
+
+  /** Operations of open nodes return false, the others go to the nodes in one batch. */
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    List<MemcachedBatch.Item> items = batch.getItems();
+    List<CompletableFuture<Boolean>> itemResults = new ArrayList<>(items.size());
+    MemcachedBatch allowedBatch = new MemcachedBatch();
+    List<NodeCircuitBreaker> allowedItemCircuitBreakers = new ArrayList<>(items.size());
+    for (MemcachedBatch.Item item : items) {
+      NodeCircuitBreaker circuitBreaker = getCircuitBreaker(item.region, item.key);
+      if (circuitBreaker.tryAcquire()) {
+        allowedBatch.add(item);
+        allowedItemCircuitBreakers.add(circuitBreaker);
+        itemResults.add(null);
+      } else {
+        itemResults.add(CompletableFuture.completedFuture(false));
+      }
+    }
+    if (allowedBatch.size() == 0) {
+      return new MemcachedBatchResult(itemResults);
+    }
+
+    MemcachedBatchResult allowedBatchResult;
+    try {
+      allowedBatchResult = hhMemcachedClient.executeBatch(allowedBatch);
+    } catch (RuntimeException e) {
+      allowedItemCircuitBreakers.forEach(circuitBreaker -> circuitBreaker.onAnswer(e));
+      throw e;
+    }
+    int allowedItemIndex = 0;
+    for (int i = 0; i < itemResults.size(); i++) {
+      if (itemResults.get(i) == null) {
+        NodeCircuitBreaker circuitBreaker = allowedItemCircuitBreakers.get(allowedItemIndex);
+        CompletableFuture<Boolean> itemResult = allowedBatchResult.getItemResult(allowedItemIndex);
+        itemResult.whenComplete((ignored, exception) -> circuitBreaker.onAnswer(exception));
+        itemResults.set(i, itemResult);
+        allowedItemIndex++;
+      }
+    }
+    return new MemcachedBatchResult(itemResults);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  State getState(InetSocketAddress node) {
+    NodeCircuitBreaker circuitBreaker = nodeToCircuitBreaker.get(node);
+    return circuitBreaker == null ? State.CLOSED : circuitBreaker.state;
+  }
+
+  private <T> T call(String region, String key, T shortCircuitValue, Supplier<T> operation) {
+    NodeCircuitBreaker circuitBreaker = getCircuitBreaker(region, key);
+    if (!circuitBreaker.tryAcquire()) {
+      return shortCircuitValue;
+    }
+    T value;
+    try {
+      value = operation.get();
+    } catch (RuntimeException e) {
+      circuitBreaker.onAnswer(e);
+      throw e;
+    }
+    circuitBreaker.onAnswer(null);
+    return value;
+  }
+
+  private <T> CompletableFuture<T> callAsync(String region, String key, T shortCircuitValue, Supplier<CompletableFuture<T>> operation) {
+    NodeCircuitBreaker circuitBreaker = getCircuitBreaker(region, key);
+    if (!circuitBreaker.tryAcquire()) {
+      return CompletableFuture.completedFuture(shortCircuitValue);
+    }
+    CompletableFuture<T> completableFuture;
+    try {
+      completableFuture = operation.get();
+    } catch (RuntimeException e) {
+      circuitBreaker.onAnswer(e);
+      throw e;
+    }
+    // the original future is returned, so cancellation by the caller reaches the operation
+    completableFuture.whenComplete((ignored, exception) -> circuitBreaker.onAnswer(exception));
+    return completableFuture;
+  }
+
+  private AllowedKeys allow(String region, String[] keys) {
+    Map<InetSocketAddress, Boolean> nodeToAllowed = new HashMap<>();
+    List<NodeCircuitBreaker> circuitBreakers = new ArrayList<>();
+    List<String> allowedKeys = new ArrayList<>(keys.length);
+    for (String key : keys) {
+      InetSocketAddress node = hhMemcachedClient.getPrimaryNodeAddress(getKey(region, key));
+      Boolean allowed = nodeToAllowed.get(node);
+      if (allowed == null) {
+        NodeCircuitBreaker circuitBreaker = getCircuitBreaker(node);
+        allowed = circuitBreaker.tryAcquire();
+        if (allowed) {
+          circuitBreakers.add(circuitBreaker);
+        }
+        nodeToAllowed.put(node, allowed);
+      }
+      if (allowed) {
+        allowedKeys.add(key);
+      }
+    }
+    String[] allowedKeysArray = allowedKeys.size() == keys.length ? keys : allowedKeys.toArray(new String[0]);
+    return new AllowedKeys(allowedKeysArray, circuitBreakers);
+  }
+
+  private NodeCircuitBreaker getCircuitBreaker(String region, String key) {
+    return getCircuitBreaker(hhMemcachedClient.getPrimaryNodeAddress(getKey(region, key)));
+  }
+
+  private NodeCircuitBreaker getCircuitBreaker(InetSocketAddress node) {
+    NodeCircuitBreaker circuitBreaker = nodeToCircuitBreaker.get(node);
+    if (circuitBreaker == null) {
+      circuitBreaker = nodeToCircuitBreaker.computeIfAbsent(node, NodeCircuitBreaker::new);
+    }
+    return circuitBreaker;
+  }
+
+  private static boolean isNodeFailure(Throwable exception) {
+    if (exception instanceof CompletionException && exception.getCause() != null) {
+      exception = exception.getCause();
+    }
+    // cancelled by the caller, or a key that no node accepts
+    return !(exception instanceof CancellationException || exception instanceof IllegalArgumentException);
+  }
+
+  static class Settings {
+    final int failureRatePercent;
+    final int minNumOfCalls;
+    final long windowMs;
+    final long openMs;
+
+    Settings(int failureRatePercent, int minNumOfCalls, long windowMs, long openMs) {
+      this.failureRatePercent = failureRatePercent;
+      this.minNumOfCalls = minNumOfCalls;
+      this.windowMs = windowMs;
+      this.openMs = openMs;
+    }
+  }
+
+  private class AllowedKeys {
+    final String[] keys;
+    final List<NodeCircuitBreaker> circuitBreakers;
+
+    AllowedKeys(String[] keys, List<NodeCircuitBreaker> circuitBreakers) {
+      this.keys = keys;
+      this.circuitBreakers = circuitBreakers;
+    }
+
+    String[] getNotAllowedKeys(String[] allKeys) {
+      Set<String> allowedKeys = Set.of(keys);
+      List<String> notAllowedKeys = new ArrayList<>(allKeys.length - keys.length);
+      for (String key : allKeys) {
+        if (!allowedKeys.contains(key)) {
+          notAllowedKeys.add(key);
+        }
+      }
+      return notAllowedKeys.toArray(new String[0]);
+    }
+
+    <T> CompletableFuture<T> watch(Supplier<CompletableFuture<T>> operation) {
+      try {
+        return operation.get();
+      } catch (RuntimeException e) {
+        onAnswer(e);
+        throw e;
+      }
+    }
+
+    void onAnswer(Throwable exception) {
+      circuitBreakers.forEach(circuitBreaker -> circuitBreaker.onAnswer(exception));
+    }
+
+    void onAnswer(Set<InetSocketAddress> timedOutNodes) {
+      for (NodeCircuitBreaker circuitBreaker : circuitBreakers) {
+        circuitBreaker.onAnswer(timedOutNodes.contains(circuitBreaker.node));
+      }
+    }
+  }
+
+  // counts of the window are atomic, the other fields are guarded by the breaker
+  private class NodeCircuitBreaker {
+    private static final long ONE_CALL = 1L << 32;
+
+    private final Tag nodeTag;
+    private final InetSocketAddress node;
+    private final long windowNanos = TimeUnit.MILLISECONDS.toNanos(settings.windowMs);
+    private final AtomicReference<Window> window;
+    private volatile State state = State.CLOSED;
+    private long openedOrProbedAtNanos;
+    private boolean probeInFlight;
+
+    NodeCircuitBreaker(InetSocketAddress node) {
+      this.node = node;
+      this.nodeTag = new Tag("primaryNode", node.getHostString());
+      this.window = new AtomicReference<>(new Window(nanoClock.getAsLong()));
+    }
+
+    boolean tryAcquire() {
+      if (state == State.CLOSED) {
+        return true;
+      }
+      State newState = null;
+      boolean acquired;
+      synchronized (this) {
+        if (state == State.CLOSED) {
+          return true;
+        }
+        long nowNanos = nanoClock.getAsLong();
+        boolean openMsPassed = nowNanos - openedOrProbedAtNanos >= TimeUnit.MILLISECONDS.toNanos(settings.openMs);
+        if (state == State.OPEN) {
+          acquired = openMsPassed;
+          if (acquired) {
+            state = newState = State.HALF_OPEN;
+          }
+        } else {
+          // a probe that never answers must not keep the breaker half-open forever
+          acquired = !probeInFlight || openMsPassed;
+        }
+        if (acquired) {
+          probeInFlight = true;
+          openedOrProbedAtNanos = nowNanos;
+        }
+      }
+      if (newState != null) {
+        onTransition(newState);
+      }
+      if (!acquired) {
+        shortCircuitedCounters.add(1, nodeTag);
+      }
+      return acquired;
+    }
+
+    void onAnswer(Throwable exception) {
+      if (exception != null && !isNodeFailure(exception)) {
+        // says nothing about the node, but a probe has to be released
+        if (state != State.CLOSED) {
+          synchronized (this) {
+            probeInFlight = false;
+          }
+        }
+        return;
+      }
+      onAnswer(exception != null);
+    }
+
+    void onAnswer(boolean failed) {
+      if (state == State.CLOSED) {
+        onAnswerWhenClosed(failed);
+        return;
+      }
+      State newState = null;
+      synchronized (this) {
+        // answers of operations that were sent before the breaker opened are ignored
+        if (state == State.HALF_OPEN) {
+          probeInFlight = false;
+          long nowNanos = nanoClock.getAsLong();
+          newState = failed ? open(nowNanos) : close(nowNanos);
+        }
+      }
+      if (newState != null) {
+        onTransition(newState);
+      }
+    }
+
+    private void onAnswerWhenClosed(boolean failed) {
+      long nowNanos = nanoClock.getAsLong();
+      Window currentWindow = window.get();
+      if (nowNanos - currentWindow.startNanos >= windowNanos) {
+        Window newWindow = new Window(nowNanos);
+        currentWindow = window.compareAndSet(currentWindow, newWindow) ? newWindow : window.get();
+      }
+      long callsAndFailures = currentWindow.callsAndFailures.addAndGet(failed ? ONE_CALL + 1 : ONE_CALL);
+      long numOfCalls = callsAndFailures >>> 32;
+      long numOfFailures = callsAndFailures & 0xFFFFFFFFL;
+      if (numOfCalls < settings.minNumOfCalls || numOfFailures * 100L < settings.failureRatePercent * numOfCalls) {
+        return;
+      }
+      State newState = null;
+      synchronized (this) {
+        if (state == State.CLOSED && window.get() == currentWindow) {
+          newState = open(nowNanos);
+        }
+      }
+      if (newState != null) {
+        onTransition(newState);
+      }
+    }
+
+    private State open(long nowNanos) {
+      openedOrProbedAtNanos = nowNanos;
+      state = State.OPEN;
+      return State.OPEN;
+    }
+
+    private State close(long nowNanos) {
+      // the window is replaced before the state, so answers counted while closed never go to the window of the previous closed state
+      window.set(new Window(nowNanos));
+      state = State.CLOSED;
+      return State.CLOSED;
+    }
+
+    private void onTransition(State newState) {
+      transitionCounters.add(1, nodeTag, new Tag("state", newState.name().toLowerCase()));
+      if (newState == State.OPEN) {
+        logger.warn("circuit breaker of node {} is open, operations of the node fail fast for {} ms", node, settings.openMs);
+      } else {
+        logger.info("circuit breaker of node {} is {}", node, newState.name().toLowerCase());
+      }
+    }
+  }
+
+  private static class Window {
+    final long startNanos;
+    // number of calls in the high half, number of failures in the low half, so both are counted by one atomic add
+    final AtomicLong callsAndFailures = new AtomicLong();
+
+    Window(long startNanos) {
+      this.startNanos = startNanos;
+    }
+  }
+}
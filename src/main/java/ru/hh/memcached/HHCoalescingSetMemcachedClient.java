@@ -0,0 +1,320 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Keeps sets of coalesced regions locally for windowMs of the region and sends only the latest value of each key,
+ *  for last-writer-wins regions that are rewritten many times per second.<br/>
+ *  The future of a set completes when the value is sent, sets of a key within one window share the result.<br/>
+ *  get and asyncGet of a key with a pending set return the pending value,
+ *  other operations on such a key send the pending set first and wait for it, so the order of operations on a key is kept.<br/>
+ *  Keys above maxKeys are set without coalescing, so memory is bounded. Pending sets are flushed at JVM shutdown. */
+class HHCoalescingSetMemcachedClient implements HHMemcachedClient {
+  private static final Logger logger = LoggerFactory.getLogger(HHCoalescingSetMemcachedClient.class);
+
+  private final HHMemcachedClient hhMemcachedClient;
+  private final Map<String, Map<String, PendingSet>> regionToKeyToPendingSet = new HashMap<>();
+  private final int maxKeys;
+  private final AtomicInteger numOfPendingSets = new AtomicInteger();
+  private final ScheduledExecutorService flushExecutor;
+  private final Counters setsCounters;
+  private final Counters flushedKeysCounters;
+  private final Map<String, Tag> regionToTag = new HashMap<>();
+
+  HHCoalescingSetMemcachedClient(HHMemcachedClient hhMemcachedClient, Map<String, RegionSettings> regionToSettings, int maxKeys,
+                                 String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec) {
+    this.hhMemcachedClient = hhMemcachedClient;
+    this.maxKeys = maxKeys;
+    for (String region : regionToSettings.keySet()) {
+      regionToKeyToPendingSet.put(region, new ConcurrentHashMap<>());
+      regionToTag.put(region, new Tag("region", region));
+    }
+    this.setsCounters = new Counters(regionToSettings.size());
+    this.flushedKeysCounters = new Counters(regionToSettings.size());
+
+    // sets / flushedKeys is the coalescing ratio
+    statsDSender.sendPeriodically(() -> {
+      statsDSender.sendCounters(serviceName + ".memcached.setCoalescing.sets", setsCounters);
+      statsDSender.sendCounters(serviceName + ".memcached.setCoalescing.flushedKeys", flushedKeysCounters);
+    }, metricsSendIntervalSec);
+
+    flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "memcached-set-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    regionToSettings.forEach((region, settings) -> flushExecutor.scheduleWithFixedDelay(
+        () -> flushSafely(region), settings.windowMs, settings.windowMs, TimeUnit.MILLISECONDS
+    ));
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      flushExecutor.shutdown();
+      // the JVM exits when the hook returns, so the hook waits for the sets
+      regionToKeyToPendingSet.keySet().forEach(this::flushSafely);
+    }, "memcached-set-flush-on-shutdown"));
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    PendingSet pendingSet = getPendingSet(region, key);
+    return pendingSet != null ? pendingSet.value : hhMemcachedClient.get(region, key);
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    waitForPendingSets(region, keys);
+    return hhMemcachedClient.getSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    PendingSet pendingSet = getPendingSet(region, key);
+    return pendingSet != null ? CompletableFuture.completedFuture(pendingSet.value) : hhMemcachedClient.asyncGet(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    return afterPendingSets(region, keys, () -> hhMemcachedClient.asyncGetSome(region, keys));
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return afterPendingSets(region, keys, () -> hhMemcachedClient.streamGetSome(region, keys, partConsumer));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    Map<String, PendingSet> keyToPendingSet = regionToKeyToPendingSet.get(region);
+    if (keyToPendingSet == null || (numOfPendingSets.get() >= maxKeys && !keyToPendingSet.containsKey(key))) {
+      return afterPendingSets(region, new String[]{key}, () -> hhMemcachedClient.set(region, key, exp, o));
+    }
+
+    PendingSet pendingSet = keyToPendingSet.compute(key, (ignored, existingPendingSet) -> {
+      if (existingPendingSet == null) {
+        numOfPendingSets.incrementAndGet();
+        return new PendingSet(exp, o);
+      }
+      existingPendingSet.exp = exp;
+      existingPendingSet.value = o;
+      return existingPendingSet;
+    });
+    setsCounters.add(1, regionToTag.get(region));
+    // a caller that cancels its future must not cancel the result of other sets of the key
+    return pendingSet.result.copy();
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return afterPendingSets(region, new String[]{key}, () -> hhMemcachedClient.delete(region, key));
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    waitForPendingSets(region, new String[]{key});
+    return hhMemcachedClient.gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return afterPendingSets(region, new String[]{key}, () -> hhMemcachedClient.asyncGets(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return afterPendingSets(region, new String[]{key}, () -> hhMemcachedClient.add(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return afterPendingSets(region, new String[]{key}, () -> hhMemcachedClient.asyncCas(region, key, casId, exp, o));
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    waitForPendingSets(region, new String[]{key});
+    return hhMemcachedClient.increment(region, key, by, def);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    waitForPendingSets(region, new String[]{key});
+    return hhMemcachedClient.increment(region, key, by, def, ttl);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return afterPendingSets(region, new String[]{key}, () -> hhMemcachedClient.touch(region, key, ttl));
+  }
+
+  /** Pending sets of all keys of the batch are sent together, and the batch waits for them once. */
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    Map<String, List<String>> regionToKeys = new HashMap<>();
+    for (MemcachedBatch.Item item : batch.getItems()) {
+      Map<String, PendingSet> keyToPendingSet = regionToKeyToPendingSet.get(item.region);
+      if (keyToPendingSet != null && keyToPendingSet.containsKey(item.key)) {
+        regionToKeys.computeIfAbsent(item.region, region -> new ArrayList<>()).add(item.key);
+      }
+    }
+    List<CompletableFuture<?>> pendingSetsResults = new ArrayList<>(regionToKeys.size());
+    regionToKeys.forEach((region, keys) -> {
+      CompletableFuture<?> pendingSetsResult = sendPendingSets(region, keys.toArray(new String[0]));
+      if (pendingSetsResult != null) {
+        pendingSetsResults.add(pendingSetsResult);
+      }
+    });
+    if (!pendingSetsResults.isEmpty()) {
+      waitFor(CompletableFuture.allOf(pendingSetsResults.toArray(new CompletableFuture<?>[0])));
+    }
+    return hhMemcachedClient.executeBatch(batch);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  /** Sends the latest values of all pending keys of the region by one batch.
+   *  @return result of the batch */
+  CompletableFuture<Boolean> flush(String region) {
+    Map<String, PendingSet> keyToPendingSet = regionToKeyToPendingSet.get(region);
+    MemcachedBatch batch = new MemcachedBatch();
+    List<PendingSet> flushedPendingSets = new ArrayList<>();
+    for (String key : keyToPendingSet.keySet()) {
+      PendingSet pendingSet = keyToPendingSet.remove(key);
+      if (pendingSet != null) {
+        numOfPendingSets.decrementAndGet();
+        batch.set(region, key, pendingSet.exp, pendingSet.value);
+        flushedPendingSets.add(pendingSet);
+      }
+    }
+    if (flushedPendingSets.isEmpty()) {
+      return CompletableFuture.completedFuture(true);
+    }
+    flushedKeysCounters.add(flushedPendingSets.size(), regionToTag.get(region));
+
+    MemcachedBatchResult batchResult;
+    try {
+      batchResult = hhMemcachedClient.executeBatch(batch);
+    } catch (RuntimeException e) {
+      for (PendingSet pendingSet : flushedPendingSets) {
+        pendingSet.result.completeExceptionally(e);
+      }
+      throw e;
+    }
+    for (int i = 0; i < flushedPendingSets.size(); i++) {
+      completeWith(flushedPendingSets.get(i), batchResult.getItemResult(i));
+    }
+    return batchResult.getResult();
+  }
+
+  private void flushSafely(String region) {
+    try {
+      flush(region).join();
+    } catch (RuntimeException e) {
+      logger.warn("failed to flush sets of region {}", region, e);
+    }
+  }
+
+  @Nullable
+  private PendingSet getPendingSet(String region, String key) {
+    Map<String, PendingSet> keyToPendingSet = regionToKeyToPendingSet.get(region);
+    return keyToPendingSet == null ? null : keyToPendingSet.get(key);
+  }
+
+  /** Sends pending sets of the keys at once, the operation is started when they complete, successfully or not. */
+  private <T> CompletableFuture<T> afterPendingSets(String region, String[] keys, Supplier<CompletableFuture<T>> method) {
+    CompletableFuture<?> pendingSetsResult = sendPendingSets(region, keys);
+    if (pendingSetsResult == null) {
+      return method.get();
+    }
+    return pendingSetsResult.handle((ignoredValue, ignoredException) -> null).thenCompose(ignored -> method.get());
+  }
+
+  private void waitForPendingSets(String region, String[] keys) {
+    CompletableFuture<?> pendingSetsResult = sendPendingSets(region, keys);
+    if (pendingSetsResult != null) {
+      waitFor(pendingSetsResult);
+    }
+  }
+
+  private static void waitFor(CompletableFuture<?> pendingSetsResult) {
+    // the result of the set is reported to its caller, here the order of operations matters only
+    pendingSetsResult.handle((ignoredValue, ignoredException) -> null).join();
+  }
+
+  /** @return null if the keys have not got pending sets */
+  @Nullable
+  private CompletableFuture<?> sendPendingSets(String region, String[] keys) {
+    Map<String, PendingSet> keyToPendingSet = regionToKeyToPendingSet.get(region);
+    if (keyToPendingSet == null || keyToPendingSet.isEmpty()) {
+      return null;
+    }
+    List<CompletableFuture<Boolean>> results = null;
+    for (String key : keys) {
+      PendingSet pendingSet = keyToPendingSet.remove(key);
+      if (pendingSet == null) {
+        continue;
+      }
+      numOfPendingSets.decrementAndGet();
+      flushedKeysCounters.add(1, regionToTag.get(region));
+      if (results == null) {
+        results = new ArrayList<>();
+      }
+      CompletableFuture<Boolean> result;
+      try {
+        result = hhMemcachedClient.set(region, key, pendingSet.exp, pendingSet.value);
+      } catch (RuntimeException e) {
+        result = CompletableFuture.failedFuture(e);
+      }
+      completeWith(pendingSet, result);
+      results.add(result);
+    }
+    return results == null ? null : CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private static void completeWith(PendingSet pendingSet, CompletableFuture<Boolean> result) {
+    result.whenComplete((value, exception) -> {
+      if (exception != null) {
+        pendingSet.result.completeExceptionally(exception);
+      } else {
+        pendingSet.result.complete(value);
+      }
+    });
+  }
+
+  static final class RegionSettings {
+    final long windowMs;
+
+    RegionSettings(long windowMs) {
+      this.windowMs = windowMs;
+    }
+  }
+
+  private static final class PendingSet {
+    final CompletableFuture<Boolean> result = new CompletableFuture<>();
+    volatile int exp;
+    volatile Object value;
+
+    PendingSet(int exp, Object value) {
+      this.exp = exp;
+      this.value = value;
+    }
+  }
+}
@@ -1,10 +1,16 @@
 package ru.hh.memcached;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
@@ -47,6 +53,73 @@ class HHExceptionSwallowerMemcachedClient implements HHMemcachedClient {
     }
   }
 
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    CompletableFuture<Object> origFuture;
+    try {
+      origFuture = hhMemcachedClient.asyncGet(region, key);
+    } catch (RuntimeException e) {
+      logger.warn("failed to get async get future, region {}, primary node {}, {}, chain of causes is {}, returning null future",
+          region, getPrimaryNodeString(region, key), e.toString(), getChainOfCauses(e));
+      return CompletableFuture.completedFuture(null);
+    }
+    return getFutureWithoutException(origFuture, null, region, key, "get");
+  }
+
+  /** @return future of map of key to value.<br/>
+   * The map does not contain keys that are not in memcached or if an error occurs. **/
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    CompletableFuture<Map<String, Object>> origFuture;
+    try {
+      origFuture = hhMemcachedClient.asyncGetSome(region, keys);
+    } catch (RuntimeException e) {
+      logger.warn("failed to get async getSome future, region {}, {}, chain of causes is {}, returning empty map future",
+          region, e.toString(), getChainOfCauses(e));
+      return CompletableFuture.completedFuture(Collections.emptyMap());
+    }
+
+    CompletableFuture<Map<String, Object>> completableFuture = origFuture.handle((keyToValue, exception) -> {
+      if (null == exception) {
+        return keyToValue;
+      } else {
+        logger.warn("method async getSome failed, causes: {}, region {}, returning empty map", getChainOfCauses(exception), region);
+        return Collections.emptyMap();
+      }
+    });
+    cancelOrigFutureOnCancellation(completableFuture, origFuture);
+    return completableFuture;
+  }
+
+  /** Keys of parts that failed are given to partConsumer as misses, so each key is given exactly once. */
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    Set<String> givenKeys = ConcurrentHashMap.newKeySet();
+    CompletableFuture<Void> origFuture;
+    try {
+      origFuture = hhMemcachedClient.streamGetSome(region, keys, (partKeys, partKeyToValue) -> {
+        givenKeys.addAll(Arrays.asList(partKeys));
+        partConsumer.accept(partKeys, partKeyToValue);
+      });
+    } catch (RuntimeException e) {
+      logger.warn("failed to get stream getSome future, region {}, {}, chain of causes is {}, giving not received keys as misses",
+          region, e.toString(), getChainOfCauses(e));
+      giveNotGivenKeysAsMisses(keys, givenKeys, partConsumer);
+      return CompletableFuture.completedFuture(null);
+    }
+
+    CompletableFuture<Void> completableFuture = origFuture.handle((ignored, exception) -> {
+      if (exception != null) {
+        logger.warn("method async streamGetSome failed, causes: {}, region {}, giving not received keys as misses",
+            getChainOfCauses(exception), region);
+        giveNotGivenKeysAsMisses(keys, givenKeys, partConsumer);
+      }
+      return null;
+    });
+    cancelOrigFutureOnCancellation(completableFuture, origFuture);
+    return completableFuture;
+  }
+
   @Override
   public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
     CompletableFuture<Boolean> origFuture;
@@ -85,6 +158,19 @@ class HHExceptionSwallowerMemcachedClient implements HHMemcachedClient {
     }
   }
 
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    CompletableFuture<CASPair> origFuture;
+    try {
+      origFuture = hhMemcachedClient.asyncGets(region, key);
+    } catch (RuntimeException e) {
+      logger.warn("failed to get async gets future, region {}, primary node {}, {}, chain of causes is {}, returning null future",
+          region, getPrimaryNodeString(region, key), e.toString(), getChainOfCauses(e));
+      return CompletableFuture.completedFuture(null);
+    }
+    return getFutureWithoutException(origFuture, null, region, key, "gets");
+  }
+
   @Override
   public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
     CompletableFuture<Boolean> origFuture;
@@ -146,6 +232,32 @@ class HHExceptionSwallowerMemcachedClient implements HHMemcachedClient {
     return getFutureWithoutException(origFuture, null, region, key, "touch");
   }
 
+  /** Each failed operation of the batch returns false. */
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    List<MemcachedBatch.Item> items = batch.getItems();
+    MemcachedBatchResult origBatchResult;
+    try {
+      origBatchResult = hhMemcachedClient.executeBatch(batch);
+    } catch (RuntimeException e) {
+      logger.warn("failed to execute batch of {} operations, {}, chain of causes is {}, returning false futures",
+          items.size(), e.toString(), getChainOfCauses(e));
+      List<CompletableFuture<Boolean>> itemResults = new ArrayList<>(items.size());
+      for (int i = 0; i < items.size(); i++) {
+        itemResults.add(CompletableFuture.completedFuture(false));
+      }
+      return new MemcachedBatchResult(itemResults);
+    }
+
+    List<CompletableFuture<Boolean>> itemResults = new ArrayList<>(items.size());
+    for (int i = 0; i < items.size(); i++) {
+      MemcachedBatch.Item item = items.get(i);
+      itemResults.add(getFutureWithoutException(origBatchResult.getItemResult(i), false, item.region, item.key,
+                                                "batch " + item.command.name().toLowerCase()));
+    }
+    return new MemcachedBatchResult(itemResults);
+  }
+
   @Override
   public InetSocketAddress getPrimaryNodeAddress(String key) {
     return hhMemcachedClient.getPrimaryNodeAddress(key);
@@ -171,13 +283,29 @@ class HHExceptionSwallowerMemcachedClient implements HHMemcachedClient {
       }
     });
 
+    cancelOrigFutureOnCancellation(completableFuture, origFuture);
+    return completableFuture;
+  }
+
+  private static void giveNotGivenKeysAsMisses(String[] keys, Set<String> givenKeys,
+                                               BiConsumer<String[], Map<String, Object>> partConsumer) {
+    List<String> notGivenKeys = new ArrayList<>();
+    for (String key : keys) {
+      if (!givenKeys.contains(key)) {
+        notGivenKeys.add(key);
+      }
+    }
+    if (!notGivenKeys.isEmpty()) {
+      partConsumer.accept(notGivenKeys.toArray(new String[0]), Collections.emptyMap());
+    }
+  }
+
+  private static void cancelOrigFutureOnCancellation(CompletableFuture<?> completableFuture, CompletableFuture<?> origFuture) {
     completableFuture.whenComplete((completableFutureValue, exception) -> {
       if (exception instanceof CancellationException) {
         origFuture.cancel(false);
       }
     });
-
-    return completableFuture;
   }
 
   private String getChainOfCauses(Throwable throwable) {
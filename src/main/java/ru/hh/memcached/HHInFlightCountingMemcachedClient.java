@@ -0,0 +1,152 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/** Counts operations of an instance that are started and not completed yet, the load of the instance for balancing.<br/>
+ *  An operation is counted until its future completes, so operations waiting in queues of a slow IO thread are counted too. */
+class HHInFlightCountingMemcachedClient implements HHMemcachedClient {
+
+  private final HHMemcachedClient hhMemcachedClient;
+  private final AtomicInteger numOfInFlightOperations = new AtomicInteger();
+
+  HHInFlightCountingMemcachedClient(HHMemcachedClient hhMemcachedClient) {
+    this.hhMemcachedClient = hhMemcachedClient;
+  }
+
+  int getNumOfInFlightOperations() {
+    return numOfInFlightOperations.get();
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    numOfInFlightOperations.incrementAndGet();
+    try {
+      return hhMemcachedClient.get(region, key);
+    } finally {
+      numOfInFlightOperations.decrementAndGet();
+    }
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    numOfInFlightOperations.incrementAndGet();
+    try {
+      return hhMemcachedClient.getSome(region, keys);
+    } finally {
+      numOfInFlightOperations.decrementAndGet();
+    }
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return countUntilCompleted(() -> hhMemcachedClient.asyncGet(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    return countUntilCompleted(() -> hhMemcachedClient.asyncGetSome(region, keys));
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return countUntilCompleted(() -> hhMemcachedClient.streamGetSome(region, keys, partConsumer));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    return countUntilCompleted(() -> hhMemcachedClient.set(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return countUntilCompleted(() -> hhMemcachedClient.delete(region, key));
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    numOfInFlightOperations.incrementAndGet();
+    try {
+      return hhMemcachedClient.gets(region, key);
+    } finally {
+      numOfInFlightOperations.decrementAndGet();
+    }
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return countUntilCompleted(() -> hhMemcachedClient.asyncGets(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return countUntilCompleted(() -> hhMemcachedClient.add(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return countUntilCompleted(() -> hhMemcachedClient.asyncCas(region, key, casId, exp, o));
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    numOfInFlightOperations.incrementAndGet();
+    try {
+      return hhMemcachedClient.increment(region, key, by, def);
+    } finally {
+      numOfInFlightOperations.decrementAndGet();
+    }
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    numOfInFlightOperations.incrementAndGet();
+    try {
+      return hhMemcachedClient.increment(region, key, by, def, ttl);
+    } finally {
+      numOfInFlightOperations.decrementAndGet();
+    }
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return countUntilCompleted(() -> hhMemcachedClient.touch(region, key, ttl));
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    numOfInFlightOperations.incrementAndGet();
+    MemcachedBatchResult batchResult;
+    try {
+      batchResult = hhMemcachedClient.executeBatch(batch);
+    } catch (RuntimeException e) {
+      numOfInFlightOperations.decrementAndGet();
+      throw e;
+    }
+    batchResult.getResult().whenComplete((ignoredValue, ignoredException) -> numOfInFlightOperations.decrementAndGet());
+    return batchResult;
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  private <T> CompletableFuture<T> countUntilCompleted(Supplier<CompletableFuture<T>> method) {
+    numOfInFlightOperations.incrementAndGet();
+    CompletableFuture<T> future;
+    try {
+      future = method.get();
+    } catch (RuntimeException e) {
+      numOfInFlightOperations.decrementAndGet();
+      throw e;
+    }
+    // the caller gets the original future, so it can still cancel it
+    future.whenComplete((ignoredValue, ignoredException) -> numOfInFlightOperations.decrementAndGet());
+    return future;
+  }
+}
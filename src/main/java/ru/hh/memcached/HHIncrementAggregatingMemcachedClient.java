@@ -0,0 +1,246 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Sums increments of keys of aggregated regions locally and sends the sums by one batch every flushIntervalMs,
+ *  instead of a blocking round trip per increment.<br/>
+ *  Increment of an aggregated region returns -1 at once, as the new value is not known yet,
+ *  so aggregated regions are for counters that are not read by the incrementing code.<br/>
+ *  When maxKeys keys have sums, a flush is started at once, and keys that do not fit are incremented without aggregation,
+ *  so memory is bounded. Sums that have not been sent yet are flushed at JVM shutdown.<br/>
+ *  Other methods and other regions go to the wrapped client. */
+class HHIncrementAggregatingMemcachedClient implements HHMemcachedClient {
+  private static final Logger logger = LoggerFactory.getLogger(HHIncrementAggregatingMemcachedClient.class);
+
+  private final HHMemcachedClient hhMemcachedClient;
+  private final Set<String> aggregatedRegions;
+  private final int maxKeys;
+  private final Map<String, PendingIncrement> keyToPendingIncrement = new ConcurrentHashMap<>();
+  private final AtomicBoolean flushStarted = new AtomicBoolean();
+  private final ScheduledExecutorService flushExecutor;
+  private final Counters incrementsCounters;
+  private final Counters flushedKeysCounters;
+  private final Histograms flushTimeHistograms;
+  private final Map<String, Tag> regionToTag = new ConcurrentHashMap<>();
+
+  HHIncrementAggregatingMemcachedClient(HHMemcachedClient hhMemcachedClient, Set<String> aggregatedRegions, long flushIntervalMs,
+                                        int maxKeys, String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                                        int maxHistogramSize) {
+    this.hhMemcachedClient = hhMemcachedClient;
+    this.aggregatedRegions = aggregatedRegions;
+    this.maxKeys = maxKeys;
+    this.incrementsCounters = new Counters(aggregatedRegions.size());
+    this.flushedKeysCounters = new Counters(aggregatedRegions.size());
+    this.flushTimeHistograms = new Histograms(maxHistogramSize, 1);
+
+    // increments / flushedKeys is the coalescing ratio
+    statsDSender.sendPeriodically(() -> {
+      statsDSender.sendCounters(serviceName + ".memcached.incrementAggregation.increments", incrementsCounters);
+      statsDSender.sendCounters(serviceName + ".memcached.incrementAggregation.flushedKeys", flushedKeysCounters);
+      statsDSender.sendHistograms(serviceName + ".memcached.incrementAggregation.flushTime", flushTimeHistograms,
+                                  StatsDSender.DEFAULT_PERCENTILES);
+    }, metricsSendIntervalSec);
+
+    flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "memcached-increment-flush");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flushExecutor.scheduleWithFixedDelay(this::flushSafely, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      flushExecutor.shutdown();
+      flushSafely();
+    }, "memcached-increment-flush-on-shutdown"));
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    return hhMemcachedClient.get(region, key);
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    return hhMemcachedClient.getSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return hhMemcachedClient.asyncGet(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    return hhMemcachedClient.asyncGetSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return hhMemcachedClient.streamGetSome(region, keys, partConsumer);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    return hhMemcachedClient.set(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return hhMemcachedClient.delete(region, key);
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    return hhMemcachedClient.gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return hhMemcachedClient.asyncGets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return hhMemcachedClient.add(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return hhMemcachedClient.asyncCas(region, key, casId, exp, o);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    if (!aggregatedRegions.contains(region) || !aggregate(region, key, by, def, 0)) {
+      return hhMemcachedClient.increment(region, key, by, def);
+    }
+    return -1;
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    if (!aggregatedRegions.contains(region) || !aggregate(region, key, by, def, ttl)) {
+      return hhMemcachedClient.increment(region, key, by, def, ttl);
+    }
+    return -1;
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return hhMemcachedClient.touch(region, key, ttl);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    return hhMemcachedClient.executeBatch(batch);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  /** @return false if the key does not fit into maxKeys and must be incremented at once */
+  private boolean aggregate(String region, String key, int by, int def, int ttl) {
+    String keyWithRegion = getKey(region, key);
+    if (keyToPendingIncrement.size() >= maxKeys) {
+      startFlush();
+      if (!keyToPendingIncrement.containsKey(keyWithRegion)) {
+        return false;
+      }
+    }
+    keyToPendingIncrement.compute(keyWithRegion, (ignored, pendingIncrement) -> {
+      if (pendingIncrement == null) {
+        return new PendingIncrement(region, key, by, def, ttl);
+      }
+      pendingIncrement.add(by, ttl);
+      return pendingIncrement;
+    });
+    incrementsCounters.add(1, getRegionTag(region));
+    return true;
+  }
+
+  private void startFlush() {
+    if (flushStarted.compareAndSet(false, true)) {
+      flushExecutor.execute(() -> {
+        flushStarted.set(false);
+        flushSafely();
+      });
+    }
+  }
+
+  private void flushSafely() {
+    try {
+      flush().join();
+    } catch (RuntimeException e) {
+      logger.warn("failed to flush increments", e);
+    }
+  }
+
+  /** Sends the sums of all keys by one batch, sums that are added after the key has been taken are sent by the next flush.
+   *  @return result of the batch */
+  CompletableFuture<Boolean> flush() {
+    MemcachedBatch batch = new MemcachedBatch();
+    for (String keyWithRegion : keyToPendingIncrement.keySet()) {
+      PendingIncrement pendingIncrement = keyToPendingIncrement.remove(keyWithRegion);
+      if (pendingIncrement != null) {
+        batch.increment(pendingIncrement.region, pendingIncrement.key, pendingIncrement.by, pendingIncrement.def, pendingIncrement.ttl);
+        flushedKeysCounters.add(1, getRegionTag(pendingIncrement.region));
+      }
+    }
+    if (batch.size() == 0) {
+      return CompletableFuture.completedFuture(true);
+    }
+
+    long time = System.currentTimeMillis();
+    return hhMemcachedClient.executeBatch(batch).getResult().whenComplete((allSucceeded, exception) -> {
+      flushTimeHistograms.save((int) (System.currentTimeMillis() - time));
+      if (exception == null && !allSucceeded) {
+        logger.warn("some of {} flushed increments failed", batch.size());
+      }
+    });
+  }
+
+  private Tag getRegionTag(String region) {
+    Tag regionTag = regionToTag.get(region);
+    return regionTag != null ? regionTag : regionToTag.computeIfAbsent(region, ignored -> new Tag("region", region));
+  }
+
+  private static final class PendingIncrement {
+    final String region;
+    final String key;
+    long by;
+    // value of a missing key: def of the first increment plus the following increments
+    long def;
+    int ttl;
+
+    PendingIncrement(String region, String key, int by, int def, int ttl) {
+      this.region = region;
+      this.key = key;
+      this.by = by;
+      this.def = def;
+      this.ttl = ttl;
+    }
+
+    void add(int by, int ttl) {
+      this.by += by;
+      this.def += by;
+      this.ttl = ttl;
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import net.spy.memcached.MemcachedNode;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+
+/** Drops writes of a node whose input queue is too full, so reads of the node still get a place in the queue
+ *  instead of waiting opQueueMaxBlockTime behind writes.<br/>
+ *  A dropped write returns false immediately, see {@link LoadSheddingPolicy} for which operations are dropped and when.<br/>
+ *  Wraps one instance of the client, because each instance has its own queues. */
+class HHLoadSheddingMemcachedClient implements HHMemcachedClient {
+  private final HHMemcachedClient hhMemcachedClient;
+  private final Function<String, MemcachedNode> keyToPrimaryNode;
+  private final LoadSheddingPolicy loadSheddingPolicy;
+
+  /** @param keyToPrimaryNode finds the node of the instance by key with region */
+  HHLoadSheddingMemcachedClient(HHMemcachedClient hhMemcachedClient, Function<String, MemcachedNode> keyToPrimaryNode,
+                                LoadSheddingPolicy loadSheddingPolicy) {
+    this.hhMemcachedClient = hhMemcachedClient;
+    this.keyToPrimaryNode = keyToPrimaryNode;
+    this.loadSheddingPolicy = loadSheddingPolicy;
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    return hhMemcachedClient.get(region, key);
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    return hhMemcachedClient.getSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return hhMemcachedClient.asyncGet(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    return hhMemcachedClient.asyncGetSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return hhMemcachedClient.streamGetSome(region, keys, partConsumer);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    if (shouldDrop(region, key, loadSheddingPolicy.getWritePriority(region))) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return hhMemcachedClient.set(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return hhMemcachedClient.delete(region, key);
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    return hhMemcachedClient.gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return hhMemcachedClient.asyncGets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    if (shouldDrop(region, key, loadSheddingPolicy.getWritePriority(region))) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return hhMemcachedClient.add(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return hhMemcachedClient.asyncCas(region, key, casId, exp, o);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    return hhMemcachedClient.increment(region, key, by, def);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    return hhMemcachedClient.increment(region, key, by, def, ttl);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    if (shouldDrop(region, key, LoadSheddingPolicy.Priority.BEST_EFFORT)) {
+      return CompletableFuture.completedFuture(false);
+    }
+    return hhMemcachedClient.touch(region, key, ttl);
+  }
+
+  /** Dropped operations of the batch return false, the others are executed. */
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    List<MemcachedBatch.Item> items = batch.getItems();
+    List<CompletableFuture<Boolean>> itemResults = new ArrayList<>(items.size());
+    MemcachedBatch notDroppedBatch = new MemcachedBatch();
+    for (MemcachedBatch.Item item : items) {
+      if (shouldDrop(item.region, item.key, getPriority(item))) {
+        itemResults.add(CompletableFuture.completedFuture(false));
+      } else {
+        notDroppedBatch.add(item);
+        itemResults.add(null);
+      }
+    }
+    if (notDroppedBatch.size() == items.size()) {
+      return hhMemcachedClient.executeBatch(batch);
+    }
+    if (notDroppedBatch.size() == 0) {
+      return new MemcachedBatchResult(itemResults);
+    }
+
+    MemcachedBatchResult notDroppedBatchResult = hhMemcachedClient.executeBatch(notDroppedBatch);
+    int notDroppedItemIndex = 0;
+    for (int i = 0; i < itemResults.size(); i++) {
+      if (itemResults.get(i) == null) {
+        itemResults.set(i, notDroppedBatchResult.getItemResult(notDroppedItemIndex++));
+      }
+    }
+    return new MemcachedBatchResult(itemResults);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  private LoadSheddingPolicy.Priority getPriority(MemcachedBatch.Item item) {
+    switch (item.command) {
+      case SET:
+      case ADD:
+        return loadSheddingPolicy.getWritePriority(item.region);
+      case TOUCH:
+        return LoadSheddingPolicy.Priority.BEST_EFFORT;
+      default:
+        return LoadSheddingPolicy.Priority.CRITICAL;
+    }
+  }
+
+  private boolean shouldDrop(String region, String key, LoadSheddingPolicy.Priority priority) {
+    return loadSheddingPolicy.shouldDrop(keyToPrimaryNode.apply(getKey(region, key)), priority, region);
+  }
+}
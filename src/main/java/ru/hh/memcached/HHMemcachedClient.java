@@ -4,6 +4,7 @@ import javax.annotation.Nullable;
 import java.net.InetSocketAddress;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
 
 public interface HHMemcachedClient {
   @Nullable
@@ -11,6 +12,17 @@ public interface HHMemcachedClient {
 
   Map<String, Object> getSome(String region, String[] keys);
 
+  CompletableFuture<Object> asyncGet(String region, String key);
+
+  CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys);
+
+  /** Gives keys to partConsumer part by part as soon as values of a part are received, a part is usually keys of one node,
+   *  so one slow node does not delay keys of other nodes.<br/>
+   *  partConsumer gets keys of the part and map of key to value, keys that are not in the map are misses or timed out.<br/>
+   *  partConsumer may be called from different threads at the same time.<br/>
+   *  The future completes when all parts have been given to partConsumer. */
+  CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer);
+
   CompletableFuture<Boolean> set(String region, String key, int exp, Object o);
 
   CompletableFuture<Boolean> delete(String region, String key);
@@ -18,6 +30,8 @@ public interface HHMemcachedClient {
   @Nullable
   CASPair gets(String region, String key);
 
+  CompletableFuture<CASPair> asyncGets(String region, String key);
+
   CompletableFuture<Boolean> add(String region, String key, int exp, Object o);
 
   CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o);
@@ -28,5 +42,10 @@ public interface HHMemcachedClient {
 
   CompletableFuture<Boolean> touch(String region, String key, int ttl);
 
+  /** Queues all operations of the batch without waiting for any of them, each operation is still a separate memcached command.
+   *  Decorators handle the batch as one call, for example monitoring sends time once per node and region,
+   *  so the batch saves work of the decorators per operation, not round trips. */
+  MemcachedBatchResult executeBatch(MemcachedBatch batch);
+
   InetSocketAddress getPrimaryNodeAddress(String key);
 }
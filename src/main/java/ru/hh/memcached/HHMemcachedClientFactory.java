@@ -1,7 +1,13 @@
 package ru.hh.memcached;
 
 import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import net.spy.memcached.AddrUtil;
 import net.spy.memcached.ConnectionFactory;
 import net.spy.memcached.ConnectionFactoryBuilder;
@@ -10,11 +16,24 @@ import net.spy.memcached.DefaultHashAlgorithm;
 import net.spy.memcached.FailureMode;
 import net.spy.memcached.MemcachedClient;
 import net.spy.memcached.ops.OperationQueueFactory;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.Max;
 import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
 
 import java.io.IOException;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 import static java.lang.Boolean.parseBoolean;
 import static java.lang.Integer.parseInt;
@@ -26,10 +45,46 @@ public class HHMemcachedClientFactory {
   private static final int MAX_TIME_HISTOGRAM_SIZE = 1000;
   private static final int MAX_NUM_OF_TIME_HISTOGRAMS = 20;
   private static final int MAX_NUM_OF_ERROR_COUNTERS = 500;
+  private static final int MAX_NUM_OF_COALESCED_COUNTERS = 500;
+  private static final int DEFAULT_NEAR_CACHE_MAX_SIZE = 10_000;
+  private static final int DEFAULT_NEAR_CACHE_TTL_MS = 1000;
+  private static final int DEFAULT_HEDGE_DELAY_MS = 5;
+  private static final int DEFAULT_HOT_KEYS_SAMPLE_RATE = 100;
+  // the same as in spy SerializingTranscoder
+  private static final int DEFAULT_COMPRESSION_THRESHOLD = 16384;
+  private static final int DEFAULT_DECODE_QUEUE_CAPACITY = 10_000;
+  private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_PERCENT = 50;
+  private static final int DEFAULT_CIRCUIT_BREAKER_MIN_NUM_OF_CALLS = 20;
+  private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_MS = 10_000;
+  private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_MS = 1000;
+  private static final int MAX_NUM_OF_CIRCUIT_BREAKER_COUNTERS = 500;
+  private static final int DEFAULT_BEST_EFFORT_WATERMARK_PERCENT = 50;
+  private static final int DEFAULT_NORMAL_WATERMARK_PERCENT = 80;
+  private static final int MAX_NUM_OF_DROPPED_COUNTERS = 500;
+  private static final int DEFAULT_INCREMENT_FLUSH_INTERVAL_MS = 100;
+  private static final int DEFAULT_INCREMENT_MAX_KEYS = 10_000;
+  private static final int DEFAULT_COALESCED_SET_WINDOW_MS = 50;
+  private static final int DEFAULT_COALESCED_SET_MAX_KEYS = 10_000;
+  private static final int DEFAULT_SERVERS_FILE_CHECK_INTERVAL_MS = 5000;
+  private static final int DEFAULT_WARM_UP_TIMEOUT_MS = 5000;
+  private static final int DEFAULT_GET_SOME_MAX_CHUNKS_IN_FLIGHT = 4;
+  private static final Tag REPLICA_POOL_TAG = new Tag("pool", "replica");
 
   private HHMemcachedClientFactory() {}
 
   public static HHMemcachedClient create(Properties properties, String serviceName, StatsDSender statsDSender) throws IOException {
+    // hotKeysTopK=10
+    // hotKeysSampleRate=100
+    HotKeyTracker hotKeyTracker = ofNullable(properties.getProperty("hotKeysTopK")).map(Integer::parseInt)
+      .map(topK -> new HotKeyTracker(topK, ofNullable(properties.getProperty("hotKeysSampleRate")).map(Integer::parseInt)
+        .orElse(DEFAULT_HOT_KEYS_SAMPLE_RATE)))
+      .orElse(null);
+    return create(properties, serviceName, statsDSender, hotKeyTracker);
+  }
+
+  /** @param hotKeyTracker counts the most used keys when sendStats=true, the caller can ask it for hot keys */
+  public static HHMemcachedClient create(Properties properties, String serviceName, StatsDSender statsDSender,
+                                         @Nullable HotKeyTracker hotKeyTracker) throws IOException {
     int metricsSendIntervalSec = ofNullable(properties.getProperty("metricsSendIntervalSec")).map(Integer::parseInt)
       .orElse(DEFAULT_METRICS_SEND_INTERVAL_SEC);
     int maxNumOfHitMissCounters = ofNullable(properties.getProperty("maxNumOfHitMissCounters")).map(Integer::parseInt)
@@ -40,24 +95,391 @@ public class HHMemcachedClientFactory {
       .orElse(MAX_NUM_OF_TIME_HISTOGRAMS);
     int maxNumOfErrorCounters = ofNullable(properties.getProperty("maxNumOfErrorCounters")).map(Integer::parseInt)
       .orElse(MAX_NUM_OF_ERROR_COUNTERS);
+    int maxNumOfCoalescedCounters = ofNullable(properties.getProperty("maxNumOfCoalescedCounters")).map(Integer::parseInt)
+      .orElse(MAX_NUM_OF_COALESCED_COUNTERS);
+
+    boolean sendQueuesStats = parseBoolean(properties.getProperty("sendQueuesStats"));
+    // phases of operations are taken by listeners of queues of nodes
+    OperationPhaseStats phaseStats = parseBoolean(properties.getProperty("sendPhaseStats"))
+        ? new OperationPhaseStats(serviceName, statsDSender, metricsSendIntervalSec, maxTimeHistogramSize, maxNumOfTimeHistograms)
+        : null;
+    Map<String, RegionPolicy> regionToPolicy = getRegionToPolicy(properties);
+    LoadSheddingPolicy loadSheddingPolicy = createLoadSheddingPolicy(properties, regionToPolicy, serviceName, statsDSender,
+                                                                     metricsSendIntervalSec);
+    // decodeThreads=8
+    // decodeQueueCapacity=10000
+    Integer decodeThreads = ofNullable(properties.getProperty("decodeThreads")).map(Integer::parseInt).orElse(null);
+    ExecutorService decodeExecutor = null;
+    if (decodeThreads != null) {
+      int decodeQueueCapacity = ofNullable(properties.getProperty("decodeQueueCapacity")).map(Integer::parseInt)
+        .orElse(DEFAULT_DECODE_QUEUE_CAPACITY);
+      decodeExecutor = createDecodeExecutor(decodeThreads, decodeQueueCapacity, sendQueuesStats, serviceName, statsDSender,
+                                            metricsSendIntervalSec);
+    }
+    final ConnectionFactoryBuilder builder = createConnectionFactoryBuilder(properties, null, serviceName, statsDSender,
+                                                                            metricsSendIntervalSec, phaseStats, loadSheddingPolicy,
+                                                                            decodeExecutor);
+    ConnectionFactory connectionFactory = builder.build();
+
+    // serversFile=/etc/memcached/servers
+    // serversFile.checkIntervalMs=5000
+    // serversFile.warmUpTimeoutMs=5000
+    Path serversFile = ofNullable(properties.getProperty("serversFile")).map(Path::of).orElse(null);
+    List<InetSocketAddress> nodes = serversFile != null
+        ? ServersFileWatcher.readServers(serversFile)
+        : AddrUtil.getAddresses(properties.getProperty("servers"));
+
+    int numOfInstances = getNumOfInstances(properties);
+
+    HHBalancingMemcachedClient.Mode balancingMode =
+        HHBalancingMemcachedClient.Mode.valueOf(properties.getProperty("balancingMode", HHBalancingMemcachedClient.Mode.RANDOM.name()));
+
+    CodecStats codecStats = parseBoolean(properties.getProperty("sendStats"))
+        ? new CodecStats(serviceName, statsDSender, metricsSendIntervalSec, maxTimeHistogramSize, maxNumOfTimeHistograms)
+        : null;
+    Map<String, Transcoder<Object>> regionToTranscoder = getRegionToTranscoder(properties, regionToPolicy, codecStats);
+    if (decodeThreads != null) {
+      regionToTranscoder.replaceAll((region, transcoder) -> new CallerDecodingTranscoder<>(transcoder));
+    }
+
+    HHSpyMemcachedClient.GetSomeChunking getSomeChunking = getGetSomeChunking(properties);
+    HHCircuitBreakerMemcachedClient.Settings circuitBreakerSettings = getCircuitBreakerSettings(properties);
+
+    HHMemcachedClient memcachedClient;
+    if (serversFile != null) {
+      // nodes are replaced under the per-node layers, circuit breakers and the layers above them stay
+      HHReconfigurableMemcachedClient reconfigurableMemcachedClient = new HHReconfigurableMemcachedClient(
+          poolNodes -> {
+            List<MemcachedClient> spyClients = new ArrayList<>();
+            // spy shuts down the default listener executor of the connection factory with the client, so each pool has its own factory
+            HHMemcachedClient poolClient = createHHSpyMemcachedClient(builder.build(), poolNodes, regionToTranscoder, regionToPolicy,
+                                                                      getSomeChunking, phaseStats, loadSheddingPolicy, numOfInstances,
+                                                                      balancingMode, spyClients);
+            return new HHReconfigurableMemcachedClient.Pool(poolNodes, poolClient, spyClients,
+                                                            loadSheddingPolicy == null ? null : loadSheddingPolicy.getNodeQueueSizes());
+          },
+          nodes,
+          ofNullable(properties.getProperty("serversFile.warmUpTimeoutMs")).map(Long::parseLong).orElse((long) DEFAULT_WARM_UP_TIMEOUT_MS),
+          parseInt(properties.getProperty("opTimeoutMs")),
+          serviceName, statsDSender, metricsSendIntervalSec
+      );
+      new ServersFileWatcher(serversFile,
+                             ofNullable(properties.getProperty("serversFile.checkIntervalMs")).map(Long::parseLong)
+                               .orElse((long) DEFAULT_SERVERS_FILE_CHECK_INTERVAL_MS),
+                             reconfigurableMemcachedClient::reconfigure);
+      memcachedClient = reconfigurableMemcachedClient;
+    } else {
+      memcachedClient = createHHSpyMemcachedClient(connectionFactory, nodes, regionToTranscoder, regionToPolicy, getSomeChunking,
+                                                   phaseStats, loadSheddingPolicy, numOfInstances, balancingMode, new ArrayList<>());
+    }
+    if (circuitBreakerSettings != null) {
+      memcachedClient = new HHCircuitBreakerMemcachedClient(memcachedClient, circuitBreakerSettings, serviceName, statsDSender,
+                                                            metricsSendIntervalSec, MAX_NUM_OF_CIRCUIT_BREAKER_COUNTERS);
+    }
+
+    Map<String, HHReplicatedMemcachedClient.RegionSettings> replicatedRegionToSettings = getReplicatedRegionToSettings(properties);
+    if (!replicatedRegionToSettings.isEmpty()) {
+      List<InetSocketAddress> replicaNodes = AddrUtil.getAddresses(properties.getProperty("replicaServers"));
+      // the replica pool has its own queues, so they are shed and monitored separately from the queues of the primary pool
+      LoadSheddingPolicy replicaLoadSheddingPolicy =
+          loadSheddingPolicy == null ? null : loadSheddingPolicy.withNodeQueueSizes(new NodeQueueSizes());
+      ConnectionFactory replicaConnectionFactory =
+          createConnectionFactoryBuilder(properties, REPLICA_POOL_TAG, serviceName, statsDSender, metricsSendIntervalSec, phaseStats,
+                                         replicaLoadSheddingPolicy, decodeExecutor).build();
+      HHMemcachedClient replicaMemcachedClient =
+          createHHSpyMemcachedClient(replicaConnectionFactory, replicaNodes, regionToTranscoder, regionToPolicy, getSomeChunking,
+                                     phaseStats, replicaLoadSheddingPolicy, numOfInstances, balancingMode, new ArrayList<>());
+      if (circuitBreakerSettings != null) {
+        replicaMemcachedClient = new HHCircuitBreakerMemcachedClient(replicaMemcachedClient, circuitBreakerSettings, serviceName, statsDSender,
+                                                                     metricsSendIntervalSec, MAX_NUM_OF_CIRCUIT_BREAKER_COUNTERS);
+      }
+      memcachedClient = new HHReplicatedMemcachedClient(memcachedClient, replicaMemcachedClient, replicatedRegionToSettings, serviceName,
+                                                        statsDSender, metricsSendIntervalSec);
+    }
+
+    if (parseBoolean(properties.getProperty("sendStats"))) {
+      memcachedClient = new HHMonitoringMemcachedClient(memcachedClient, serviceName, statsDSender,
+                                                        metricsSendIntervalSec,
+                                                        maxNumOfHitMissCounters,
+                                                        maxTimeHistogramSize, maxNumOfTimeHistograms,
+                                                        maxNumOfErrorCounters, hotKeyTracker, regionToPolicy);
+    }
+
+    if (parseBoolean(properties.getProperty("coalesceReads"))) {
+      memcachedClient = new HHSingleFlightMemcachedClient(memcachedClient, parseInt(properties.getProperty("opTimeoutMs")), serviceName,
+                                                          statsDSender, metricsSendIntervalSec, maxNumOfCoalescedCounters);
+    }
+
+    Map<String, HHNearCacheMemcachedClient.RegionSettings> nearCacheRegionToSettings = getNearCacheRegionToSettings(properties);
+    if (!nearCacheRegionToSettings.isEmpty()) {
+      memcachedClient = new HHNearCacheMemcachedClient(memcachedClient, nearCacheRegionToSettings, serviceName, statsDSender,
+                                                       metricsSendIntervalSec);
+    }
+
+    memcachedClient = createIncrementAggregatingClient(memcachedClient, properties, serviceName, statsDSender, metricsSendIntervalSec,
+                                                       maxTimeHistogramSize);
+
+    Map<String, HHCoalescingSetMemcachedClient.RegionSettings> coalescedSetRegionToSettings = getCoalescedSetRegionToSettings(properties);
+    if (!coalescedSetRegionToSettings.isEmpty()) {
+      int maxKeys = ofNullable(properties.getProperty("coalescedSet.maxKeys")).map(Integer::parseInt).orElse(DEFAULT_COALESCED_SET_MAX_KEYS);
+      memcachedClient = new HHCoalescingSetMemcachedClient(memcachedClient, coalescedSetRegionToSettings, maxKeys, serviceName, statsDSender,
+                                                           metricsSendIntervalSec);
+    }
+
+    return new HHExceptionSwallowerMemcachedClient(memcachedClient);
+  }
+
+  // coalescedSetRegions=region1,region2
+  // coalescedSet.region1.windowMs=50
+  // coalescedSet.maxKeys=10000
+  private static Map<String, HHCoalescingSetMemcachedClient.RegionSettings> getCoalescedSetRegionToSettings(Properties properties) {
+    Map<String, HHCoalescingSetMemcachedClient.RegionSettings> regionToSettings = new HashMap<>();
+    for (String region : getList(properties, "coalescedSetRegions")) {
+      long windowMs = ofNullable(properties.getProperty("coalescedSet." + region + ".windowMs")).map(Long::parseLong)
+        .orElse((long) DEFAULT_COALESCED_SET_WINDOW_MS);
+      regionToSettings.put(region, new HHCoalescingSetMemcachedClient.RegionSettings(windowMs));
+    }
+    return regionToSettings;
+  }
+
+  // aggregatedIncrementRegions=region1,region2
+  // aggregatedIncrement.flushIntervalMs=100
+  // aggregatedIncrement.maxKeys=10000
+  private static HHMemcachedClient createIncrementAggregatingClient(HHMemcachedClient memcachedClient, Properties properties,
+                                                                    String serviceName, StatsDSender statsDSender,
+                                                                    int metricsSendIntervalSec, int maxTimeHistogramSize) {
+    List<String> aggregatedRegions = getList(properties, "aggregatedIncrementRegions");
+    if (aggregatedRegions.isEmpty()) {
+      return memcachedClient;
+    }
+    long flushIntervalMs = ofNullable(properties.getProperty("aggregatedIncrement.flushIntervalMs")).map(Long::parseLong)
+      .orElse((long) DEFAULT_INCREMENT_FLUSH_INTERVAL_MS);
+    int maxKeys = ofNullable(properties.getProperty("aggregatedIncrement.maxKeys")).map(Integer::parseInt)
+      .orElse(DEFAULT_INCREMENT_MAX_KEYS);
+    return new HHIncrementAggregatingMemcachedClient(memcachedClient, new HashSet<>(aggregatedRegions), flushIntervalMs, maxKeys,
+                                                     serviceName, statsDSender, metricsSendIntervalSec, maxTimeHistogramSize);
+  }
+
+  // nearCacheRegions=region1,region2
+  // nearCache.region1.maxSize=10000
+  // nearCache.region1.ttlMs=1000
+  private static Map<String, HHNearCacheMemcachedClient.RegionSettings> getNearCacheRegionToSettings(Properties properties) {
+    Map<String, HHNearCacheMemcachedClient.RegionSettings> regionToSettings = new HashMap<>();
+    for (String region : getList(properties, "nearCacheRegions")) {
+      int maxSize = ofNullable(properties.getProperty("nearCache." + region + ".maxSize")).map(Integer::parseInt)
+        .orElse(DEFAULT_NEAR_CACHE_MAX_SIZE);
+      long ttlMs = ofNullable(properties.getProperty("nearCache." + region + ".ttlMs")).map(Long::parseLong)
+        .orElse((long) DEFAULT_NEAR_CACHE_TTL_MS);
+      regionToSettings.put(region, new HHNearCacheMemcachedClient.RegionSettings(maxSize, ttlMs));
+    }
+    return regionToSettings;
+  }
+
+  // replicaServers=host1:port host2:port
+  // replicatedRegions=region1,region2
+  // replicated.region1.hedgeDelayMs=5
+  // replicated.region1.readReplicaOnMiss=false, true sends every miss of the primary pool to the replica pool too,
+  // that is one more read of the replica pool and one more round trip per miss
+  private static Map<String, HHReplicatedMemcachedClient.RegionSettings> getReplicatedRegionToSettings(Properties properties) {
+    Map<String, HHReplicatedMemcachedClient.RegionSettings> regionToSettings = new HashMap<>();
+    for (String region : getList(properties, "replicatedRegions")) {
+      long hedgeDelayMs = ofNullable(properties.getProperty("replicated." + region + ".hedgeDelayMs")).map(Long::parseLong)
+        .orElse((long) DEFAULT_HEDGE_DELAY_MS);
+      boolean readReplicaOnMiss = parseBoolean(properties.getProperty("replicated." + region + ".readReplicaOnMiss"));
+      regionToSettings.put(region, new HHReplicatedMemcachedClient.RegionSettings(hedgeDelayMs, readReplicaOnMiss));
+    }
+    return regionToSettings;
+  }
+
+  // getSome.chunkSize=1000
+  // getSome.maxChunksInFlight=4
+  @Nullable
+  private static HHSpyMemcachedClient.GetSomeChunking getGetSomeChunking(Properties properties) {
+    String chunkSize = properties.getProperty("getSome.chunkSize");
+    if (chunkSize == null || parseInt(chunkSize) == 0) {
+      return null;
+    }
+    int maxChunksInFlight = ofNullable(properties.getProperty("getSome.maxChunksInFlight")).map(Integer::parseInt)
+      .orElse(DEFAULT_GET_SOME_MAX_CHUNKS_IN_FLIGHT);
+    return new HHSpyMemcachedClient.GetSomeChunking(parseInt(chunkSize), maxChunksInFlight);
+  }
+
+  // circuitBreaker=true
+  // circuitBreaker.failureRatePercent=50
+  // circuitBreaker.minNumOfCalls=20
+  // circuitBreaker.windowMs=10000
+  // circuitBreaker.openMs=1000
+  @Nullable
+  private static HHCircuitBreakerMemcachedClient.Settings getCircuitBreakerSettings(Properties properties) {
+    if (!parseBoolean(properties.getProperty("circuitBreaker"))) {
+      return null;
+    }
+    int failureRatePercent = ofNullable(properties.getProperty("circuitBreaker.failureRatePercent")).map(Integer::parseInt)
+      .orElse(DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_PERCENT);
+    int minNumOfCalls = ofNullable(properties.getProperty("circuitBreaker.minNumOfCalls")).map(Integer::parseInt)
+      .orElse(DEFAULT_CIRCUIT_BREAKER_MIN_NUM_OF_CALLS);
+    long windowMs = ofNullable(properties.getProperty("circuitBreaker.windowMs")).map(Long::parseLong)
+      .orElse((long) DEFAULT_CIRCUIT_BREAKER_WINDOW_MS);
+    long openMs = ofNullable(properties.getProperty("circuitBreaker.openMs")).map(Long::parseLong)
+      .orElse((long) DEFAULT_CIRCUIT_BREAKER_OPEN_MS);
+    return new HHCircuitBreakerMemcachedClient.Settings(failureRatePercent, minNumOfCalls, windowMs, openMs);
+  }
 
+  // loadShedding=true
+  // loadShedding.bestEffortWatermarkPercent=50
+  // loadShedding.normalWatermarkPercent=80
+  // loadShedding.bestEffortRegions=region1,region2
+  @Nullable
+  private static LoadSheddingPolicy createLoadSheddingPolicy(Properties properties, Map<String, RegionPolicy> regionToPolicy,
+                                                             String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec) {
+    if (!parseBoolean(properties.getProperty("loadShedding"))) {
+      return null;
+    }
+    int opQueueCapacity = parseInt(properties.getProperty("opQueueCapacity"));
+    int bestEffortWatermarkPercent = ofNullable(properties.getProperty("loadShedding.bestEffortWatermarkPercent")).map(Integer::parseInt)
+      .orElse(DEFAULT_BEST_EFFORT_WATERMARK_PERCENT);
+    int normalWatermarkPercent = ofNullable(properties.getProperty("loadShedding.normalWatermarkPercent")).map(Integer::parseInt)
+      .orElse(DEFAULT_NORMAL_WATERMARK_PERCENT);
+    // priorities of region policies, then best-effort regions of load shedding
+    Map<String, LoadSheddingPolicy.Priority> regionToWritePriority = new HashMap<>();
+    regionToPolicy.forEach((region, policy) -> {
+      if (policy.writePriority != null) {
+        regionToWritePriority.put(region, policy.writePriority);
+      }
+    });
+    Set<String> bestEffortRegions = new HashSet<>(getList(properties, "loadShedding.bestEffortRegions"));
+    regionToWritePriority.putAll(LoadSheddingPolicy.getRegionToWritePriority(bestEffortRegions));
+    return new LoadSheddingPolicy(new NodeQueueSizes(), opQueueCapacity * bestEffortWatermarkPercent / 100,
+                                  opQueueCapacity * normalWatermarkPercent / 100, regionToWritePriority,
+                                  serviceName, statsDSender, metricsSendIntervalSec, MAX_NUM_OF_DROPPED_COUNTERS);
+  }
+
+  // regionPolicies=critical,background
+  // regionPolicy.critical.regions=region1,region2
+  // regionPolicy.critical.timeoutMs=5
+  // regionPolicy.critical.defaultExp=300
+  // regionPolicy.critical.codec=bytes|string|java|com.example.CustomCodec
+  // regionPolicy.critical.priority=critical|normal|best_effort
+  private static Map<String, RegionPolicy> getRegionToPolicy(Properties properties) {
+    Map<String, RegionPolicy> regionToPolicy = new HashMap<>();
+    for (String name : getList(properties, "regionPolicies")) {
+      String prefix = "regionPolicy." + name + ".";
+      RegionPolicy policy = new RegionPolicy(
+          name,
+          ofNullable(properties.getProperty(prefix + "timeoutMs")).map(Integer::parseInt).orElse(null),
+          ofNullable(properties.getProperty(prefix + "defaultExp")).map(Integer::parseInt).orElse(0),
+          properties.getProperty(prefix + "codec"),
+          ofNullable(properties.getProperty(prefix + "priority"))
+            .map(priority -> LoadSheddingPolicy.Priority.valueOf(priority.toUpperCase())).orElse(null)
+      );
+      for (String region : getList(properties, prefix + "regions")) {
+        RegionPolicy otherPolicy = regionToPolicy.put(region, policy);
+        if (otherPolicy != null) {
+          throw new IllegalArgumentException("region " + region + " is in policies " + otherPolicy.name + " and " + name);
+        }
+      }
+    }
+    return regionToPolicy;
+  }
+
+  // codecRegions=region1,region2
+  // codec.region1=bytes|string|java|com.example.CustomCodec
+  // codec.region1.compressionThreshold=16384
+  // codec.region1.compression=gzip|deflate|none
+  private static Map<String, Transcoder<Object>> getRegionToTranscoder(Properties properties, Map<String, RegionPolicy> regionToPolicy,
+                                                                       @Nullable CodecStats codecStats) {
+    Map<String, Transcoder<Object>> regionToTranscoder = new HashMap<>();
+    // regions of policies with a codec are codec regions too
+    Set<String> codecRegions = new LinkedHashSet<>(getList(properties, "codecRegions"));
+    regionToPolicy.forEach((region, policy) -> {
+      if (policy.codec != null) {
+        codecRegions.add(region);
+      }
+    });
+    for (String region : codecRegions) {
+      RegionPolicy policy = regionToPolicy.get(region);
+      String defaultCodecName = policy != null && policy.codec != null ? policy.codec : "java";
+      MemcachedCodec codec = createCodec(properties.getProperty("codec." + region, defaultCodecName));
+      int compressionThreshold = ofNullable(properties.getProperty("codec." + region + ".compressionThreshold")).map(Integer::parseInt)
+        .orElse(DEFAULT_COMPRESSION_THRESHOLD);
+      CodecTranscoder.Compression compression = CodecTranscoder.Compression.valueOf(
+          properties.getProperty("codec." + region + ".compression", CodecTranscoder.Compression.GZIP.name()).toUpperCase()
+      );
+      regionToTranscoder.put(region, new CodecTranscoder(region, codec, compressionThreshold, compression, codecStats));
+    }
+    return regionToTranscoder;
+  }
+
+  private static MemcachedCodec createCodec(String codecName) {
+    switch (codecName) {
+      case "bytes":
+        return MemcachedCodec.BYTES;
+      case "string":
+        return MemcachedCodec.UTF8_STRING;
+      case "java":
+        return MemcachedCodec.JAVA_SERIALIZATION;
+      default:
+        try {
+          return (MemcachedCodec) Class.forName(codecName).getConstructor().newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+          throw new IllegalArgumentException("failed to create codec " + codecName, e);
+        }
+    }
+  }
+
+  private static List<String> getList(Properties properties, String name) {
+    String value = properties.getProperty(name);
+    if (value == null || value.isBlank()) {
+      return List.of();
+    }
+    List<String> list = new ArrayList<>();
+    for (String item : value.split(",")) {
+      if (!item.isBlank()) {
+        list.add(item.trim());
+      }
+    }
+    return list;
+  }
+
+  /** @param poolTag tags metrics of queues of the pool, null for the primary pool
+   *  @param decodeExecutor shared by all pools, null to decode values in transcoder threads of spy */
+  private static ConnectionFactoryBuilder createConnectionFactoryBuilder(Properties properties, @Nullable Tag poolTag, String serviceName,
+                                                                         StatsDSender statsDSender, int metricsSendIntervalSec,
+                                                                         @Nullable OperationPhaseStats phaseStats,
+                                                                         @Nullable LoadSheddingPolicy loadSheddingPolicy,
+                                                                         @Nullable ExecutorService decodeExecutor) {
     int opQueueCapacity = parseInt(properties.getProperty("opQueueCapacity"));
     int writeQueueCapacity = parseInt(properties.getProperty("writeOpQueueCapacity"));
     int readQueueCapacity = parseInt(properties.getProperty("readOpQueueCapacity"));
     OperationQueueFactory opQueueFactory;
     OperationQueueFactory writeQueueFactory;
     OperationQueueFactory readQueueFactory;
-    if (parseBoolean(properties.getProperty("sendQueuesStats"))) {
-      opQueueFactory = new MonitoringQueueFactory(opQueueCapacity, serviceName, "operation", statsDSender, metricsSendIntervalSec);
-      readQueueFactory = new MonitoringQueueFactory(readQueueCapacity, serviceName, "read", statsDSender, metricsSendIntervalSec);
-      writeQueueFactory = new MonitoringQueueFactory(writeQueueCapacity, serviceName, "write", statsDSender, metricsSendIntervalSec);
+    boolean sendQueuesStats = parseBoolean(properties.getProperty("sendQueuesStats"));
+    // queueType=array|mpsc
+    MonitoringQueueFactory.QueueType queueType = MonitoringQueueFactory.QueueType.valueOf(
+        properties.getProperty("queueType", MonitoringQueueFactory.QueueType.ARRAY.name()).toUpperCase()
+    );
+    if (sendQueuesStats || queueType != MonitoringQueueFactory.QueueType.ARRAY || phaseStats != null) {
+      readQueueFactory = new MonitoringQueueFactory(readQueueCapacity, serviceName, "read", statsDSender, metricsSendIntervalSec,
+                                                    sendQueuesStats, null, queueType, phaseStats == null ? null : phaseStats.getReadQueueListener(),
+                                                    poolTag);
+      writeQueueFactory = new MonitoringQueueFactory(writeQueueCapacity, serviceName, "write", statsDSender, metricsSendIntervalSec,
+                                                     sendQueuesStats, null, queueType, phaseStats == null ? null : phaseStats.getWriteQueueListener(),
+                                                     poolTag);
     } else {
-      opQueueFactory = () -> new ArrayBlockingQueue<>(opQueueCapacity);
       writeQueueFactory = () -> new ArrayBlockingQueue<>(writeQueueCapacity);
       readQueueFactory = () -> new ArrayBlockingQueue<>(readQueueCapacity);
     }
+    if (sendQueuesStats || queueType != MonitoringQueueFactory.QueueType.ARRAY || loadSheddingPolicy != null || phaseStats != null) {
+      // callers wait for a place in this queue, so load shedding looks at it
+      opQueueFactory = new MonitoringQueueFactory(opQueueCapacity, serviceName, "operation", statsDSender, metricsSendIntervalSec,
+                                                  sendQueuesStats, loadSheddingPolicy == null ? null : loadSheddingPolicy.getNodeQueueSizes(),
+                                                  queueType, phaseStats == null ? null : phaseStats.getInputQueueListener(), poolTag);
+    } else {
+      opQueueFactory = () -> new ArrayBlockingQueue<>(opQueueCapacity);
+    }
 
-    final ConnectionFactoryBuilder builder = new ConnectionFactoryBuilder()
+    ConnectionFactoryBuilder builder = new ConnectionFactoryBuilder()
         .setOpTimeout(parseInt(properties.getProperty("opTimeoutMs")))
         .setOpQueueMaxBlockTime(parseInt(properties.getProperty("opQueueMaxBlockTime")))
         .setOpQueueFactory(opQueueFactory)
@@ -71,22 +493,43 @@ public class HHMemcachedClientFactory {
         .setTimeoutExceptionThreshold(parseInt(properties.getProperty("timeoutExceptionThreshold")))
         .setDaemon(true)
         .setUseNagleAlgorithm(false);
-    ConnectionFactory connectionFactory = builder.build();
-
-    List<InetSocketAddress> nodes = AddrUtil.getAddresses(properties.getProperty("servers"));
-
-    int numOfInstances = getNumOfInstances(properties);
+    if (decodeExecutor != null) {
+      builder
+        .setListenerExecutorService(decodeExecutor)
+        .setTranscoder(new CallerDecodingTranscoder<>(new SerializingTranscoder()));
+    }
+    return builder;
+  }
 
-    HHMemcachedClient memcachedClient = createHHSpyMemcachedClient(connectionFactory, nodes, numOfInstances);
-    if (parseBoolean(properties.getProperty("sendStats"))) {
-      memcachedClient = new HHMonitoringMemcachedClient(memcachedClient, serviceName, statsDSender,
-                                                        metricsSendIntervalSec,
-                                                        maxNumOfHitMissCounters,
-                                                        maxTimeHistogramSize, maxNumOfTimeHistograms,
-                                                        maxNumOfErrorCounters);
+  /** Completes futures of all instances and decodes values of async reads, sync reads are decoded by the caller.<br/>
+   *  When the queue is full a task runs in the overflow thread, the number of such tasks is sent as rejectedTasks with queue=decode.
+   *  The overflow queue has the same capacity, futures of tasks that do not fit into it fail, their number is sent with queue=decodeOverflow. */
+  private static ExecutorService createDecodeExecutor(int decodeThreads, int decodeQueueCapacity, boolean sendQueueStats,
+                                                      String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec) {
+    BlockingQueue<Runnable> queue;
+    if (sendQueueStats) {
+      Max maxSizeCollector = new Max(0);
+      queue = new MonitoringQueueFactory.MonitoringArrayBlockingQueue<>(decodeQueueCapacity, maxSizeCollector);
+      Tag queueNameTag = new Tag("queue", "decode");
+      statsDSender.sendPeriodically(
+        () -> statsDSender.sendMax(serviceName + ".memcached.maxQueueSize", maxSizeCollector, queueNameTag), metricsSendIntervalSec
+      );
+    } else {
+      queue = new ArrayBlockingQueue<>(decodeQueueCapacity);
     }
 
-    return new HHExceptionSwallowerMemcachedClient(memcachedClient);
+    AtomicInteger threadIdGenerator = new AtomicInteger(1);
+    ThreadFactory threadFactory = runnable -> {
+      Thread thread = new Thread(runnable, "memcached-decode-" + threadIdGenerator.getAndIncrement());
+      thread.setDaemon(true);
+      return thread;
+    };
+    Counters rejectedCounters = new Counters(2);
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendCounters(serviceName + ".memcached.rejectedTasks", rejectedCounters), metricsSendIntervalSec
+    );
+    return new ThreadPoolExecutor(decodeThreads, decodeThreads, 0, TimeUnit.MILLISECONDS, queue, threadFactory,
+                                  new DecodeOverflowPolicy(decodeQueueCapacity, rejectedCounters));
   }
 
   private static int getNumOfInstances(Properties properties) {
@@ -94,6 +537,7 @@ public class HHMemcachedClientFactory {
     if (numOfInstancesStr == null) {
       // divide availableProcessors / 2 because each memcached client instance is at least 2 threads: MemcachedConnection and transcoder,
       // they create roughly the same CPU load
+      // with decodeThreads the transcoder thread is idle, so fewer instances are enough, but numOfInstances must be set explicitly
       return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
     } else {
       return parseInt(numOfInstancesStr);
@@ -102,22 +546,44 @@ public class HHMemcachedClientFactory {
 
   private static HHMemcachedClient createHHSpyMemcachedClient(ConnectionFactory connectionFactory,
                                                               List<InetSocketAddress> nodes,
-                                                              int numOfInstances) throws IOException {
+                                                              Map<String, Transcoder<Object>> regionToTranscoder,
+                                                              Map<String, RegionPolicy> regionToPolicy,
+                                                              @Nullable HHSpyMemcachedClient.GetSomeChunking getSomeChunking,
+                                                              @Nullable OperationPhaseStats phaseStats,
+                                                              @Nullable LoadSheddingPolicy loadSheddingPolicy,
+                                                              int numOfInstances,
+                                                              HHBalancingMemcachedClient.Mode balancingMode,
+                                                              List<MemcachedClient> spyClients) throws IOException {
     if (numOfInstances == 1) {
-      return createHHSpyMemcachedClient(connectionFactory, nodes);
+      return createHHSpyMemcachedClient(connectionFactory, nodes, regionToTranscoder, regionToPolicy, getSomeChunking, phaseStats,
+                                        loadSheddingPolicy, spyClients);
     } else {
       HHMemcachedClient[] clients = new HHMemcachedClient[numOfInstances];
       for (int i=0; i<numOfInstances; i++) {
-        clients[i] = createHHSpyMemcachedClient(connectionFactory, nodes);
+        clients[i] = createHHSpyMemcachedClient(connectionFactory, nodes, regionToTranscoder, regionToPolicy, getSomeChunking, phaseStats,
+                                                loadSheddingPolicy, spyClients);
       }
-      return new HHBalancingMemcachedClient(clients);
+      return new HHBalancingMemcachedClient(clients, balancingMode);
     }
   }
 
   private static HHMemcachedClient createHHSpyMemcachedClient(ConnectionFactory connectionFactory,
-                                                              List<InetSocketAddress> nodes) throws IOException {
+                                                              List<InetSocketAddress> nodes,
+                                                              Map<String, Transcoder<Object>> regionToTranscoder,
+                                                              Map<String, RegionPolicy> regionToPolicy,
+                                                              @Nullable HHSpyMemcachedClient.GetSomeChunking getSomeChunking,
+                                                              @Nullable OperationPhaseStats phaseStats,
+                                                              @Nullable LoadSheddingPolicy loadSheddingPolicy,
+                                                              List<MemcachedClient> spyClients) throws IOException {
     MemcachedClient client = new MemcachedClient(connectionFactory, nodes);
-    return new HHSpyMemcachedClient(client);
+    spyClients.add(client);
+    HHSpyMemcachedClient hhSpyMemcachedClient = new HHSpyMemcachedClient(client, regionToTranscoder, phaseStats, regionToPolicy,
+                                                                         getSomeChunking);
+    if (loadSheddingPolicy == null) {
+      return hhSpyMemcachedClient;
+    }
+    // queues are per instance, so each instance is wrapped
+    return new HHLoadSheddingMemcachedClient(hhSpyMemcachedClient, hhSpyMemcachedClient::getPrimaryNode, loadSheddingPolicy);
   }
 
 }
@@ -2,19 +2,63 @@ package ru.hh.memcached;
 
 import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import net.spy.memcached.transcoders.Transcoder;
 
 import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
 
-
+/** In-memory stand-in for memcached in tests.<br/>
+ *  Like memcached it expires keys by exp, gives each change of a key a new cas id
+ *  and evicts least recently used keys when the stored bytes exceed the limit.<br/>
+ *  The size of a value is the size of its serialized form, so values must be serializable as for the real client.<br/>
+ *  Each instance has its own store, split into shards with separate locks and byte limits. */
 public class HHMemcachedTestClient implements HHMemcachedClient {
-  private static final Map<String, Object> store = new ConcurrentHashMap<>();
+  // memcached starts with 64 MB by default
+  private static final long DEFAULT_MAX_SIZE_IN_BYTES = 64 * 1024 * 1024;
+  private static final int MAX_ITEM_SIZE_IN_BYTES = 1024 * 1024;
+  private static final int ITEM_OVERHEAD_IN_BYTES = 50;
+  private static final int MAX_NUM_OF_SHARDS = 16;
+  private static final int MAX_RELATIVE_EXP_SEC = 60 * 60 * 24 * 30;
+  private static final Transcoder<Object> transcoder = new SerializingTranscoder();
+
+  private final Shard[] shards;
+  private final LongSupplier currentTimeMillis;
+  private final AtomicLong lastCas = new AtomicLong();
+
+  public HHMemcachedTestClient() {
+    this(DEFAULT_MAX_SIZE_IN_BYTES);
+  }
+
+  public HHMemcachedTestClient(long maxSizeInBytes) {
+    this(maxSizeInBytes, System::currentTimeMillis);
+  }
+
+  HHMemcachedTestClient(long maxSizeInBytes, LongSupplier currentTimeMillis) {
+    this.currentTimeMillis = currentTimeMillis;
+    // a shard must fit several max size items, otherwise eviction would depend on how keys are spread between shards
+    int numOfShards = (int) Math.max(1, Math.min(MAX_NUM_OF_SHARDS, maxSizeInBytes / (4L * MAX_ITEM_SIZE_IN_BYTES)));
+    shards = new Shard[numOfShards];
+    for (int i = 0; i < numOfShards; i++) {
+      shards[i] = new Shard(maxSizeInBytes / numOfShards);
+    }
+  }
 
   @Override
   public Object get(String region, String key) {
-    return store.get(getKey(region, key));
+    String keyWithRegion = getKey(region, key);
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      Entry entry = shard.get(keyWithRegion, currentTimeMillis.getAsLong());
+      return entry != null ? entry.value : null;
+    }
   }
 
   @Override
@@ -29,69 +73,152 @@ public class HHMemcachedTestClient implements HHMemcachedClient {
     return objectMap;
   }
 
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return CompletableFuture.completedFuture(get(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    return CompletableFuture.completedFuture(getSome(region, keys));
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    partConsumer.accept(keys, getSome(region, keys));
+    return CompletableFuture.completedFuture(null);
+  }
+
   @Override
   public CompletableFuture<Boolean> set(String region, String key, int exp, Object newValue) {
-    store.put(getKey(region, key), newValue);
+    String keyWithRegion = getKey(region, key);
+    int sizeInBytes = getSizeInBytes(keyWithRegion, newValue);
+    if (sizeInBytes > MAX_ITEM_SIZE_IN_BYTES) {
+      return CompletableFuture.completedFuture(false);
+    }
+    long now = currentTimeMillis.getAsLong();
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      shard.put(keyWithRegion, new Entry(newValue, sizeInBytes, getExpireAtMillis(exp, now), nextCas()));
+    }
     return CompletableFuture.completedFuture(true);
   }
 
   @Override
   public CompletableFuture<Boolean> delete(String region, String key) {
-    Object removed = store.remove(getKey(region, key));
-    return CompletableFuture.completedFuture(removed != null);
+    String keyWithRegion = getKey(region, key);
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      boolean removed = shard.get(keyWithRegion, currentTimeMillis.getAsLong()) != null;
+      shard.remove(keyWithRegion);
+      return CompletableFuture.completedFuture(removed);
+    }
   }
 
   @Override
   public CASPair gets(String region, String key) {
-    Object object = get(region, key);
-    if (object == null) {
-      return null;
+    String keyWithRegion = getKey(region, key);
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      Entry entry = shard.get(keyWithRegion, currentTimeMillis.getAsLong());
+      if (entry == null) {
+        return null;
+      }
+      return new CASPair<>(entry.cas, entry.value);
     }
-    return new CASPair<>(object.hashCode(), object);
   }
 
   @Override
-  public CompletableFuture<Boolean> add(String region, String key, int exp, Object newValue) {
-    Object previous = store.putIfAbsent(getKey(region, key), newValue);
-    return CompletableFuture.completedFuture(previous == null);
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return CompletableFuture.completedFuture(gets(region, key));
   }
 
   @Override
-  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object newValue) {
-    Object oldValue = get(region, key);
-    if (oldValue == null) {
-      return CompletableFuture.completedFuture(CASResponse.NOT_FOUND);
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object newValue) {
+    String keyWithRegion = getKey(region, key);
+    int sizeInBytes = getSizeInBytes(keyWithRegion, newValue);
+    if (sizeInBytes > MAX_ITEM_SIZE_IN_BYTES) {
+      return CompletableFuture.completedFuture(false);
     }
-    if (oldValue.hashCode() != casId) {
-      return CompletableFuture.completedFuture(CASResponse.EXISTS);
+    long now = currentTimeMillis.getAsLong();
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      if (shard.get(keyWithRegion, now) != null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      shard.put(keyWithRegion, new Entry(newValue, sizeInBytes, getExpireAtMillis(exp, now), nextCas()));
+      return CompletableFuture.completedFuture(true);
     }
-    if (store.replace(getKey(region, key), oldValue, newValue)) {
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object newValue) {
+    String keyWithRegion = getKey(region, key);
+    int sizeInBytes = getSizeInBytes(keyWithRegion, newValue);
+    long now = currentTimeMillis.getAsLong();
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      Entry oldEntry = shard.get(keyWithRegion, now);
+      if (oldEntry == null) {
+        return CompletableFuture.completedFuture(CASResponse.NOT_FOUND);
+      }
+      if (oldEntry.cas != casId) {
+        return CompletableFuture.completedFuture(CASResponse.EXISTS);
+      }
+      if (sizeInBytes > MAX_ITEM_SIZE_IN_BYTES) {
+        return CompletableFuture.completedFuture(CASResponse.ERROR);
+      }
+      shard.put(keyWithRegion, new Entry(newValue, sizeInBytes, getExpireAtMillis(exp, now), nextCas()));
       return CompletableFuture.completedFuture(CASResponse.OK);
-    } else {
-      return CompletableFuture.completedFuture(CASResponse.EXISTS);
     }
   }
 
   @Override
   public long increment(String region, String key, int by, int def) {
-    Object newVal = store.merge(getKey(region, key), def, (oldVal, defVal) -> {
-      if (oldVal instanceof Integer) {
-        return (int) oldVal + by;
-      } else {
-        return null;
-      }
-    });
-    return newVal != null ? (Integer) newVal : -1;
+    return increment(region, key, by, def, 0);
   }
 
   @Override
   public long increment(String region, String key, int by, int def, int ttl) {
-    return increment(region, key, by, def);
+    String keyWithRegion = getKey(region, key);
+    long now = currentTimeMillis.getAsLong();
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      Entry oldEntry = shard.get(keyWithRegion, now);
+      Entry newEntry;
+      if (oldEntry == null) {
+        newEntry = new Entry(def, getSizeInBytes(keyWithRegion, def), getExpireAtMillis(ttl, now), nextCas());
+      } else if (oldEntry.value instanceof Integer) {
+        // as in memcached, increment keeps the expiration time of the key
+        int newValue = (int) oldEntry.value + by;
+        newEntry = new Entry(newValue, getSizeInBytes(keyWithRegion, newValue), oldEntry.expireAtMillis, nextCas());
+      } else {
+        shard.remove(keyWithRegion);
+        return -1;
+      }
+      shard.put(keyWithRegion, newEntry);
+      return (Integer) newEntry.value;
+    }
   }
 
   @Override
   public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
-    return CompletableFuture.completedFuture(true);
+    String keyWithRegion = getKey(region, key);
+    long now = currentTimeMillis.getAsLong();
+    Shard shard = getShard(keyWithRegion);
+    synchronized (shard) {
+      Entry entry = shard.get(keyWithRegion, now);
+      if (entry == null) {
+        return CompletableFuture.completedFuture(false);
+      }
+      entry.expireAtMillis = getExpireAtMillis(ttl, now);
+      return CompletableFuture.completedFuture(true);
+    }
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    return batch.executeOneByOne(this);
   }
 
   @Override
@@ -100,6 +227,113 @@ public class HHMemcachedTestClient implements HHMemcachedClient {
   }
 
   public void cleanCache() {
-    store.clear();
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        shard.clear();
+      }
+    }
+  }
+
+  /** Size of all stored entries including expired ones that were not evicted yet, as memcached reports it. */
+  public long getSizeInBytes() {
+    long sizeInBytes = 0;
+    for (Shard shard : shards) {
+      synchronized (shard) {
+        sizeInBytes += shard.sizeInBytes;
+      }
+    }
+    return sizeInBytes;
+  }
+
+  private Shard getShard(String keyWithRegion) {
+    int hash = keyWithRegion.hashCode();
+    hash ^= hash >>> 16;
+    return shards[Math.floorMod(hash, shards.length)];
+  }
+
+  private long nextCas() {
+    return lastCas.incrementAndGet();
+  }
+
+  private static int getSizeInBytes(String keyWithRegion, Object value) {
+    return ITEM_OVERHEAD_IN_BYTES + keyWithRegion.length() + transcoder.encode(value).getData().length;
+  }
+
+  // exp up to 30 days is relative, otherwise it is unix time
+  private static long getExpireAtMillis(int exp, long now) {
+    if (exp == 0) {
+      return Long.MAX_VALUE;
+    }
+    if (exp < 0) {
+      return now;
+    }
+    if (exp <= MAX_RELATIVE_EXP_SEC) {
+      return now + TimeUnit.SECONDS.toMillis(exp);
+    }
+    return TimeUnit.SECONDS.toMillis(exp);
+  }
+
+  // guarded by itself
+  private static class Shard {
+    private final long maxSizeInBytes;
+    private final LinkedHashMap<String, Entry> keyToEntry = new LinkedHashMap<>(16, 0.75f, true);
+    private long sizeInBytes;
+
+    Shard(long maxSizeInBytes) {
+      this.maxSizeInBytes = maxSizeInBytes;
+    }
+
+    Entry get(String keyWithRegion, long now) {
+      Entry entry = keyToEntry.get(keyWithRegion);
+      if (entry != null && now >= entry.expireAtMillis) {
+        remove(keyWithRegion);
+        return null;
+      }
+      return entry;
+    }
+
+    void put(String keyWithRegion, Entry entry) {
+      Entry oldEntry = keyToEntry.put(keyWithRegion, entry);
+      if (oldEntry != null) {
+        sizeInBytes -= oldEntry.sizeInBytes;
+      }
+      sizeInBytes += entry.sizeInBytes;
+
+      Iterator<Entry> leastRecentlyUsed = keyToEntry.values().iterator();
+      while (sizeInBytes > maxSizeInBytes && leastRecentlyUsed.hasNext()) {
+        Entry evictedEntry = leastRecentlyUsed.next();
+        if (evictedEntry == entry) {
+          break;
+        }
+        sizeInBytes -= evictedEntry.sizeInBytes;
+        leastRecentlyUsed.remove();
+      }
+    }
+
+    void remove(String keyWithRegion) {
+      Entry entry = keyToEntry.remove(keyWithRegion);
+      if (entry != null) {
+        sizeInBytes -= entry.sizeInBytes;
+      }
+    }
+
+    void clear() {
+      keyToEntry.clear();
+      sizeInBytes = 0;
+    }
+  }
+
+  private static class Entry {
+    final Object value;
+    final int sizeInBytes;
+    long expireAtMillis;
+    final long cas;
+
+    Entry(Object value, int sizeInBytes, long expireAtMillis, long cas) {
+      this.value = value;
+      this.sizeInBytes = sizeInBytes;
+      this.expireAtMillis = expireAtMillis;
+      this.cas = cas;
+    }
   }
 }
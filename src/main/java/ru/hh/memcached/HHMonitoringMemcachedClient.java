@@ -1,12 +1,22 @@
 package ru.hh.memcached;
 
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import net.spy.memcached.OperationTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
 import ru.hh.nab.metrics.Counters;
 import ru.hh.nab.metrics.Histograms;
@@ -14,6 +24,8 @@ import ru.hh.nab.metrics.StatsDSender;
 import ru.hh.nab.metrics.Tag;
 
 class HHMonitoringMemcachedClient implements HHMemcachedClient {
+  private static final Logger logger = LoggerFactory.getLogger(HHMonitoringMemcachedClient.class);
+
   private static final Tag HIT_TAG = new Tag("hitMiss", "hit");
   private static final Tag MISS_TAG = new Tag("hitMiss", "miss");
 
@@ -30,15 +42,48 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
   private static final Tag ASYNC_CAS_COMMAND_TAG = new Tag("command", "asyncCas");
   private static final Tag INCREMENT_COMMAND_TAG = new Tag("command", "increment");
   private static final Tag TOUCH_COMMAND_TAG = new Tag("command", "touch");
+  private static final Tag ASYNC_GET_COMMAND_TAG = new Tag("command", "asyncGet");
+  private static final Tag ASYNC_GET_SOME_COMMAND_TAG = new Tag("command", "asyncGetSome");
+  private static final Tag STREAM_GET_SOME_COMMAND_TAG = new Tag("command", "streamGetSome");
+  private static final Tag ASYNC_GETS_COMMAND_TAG = new Tag("command", "asyncGets");
+  private static final Tag BATCH_COMMAND_TAG = new Tag("command", "batch");
 
   private final HHMemcachedClient hhMemcachedClient;
   private final Counters hitMissCounters;
   private final Histograms histograms;
   private final Counters errorCounters;
+  // a few nodes and regions, so tags are created once instead of on every operation
+  private final Map<InetSocketAddress, Tag> primaryNodeAddressToTag = new ConcurrentHashMap<>();
+  private final Map<String, Tag> regionToTag = new ConcurrentHashMap<>();
+  @Nullable
+  private final HotKeyTracker hotKeyTracker;
+  // tags of hot keys of the last interval, used only by the thread that sends metrics
+  private final Map<String, Map<String, Tag>> regionToHotKeyToTag = new HashMap<>();
+  // metrics of regions with a policy are tagged with the name of the policy, so critical and background regions are seen apart
+  private final Map<String, Tag> regionToPolicyTag = new HashMap<>();
 
   HHMonitoringMemcachedClient(HHMemcachedClient hhMemcachedClient, String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec,
                               int maxNumOfHitMissCounters, int maxTimeHistogramSize, int maxNumOfTimeHistograms, int maxNumOfErrorCounters) {
+    this(hhMemcachedClient, serviceName, statsDSender, metricsSendIntervalSec,
+         maxNumOfHitMissCounters, maxTimeHistogramSize, maxNumOfTimeHistograms, maxNumOfErrorCounters, null);
+  }
+
+  HHMonitoringMemcachedClient(HHMemcachedClient hhMemcachedClient, String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                              int maxNumOfHitMissCounters, int maxTimeHistogramSize, int maxNumOfTimeHistograms, int maxNumOfErrorCounters,
+                              @Nullable HotKeyTracker hotKeyTracker) {
+    this(hhMemcachedClient, serviceName, statsDSender, metricsSendIntervalSec,
+         maxNumOfHitMissCounters, maxTimeHistogramSize, maxNumOfTimeHistograms, maxNumOfErrorCounters, hotKeyTracker, Map.of());
+  }
+
+  HHMonitoringMemcachedClient(HHMemcachedClient hhMemcachedClient, String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                              int maxNumOfHitMissCounters, int maxTimeHistogramSize, int maxNumOfTimeHistograms, int maxNumOfErrorCounters,
+                              @Nullable HotKeyTracker hotKeyTracker, Map<String, RegionPolicy> regionToPolicy) {
     this.hhMemcachedClient = hhMemcachedClient;
+    this.hotKeyTracker = hotKeyTracker;
+    Map<String, Tag> policyNameToTag = new HashMap<>();
+    regionToPolicy.forEach((region, policy) ->
+      regionToPolicyTag.put(region, policyNameToTag.computeIfAbsent(policy.name, name -> new Tag("regionPolicy", name)))
+    );
 
     hitMissCounters = new Counters(maxNumOfHitMissCounters);
     histograms = new Histograms(maxTimeHistogramSize, maxNumOfTimeHistograms);
@@ -49,6 +94,13 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
       statsDSender.sendHistograms(getMetricNameWithServiceName(serviceName, "memcached.time"), histograms, StatsDSender.DEFAULT_PERCENTILES);
       statsDSender.sendCounters(getMetricNameWithServiceName(serviceName, "memcached.errors"), errorCounters);
     }, metricsSendIntervalSec);
+
+    if (hotKeyTracker != null) {
+      statsDSender.sendPeriodically(
+        () -> statsDSender.sendCounters(getMetricNameWithServiceName(serviceName, "memcached.hotKeys"), getHotKeyCounters(hotKeyTracker)),
+        metricsSendIntervalSec
+      );
+    }
   }
 
   @Override
@@ -58,19 +110,64 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
 
   @Override
   public Map<String, Object> getSome(String region, String[] keys) {
+    recordHotKeys(region, keys);
     long startTime = System.currentTimeMillis();
     Map<String, Object> keysToObjects = callWithExceptionStats(() ->
             hhMemcachedClient.getSome(region, keys), region, GET_SOME_COMMAND_TAG, keys);
     long timeEnd = System.currentTimeMillis();
 
-    for (String key : keys) {
-      sendExecutionTimeStats(region, key, startTime, timeEnd);
-      sendHitMissStats(keysToObjects.get(key), region, key);
-    }
+    sendGetSomeStats(region, keys, keysToObjects, startTime, timeEnd);
 
     return keysToObjects;
   }
 
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return callAsyncReadWithStats(() -> hhMemcachedClient.asyncGet(region, key), region, key, ASYNC_GET_COMMAND_TAG);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    recordHotKeys(region, keys);
+    long startTime = System.currentTimeMillis();
+    CompletableFuture<Map<String, Object>> completableFuture = callWithExceptionStats(() ->
+            hhMemcachedClient.asyncGetSome(region, keys), region, ASYNC_GET_SOME_COMMAND_TAG, keys);
+
+    completableFuture.whenComplete((keysToObjects, exception) -> {
+      if (exception == null) {
+        sendGetSomeStats(region, keys, keysToObjects, startTime, System.currentTimeMillis());
+      } else {
+        for (String key : keys) {
+          sendExceptionStats(getPrimaryNodeTag(region, key), region, ASYNC_GET_SOME_COMMAND_TAG, exception);
+        }
+      }
+    });
+
+    return completableFuture;
+  }
+
+  /** Time of a key is time until its part is received, not until all parts are received. */
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    recordHotKeys(region, keys);
+    long startTime = System.currentTimeMillis();
+    CompletableFuture<Void> completableFuture = callWithExceptionStats(() ->
+        hhMemcachedClient.streamGetSome(region, keys, (partKeys, partKeyToValue) -> {
+          sendGetSomeStats(region, partKeys, partKeyToValue, startTime, System.currentTimeMillis());
+          partConsumer.accept(partKeys, partKeyToValue);
+        }), region, STREAM_GET_SOME_COMMAND_TAG, keys);
+
+    completableFuture.whenComplete((ignored, exception) -> {
+      if (exception != null) {
+        for (String key : keys) {
+          sendExceptionStats(getPrimaryNodeTag(region, key), region, STREAM_GET_SOME_COMMAND_TAG, exception);
+        }
+      }
+    });
+
+    return completableFuture;
+  }
+
   @Override
   public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
     return callAsyncWithStats(() -> hhMemcachedClient.set(region, key, exp, o), region, key, SET_COMMAND_TAG);
@@ -86,6 +183,11 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
     return callSyncWithStats(() -> hhMemcachedClient.gets(region, key), region, key, GETS_COMMAND_TAG);
   }
 
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return callAsyncReadWithStats(() -> hhMemcachedClient.asyncGets(region, key), region, key, ASYNC_GETS_COMMAND_TAG);
+  }
+
   @Override
   public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
     return callAsyncWithStats(() -> hhMemcachedClient.add(region, key, exp, o), region, key, ADD_COMMAND_TAG);
@@ -100,21 +202,23 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
 
   @Override
   public long increment(String region, String key, int by, int def) {
+    recordHotKey(region, key);
     long time = System.currentTimeMillis();
 
     long object = callWithExceptionStats(() -> hhMemcachedClient.increment(region, key, by, def), region, INCREMENT_COMMAND_TAG, key);
 
-    sendExecutionTimeStats(region, key, time, System.currentTimeMillis());
+    sendExecutionTimeStats(getPrimaryNodeTag(region, key), region, time, System.currentTimeMillis());
     return object;
   }
 
   @Override
   public long increment(String region, String key, int by, int def, int ttl) {
+    recordHotKey(region, key);
     long time = System.currentTimeMillis();
 
     long object = callWithExceptionStats(() -> hhMemcachedClient.increment(region, key, by, def, ttl), region, INCREMENT_COMMAND_TAG, key);
 
-    sendExecutionTimeStats(region, key, time, System.currentTimeMillis());
+    sendExecutionTimeStats(getPrimaryNodeTag(region, key), region, time, System.currentTimeMillis());
     return object;
   }
 
@@ -123,39 +227,159 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
     return callAsyncWithStats(() -> hhMemcachedClient.touch(region, key, ttl), region, key, TOUCH_COMMAND_TAG);
   }
 
+  /** Sends time of the whole batch once per node and region and errors per operation. */
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    long time = System.currentTimeMillis();
+    List<MemcachedBatch.Item> items = batch.getItems();
+    Tag[] itemIndexToPrimaryNodeTag = new Tag[items.size()];
+    for (int i = 0; i < items.size(); i++) {
+      itemIndexToPrimaryNodeTag[i] = getPrimaryNodeTag(items.get(i).region, items.get(i).key);
+      recordHotKey(items.get(i).region, items.get(i).key);
+    }
+
+    MemcachedBatchResult batchResult;
+    try {
+      batchResult = hhMemcachedClient.executeBatch(batch);
+    } catch (RuntimeException e) {
+      for (int i = 0; i < items.size(); i++) {
+        sendExceptionStats(itemIndexToPrimaryNodeTag[i], items.get(i).region, BATCH_COMMAND_TAG, e);
+      }
+      throw e;
+    }
+
+    // one callback for the whole batch instead of one per operation
+    batchResult.getResult().whenComplete((allSucceeded, batchException) -> {
+      long timeEnd = System.currentTimeMillis();
+      Set<Map.Entry<Tag, String>> primaryNodeTagAndRegions = new HashSet<>();
+      for (int i = 0; i < items.size(); i++) {
+        String region = items.get(i).region;
+        try {
+          batchResult.getItemResult(i).join();
+          if (primaryNodeTagAndRegions.add(Map.entry(itemIndexToPrimaryNodeTag[i], region))) {
+            sendExecutionTimeStats(itemIndexToPrimaryNodeTag[i], region, time, timeEnd);
+          }
+        } catch (CompletionException | CancellationException e) {
+          sendExceptionStats(itemIndexToPrimaryNodeTag[i], region, BATCH_COMMAND_TAG, e);
+        }
+      }
+    });
+
+    return batchResult;
+  }
+
+  // monitoring finds the primary node of a key once per operation and uses it for all metrics of the operation;
+  // layers below, for example the circuit breaker and spy, find the node of the key again
+
   private <T> T callSyncWithStats(Supplier<T> method, String region, String key, Tag commandTag) {
+    recordHotKey(region, key);
     long time = System.currentTimeMillis();
     T object = callWithExceptionStats(method, region, commandTag, key);
+    long timeEnd = System.currentTimeMillis();
 
-    sendExecutionTimeStats(region, key, time, System.currentTimeMillis());
-    sendHitMissStats(object, region, key);
+    Tag primaryNodeTag = getPrimaryNodeTag(region, key);
+    sendExecutionTimeStats(primaryNodeTag, region, time, timeEnd);
+    sendHitMissStats(object, region, primaryNodeTag);
 
     return object;
   }
 
   private <T> CompletableFuture<T> callAsyncWithStats(
       Supplier<CompletableFuture<T>> method, String region, String key, Tag commandTag) {
+    return callAsyncWithStats(method, region, key, commandTag, false);
+  }
+
+  private <T> CompletableFuture<T> callAsyncReadWithStats(
+      Supplier<CompletableFuture<T>> method, String region, String key, Tag commandTag) {
+    return callAsyncWithStats(method, region, key, commandTag, true);
+  }
+
+  private <T> CompletableFuture<T> callAsyncWithStats(
+      Supplier<CompletableFuture<T>> method, String region, String key, Tag commandTag, boolean sendHitMissStats) {
+    recordHotKey(region, key);
     long time = System.currentTimeMillis();
+    // find the node in the calling thread, not in the spy thread that completes the future
+    Tag primaryNodeTag = getPrimaryNodeTag(region, key);
     CompletableFuture<T> completableFuture = method.get();
 
     completableFuture.whenComplete((completableFutureValue, exception) -> {
       if (exception == null) {
-        sendExecutionTimeStats(region, key, time, System.currentTimeMillis());
+        sendExecutionTimeStats(primaryNodeTag, region, time, System.currentTimeMillis());
+        if (sendHitMissStats) {
+          sendHitMissStats(completableFutureValue, region, primaryNodeTag);
+        }
       } else {
-        sendExceptionStats(region, key, commandTag, exception);
+        sendExceptionStats(primaryNodeTag, region, commandTag, exception);
       }
     });
 
     return completableFuture;
   }
 
-  private void sendHitMissStats(Object object, String region, String key) {
-    Tag regionTag = new Tag("region", region);
-    Tag primaryNodeTag =  new Tag("primaryNode", getPrimaryNode(region, key));
-    if (object == null) {
-      hitMissCounters.add(1, MISS_TAG, regionTag, primaryNodeTag);
+  private void recordHotKey(String region, String key) {
+    if (hotKeyTracker != null) {
+      hotKeyTracker.record(region, key);
+    }
+  }
+
+  private void recordHotKeys(String region, String[] keys) {
+    if (hotKeyTracker != null) {
+      for (String key : keys) {
+        hotKeyTracker.record(region, key);
+      }
+    }
+  }
+
+  /** Keys can contain characters that break statsd lines and can come from users,
+   *  so metrics are tagged with hashes of the keys, the keys themselves are logged with their hashes.<br/>
+   *  A key is logged once when it gets into the top of its region, not every interval while it stays there. */
+  private Counters getHotKeyCounters(HotKeyTracker hotKeyTracker) {
+    Counters hotKeyCounters = new Counters(hotKeyTracker.getMaxNumOfHotKeys());
+    hotKeyTracker.endInterval().forEach((region, hotKeys) -> {
+      Tag regionTag = regionToTag.computeIfAbsent(region, HHMonitoringMemcachedClient::createRegionTag);
+      Map<String, Tag> lastHotKeyToTag = regionToHotKeyToTag.getOrDefault(region, Map.of());
+      Map<String, Tag> hotKeyToTag = new HashMap<>();
+      StringBuilder newHotKeysLog = new StringBuilder();
+      for (HotKeyTracker.HotKey hotKey : hotKeys) {
+        Tag hotKeyTag = lastHotKeyToTag.get(hotKey.key);
+        if (hotKeyTag == null) {
+          String hotKeyHash = getHotKeyHash(hotKey.key);
+          hotKeyTag = new Tag("hotKeyHash", hotKeyHash);
+          newHotKeysLog.append(newHotKeysLog.length() == 0 ? "" : ", ").append(hotKeyHash).append('=').append(hotKey.key)
+            .append(" (").append(hotKey.count).append(')');
+        }
+        hotKeyToTag.put(hotKey.key, hotKeyTag);
+        hotKeyCounters.add((int) Math.min(hotKey.count, Integer.MAX_VALUE), regionTag, getPrimaryNodeTag(region, hotKey.key), hotKeyTag);
+      }
+      regionToHotKeyToTag.put(region, hotKeyToTag);
+      if (newHotKeysLog.length() > 0) {
+        logger.info("new hot keys of region {}: {}", region, newHotKeysLog);
+      }
+    });
+    return hotKeyCounters;
+  }
+
+  /** String.hashCode is the same in all JVMs, so a hash in metrics can be found in logs of any instance. */
+  static String getHotKeyHash(String key) {
+    return String.format("%08x", key.hashCode());
+  }
+
+  private void sendGetSomeStats(String region, String[] keys, Map<String, Object> keysToObjects, long timeStart, long timeEnd) {
+    for (String key : keys) {
+      Tag primaryNodeTag = getPrimaryNodeTag(region, key);
+      sendExecutionTimeStats(primaryNodeTag, region, timeStart, timeEnd);
+      sendHitMissStats(keysToObjects.get(key), region, primaryNodeTag);
+    }
+  }
+
+  private void sendHitMissStats(Object object, String region, Tag primaryNodeTag) {
+    Tag regionTag = regionToTag.computeIfAbsent(region, HHMonitoringMemcachedClient::createRegionTag);
+    Tag regionPolicyTag = regionToPolicyTag.get(region);
+    Tag hitMissTag = object == null ? MISS_TAG : HIT_TAG;
+    if (regionPolicyTag == null) {
+      hitMissCounters.add(1, hitMissTag, regionTag, primaryNodeTag);
     } else {
-      hitMissCounters.add(1, HIT_TAG, regionTag, primaryNodeTag);
+      hitMissCounters.add(1, hitMissTag, regionTag, primaryNodeTag, regionPolicyTag);
     }
   }
 
@@ -164,13 +388,13 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
       return method.get();
     } catch (RuntimeException e) {
       for (String key : keys) {
-        sendExceptionStats(region, key, commandTag, e);
+        sendExceptionStats(getPrimaryNodeTag(region, key), region, commandTag, e);
       }
       throw e;
     }
   }
 
-  private void sendExceptionStats(String region, String key, Tag commandTag, Throwable exception) {
+  private void sendExceptionStats(Tag primaryNodeTag, String region, Tag commandTag, Throwable exception) {
     Tag typeOfErrorTag;
     Throwable rootCause = getRootCause(exception);
 
@@ -182,9 +406,12 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
       typeOfErrorTag = OTHER_ERROR_TAG;
     }
 
-    Tag primaryNodeTag =  new Tag("primaryNode", getPrimaryNode(region, key));
-
-    errorCounters.add(1, typeOfErrorTag, primaryNodeTag, commandTag);
+    Tag regionPolicyTag = regionToPolicyTag.get(region);
+    if (regionPolicyTag == null) {
+      errorCounters.add(1, typeOfErrorTag, primaryNodeTag, commandTag);
+    } else {
+      errorCounters.add(1, typeOfErrorTag, primaryNodeTag, commandTag, regionPolicyTag);
+    }
   }
 
   private static Throwable getRootCause(Throwable exception) {
@@ -195,12 +422,26 @@ class HHMonitoringMemcachedClient implements HHMemcachedClient {
     return exception;
   }
 
-  private String getPrimaryNode(String region, String key) {
-    return hhMemcachedClient.getPrimaryNodeAddress(getKey(region, key)).getHostString();
+  private Tag getPrimaryNodeTag(String region, String key) {
+    InetSocketAddress primaryNodeAddress = hhMemcachedClient.getPrimaryNodeAddress(getKey(region, key));
+    return primaryNodeAddressToTag.computeIfAbsent(primaryNodeAddress, HHMonitoringMemcachedClient::createPrimaryNodeTag);
+  }
+
+  private static Tag createPrimaryNodeTag(InetSocketAddress primaryNodeAddress) {
+    return new Tag("primaryNode", primaryNodeAddress.getHostString());
+  }
+
+  private static Tag createRegionTag(String region) {
+    return new Tag("region", region);
   }
 
-  private void sendExecutionTimeStats(String region, String key, long timeStart, long timeEnd) {
-    histograms.save((int) (timeEnd - timeStart), new Tag("primaryNode", getPrimaryNode(region, key)));
+  private void sendExecutionTimeStats(Tag primaryNodeTag, String region, long timeStart, long timeEnd) {
+    Tag regionPolicyTag = regionToPolicyTag.get(region);
+    if (regionPolicyTag == null) {
+      histograms.save((int) (timeEnd - timeStart), primaryNodeTag);
+    } else {
+      histograms.save((int) (timeEnd - timeStart), primaryNodeTag, regionPolicyTag);
+    }
   }
 
   private static String getMetricNameWithServiceName(String serviceName, String metricName) {
@@ -0,0 +1,425 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Keeps recently read values of configured regions in the local memory.<br/>
+ *  Each region has its own max number of entries and TTL, the oldest entries are evicted first.<br/>
+ *  Local entries are invalidated when the key is changed through this client,
+ *  but changes made by other JVMs are visible only after TTL expires.<br/>
+ *  Cached objects are shared between callers, so they must not be modified. */
+class HHNearCacheMemcachedClient implements HHMemcachedClient {
+  private static final Tag HIT_TAG = new Tag("hitMiss", "hit");
+  private static final Tag MISS_TAG = new Tag("hitMiss", "miss");
+
+  private final HHMemcachedClient hhMemcachedClient;
+  private final Map<String, RegionCache> regionToCache;
+  private final LongSupplier nanoClock;
+  private final Counters hitMissCounters;
+
+  HHNearCacheMemcachedClient(HHMemcachedClient hhMemcachedClient, Map<String, RegionSettings> regionToSettings,
+                             String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec) {
+    this(hhMemcachedClient, regionToSettings, System::nanoTime);
+
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendCounters(serviceName + ".memcached.nearCache.hitMiss", hitMissCounters), metricsSendIntervalSec
+    );
+  }
+
+  HHNearCacheMemcachedClient(HHMemcachedClient hhMemcachedClient, Map<String, RegionSettings> regionToSettings, LongSupplier nanoClock) {
+    this.hhMemcachedClient = hhMemcachedClient;
+    this.nanoClock = nanoClock;
+    this.regionToCache = new HashMap<>();
+    regionToSettings.forEach((region, settings) -> regionToCache.put(region, new RegionCache(region, settings)));
+    this.hitMissCounters = new Counters(regionToSettings.size() * 2);
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache == null) {
+      return hhMemcachedClient.get(region, key);
+    }
+
+    Object value = regionCache.get(key, nanoClock.getAsLong());
+    sendHitMissStats(value, regionCache);
+    if (value != null) {
+      return value;
+    }
+
+    long version = regionCache.getVersion(key);
+    value = hhMemcachedClient.get(region, key);
+    if (value != null) {
+      regionCache.put(key, value, nanoClock.getAsLong(), version);
+    }
+    return value;
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache == null) {
+      return hhMemcachedClient.getSome(region, keys);
+    }
+
+    long now = nanoClock.getAsLong();
+    Map<String, Object> keyToValue = new HashMap<>(keys.length);
+    List<String> missedKeys = new ArrayList<>();
+    for (String key : keys) {
+      Object value = regionCache.get(key, now);
+      sendHitMissStats(value, regionCache);
+      if (value != null) {
+        keyToValue.put(key, value);
+      } else {
+        missedKeys.add(key);
+      }
+    }
+
+    if (missedKeys.isEmpty()) {
+      return keyToValue;
+    }
+
+    long[] versions = regionCache.getVersions(missedKeys);
+    Map<String, Object> loadedKeyToValue = hhMemcachedClient.getSome(region, missedKeys.toArray(new String[0]));
+    regionCache.putAll(missedKeys, loadedKeyToValue, nanoClock.getAsLong(), versions);
+    keyToValue.putAll(loadedKeyToValue);
+    return keyToValue;
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache == null) {
+      return hhMemcachedClient.asyncGet(region, key);
+    }
+
+    Object value = regionCache.get(key, nanoClock.getAsLong());
+    sendHitMissStats(value, regionCache);
+    if (value != null) {
+      return CompletableFuture.completedFuture(value);
+    }
+
+    long version = regionCache.getVersion(key);
+    CompletableFuture<Object> completableFuture = hhMemcachedClient.asyncGet(region, key);
+    completableFuture.thenAccept(loadedValue -> {
+      if (loadedValue != null) {
+        regionCache.put(key, loadedValue, nanoClock.getAsLong(), version);
+      }
+    });
+    return completableFuture;
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache == null) {
+      return hhMemcachedClient.asyncGetSome(region, keys);
+    }
+
+    long now = nanoClock.getAsLong();
+    Map<String, Object> keyToValue = new HashMap<>(keys.length);
+    List<String> missedKeys = new ArrayList<>();
+    for (String key : keys) {
+      Object value = regionCache.get(key, now);
+      sendHitMissStats(value, regionCache);
+      if (value != null) {
+        keyToValue.put(key, value);
+      } else {
+        missedKeys.add(key);
+      }
+    }
+
+    if (missedKeys.isEmpty()) {
+      return CompletableFuture.completedFuture(keyToValue);
+    }
+
+    long[] versions = regionCache.getVersions(missedKeys);
+    CompletableFuture<Map<String, Object>> origFuture = hhMemcachedClient.asyncGetSome(region, missedKeys.toArray(new String[0]));
+    CompletableFuture<Map<String, Object>> completableFuture = origFuture.thenApply(loadedKeyToValue -> {
+      regionCache.putAll(missedKeys, loadedKeyToValue, nanoClock.getAsLong(), versions);
+      keyToValue.putAll(loadedKeyToValue);
+      return keyToValue;
+    });
+    completableFuture.whenComplete((value, exception) -> {
+      if (exception instanceof CancellationException) {
+        origFuture.cancel(false);
+      }
+    });
+    return completableFuture;
+  }
+
+  /** Keys found in the near cache are given to partConsumer as the first part before the method returns. */
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache == null) {
+      return hhMemcachedClient.streamGetSome(region, keys, partConsumer);
+    }
+
+    long now = nanoClock.getAsLong();
+    Map<String, Object> keyToValue = new HashMap<>(keys.length);
+    List<String> missedKeys = new ArrayList<>();
+    for (String key : keys) {
+      Object value = regionCache.get(key, now);
+      sendHitMissStats(value, regionCache);
+      if (value != null) {
+        keyToValue.put(key, value);
+      } else {
+        missedKeys.add(key);
+      }
+    }
+
+    if (!keyToValue.isEmpty()) {
+      partConsumer.accept(keyToValue.keySet().toArray(new String[0]), keyToValue);
+    }
+    if (missedKeys.isEmpty()) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    Map<String, Long> keyToVersion = new HashMap<>(missedKeys.size() * 2);
+    for (String key : missedKeys) {
+      keyToVersion.put(key, regionCache.getVersion(key));
+    }
+    return hhMemcachedClient.streamGetSome(region, missedKeys.toArray(new String[0]), (partKeys, partKeyToValue) -> {
+      long loadTime = nanoClock.getAsLong();
+      for (Map.Entry<String, Object> keyAndValue : partKeyToValue.entrySet()) {
+        regionCache.put(keyAndValue.getKey(), keyAndValue.getValue(), loadTime, keyToVersion.get(keyAndValue.getKey()));
+      }
+      partConsumer.accept(partKeys, partKeyToValue);
+    });
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    return invalidateAround(region, key, () -> hhMemcachedClient.set(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return invalidateAround(region, key, () -> hhMemcachedClient.delete(region, key));
+  }
+
+  /** Always goes to memcached, because cas id must be up to date. */
+  @Override
+  public CASPair gets(String region, String key) {
+    return hhMemcachedClient.gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return hhMemcachedClient.asyncGets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return invalidateAround(region, key, () -> hhMemcachedClient.add(region, key, exp, o));
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return invalidateAround(region, key, () -> hhMemcachedClient.asyncCas(region, key, casId, exp, o));
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    return invalidateAround(region, key, () -> hhMemcachedClient.increment(region, key, by, def));
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    return invalidateAround(region, key, () -> hhMemcachedClient.increment(region, key, by, def, ttl));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return hhMemcachedClient.touch(region, key, ttl);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    List<MemcachedBatch.Item> items = batch.getItems();
+    for (MemcachedBatch.Item item : items) {
+      if (item.command != MemcachedBatch.Command.TOUCH) {
+        invalidate(item.region, item.key);
+      }
+    }
+    MemcachedBatchResult batchResult = hhMemcachedClient.executeBatch(batch);
+    for (int i = 0; i < items.size(); i++) {
+      MemcachedBatch.Item item = items.get(i);
+      if (item.command != MemcachedBatch.Command.TOUCH) {
+        batchResult.getItemResult(i).whenComplete((value, exception) -> invalidate(item.region, item.key));
+      }
+    }
+    return batchResult;
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  // invalidate before the call so that this JVM does not read the old value,
+  // and after the call so that gets started during the operation do not cache the old value
+  private <T> CompletableFuture<T> invalidateAround(String region, String key, Supplier<CompletableFuture<T>> method) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache == null) {
+      return method.get();
+    }
+
+    regionCache.invalidate(key);
+    CompletableFuture<T> completableFuture = method.get();
+    completableFuture.whenComplete((value, exception) -> regionCache.invalidate(key));
+    return completableFuture;
+  }
+
+  private long invalidateAround(String region, String key, LongSupplier method) {
+    invalidate(region, key);
+    try {
+      return method.getAsLong();
+    } finally {
+      invalidate(region, key);
+    }
+  }
+
+  private void invalidate(String region, String key) {
+    RegionCache regionCache = regionToCache.get(region);
+    if (regionCache != null) {
+      regionCache.invalidate(key);
+    }
+  }
+
+  private void sendHitMissStats(Object object, RegionCache regionCache) {
+    hitMissCounters.add(1, object == null ? MISS_TAG : HIT_TAG, regionCache.regionTag);
+  }
+
+  static class RegionSettings {
+    final int maxSize;
+    final long ttlMs;
+
+    RegionSettings(int maxSize, long ttlMs) {
+      this.maxSize = maxSize;
+      this.ttlMs = ttlMs;
+    }
+  }
+
+  private static class RegionCache {
+    // a power of two
+    private static final int NUM_OF_VERSION_STRIPES = 1024;
+
+    final Tag regionTag;
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<String, Entry> keyToEntry = new ConcurrentHashMap<>();
+    // entries in order of insertion, replaced and invalidated entries stay here until they are polled
+    private final ConcurrentLinkedQueue<Entry> evictionQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger evictionQueueSize = new AtomicInteger();
+    // a value loaded before an invalidation of its key may be stale, so it is not cached;
+    // versions of keys are striped by hash, so a write of a key stops caching of few other keys, not of the whole region,
+    // and memory does not grow with the number of written keys
+    private final AtomicLongArray versionStripes = new AtomicLongArray(NUM_OF_VERSION_STRIPES);
+
+    RegionCache(String region, RegionSettings settings) {
+      this.regionTag = new Tag("region", region);
+      this.maxSize = settings.maxSize;
+      this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(settings.ttlMs);
+    }
+
+    Object get(String key, long now) {
+      Entry entry = keyToEntry.get(key);
+      if (entry == null) {
+        return null;
+      }
+      if (now - entry.expireAtNanos >= 0) {
+        keyToEntry.remove(key, entry);
+        return null;
+      }
+      return entry.value;
+    }
+
+    long getVersion(String key) {
+      return versionStripes.get(getVersionStripe(key));
+    }
+
+    long[] getVersions(List<String> keys) {
+      long[] versions = new long[keys.size()];
+      for (int i = 0; i < versions.length; i++) {
+        versions[i] = getVersion(keys.get(i));
+      }
+      return versions;
+    }
+
+    void putAll(List<String> keys, Map<String, Object> loadedKeyToValue, long now, long[] versionsBeforeLoad) {
+      for (int i = 0; i < versionsBeforeLoad.length; i++) {
+        Object value = loadedKeyToValue.get(keys.get(i));
+        if (value != null) {
+          put(keys.get(i), value, now, versionsBeforeLoad[i]);
+        }
+      }
+    }
+
+    void put(String key, Object value, long now, long versionBeforeLoad) {
+      int versionStripe = getVersionStripe(key);
+      if (versionStripes.get(versionStripe) != versionBeforeLoad) {
+        return;
+      }
+      Entry entry = new Entry(key, value, now + ttlNanos);
+      keyToEntry.put(key, entry);
+      if (versionStripes.get(versionStripe) != versionBeforeLoad) {
+        keyToEntry.remove(key, entry);
+      }
+      evictionQueue.offer(entry);
+      if (evictionQueueSize.incrementAndGet() > maxSize) {
+        evict();
+      }
+    }
+
+    void invalidate(String key) {
+      versionStripes.incrementAndGet(getVersionStripe(key));
+      keyToEntry.remove(key);
+    }
+
+    private static int getVersionStripe(String key) {
+      int hash = key.hashCode();
+      return (hash ^ (hash >>> 16)) & (NUM_OF_VERSION_STRIPES - 1);
+    }
+
+    private void evict() {
+      while (evictionQueueSize.get() > maxSize) {
+        Entry entry = evictionQueue.poll();
+        if (entry == null) {
+          return;
+        }
+        evictionQueueSize.decrementAndGet();
+        keyToEntry.remove(entry.key, entry);
+      }
+    }
+  }
+
+  private static class Entry {
+    final String key;
+    final Object value;
+    final long expireAtNanos;
+
+    Entry(String key, Object value, long expireAtNanos) {
+      this.key = key;
+      this.value = value;
+      this.expireAtNanos = expireAtNanos;
+    }
+  }
+}
@@ -0,0 +1,213 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import javax.annotation.Nullable;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.hh.nab.metrics.Max;
+import ru.hh.nab.metrics.StatsDSender;
+
+/** Pool of spy clients that can be replaced at runtime by a pool of another list of nodes.<br/>
+ *  The new pool is created and connected before it replaces the old one, so the first operations do not wait for connections.
+ *  Operations started on the old pool complete there, then the old pool is shut down.<br/>
+ *  Percent of keys that moved to other nodes is logged and sent to statsd. */
+class HHReconfigurableMemcachedClient implements HHMemcachedClient {
+  private static final Logger logger = LoggerFactory.getLogger(HHReconfigurableMemcachedClient.class);
+  // keys to estimate percent of moved keys, the same for every reconfiguration
+  private static final int NUM_OF_SAMPLE_KEYS = 10_000;
+
+  private final PoolFactory poolFactory;
+  private final long warmUpTimeoutMs;
+  private final long shutdownTimeoutMs;
+  private final Max movedKeysPercentMax = new Max(0);
+  private volatile Pool pool;
+
+  HHReconfigurableMemcachedClient(PoolFactory poolFactory, List<InetSocketAddress> nodes, long warmUpTimeoutMs, long shutdownTimeoutMs,
+                                  String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec) throws IOException {
+    this.poolFactory = poolFactory;
+    this.warmUpTimeoutMs = warmUpTimeoutMs;
+    this.shutdownTimeoutMs = shutdownTimeoutMs;
+    this.pool = poolFactory.create(nodes);
+
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendMax(serviceName + ".memcached.reconfiguration.movedKeysPercent", movedKeysPercentMax), metricsSendIntervalSec
+    );
+  }
+
+  /** Creates a pool of the nodes, waits for its connections up to warmUpTimeoutMs and puts it in place of the current pool.<br/>
+   *  Nothing is done if the nodes are the same.
+   *  @return percent of keys that moved to other nodes */
+  synchronized int reconfigure(List<InetSocketAddress> nodes) throws IOException {
+    Pool oldPool = pool;
+    if (new HashSet<>(nodes).equals(new HashSet<>(oldPool.nodes))) {
+      return 0;
+    }
+
+    Pool newPool = poolFactory.create(nodes);
+    if (!warmUp(newPool)) {
+      logger.warn("not all of nodes {} are connected in {} ms, the new pool is used anyway", nodes, warmUpTimeoutMs);
+    }
+    int movedKeysPercent = getMovedKeysPercent(oldPool.client, newPool.client);
+    pool = newPool;
+    movedKeysPercentMax.save(movedKeysPercent);
+    logger.info("memcached nodes are changed from {} to {}, {}% of keys moved", oldPool.nodes, nodes, movedKeysPercent);
+
+    for (MemcachedClient spyClient : oldPool.spyClients) {
+      // waits for queued operations
+      spyClient.shutdown(shutdownTimeoutMs, TimeUnit.MILLISECONDS);
+      if (oldPool.nodeQueueSizes != null) {
+        oldPool.nodeQueueSizes.remove(spyClient.getConnection().getLocator().getAll());
+      }
+    }
+    return movedKeysPercent;
+  }
+
+  List<InetSocketAddress> getNodes() {
+    return pool.nodes;
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    return pool.client.get(region, key);
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    return pool.client.getSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return pool.client.asyncGet(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    return pool.client.asyncGetSome(region, keys);
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return pool.client.streamGetSome(region, keys, partConsumer);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    return pool.client.set(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return pool.client.delete(region, key);
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    return pool.client.gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return pool.client.asyncGets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return pool.client.add(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return pool.client.asyncCas(region, key, casId, exp, o);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    return pool.client.increment(region, key, by, def);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    return pool.client.increment(region, key, by, def, ttl);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return pool.client.touch(region, key, ttl);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    return pool.client.executeBatch(batch);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return pool.client.getPrimaryNodeAddress(key);
+  }
+
+  private boolean warmUp(Pool newPool) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(warmUpTimeoutMs);
+    for (MemcachedClient spyClient : newPool.spyClients) {
+      for (MemcachedNode node : spyClient.getNodeLocator().getAll()) {
+        while (!node.isActive()) {
+          if (System.nanoTime() > deadline) {
+            return false;
+          }
+          try {
+            Thread.sleep(1);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+  private static int getMovedKeysPercent(HHMemcachedClient oldClient, HHMemcachedClient newClient) {
+    int numOfMovedKeys = 0;
+    for (int i = 0; i < NUM_OF_SAMPLE_KEYS; i++) {
+      String key = "sample" + i;
+      if (!oldClient.getPrimaryNodeAddress(key).equals(newClient.getPrimaryNodeAddress(key))) {
+        numOfMovedKeys++;
+      }
+    }
+    return numOfMovedKeys * 100 / NUM_OF_SAMPLE_KEYS;
+  }
+
+  interface PoolFactory {
+    Pool create(List<InetSocketAddress> nodes) throws IOException;
+  }
+
+  static final class Pool {
+    final List<InetSocketAddress> nodes;
+    final HHMemcachedClient client;
+    // to wait for connections and shut down
+    final List<MemcachedClient> spyClients;
+    // queues of nodes of the pool are removed from it when the pool is shut down, so they do not count for load shedding
+    @Nullable
+    final NodeQueueSizes nodeQueueSizes;
+
+    Pool(List<InetSocketAddress> nodes, HHMemcachedClient client, List<MemcachedClient> spyClients) {
+      this(nodes, client, spyClients, null);
+    }
+
+    Pool(List<InetSocketAddress> nodes, HHMemcachedClient client, List<MemcachedClient> spyClients, @Nullable NodeQueueSizes nodeQueueSizes) {
+      this.nodes = List.copyOf(nodes);
+      this.client = client;
+      this.spyClients = spyClients;
+      this.nodeQueueSizes = nodeQueueSizes;
+    }
+  }
+}
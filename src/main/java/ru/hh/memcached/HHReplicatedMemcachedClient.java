@@ -0,0 +1,392 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Keeps configured regions in two independent pools of nodes.<br/>
+ *  Writes of these regions go to both pools, the result is the result of the primary pool.<br/>
+ *  A read goes to the primary pool, if it has not answered in hedgeDelayMs or has failed,
+ *  the read goes to the replica pool too, the first found value wins and the other read is cancelled.<br/>
+ *  With readReplicaOnMiss a read that has not found all values in the primary pool goes to the replica pool too,
+ *  so keys that the primary pool has lost, for example after a restart of a node, are still found,
+ *  but every miss costs a read of the replica pool and a second round trip.<br/>
+ *  cas ids and counters are not the same in the two pools, so gets, cas and increment use the primary pool only.<br/>
+ *  Other regions use the primary pool only.<br/>
+ *  Failed writes to the replica pool do not fail the write, they are logged and counted with the write=replicaFailed tag. */
+class HHReplicatedMemcachedClient implements HHMemcachedClient {
+  private static final Logger logger = LoggerFactory.getLogger(HHReplicatedMemcachedClient.class);
+  private static final Tag HEDGED_TAG = new Tag("read", "hedged");
+  private static final Tag REPLICA_WON_TAG = new Tag("read", "replicaWon");
+  private static final Tag REPLICA_FAILED_TAG = new Tag("write", "replicaFailed");
+
+  private final HHMemcachedClient primaryClient;
+  private final HHMemcachedClient replicaClient;
+  private final Map<String, RegionSettings> regionToSettings;
+  private final Counters hedgeCounters;
+  // hedged reads are queued by this thread, not by the common pool of the application
+  private final ScheduledThreadPoolExecutor hedgeScheduler;
+
+  HHReplicatedMemcachedClient(HHMemcachedClient primaryClient, HHMemcachedClient replicaClient, Map<String, RegionSettings> regionToSettings,
+                              String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec) {
+    this(primaryClient, replicaClient, regionToSettings);
+
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendCounters(serviceName + ".memcached.replicated.reads", hedgeCounters), metricsSendIntervalSec
+    );
+  }
+
+  HHReplicatedMemcachedClient(HHMemcachedClient primaryClient, HHMemcachedClient replicaClient, Map<String, RegionSettings> regionToSettings) {
+    this.primaryClient = primaryClient;
+    this.replicaClient = replicaClient;
+    this.regionToSettings = new HashMap<>(regionToSettings);
+    this.hedgeCounters = new Counters(regionToSettings.size() * 3);
+    this.hedgeScheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "memcached-hedge");
+      thread.setDaemon(true);
+      return thread;
+    });
+    // reads that complete before hedgeDelayMs do not leave their tasks in the queue
+    hedgeScheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    if (!regionToSettings.containsKey(region)) {
+      return primaryClient.get(region, key);
+    }
+    return join(asyncGet(region, key));
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    if (!regionToSettings.containsKey(region)) {
+      return primaryClient.getSome(region, keys);
+    }
+    return join(asyncGetSome(region, keys));
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    RegionSettings settings = regionToSettings.get(region);
+    if (settings == null) {
+      return primaryClient.asyncGet(region, key);
+    }
+    return hedgedRead(settings, region, client -> client.asyncGet(region, key),
+                      value -> value != null, (value, otherValue) -> value != null ? value : otherValue);
+  }
+
+  /** Keys found in any of the pools are returned. */
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    RegionSettings settings = regionToSettings.get(region);
+    if (settings == null) {
+      return primaryClient.asyncGetSome(region, keys);
+    }
+    return hedgedRead(settings, region, client -> client.asyncGetSome(region, keys), keyToValue -> keyToValue.size() == keys.length,
+                      (keyToValue, otherKeyToValue) -> {
+                        Map<String, Object> mergedKeyToValue = new HashMap<>(otherKeyToValue);
+                        mergedKeyToValue.putAll(keyToValue);
+                        return mergedKeyToValue;
+                      });
+  }
+
+  /** Not hedged, parts of the two pools would overlap. */
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return primaryClient.streamGetSome(region, keys, partConsumer);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    writeToReplica(region, () -> replicaClient.set(region, key, exp, o));
+    return primaryClient.set(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    writeToReplica(region, () -> replicaClient.delete(region, key));
+    return primaryClient.delete(region, key);
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    return primaryClient.gets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return primaryClient.asyncGets(region, key);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    writeToReplica(region, () -> replicaClient.add(region, key, exp, o));
+    return primaryClient.add(region, key, exp, o);
+  }
+
+  /** The replica pool gets the new value by set, because it has its own cas ids. */
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    CompletableFuture<CASResponse> completableFuture = primaryClient.asyncCas(region, key, casId, exp, o);
+    completableFuture.thenAccept(casResponse -> {
+      if (casResponse == CASResponse.OK) {
+        writeToReplica(region, () -> replicaClient.set(region, key, exp, o));
+      }
+    });
+    return completableFuture;
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    return primaryClient.increment(region, key, by, def);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    return primaryClient.increment(region, key, by, def, ttl);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    writeToReplica(region, () -> replicaClient.touch(region, key, ttl));
+    return primaryClient.touch(region, key, ttl);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    MemcachedBatch replicaBatch = new MemcachedBatch();
+    for (MemcachedBatch.Item item : batch.getItems()) {
+      if (regionToSettings.containsKey(item.region)) {
+        replicaBatch.add(item);
+      }
+    }
+    if (replicaBatch.size() > 0) {
+      executeBatchOnReplica(replicaBatch);
+    }
+    return primaryClient.executeBatch(batch);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return primaryClient.getPrimaryNodeAddress(key);
+  }
+
+  private void writeToReplica(String region, Supplier<CompletableFuture<?>> write) {
+    if (!regionToSettings.containsKey(region)) {
+      return;
+    }
+    // failures of the replica pool must not fail the write to the primary pool
+    try {
+      write.get().whenComplete((result, exception) -> {
+        if (exception != null) {
+          onReplicaWriteFailed(region, exception);
+        }
+      });
+    } catch (RuntimeException e) {
+      onReplicaWriteFailed(region, e);
+    }
+  }
+
+  private void executeBatchOnReplica(MemcachedBatch replicaBatch) {
+    List<MemcachedBatch.Item> items = replicaBatch.getItems();
+    MemcachedBatchResult batchResult;
+    try {
+      batchResult = replicaClient.executeBatch(replicaBatch);
+    } catch (RuntimeException e) {
+      for (MemcachedBatch.Item item : items) {
+        onReplicaWriteFailed(item.region, e);
+      }
+      return;
+    }
+    for (int i = 0; i < items.size(); i++) {
+      String region = items.get(i).region;
+      batchResult.getItemResult(i).whenComplete((result, exception) -> {
+        if (exception != null) {
+          onReplicaWriteFailed(region, exception);
+        }
+      });
+    }
+  }
+
+  private void onReplicaWriteFailed(String region, Throwable exception) {
+    hedgeCounters.add(1, REPLICA_FAILED_TAG, new Tag("region", region));
+    logger.warn("write to replica pool failed, region {}, {}", region, exception.toString());
+  }
+
+  private <T> CompletableFuture<T> hedgedRead(RegionSettings settings, String region, Function<HHMemcachedClient, CompletableFuture<T>> read,
+                                              Predicate<T> isFound, BinaryOperator<T> merge) {
+    HedgedRead<T> hedgedRead = new HedgedRead<>(region, settings.readReplicaOnMiss, read, isFound, merge);
+    hedgedRead.start(false);
+    if (!hedgedRead.isDone()) {
+      ScheduledFuture<?> hedge = hedgeScheduler.schedule(() -> hedgedRead.start(true), settings.hedgeDelayMs, TimeUnit.MILLISECONDS);
+      hedgedRead.whenComplete((value, exception) -> hedge.cancel(false));
+    }
+    return hedgedRead;
+  }
+
+  private static <T> T join(CompletableFuture<T> completableFuture) {
+    try {
+      return completableFuture.join();
+    } catch (CompletionException e) {
+      // same exceptions as a sync read of the pool would throw
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  static class RegionSettings {
+    final long hedgeDelayMs;
+    final boolean readReplicaOnMiss;
+
+    RegionSettings(long hedgeDelayMs) {
+      this(hedgeDelayMs, false);
+    }
+
+    RegionSettings(long hedgeDelayMs, boolean readReplicaOnMiss) {
+      this.hedgeDelayMs = hedgeDelayMs;
+      this.readReplicaOnMiss = readReplicaOnMiss;
+    }
+  }
+
+  /** Completes with the first found value,
+   *  or with values of all started reads merged together when none of them has found the value. */
+  private class HedgedRead<T> extends CompletableFuture<T> {
+    private final Tag regionTag;
+    private final boolean readReplicaOnMiss;
+    private final Function<HHMemcachedClient, CompletableFuture<T>> read;
+    private final Predicate<T> isFound;
+    private final BinaryOperator<T> merge;
+    // guarded by this
+    private int numOfStartedReads;
+    private int numOfAnsweredReads;
+    private boolean replicaStarted;
+    private boolean notFound;
+    private T notFoundValue;
+    private Throwable exception;
+    private CompletableFuture<T> primaryFuture;
+    private CompletableFuture<T> replicaFuture;
+
+    HedgedRead(String region, boolean readReplicaOnMiss, Function<HHMemcachedClient, CompletableFuture<T>> read, Predicate<T> isFound,
+               BinaryOperator<T> merge) {
+      this.regionTag = new Tag("region", region);
+      this.readReplicaOnMiss = readReplicaOnMiss;
+      this.read = read;
+      this.isFound = isFound;
+      this.merge = merge;
+      whenComplete((value, exception) -> cancelReads());
+    }
+
+    boolean start(boolean replica) {
+      synchronized (this) {
+        if (isDone() || (replica && replicaStarted)) {
+          return false;
+        }
+        numOfStartedReads++;
+        replicaStarted |= replica;
+      }
+      if (replica) {
+        hedgeCounters.add(1, HEDGED_TAG, regionTag);
+      }
+
+      CompletableFuture<T> future;
+      try {
+        future = read.apply(replica ? replicaClient : primaryClient);
+      } catch (RuntimeException e) {
+        future = new CompletableFuture<>();
+        future.completeExceptionally(e);
+      }
+      synchronized (this) {
+        if (replica) {
+          replicaFuture = future;
+        } else {
+          primaryFuture = future;
+        }
+      }
+      future.whenComplete((value, exception) -> onAnswer(value, exception, replica));
+      if (isDone()) {
+        cancelReads();
+      }
+      return true;
+    }
+
+    private void onAnswer(T value, Throwable readException, boolean replica) {
+      if (readException == null && isFound.test(value)) {
+        if (complete(value) && replica) {
+          hedgeCounters.add(1, REPLICA_WON_TAG, regionTag);
+        }
+        return;
+      }
+
+      boolean allAnswered;
+      synchronized (this) {
+        numOfAnsweredReads++;
+        if (readException == null) {
+          notFoundValue = notFound ? merge.apply(value, notFoundValue) : value;
+          notFound = true;
+        } else {
+          exception = readException;
+        }
+        allAnswered = numOfAnsweredReads == numOfStartedReads;
+      }
+
+      if (!replica && (readException != null || readReplicaOnMiss)) {
+        // no need to wait for hedgeDelayMs, the primary pool has already failed or has not found the value;
+        // the answer comes in a listener thread of the primary pool, it must not wait for the queue of the replica pool
+        hedgeScheduler.execute(() -> {
+          if (!start(true) && allAnswered) {
+            completeWithNotFoundValue();
+          }
+        });
+        return;
+      }
+      if (allAnswered) {
+        completeWithNotFoundValue();
+      }
+    }
+
+    private void completeWithNotFoundValue() {
+      synchronized (this) {
+        if (!notFound) {
+          completeExceptionally(exception);
+          return;
+        }
+      }
+      // a miss in one pool and a failure in the other is a miss
+      complete(notFoundValue);
+    }
+
+    private void cancelReads() {
+      CompletableFuture<T> primary;
+      CompletableFuture<T> replica;
+      synchronized (this) {
+        primary = primaryFuture;
+        replica = replicaFuture;
+      }
+      if (primary != null && !primary.isDone()) {
+        primary.cancel(false);
+      }
+      if (replica != null && !replica.isDone()) {
+        replica.cancel(false);
+      }
+    }
+  }
+}
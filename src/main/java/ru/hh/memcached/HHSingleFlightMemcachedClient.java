@@ -0,0 +1,388 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import net.spy.memcached.OperationTimeoutException;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Shares one in-flight read of a key between all callers that read the same key at the same time.<br/>
+ *  The first caller performs the read, the others wait for its result.<br/>
+ *  Cancelling a returned future does not affect other callers,
+ *  the underlying read is cancelled only when all callers of an async read have cancelled their futures.<br/>
+ *  Synchronous callers wait for a read of another caller not longer than opTimeoutMs or the time left to their deadline. */
+class HHSingleFlightMemcachedClient implements HHMemcachedClient {
+  private static final Tag GET_COMMAND_TAG = new Tag("command", "get");
+  private static final Tag GET_SOME_COMMAND_TAG = new Tag("command", "getSome");
+  private static final Tag GETS_COMMAND_TAG = new Tag("command", "gets");
+
+  private final HHMemcachedClient hhMemcachedClient;
+  private final InFlightReads<Object> inFlightGets = new InFlightReads<>();
+  private final InFlightReads<CASPair> inFlightGetses = new InFlightReads<>();
+  private final Counters coalescedCounters;
+  private final long waitTimeoutMs;
+
+  HHSingleFlightMemcachedClient(HHMemcachedClient hhMemcachedClient, long waitTimeoutMs, String serviceName, StatsDSender statsDSender,
+                                int metricsSendIntervalSec, int maxNumOfCoalescedCounters) {
+    this.hhMemcachedClient = hhMemcachedClient;
+    this.waitTimeoutMs = waitTimeoutMs;
+    this.coalescedCounters = new Counters(maxNumOfCoalescedCounters);
+
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendCounters(serviceName + ".memcached.singleFlight.coalesced", coalescedCounters), metricsSendIntervalSec
+    );
+  }
+
+  @Override
+  public Object get(String region, String key) {
+    return inFlightGets.load(region, key, GET_COMMAND_TAG, () -> hhMemcachedClient.get(region, key));
+  }
+
+  @Override
+  public Map<String, Object> getSome(String region, String[] keys) {
+    Map<String, Object> keyToValue = new HashMap<>(keys.length);
+    Map<String, InFlight<Object>> keyToJoinedRead = new HashMap<>();
+    List<String> keysToLoad = new ArrayList<>();
+    List<InFlight<Object>> startedReads = new ArrayList<>();
+    startOrJoinReads(region, keys, keyToJoinedRead, keysToLoad, startedReads);
+
+    if (!keysToLoad.isEmpty()) {
+      Map<String, Object> loadedKeyToValue;
+      try {
+        loadedKeyToValue = hhMemcachedClient.getSome(region, keysToLoad.toArray(new String[0]));
+      } catch (RuntimeException | Error e) {
+        for (InFlight<Object> startedRead : startedReads) {
+          inFlightGets.complete(startedRead, null, e);
+        }
+        throw e;
+      }
+      completeStartedReads(keysToLoad, startedReads, loadedKeyToValue);
+      keyToValue.putAll(loadedKeyToValue);
+    }
+
+    // joined reads share one timeout, so the call waits not longer than a single read
+    long waitDeadlineNanoTime = System.nanoTime();
+    try {
+      waitDeadlineNanoTime += TimeUnit.MILLISECONDS.toNanos(getWaitTimeoutMs());
+    } catch (OperationTimeoutException e) {
+      // the deadline of the caller has passed, only joined reads that have completed are given
+    }
+    for (Map.Entry<String, InFlight<Object>> keyAndJoinedRead : keyToJoinedRead.entrySet()) {
+      Object value;
+      try {
+        value = waitFor(keyAndJoinedRead.getValue().result, waitDeadlineNanoTime);
+      } catch (RuntimeException e) {
+        // the error is reported to the caller that started the read, here it is just a miss as in partial getSome
+        continue;
+      }
+      if (value != null) {
+        keyToValue.put(keyAndJoinedRead.getKey(), value);
+      }
+    }
+    return keyToValue;
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    return inFlightGets.asyncLoad(region, key, GET_COMMAND_TAG, () -> hhMemcachedClient.asyncGet(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    Map<String, InFlight<Object>> keyToJoinedRead = new HashMap<>();
+    List<String> keysToLoad = new ArrayList<>();
+    List<InFlight<Object>> startedReads = new ArrayList<>();
+    startOrJoinReads(region, keys, keyToJoinedRead, keysToLoad, startedReads);
+
+    CompletableFuture<Map<String, Object>> loadFuture;
+    if (keysToLoad.isEmpty()) {
+      loadFuture = CompletableFuture.completedFuture(Map.of());
+    } else {
+      try {
+        loadFuture = hhMemcachedClient.asyncGetSome(region, keysToLoad.toArray(new String[0]));
+      } catch (RuntimeException | Error e) {
+        for (InFlight<Object> startedRead : startedReads) {
+          inFlightGets.complete(startedRead, null, e);
+        }
+        throw e;
+      }
+      loadFuture.whenComplete((loadedKeyToValue, exception) -> {
+        if (exception == null) {
+          completeStartedReads(keysToLoad, startedReads, loadedKeyToValue);
+        } else {
+          for (InFlight<Object> startedRead : startedReads) {
+            inFlightGets.complete(startedRead, null, exception);
+          }
+        }
+      });
+    }
+
+    CompletableFuture<?>[] joinedReads = keyToJoinedRead.values().stream().map(inFlight -> inFlight.result).toArray(CompletableFuture<?>[]::new);
+    CompletableFuture<Map<String, Object>> resultFuture = loadFuture.thenCombine(
+      CompletableFuture.allOf(joinedReads).handle((ignored, exception) -> null),
+      (loadedKeyToValue, ignored) -> {
+        Map<String, Object> keyToValue = new HashMap<>(loadedKeyToValue);
+        for (Map.Entry<String, InFlight<Object>> keyAndJoinedRead : keyToJoinedRead.entrySet()) {
+          CompletableFuture<Object> joinedRead = keyAndJoinedRead.getValue().result;
+          if (!joinedRead.isCompletedExceptionally() && joinedRead.join() != null) {
+            keyToValue.put(keyAndJoinedRead.getKey(), joinedRead.join());
+          }
+        }
+        return keyToValue;
+      }
+    );
+    resultFuture.whenComplete((keyToValue, exception) -> {
+      if (exception instanceof CancellationException) {
+        for (InFlight<Object> joinedRead : keyToJoinedRead.values()) {
+          inFlightGets.leave(joinedRead);
+        }
+        // one load is shared by all started reads, it is cancelled only when no other caller has joined any of them
+        boolean allStartedReadsLeft = true;
+        for (InFlight<Object> startedRead : startedReads) {
+          allStartedReadsLeft &= inFlightGets.leave(startedRead);
+        }
+        if (allStartedReadsLeft) {
+          loadFuture.cancel(false);
+        }
+      }
+    });
+    return resultFuture;
+  }
+
+  /** Not coalesced, parts come from different nodes at different times and can not be shared with reads of other callers. */
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    return hhMemcachedClient.streamGetSome(region, keys, partConsumer);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
+    return hhMemcachedClient.set(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> delete(String region, String key) {
+    return hhMemcachedClient.delete(region, key);
+  }
+
+  @Override
+  public CASPair gets(String region, String key) {
+    return inFlightGetses.load(region, key, GETS_COMMAND_TAG, () -> hhMemcachedClient.gets(region, key));
+  }
+
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    return inFlightGetses.asyncLoad(region, key, GETS_COMMAND_TAG, () -> hhMemcachedClient.asyncGets(region, key));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
+    return hhMemcachedClient.add(region, key, exp, o);
+  }
+
+  @Override
+  public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
+    return hhMemcachedClient.asyncCas(region, key, casId, exp, o);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def) {
+    return hhMemcachedClient.increment(region, key, by, def);
+  }
+
+  @Override
+  public long increment(String region, String key, int by, int def, int ttl) {
+    return hhMemcachedClient.increment(region, key, by, def, ttl);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
+    return hhMemcachedClient.touch(region, key, ttl);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    return hhMemcachedClient.executeBatch(batch);
+  }
+
+  @Override
+  public InetSocketAddress getPrimaryNodeAddress(String key) {
+    return hhMemcachedClient.getPrimaryNodeAddress(key);
+  }
+
+  private void startOrJoinReads(String region, String[] keys, Map<String, InFlight<Object>> keyToJoinedRead,
+                                List<String> keysToLoad, List<InFlight<Object>> startedReads) {
+    for (String key : keys) {
+      InFlight<Object> inFlight = new InFlight<>(getKey(region, key));
+      InFlight<Object> existingInFlight = inFlightGets.startOrJoin(inFlight);
+      if (existingInFlight == null) {
+        keysToLoad.add(key);
+        startedReads.add(inFlight);
+      } else {
+        keyToJoinedRead.put(key, existingInFlight);
+        sendCoalescedStats(region, GET_SOME_COMMAND_TAG);
+      }
+    }
+  }
+
+  private void completeStartedReads(List<String> keysToLoad, List<InFlight<Object>> startedReads, Map<String, Object> loadedKeyToValue) {
+    for (int i = 0; i < keysToLoad.size(); i++) {
+      inFlightGets.complete(startedReads.get(i), loadedKeyToValue.get(keysToLoad.get(i)), null);
+    }
+  }
+
+  /** Called after a caller has joined a read of another caller. */
+  void sendCoalescedStats(String region, Tag commandTag) {
+    coalescedCounters.add(1, new Tag("region", region), commandTag);
+  }
+
+  private long getWaitTimeoutMs() {
+    long remainingMs = MemcachedDeadline.getRemainingMs();
+    return remainingMs != MemcachedDeadline.NO_DEADLINE && remainingMs < waitTimeoutMs ? remainingMs : waitTimeoutMs;
+  }
+
+  private static <T> T waitFor(CompletableFuture<T> future, long deadlineNanoTime) {
+    try {
+      return future.get(Math.max(0, deadlineNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (TimeoutException e) {
+      throw new OperationTimeoutException("Timeout waiting for read of another caller", e);
+    }
+  }
+
+  private class InFlightReads<T> {
+    private final Map<String, InFlight<T>> keyToInFlight = new ConcurrentHashMap<>();
+
+    T load(String region, String key, Tag commandTag, Supplier<T> method) {
+      InFlight<T> inFlight = new InFlight<>(getKey(region, key));
+      InFlight<T> existingInFlight = startOrJoin(inFlight);
+      if (existingInFlight != null) {
+        sendCoalescedStats(region, commandTag);
+        return waitFor(existingInFlight.result, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getWaitTimeoutMs()));
+      }
+
+      T value;
+      try {
+        value = method.get();
+      } catch (RuntimeException | Error e) {
+        // errors complete the read too, otherwise the key stays in flight and callers of the key wait for it
+        complete(inFlight, null, e);
+        throw e;
+      }
+      complete(inFlight, value, null);
+      return value;
+    }
+
+    CompletableFuture<T> asyncLoad(String region, String key, Tag commandTag, Supplier<CompletableFuture<T>> method) {
+      InFlight<T> inFlight = new InFlight<>(getKey(region, key));
+      InFlight<T> existingInFlight = startOrJoin(inFlight);
+      if (existingInFlight != null) {
+        sendCoalescedStats(region, commandTag);
+        return newWaiterFuture(existingInFlight);
+      }
+
+      CompletableFuture<T> origFuture;
+      try {
+        origFuture = method.get();
+      } catch (RuntimeException | Error e) {
+        complete(inFlight, null, e);
+        throw e;
+      }
+      inFlight.origFuture = origFuture;
+      origFuture.whenComplete((value, exception) -> complete(inFlight, value, exception));
+
+      return newWaiterFuture(inFlight);
+    }
+
+    /** @return the read that the caller has joined, or null if the caller has put inFlight and has to perform the read */
+    InFlight<T> startOrJoin(InFlight<T> inFlight) {
+      while (true) {
+        InFlight<T> existingInFlight = keyToInFlight.putIfAbsent(inFlight.keyWithRegion, inFlight);
+        if (existingInFlight == null || existingInFlight.tryJoin()) {
+          return existingInFlight;
+        }
+        // all callers have cancelled the existing read, it is being removed
+        keyToInFlight.remove(inFlight.keyWithRegion, existingInFlight);
+      }
+    }
+
+    void complete(InFlight<T> inFlight, T value, Throwable exception) {
+      // remove first, so that callers that come after the completion start a new read
+      keyToInFlight.remove(inFlight.keyWithRegion, inFlight);
+      if (exception == null) {
+        inFlight.result.complete(value);
+      } else {
+        inFlight.result.completeExceptionally(exception);
+      }
+    }
+
+    /** Called after a caller has cancelled its future.<br/>
+     *  @return true if the caller was the last waiter of the read, then the read is removed and its orig future is cancelled */
+    boolean leave(InFlight<T> inFlight) {
+      if (inFlight.waiters.decrementAndGet() != 0) {
+        return false;
+      }
+      keyToInFlight.remove(inFlight.keyWithRegion, inFlight);
+      CompletableFuture<T> origFuture = inFlight.origFuture;
+      if (origFuture != null) {
+        origFuture.cancel(false);
+      }
+      return true;
+    }
+
+    private CompletableFuture<T> newWaiterFuture(InFlight<T> inFlight) {
+      CompletableFuture<T> waiterFuture = inFlight.result.copy();
+      waiterFuture.whenComplete((value, exception) -> {
+        if (exception instanceof CancellationException) {
+          leave(inFlight);
+        }
+      });
+      return waiterFuture;
+    }
+  }
+
+  private static class InFlight<T> {
+    final String keyWithRegion;
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    // the caller that started the read is a waiter too
+    final AtomicInteger waiters = new AtomicInteger(1);
+    volatile CompletableFuture<T> origFuture;
+
+    InFlight(String keyWithRegion) {
+      this.keyWithRegion = keyWithRegion;
+    }
+
+    /** Does not join a read that all its callers have cancelled, its orig future is cancelled or is being cancelled. */
+    boolean tryJoin() {
+      int numOfWaiters;
+      do {
+        numOfWaiters = waiters.get();
+        if (numOfWaiters == 0) {
+          return false;
+        }
+      } while (!waiters.compareAndSet(numOfWaiters, numOfWaiters + 1));
+      return true;
+    }
+  }
+}
@@ -2,40 +2,102 @@ package ru.hh.memcached;
 
 import net.spy.memcached.CASValue;
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.NodeLocator;
+import net.spy.memcached.OperationTimeoutException;
 import net.spy.memcached.internal.BulkFuture;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.transcoders.Transcoder;
 
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
 
 class HHSpyMemcachedClient implements HHMemcachedClient {
+  private static final long NO_OWN_TIMEOUT = MemcachedDeadline.NO_DEADLINE;
+
   private final MemcachedClient spyMemcachedClient;
+  private final Map<String, Transcoder<Object>> regionToTranscoder;
+  @Nullable
+  private final OperationPhaseStats phaseStats;
+  private final Map<String, RegionPolicy> regionToPolicy;
+  @Nullable
+  private final GetSomeChunking getSomeChunking;
 
   HHSpyMemcachedClient(MemcachedClient memcachedClient) {
+    this(memcachedClient, Map.of());
+  }
+
+  /** @param regionToTranscoder transcoders of regions that do not use the default transcoder of the spy client */
+  HHSpyMemcachedClient(MemcachedClient memcachedClient, Map<String, Transcoder<Object>> regionToTranscoder) {
+    this(memcachedClient, regionToTranscoder, null);
+  }
+
+  /** @param phaseStats gets decode time of asynchronous reads */
+  HHSpyMemcachedClient(MemcachedClient memcachedClient, Map<String, Transcoder<Object>> regionToTranscoder,
+                       @Nullable OperationPhaseStats phaseStats) {
+    this(memcachedClient, regionToTranscoder, phaseStats, Map.of());
+  }
+
+  /** @param regionToPolicy timeouts and default exp of regions, operations of other regions use opTimeoutMs of the spy client */
+  HHSpyMemcachedClient(MemcachedClient memcachedClient, Map<String, Transcoder<Object>> regionToTranscoder,
+                       @Nullable OperationPhaseStats phaseStats, Map<String, RegionPolicy> regionToPolicy) {
+    this(memcachedClient, regionToTranscoder, phaseStats, regionToPolicy, null);
+  }
+
+  /** @param getSomeChunking splits getSome of many keys into chunks, null to read all keys by one bulk get */
+  HHSpyMemcachedClient(MemcachedClient memcachedClient, Map<String, Transcoder<Object>> regionToTranscoder,
+                       @Nullable OperationPhaseStats phaseStats, Map<String, RegionPolicy> regionToPolicy,
+                       @Nullable GetSomeChunking getSomeChunking) {
     this.spyMemcachedClient = memcachedClient;
+    this.regionToTranscoder = regionToTranscoder;
+    this.phaseStats = phaseStats;
+    this.regionToPolicy = regionToPolicy;
+    this.getSomeChunking = getSomeChunking;
   }
 
   @Override
   public Object get(String region, String key) {
     String keyWithRegion = getKey(region, key);
-    return spyMemcachedClient.get(keyWithRegion);
+    long timeoutMs = getOwnTimeoutMs(region);
+    if (timeoutMs != NO_OWN_TIMEOUT) {
+      return waitFor(spyAsyncGet(region, keyWithRegion), timeoutMs);
+    }
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null ? spyMemcachedClient.get(keyWithRegion) : spyMemcachedClient.get(keyWithRegion, transcoder);
   }
 
   @Override
   public Map<String, Object> getSome(String region, String[] keys) {
-    String[] keysWithRegion = new String[keys.length];
-    for (int i = 0; i < keys.length; i++) {
-      keysWithRegion[i] = getKey(region, keys[i]);
+    if (getSomeChunking != null && keys.length > getSomeChunking.chunkSize) {
+      return getSomeByChunks(region, keys, getSomeChunking);
     }
+    String[] keysWithRegion = getKeysWithRegion(region, keys);
+    long timeoutMs = getTimeoutMs(region);
 
-    BulkFuture<Map<String, Object>> bulkFuture = spyMemcachedClient.asyncGetBulk(keysWithRegion);
+    BulkFuture<Map<String, Object>> bulkFuture = spyAsyncGetBulk(region, keysWithRegion);
 
     Map<String, Object> keyWithRegionToValue;
     try {
-      keyWithRegionToValue = bulkFuture.getSome(spyMemcachedClient.getOperationTimeout(), TimeUnit.MILLISECONDS);
+      keyWithRegionToValue = bulkFuture.getSome(timeoutMs, TimeUnit.MILLISECONDS);
     } catch (InterruptedException | ExecutionException e) {
       if (e instanceof InterruptedException) {
         Thread.currentThread().interrupt();
@@ -44,75 +106,429 @@ class HHSpyMemcachedClient implements HHMemcachedClient {
       throw new RuntimeException(e);
     }
 
-    Map<String, Object> keyToValue = new HashMap<>(keys.length);
-    for (int i = 0; i < keys.length; i++) {
-      Object value = keyWithRegionToValue.get(keysWithRegion[i]);
-      if(value != null) {
-        keyToValue.put(keys[i], value);
+    return getKeyToValue(keys, keysWithRegion, keyWithRegionToValue, bulkFuture);
+  }
+
+  /** Only keys and values of chunks in flight are held besides the result, instead of all prefixed keys and the whole bulk result.<br/>
+   *  All chunks share one timeout, so the call does not take longer than a single bulk get.
+   *  A chunk that times out gives the values received before the timeout, the other chunks of its node are not queued,
+   *  chunks of other nodes are still read. */
+  private Map<String, Object> getSomeByChunks(String region, String[] keys, GetSomeChunking chunking) {
+    long timeoutNanoTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeoutMs(region));
+    List<Map.Entry<MemcachedNode, List<String>>> chunks = getChunksOfNodes(region, keys, chunking.chunkSize);
+    Map<String, Object> keyToValue = new HashMap<>();
+    Set<MemcachedNode> timedOutNodes = new HashSet<>();
+    ArrayDeque<BulkGetChunk> chunksInFlight = new ArrayDeque<>(chunking.maxChunksInFlight);
+    try {
+      for (Map.Entry<MemcachedNode, List<String>> nodeAndChunkKeys : chunks) {
+        if (chunksInFlight.size() == chunking.maxChunksInFlight) {
+          putValues(chunksInFlight.poll(), timeoutNanoTime, keyToValue, timedOutNodes);
+        }
+        if (System.nanoTime() - timeoutNanoTime >= 0) {
+          // keys of the chunks that are not queued are given as misses
+          break;
+        }
+        if (timedOutNodes.contains(nodeAndChunkKeys.getKey())) {
+          continue;
+        }
+        String[] chunkKeys = nodeAndChunkKeys.getValue().toArray(new String[0]);
+        String[] chunkKeysWithRegion = getKeysWithRegion(region, chunkKeys);
+        chunksInFlight.add(new BulkGetChunk(nodeAndChunkKeys.getKey(), chunkKeys, chunkKeysWithRegion,
+                                            spyAsyncGetBulk(region, chunkKeysWithRegion)));
+      }
+      while (!chunksInFlight.isEmpty()) {
+        putValues(chunksInFlight.poll(), timeoutNanoTime, keyToValue, timedOutNodes);
+      }
+    } catch (RuntimeException e) {
+      for (BulkGetChunk chunk : chunksInFlight) {
+        chunk.bulkFuture.cancel(false);
       }
+      throw e;
     }
-    return keyToValue;
+    if (timedOutNodes.isEmpty()) {
+      return keyToValue;
+    }
+    Set<InetSocketAddress> timedOutAddresses = new HashSet<>();
+    for (MemcachedNode node : timedOutNodes) {
+      timedOutAddresses.add((InetSocketAddress) node.getSocketAddress());
+    }
+    return new PartialKeyToValue(keyToValue, timedOutAddresses);
+  }
+
+  /** @return chunks of keys of one node, chunks of different nodes alternate, so chunks in flight are spread over the nodes */
+  private List<Map.Entry<MemcachedNode, List<String>>> getChunksOfNodes(String region, String[] keys, int chunkSize) {
+    NodeLocator locator = spyMemcachedClient.getConnection().getLocator();
+    Map<MemcachedNode, List<String>> nodeToKeys = new LinkedHashMap<>();
+    for (String key : keys) {
+      nodeToKeys.computeIfAbsent(locator.getPrimary(getKey(region, key)), node -> new ArrayList<>()).add(key);
+    }
+    int maxNumOfNodeKeys = 0;
+    for (List<String> nodeKeys : nodeToKeys.values()) {
+      maxNumOfNodeKeys = Math.max(maxNumOfNodeKeys, nodeKeys.size());
+    }
+    List<Map.Entry<MemcachedNode, List<String>>> chunks = new ArrayList<>(keys.length / chunkSize + nodeToKeys.size());
+    for (int from = 0; from < maxNumOfNodeKeys; from += chunkSize) {
+      for (Map.Entry<MemcachedNode, List<String>> nodeAndKeys : nodeToKeys.entrySet()) {
+        List<String> nodeKeys = nodeAndKeys.getValue();
+        if (from < nodeKeys.size()) {
+          chunks.add(Map.entry(nodeAndKeys.getKey(), nodeKeys.subList(from, Math.min(from + chunkSize, nodeKeys.size()))));
+        }
+      }
+    }
+    return chunks;
+  }
+
+  private static void putValues(BulkGetChunk chunk, long timeoutNanoTime, Map<String, Object> keyToValue,
+                                Set<MemcachedNode> timedOutNodes) {
+    Map<String, Object> keyWithRegionToValue;
+    try {
+      keyWithRegionToValue = chunk.bulkFuture.getSome(Math.max(0, timeoutNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (InterruptedException | ExecutionException e) {
+      if (e instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+
+      throw new RuntimeException(e);
+    }
+    if (chunk.bulkFuture.isTimeout()) {
+      timedOutNodes.add(chunk.node);
+    }
+    putValues(chunk.keys, chunk.keysWithRegion, keyWithRegionToValue, keyToValue);
+  }
+
+  @Override
+  public CompletableFuture<Object> asyncGet(String region, String key) {
+    String keyWithRegion = getKey(region, key);
+    long timeoutMs = getTimeoutMs(region);
+    return new GetFutureToCompletableFutureAdapter<>(spyAsyncGet(region, keyWithRegion), timeoutMs, getDecodeTimeConsumer(keyWithRegion));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, Object>> asyncGetSome(String region, String[] keys) {
+    String[] keysWithRegion = getKeysWithRegion(region, keys);
+    long timeoutMs = getTimeoutMs(region);
+    BulkFuture<Map<String, Object>> bulkFuture = spyAsyncGetBulk(region, keysWithRegion);
+    return thenApply(new BulkFutureToCompletableFutureAdapter<>(bulkFuture, timeoutMs),
+                     keyWithRegionToValue -> getKeyToValue(keys, keysWithRegion, keyWithRegionToValue, bulkFuture));
+  }
+
+  @Override
+  public CompletableFuture<Void> streamGetSome(String region, String[] keys, BiConsumer<String[], Map<String, Object>> partConsumer) {
+    long timeoutMs = getTimeoutMs(region);
+    NodeLocator locator = spyMemcachedClient.getConnection().getLocator();
+    Map<MemcachedNode, List<String>> nodeToKeys = new LinkedHashMap<>();
+    for (String key : keys) {
+      nodeToKeys.computeIfAbsent(locator.getPrimary(getKey(region, key)), node -> new ArrayList<>()).add(key);
+    }
+
+    // one bulk get per node, so each node completes its own future
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Map<String, Object>>[] nodeFutures = new CompletableFuture[nodeToKeys.size()];
+    // completes after partConsumer has got the part
+    CompletableFuture<?>[] partFutures = new CompletableFuture[nodeToKeys.size()];
+    int nodeIndex = 0;
+    for (Map.Entry<MemcachedNode, List<String>> nodeAndKeys : nodeToKeys.entrySet()) {
+      String[] nodeKeys = nodeAndKeys.getValue().toArray(new String[0]);
+      String[] nodeKeysWithRegion = getKeysWithRegion(region, nodeKeys);
+      BulkFuture<Map<String, Object>> nodeBulkFuture = spyAsyncGetBulk(region, nodeKeysWithRegion);
+      nodeFutures[nodeIndex] = new BulkFutureToCompletableFutureAdapter<>(
+          nodeBulkFuture, timeoutMs, getDecodeTimeConsumer(nodeAndKeys.getKey())
+      );
+      partFutures[nodeIndex] = nodeFutures[nodeIndex].thenAccept(keyWithRegionToValue -> {
+        Map<String, Object> nodeKeyToValue = getKeyToValue(nodeKeys, nodeKeysWithRegion, keyWithRegionToValue);
+        partConsumer.accept(nodeKeys, nodeBulkFuture.isTimeout()
+            ? new PartialKeyToValue(nodeKeyToValue, Set.of((InetSocketAddress) nodeAndKeys.getKey().getSocketAddress()))
+            : nodeKeyToValue);
+      });
+      nodeIndex++;
+    }
+
+    CompletableFuture<Void> completableFuture = CompletableFuture.allOf(partFutures);
+    completableFuture.whenComplete((ignored, exception) -> {
+      if (exception instanceof CancellationException) {
+        for (CompletableFuture<Map<String, Object>> nodeFuture : nodeFutures) {
+          nodeFuture.cancel(false);
+        }
+      }
+    });
+    return completableFuture;
   }
 
   @Override
   public CompletableFuture<Boolean> set(String region, String key, int exp, Object o) {
     String keyWithRegion = getKey(region, key);
-    return new OperationToCompletableFutureAdapter<>(spyMemcachedClient.set(keyWithRegion, exp, o));
+    long timeoutMs = getOwnTimeoutMs(region);
+    return toCompletableFuture(spySet(region, keyWithRegion, getExp(region, exp), o), timeoutMs);
   }
 
   @Override
   public CompletableFuture<Boolean> delete(String region, String key) {
     String keyWithRegion = getKey(region, key);
-    return new OperationToCompletableFutureAdapter<>(spyMemcachedClient.delete(keyWithRegion));
+    long timeoutMs = getOwnTimeoutMs(region);
+    return toCompletableFuture(spyMemcachedClient.delete(keyWithRegion), timeoutMs);
   }
 
   @Override
   public CASPair gets(String region, String key) {
     String keyWithRegion = getKey(region, key);
-    CASValue<Object> casValue = spyMemcachedClient.gets(keyWithRegion);
+    long timeoutMs = getOwnTimeoutMs(region);
+    CASValue<Object> casValue = timeoutMs != NO_OWN_TIMEOUT
+        ? waitFor(spyAsyncGets(region, keyWithRegion), timeoutMs)
+        : spyGets(region, keyWithRegion);
     return casValue != null ? new CASPair<>(casValue.getCas(), casValue.getValue()) : null;
   }
 
+  @Override
+  public CompletableFuture<CASPair> asyncGets(String region, String key) {
+    String keyWithRegion = getKey(region, key);
+    long timeoutMs = getTimeoutMs(region);
+    return thenApply(new OperationToCompletableFutureAdapter<>(spyAsyncGets(region, keyWithRegion), timeoutMs),
+                     casValue -> casValue != null ? new CASPair<>(casValue.getCas(), casValue.getValue()) : null);
+  }
+
   @Override
   public CompletableFuture<Boolean> add(String region, String key, int exp, Object o) {
     String keyWithRegion = getKey(region, key);
-    return new OperationToCompletableFutureAdapter<>(spyMemcachedClient.add(keyWithRegion, exp, o));
+    long timeoutMs = getOwnTimeoutMs(region);
+    return toCompletableFuture(spyAdd(region, keyWithRegion, getExp(region, exp), o), timeoutMs);
   }
 
   @Override
   public CompletableFuture<CASResponse> asyncCas(String region, String key, long casId, int exp, Object o) {
     String keyWithRegion = getKey(region, key);
-    return new OperationToCompletableFutureAdapter<>(spyMemcachedClient.asyncCAS(keyWithRegion, casId, exp, o))
-        .thenApply(HHSpyMemcachedClient::getCASResponseFromSpyCASResponse);
+    long timeoutMs = getOwnTimeoutMs(region);
+    return thenApply(toCompletableFuture(spyAsyncCas(region, keyWithRegion, casId, getExp(region, exp), o), timeoutMs),
+                     HHSpyMemcachedClient::getCASResponseFromSpyCASResponse);
   }
 
  @Override
   public long increment(String region, String key, int by, int def) {
    String keyWithRegion = getKey(region, key);
-   return spyMemcachedClient.incr(keyWithRegion, by, def);
+   long timeoutMs = getOwnTimeoutMs(region);
+   return timeoutMs != NO_OWN_TIMEOUT
+       ? waitFor(spyMemcachedClient.asyncIncr(keyWithRegion, by, (long) def), timeoutMs)
+       : spyMemcachedClient.incr(keyWithRegion, by, def);
   }
 
   @Override
   public long increment(String region, String key, int by, int def, int ttl) {
     String keyWithRegion = getKey(region, key);
-    return spyMemcachedClient.incr(keyWithRegion, by, def, ttl);
+    long timeoutMs = getOwnTimeoutMs(region);
+    return timeoutMs != NO_OWN_TIMEOUT
+        ? waitFor(spyMemcachedClient.asyncIncr(keyWithRegion, by, (long) def, ttl), timeoutMs)
+        : spyMemcachedClient.incr(keyWithRegion, by, def, ttl);
   }
 
   @Override
   public CompletableFuture<Boolean> touch(String region, String key, int ttl) {
     String keyWithRegion = getKey(region, key);
-    return new OperationToCompletableFutureAdapter<>(spyMemcachedClient.touch(keyWithRegion, ttl));
+    long timeoutMs = getOwnTimeoutMs(region);
+    return toCompletableFuture(spyMemcachedClient.touch(keyWithRegion, ttl), timeoutMs);
+  }
+
+  @Override
+  public MemcachedBatchResult executeBatch(MemcachedBatch batch) {
+    List<MemcachedBatch.Item> items = batch.getItems();
+    // each operation is a separate command, spy writes queued commands of a node to its socket together anyway;
+    // quiet commands are not used, because spy breaks the connection when a quiet add fails in its optimized pipeline
+    @SuppressWarnings("unchecked")
+    CompletableFuture<Boolean>[] itemResults = new CompletableFuture[items.size()];
+    for (int i = 0; i < items.size(); i++) {
+      try {
+        itemResults[i] = executeBatchItem(items.get(i));
+      } catch (RuntimeException e) {
+        // operations that were queued before must not be lost, so the failure is reported for this operation only
+        itemResults[i] = new CompletableFuture<>();
+        itemResults[i].completeExceptionally(e);
+      }
+    }
+    return new MemcachedBatchResult(Arrays.asList(itemResults));
+  }
+
+  private CompletableFuture<Boolean> executeBatchItem(MemcachedBatch.Item item) {
+    if (item.command != MemcachedBatch.Command.INCREMENT) {
+      return item.executeOn(this);
+    }
+    // increment of the interface waits for the response, so the batch uses the asynchronous one of spy
+    long timeoutMs = getTimeoutMs(item.region);
+    OperationFuture<Long> incrementFuture = spyMemcachedClient.asyncIncr(getKey(item.region, item.key), item.by, item.def, item.exp);
+    return thenApply(new OperationToCompletableFutureAdapter<>(incrementFuture, timeoutMs), value -> value != null && value != -1);
   }
 
   @Override
   public InetSocketAddress getPrimaryNodeAddress(String key) {
-    return (InetSocketAddress) spyMemcachedClient.getConnection().getLocator().getPrimary(key).getSocketAddress();
+    return (InetSocketAddress) getPrimaryNode(key).getSocketAddress();
+  }
+
+  MemcachedNode getPrimaryNode(String key) {
+    return spyMemcachedClient.getConnection().getLocator().getPrimary(key);
+  }
+
+  // timeouts are taken before operations are queued, so operations after the deadline of the caller are not queued
+
+  private long getTimeoutMs(String region) {
+    long timeoutMs = getOwnTimeoutMs(region);
+    return timeoutMs != NO_OWN_TIMEOUT ? timeoutMs : spyMemcachedClient.getOperationTimeout();
+  }
+
+  /** @return timeout of the policy of the region or time left to the deadline of the caller if it is shorter,
+   *  NO_OWN_TIMEOUT if the operation is limited by opTimeoutMs of the spy client only */
+  private long getOwnTimeoutMs(String region) {
+    long remainingMs = MemcachedDeadline.getRemainingMs();
+    RegionPolicy policy = regionToPolicy.get(region);
+    long policyTimeoutMs = policy == null || policy.timeoutMs == null ? NO_OWN_TIMEOUT : policy.timeoutMs;
+    long timeoutMs = policyTimeoutMs != NO_OWN_TIMEOUT ? policyTimeoutMs : spyMemcachedClient.getOperationTimeout();
+    return remainingMs != MemcachedDeadline.NO_DEADLINE && remainingMs < timeoutMs ? remainingMs : policyTimeoutMs;
+  }
+
+  private int getExp(String region, int exp) {
+    RegionPolicy policy = regionToPolicy.get(region);
+    return exp != 0 || policy == null ? exp : policy.defaultExp;
+  }
+
+  /** thenApply does not pass cancellation of the returned future to the source future, so callers could not cancel the operation. */
+  private static <T, U> CompletableFuture<U> thenApply(CompletableFuture<T> adapter, Function<? super T, ? extends U> function) {
+    CompletableFuture<U> completableFuture = adapter.thenApply(function);
+    completableFuture.whenComplete((value, exception) -> {
+      if (exception instanceof CancellationException) {
+        adapter.cancel(false);
+      }
+    });
+    return completableFuture;
+  }
+
+  /** Futures of writes without own timeout have no timeout, spy times the writes out in the queue of the node. */
+  private static <T> CompletableFuture<T> toCompletableFuture(OperationFuture<T> operationFuture, long timeoutMs) {
+    return timeoutMs == NO_OWN_TIMEOUT
+        ? new OperationToCompletableFutureAdapter<>(operationFuture)
+        : new OperationToCompletableFutureAdapter<>(operationFuture, timeoutMs);
+  }
+
+  /** The same exceptions as synchronous methods of spy throw after opTimeoutMs. */
+  private static <T> T waitFor(Future<T> future, long timeoutMs) {
+    try {
+      return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted waiting for value", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof CancellationException) {
+        throw (CancellationException) e.getCause();
+      }
+      throw new RuntimeException("Exception waiting for value", e);
+    } catch (TimeoutException e) {
+      throw new OperationTimeoutException("Timeout waiting for value: " + timeoutMs + " ms", e);
+    }
+  }
+
+  @Nullable
+  private LongConsumer getDecodeTimeConsumer(String keyWithRegion) {
+    return phaseStats == null ? null : getDecodeTimeConsumer(getPrimaryNode(keyWithRegion));
+  }
+
+  @Nullable
+  private LongConsumer getDecodeTimeConsumer(MemcachedNode node) {
+    return phaseStats == null ? null : nanos -> phaseStats.saveDecode(node, "get", nanos);
+  }
+
+  // regions without own transcoder use methods without transcoder, so the default transcoder of the spy client is used
+
+  private GetFuture<Object> spyAsyncGet(String region, String keyWithRegion) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null ? spyMemcachedClient.asyncGet(keyWithRegion) : spyMemcachedClient.asyncGet(keyWithRegion, transcoder);
+  }
+
+  private BulkFuture<Map<String, Object>> spyAsyncGetBulk(String region, String[] keysWithRegion) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null
+        ? spyMemcachedClient.asyncGetBulk(keysWithRegion)
+        : spyMemcachedClient.asyncGetBulk(transcoder, keysWithRegion);
+  }
+
+  private OperationFuture<Boolean> spySet(String region, String keyWithRegion, int exp, Object o) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null ? spyMemcachedClient.set(keyWithRegion, exp, o) : spyMemcachedClient.set(keyWithRegion, exp, o, transcoder);
+  }
+
+  private OperationFuture<Boolean> spyAdd(String region, String keyWithRegion, int exp, Object o) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null ? spyMemcachedClient.add(keyWithRegion, exp, o) : spyMemcachedClient.add(keyWithRegion, exp, o, transcoder);
+  }
+
+  private CASValue<Object> spyGets(String region, String keyWithRegion) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null ? spyMemcachedClient.gets(keyWithRegion) : spyMemcachedClient.gets(keyWithRegion, transcoder);
+  }
+
+  private OperationFuture<CASValue<Object>> spyAsyncGets(String region, String keyWithRegion) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null ? spyMemcachedClient.asyncGets(keyWithRegion) : spyMemcachedClient.asyncGets(keyWithRegion, transcoder);
+  }
+
+  private OperationFuture<net.spy.memcached.CASResponse> spyAsyncCas(String region, String keyWithRegion, long casId, int exp, Object o) {
+    Transcoder<Object> transcoder = regionToTranscoder.get(region);
+    return transcoder == null
+        ? spyMemcachedClient.asyncCAS(keyWithRegion, casId, exp, o)
+        : spyMemcachedClient.asyncCAS(keyWithRegion, casId, exp, o, transcoder);
   }
 
   public static String getKey(String region, String key) {
     return region + key;
   }
 
+  private static String[] getKeysWithRegion(String region, String[] keys) {
+    String[] keysWithRegion = new String[keys.length];
+    for (int i = 0; i < keys.length; i++) {
+      keysWithRegion[i] = getKey(region, keys[i]);
+    }
+    return keysWithRegion;
+  }
+
+  private static Map<String, Object> getKeyToValue(String[] keys, String[] keysWithRegion, Map<String, Object> keyWithRegionToValue) {
+    Map<String, Object> keyToValue = new HashMap<>(keys.length);
+    putValues(keys, keysWithRegion, keyWithRegionToValue, keyToValue);
+    return keyToValue;
+  }
+
+  private Map<String, Object> getKeyToValue(String[] keys, String[] keysWithRegion, Map<String, Object> keyWithRegionToValue,
+                                            BulkFuture<?> bulkFuture) {
+    Map<String, Object> keyToValue = getKeyToValue(keys, keysWithRegion, keyWithRegionToValue);
+    if (!bulkFuture.isTimeout()) {
+      return keyToValue;
+    }
+    Set<InetSocketAddress> timedOutNodes = getTimedOutNodes(keysWithRegion, keyWithRegionToValue);
+    return timedOutNodes.isEmpty() ? keyToValue : new PartialKeyToValue(keyToValue, timedOutNodes);
+  }
+
+  /** A bulk get does not tell which of its nodes timed out, but spy marks a node when its operation times out
+   *  and unmarks it when an operation of the node succeeds.
+   *  Only nodes of keys of this bulk get without values are checked, a node marked by another operation is not taken. */
+  private Set<InetSocketAddress> getTimedOutNodes(String[] keysWithRegion, Map<String, Object> keyWithRegionToValue) {
+    NodeLocator locator = spyMemcachedClient.getConnection().getLocator();
+    Set<MemcachedNode> checkedNodes = new HashSet<>();
+    Set<InetSocketAddress> timedOutNodes = new HashSet<>();
+    for (String keyWithRegion : keysWithRegion) {
+      if (keyWithRegionToValue.containsKey(keyWithRegion)) {
+        continue;
+      }
+      MemcachedNode node = locator.getPrimary(keyWithRegion);
+      if (checkedNodes.add(node) && node.getContinuousTimeout() > 0) {
+        timedOutNodes.add((InetSocketAddress) node.getSocketAddress());
+      }
+    }
+    return timedOutNodes;
+  }
+
+  private static void putValues(String[] keys, String[] keysWithRegion, Map<String, Object> keyWithRegionToValue,
+                                Map<String, Object> keyToValue) {
+    for (int i = 0; i < keys.length; i++) {
+      Object value = keyWithRegionToValue.get(keysWithRegion[i]);
+      if(value != null) {
+        keyToValue.put(keys[i], value);
+      }
+    }
+  }
+
   private static CASResponse getCASResponseFromSpyCASResponse(net.spy.memcached.CASResponse casResponse) {
     switch (casResponse) {
       case OK:
@@ -125,4 +541,33 @@ class HHSpyMemcachedClient implements HHMemcachedClient {
         return CASResponse.ERROR;
     }
   }
+
+  static final class GetSomeChunking {
+    /** getSome of more keys is split into bulk gets of at most chunkSize keys of one node */
+    final int chunkSize;
+    /** chunks that are queued or read at the same time, the next chunk is queued when the oldest one is read */
+    final int maxChunksInFlight;
+
+    GetSomeChunking(int chunkSize, int maxChunksInFlight) {
+      if (chunkSize < 1 || maxChunksInFlight < 1) {
+        throw new IllegalArgumentException("chunkSize and maxChunksInFlight must be positive");
+      }
+      this.chunkSize = chunkSize;
+      this.maxChunksInFlight = maxChunksInFlight;
+    }
+  }
+
+  private static final class BulkGetChunk {
+    final MemcachedNode node;
+    final String[] keys;
+    final String[] keysWithRegion;
+    final BulkFuture<Map<String, Object>> bulkFuture;
+
+    BulkGetChunk(MemcachedNode node, String[] keys, String[] keysWithRegion, BulkFuture<Map<String, Object>> bulkFuture) {
+      this.node = node;
+      this.keys = keys;
+      this.keysWithRegion = keysWithRegion;
+      this.bulkFuture = bulkFuture;
+    }
+  }
 }
@@ -0,0 +1,134 @@
+package ru.hh.memcached;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Finds the most used keys of each region, so a key that overloads a node can be found.<br/>
+ *  Only one of sampleRate operations is counted, each region keeps topK counters (space-saving algorithm),
+ *  so counting does not allocate and does not depend on the number of keys.<br/>
+ *  Counts are per interval: HHMonitoringMemcachedClient ends an interval when it sends metrics,
+ *  {@link #getHotKeys(String)} returns keys of the last ended interval. */
+public class HotKeyTracker {
+  private static final Comparator<HotKey> BY_COUNT_DESC = Comparator.comparingLong((HotKey hotKey) -> hotKey.count).reversed();
+
+  private final int topK;
+  private final int sampleRate;
+  private final Map<String, RegionCounters> regionToCounters = new ConcurrentHashMap<>();
+  private volatile Map<String, List<HotKey>> regionToLastHotKeys = Map.of();
+
+  public HotKeyTracker(int topK, int sampleRate) {
+    if (topK < 1 || sampleRate < 1) {
+      throw new IllegalArgumentException("topK and sampleRate must be positive, got " + topK + " and " + sampleRate);
+    }
+    this.topK = topK;
+    this.sampleRate = sampleRate;
+  }
+
+  /** @return the most used keys of the region in the last interval, the most used first */
+  public List<HotKey> getHotKeys(String region) {
+    return regionToLastHotKeys.getOrDefault(region, List.of());
+  }
+
+  void record(String region, String key) {
+    if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+      return;
+    }
+    RegionCounters regionCounters = regionToCounters.get(region);
+    if (regionCounters == null) {
+      regionCounters = regionToCounters.computeIfAbsent(region, ignored -> new RegionCounters(topK));
+    }
+    regionCounters.add(key);
+  }
+
+  /** Ends the interval and starts counting from zero. */
+  Map<String, List<HotKey>> endInterval() {
+    Map<String, List<HotKey>> regionToHotKeys = new HashMap<>();
+    regionToCounters.forEach((region, regionCounters) -> {
+      List<HotKey> hotKeys = regionCounters.reset(sampleRate);
+      if (!hotKeys.isEmpty()) {
+        regionToHotKeys.put(region, hotKeys);
+      }
+    });
+    regionToLastHotKeys = Collections.unmodifiableMap(regionToHotKeys);
+    return regionToLastHotKeys;
+  }
+
+  int getMaxNumOfHotKeys() {
+    return topK * Math.max(1, regionToCounters.size());
+  }
+
+  public static class HotKey {
+    public final String key;
+    /** estimated number of operations on the key in the interval */
+    public final long count;
+    /** count may be overestimated by up to this number */
+    public final long maxError;
+
+    HotKey(String key, long count, long maxError) {
+      this.key = key;
+      this.count = count;
+      this.maxError = maxError;
+    }
+
+    @Override
+    public String toString() {
+      return key + '=' + count + " (max error " + maxError + ")";
+    }
+  }
+
+  // guarded by itself
+  private static class RegionCounters {
+    private final String[] keys;
+    private final long[] counts;
+    private final long[] errors;
+    private int size;
+
+    RegionCounters(int topK) {
+      keys = new String[topK];
+      counts = new long[topK];
+      errors = new long[topK];
+    }
+
+    synchronized void add(String key) {
+      // topK is small, a scan is cheaper than a hash map and does not allocate
+      int minIndex = 0;
+      for (int i = 0; i < size; i++) {
+        if (keys[i].equals(key)) {
+          counts[i]++;
+          return;
+        }
+        if (counts[i] < counts[minIndex]) {
+          minIndex = i;
+        }
+      }
+      if (size < keys.length) {
+        keys[size] = key;
+        counts[size] = 1;
+        errors[size] = 0;
+        size++;
+        return;
+      }
+      // the new key takes the place of the least counted one and inherits its count as a possible error
+      keys[minIndex] = key;
+      errors[minIndex] = counts[minIndex];
+      counts[minIndex]++;
+    }
+
+    synchronized List<HotKey> reset(int sampleRate) {
+      List<HotKey> hotKeys = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        hotKeys.add(new HotKey(keys[i], counts[i] * sampleRate, errors[i] * sampleRate));
+        keys[i] = null;
+      }
+      size = 0;
+      hotKeys.sort(BY_COUNT_DESC);
+      return hotKeys;
+    }
+  }
+}
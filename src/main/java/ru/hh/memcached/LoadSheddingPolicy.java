@@ -0,0 +1,96 @@
+package ru.hh.memcached;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import net.spy.memcached.MemcachedNode;
+import ru.hh.nab.metrics.Counters;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Decides by the occupancy of the input queue of a node which operations of the node are dropped,
+ *  shared by all instances of the client, see {@link HHLoadSheddingMemcachedClient}. */
+class LoadSheddingPolicy {
+
+  enum Priority {
+    /** reads, gets, cas, increment, delete and writes of regions with the CRITICAL policy priority, they are never dropped */
+    CRITICAL,
+    /** set and add, dropped when the queue is fuller than normalWatermark */
+    NORMAL,
+    /** touch and set / add of best-effort regions, dropped when the queue is fuller than bestEffortWatermark */
+    BEST_EFFORT
+  }
+
+  private final NodeQueueSizes nodeQueueSizes;
+  private final int bestEffortWatermark;
+  private final int normalWatermark;
+  private final Map<String, Priority> regionToWritePriority;
+  private final Counters droppedCounters;
+
+  /** @param regionToWritePriority priorities of set and add of regions, writes of other regions are NORMAL */
+  LoadSheddingPolicy(NodeQueueSizes nodeQueueSizes, int bestEffortWatermark, int normalWatermark,
+                     Map<String, Priority> regionToWritePriority, String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                     int maxNumOfDroppedCounters) {
+    this(nodeQueueSizes, bestEffortWatermark, normalWatermark, regionToWritePriority, maxNumOfDroppedCounters);
+
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendCounters(serviceName + ".memcached.loadShedding.dropped", droppedCounters), metricsSendIntervalSec
+    );
+  }
+
+  LoadSheddingPolicy(NodeQueueSizes nodeQueueSizes, int bestEffortWatermark, int normalWatermark, Set<String> bestEffortRegions,
+                     int maxNumOfDroppedCounters) {
+    this(nodeQueueSizes, bestEffortWatermark, normalWatermark, getRegionToWritePriority(bestEffortRegions), maxNumOfDroppedCounters);
+  }
+
+  LoadSheddingPolicy(NodeQueueSizes nodeQueueSizes, int bestEffortWatermark, int normalWatermark,
+                     Map<String, Priority> regionToWritePriority, int maxNumOfDroppedCounters) {
+    this(nodeQueueSizes, bestEffortWatermark, normalWatermark, regionToWritePriority, new Counters(maxNumOfDroppedCounters));
+  }
+
+  private LoadSheddingPolicy(NodeQueueSizes nodeQueueSizes, int bestEffortWatermark, int normalWatermark,
+                             Map<String, Priority> regionToWritePriority, Counters droppedCounters) {
+    if (bestEffortWatermark > normalWatermark) {
+      throw new IllegalArgumentException("bestEffortWatermark " + bestEffortWatermark + " is greater than normalWatermark " + normalWatermark);
+    }
+    this.nodeQueueSizes = nodeQueueSizes;
+    this.bestEffortWatermark = bestEffortWatermark;
+    this.normalWatermark = normalWatermark;
+    this.regionToWritePriority = Map.copyOf(regionToWritePriority);
+    this.droppedCounters = droppedCounters;
+  }
+
+  /** @return policy for another pool of nodes, with the same watermarks, priorities and dropped counters, but with its own queues */
+  LoadSheddingPolicy withNodeQueueSizes(NodeQueueSizes otherNodeQueueSizes) {
+    return new LoadSheddingPolicy(otherNodeQueueSizes, bestEffortWatermark, normalWatermark, regionToWritePriority, droppedCounters);
+  }
+
+  NodeQueueSizes getNodeQueueSizes() {
+    return nodeQueueSizes;
+  }
+
+  Priority getWritePriority(String region) {
+    return regionToWritePriority.getOrDefault(region, Priority.NORMAL);
+  }
+
+  static Map<String, Priority> getRegionToWritePriority(Set<String> bestEffortRegions) {
+    Map<String, Priority> regionToWritePriority = new HashMap<>();
+    for (String region : bestEffortRegions) {
+      regionToWritePriority.put(region, Priority.BEST_EFFORT);
+    }
+    return regionToWritePriority;
+  }
+
+  /** @return true if the operation must not be put to the queue of the node, the dropped operation is counted */
+  boolean shouldDrop(MemcachedNode node, Priority priority, String region) {
+    if (priority == Priority.CRITICAL) {
+      return false;
+    }
+    int watermark = priority == Priority.BEST_EFFORT ? bestEffortWatermark : normalWatermark;
+    if (nodeQueueSizes.getSize(node) < watermark) {
+      return false;
+    }
+    droppedCounters.add(1, new Tag("region", region), new Tag("priority", priority.name().toLowerCase()));
+    return true;
+  }
+}
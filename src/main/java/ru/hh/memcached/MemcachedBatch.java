@@ -0,0 +1,131 @@
+package ru.hh.memcached;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/** Independent set, add, delete, touch and increment operations that are queued together by {@link HHMemcachedClient#executeBatch(MemcachedBatch)}.<br/>
+ *  Operations may be in different regions, operations on the same key are sent in the order they were added. */
+public class MemcachedBatch {
+
+  enum Command {
+    SET,
+    ADD,
+    DELETE,
+    TOUCH,
+    INCREMENT
+  }
+
+  private final List<Item> items = new ArrayList<>();
+
+  public MemcachedBatch set(String region, String key, int exp, Object o) {
+    items.add(new Item(Command.SET, region, key, exp, o));
+    return this;
+  }
+
+  public MemcachedBatch add(String region, String key, int exp, Object o) {
+    items.add(new Item(Command.ADD, region, key, exp, o));
+    return this;
+  }
+
+  public MemcachedBatch delete(String region, String key) {
+    items.add(new Item(Command.DELETE, region, key, 0, null));
+    return this;
+  }
+
+  public MemcachedBatch touch(String region, String key, int ttl) {
+    items.add(new Item(Command.TOUCH, region, key, ttl, null));
+    return this;
+  }
+
+  /** The result of the operation is true if the value has been incremented or set to def,
+   *  the new value is not returned, as the batch is meant for counters that are not read by the writer. */
+  public MemcachedBatch increment(String region, String key, long by, long def, int ttl) {
+    items.add(new Item(Command.INCREMENT, region, key, ttl, null, by, def));
+    return this;
+  }
+
+  MemcachedBatch add(Item item) {
+    items.add(item);
+    return this;
+  }
+
+  public int size() {
+    return items.size();
+  }
+
+  List<Item> getItems() {
+    return Collections.unmodifiableList(items);
+  }
+
+  /** Sends operations one by one, for clients that can not send them together. */
+  MemcachedBatchResult executeOneByOne(HHMemcachedClient hhMemcachedClient) {
+    List<CompletableFuture<Boolean>> itemResults = new ArrayList<>(items.size());
+    for (Item item : items) {
+      itemResults.add(item.executeOn(hhMemcachedClient));
+    }
+    return new MemcachedBatchResult(itemResults);
+  }
+
+  static class Item {
+    final Command command;
+    final String region;
+    final String key;
+    // ttl for touch and increment
+    final int exp;
+    final Object value;
+    // for increment
+    final long by;
+    final long def;
+
+    Item(Command command, String region, String key, int exp, Object value) {
+      this(command, region, key, exp, value, 0, 0);
+    }
+
+    Item(Command command, String region, String key, int exp, Object value, long by, long def) {
+      this.command = command;
+      this.region = region;
+      this.key = key;
+      this.exp = exp;
+      this.value = value;
+      this.by = by;
+      this.def = def;
+    }
+
+    CompletableFuture<Boolean> executeOn(HHMemcachedClient hhMemcachedClient) {
+      switch (command) {
+        case SET:
+          return hhMemcachedClient.set(region, key, exp, value);
+        case ADD:
+          return hhMemcachedClient.add(region, key, exp, value);
+        case DELETE:
+          return hhMemcachedClient.delete(region, key);
+        case INCREMENT:
+          return CompletableFuture.completedFuture(incrementByIntParts(hhMemcachedClient));
+        default:
+          return hhMemcachedClient.touch(region, key, exp);
+      }
+    }
+
+    /** The interface has only a blocking increment with int arguments, and aggregated sums can be larger,
+     *  so the sum is sent in parts. A missing key is created by the first part with def and gets the following parts too,
+     *  that differs from a single increment only for sums above Integer.MAX_VALUE. */
+    private boolean incrementByIntParts(HHMemcachedClient hhMemcachedClient) {
+      int intDef = toIntPart(def);
+      long remainingBy = by;
+      do {
+        int byPart = toIntPart(remainingBy);
+        if (hhMemcachedClient.increment(region, key, byPart, intDef, exp) == -1) {
+          return false;
+        }
+        remainingBy -= byPart;
+      } while (remainingBy != 0);
+      return true;
+    }
+
+    private static int toIntPart(long value) {
+      return (int) Math.max(Integer.MIN_VALUE, Math.min(value, Integer.MAX_VALUE));
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package ru.hh.memcached;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/** Results of operations of a {@link MemcachedBatch}. */
+public class MemcachedBatchResult {
+  private final List<CompletableFuture<Boolean>> itemResults;
+  private final CompletableFuture<Boolean> result;
+
+  MemcachedBatchResult(List<CompletableFuture<Boolean>> itemResults) {
+    this.itemResults = Collections.unmodifiableList(itemResults);
+    CompletableFuture<?>[] itemResultsArray = itemResults.toArray(new CompletableFuture<?>[0]);
+    this.result = CompletableFuture.allOf(itemResultsArray).thenApply(ignored -> {
+      for (CompletableFuture<Boolean> itemResult : itemResults) {
+        if (!itemResult.join()) {
+          return false;
+        }
+      }
+      return true;
+    });
+  }
+
+  /** @return result of the operation with the given index in the order operations were added to the batch */
+  public CompletableFuture<Boolean> getItemResult(int index) {
+    return itemResults.get(index);
+  }
+
+  /** @return results of operations in the order they were added to the batch */
+  public List<CompletableFuture<Boolean>> getItemResults() {
+    return itemResults;
+  }
+
+  /** @return future that completes when all operations complete, with true if all of them succeeded */
+  public CompletableFuture<Boolean> getResult() {
+    return result;
+  }
+}
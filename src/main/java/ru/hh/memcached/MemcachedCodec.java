@@ -0,0 +1,69 @@
+package ru.hh.memcached;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/** Turns values of a region into bytes stored in memcached and back, see codecRegions in {@link HHMemcachedClientFactory}.<br/>
+ *  A custom codec is a class with a public constructor without arguments, it must be thread safe. */
+public interface MemcachedCodec {
+
+  /** Values are byte arrays that are stored as is. */
+  MemcachedCodec BYTES = new MemcachedCodec() {
+    @Override
+    public byte[] encode(Object value) {
+      return (byte[]) value;
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return bytes;
+    }
+  };
+
+  /** Values are strings that are stored in UTF-8. */
+  MemcachedCodec UTF8_STRING = new MemcachedCodec() {
+    @Override
+    public byte[] encode(Object value) {
+      return ((String) value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  };
+
+  /** Values are serializable objects, as with the default spy transcoder. */
+  MemcachedCodec JAVA_SERIALIZATION = new MemcachedCodec() {
+    @Override
+    public byte[] encode(Object value) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes)) {
+        objectOutputStream.writeObject(value);
+      } catch (IOException e) {
+        throw new UncheckedIOException("failed to serialize " + value.getClass().getName(), e);
+      }
+      return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(byte[] bytes) {
+      try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        return objectInputStream.readObject();
+      } catch (IOException e) {
+        throw new UncheckedIOException("failed to deserialize", e);
+      } catch (ClassNotFoundException e) {
+        throw new IllegalStateException("failed to deserialize", e);
+      }
+    }
+  };
+
+  byte[] encode(Object value);
+
+  Object decode(byte[] bytes);
+}
@@ -0,0 +1,73 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.OperationTimeoutException;
+
+/** Deadline of memcached operations started by the current thread, for example the rest of the budget of a request:
+ *  <pre>
+ *  try (MemcachedDeadline.Scope ignored = MemcachedDeadline.in(remainingBudgetMs, TimeUnit.MILLISECONDS)) {
+ *    value = memcachedClient.get(region, key);
+ *  }
+ *  </pre>
+ *  Operations wait for the time left to the deadline instead of opTimeoutMs if it is shorter,
+ *  operations started after the deadline fail at once and are not queued.<br/>
+ *  The deadline is taken in the thread that starts an operation, so operations that decorators start later in other threads,
+ *  for example hedged reads, are not limited by it. */
+public final class MemcachedDeadline {
+  static final long NO_DEADLINE = -1;
+
+  private static final ThreadLocal<Scope> currentScope = new ThreadLocal<>();
+
+  /** Sets the deadline of operations of the current thread until the scope is closed.
+   *  A deadline inside of another scope can not be later than the deadline of that scope. */
+  public static Scope at(long deadlineNanoTime) {
+    Scope outerScope = currentScope.get();
+    if (outerScope != null && outerScope.deadlineNanoTime - deadlineNanoTime < 0) {
+      deadlineNanoTime = outerScope.deadlineNanoTime;
+    }
+    Scope scope = new Scope(deadlineNanoTime, outerScope);
+    currentScope.set(scope);
+    return scope;
+  }
+
+  public static Scope in(long timeout, TimeUnit unit) {
+    return at(System.nanoTime() + unit.toNanos(timeout));
+  }
+
+  /** @return milliseconds left to the deadline rounded up, or NO_DEADLINE if the current thread has not set a deadline
+   *  @throws OperationTimeoutException if the deadline has passed, so the operation is not queued */
+  static long getRemainingMs() {
+    Scope scope = currentScope.get();
+    if (scope == null) {
+      return NO_DEADLINE;
+    }
+    long remainingNanos = scope.deadlineNanoTime - System.nanoTime();
+    if (remainingNanos <= 0) {
+      throw new OperationTimeoutException("deadline passed " + TimeUnit.NANOSECONDS.toMillis(-remainingNanos) + " ms ago");
+    }
+    return (remainingNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1) / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  private MemcachedDeadline() {
+  }
+
+  public static final class Scope implements AutoCloseable {
+    private final long deadlineNanoTime;
+    private final Scope outerScope;
+
+    private Scope(long deadlineNanoTime, Scope outerScope) {
+      this.deadlineNanoTime = deadlineNanoTime;
+      this.outerScope = outerScope;
+    }
+
+    /** Restores the deadline of the outer scope. */
+    @Override
+    public void close() {
+      if (outerScope == null) {
+        currentScope.remove();
+      } else {
+        currentScope.set(outerScope);
+      }
+    }
+  }
+}
@@ -10,46 +10,115 @@ import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 class MonitoringQueueFactory implements OperationQueueFactory {
 
+  enum QueueType {
+    ARRAY,
+    /** {@link MpscArrayBlockingQueue}, without a lock for producers */
+    MPSC
+  }
+
   private final int capacity;
   private final String serviceName;
   private final String queueName;
   private final AtomicInteger idGenerator = new AtomicInteger(1);
   private final StatsDSender statsDSender;
   private final int metricsSendIntervalSec;
+  private final boolean sendMaxQueueSize;
+  @Nullable
+  private final NodeQueueSizes nodeQueueSizes;
+  private final QueueType queueType;
+  @Nullable
+  private final OperationQueueListener listener;
+  @Nullable
+  private final Tag poolTag;
 
   MonitoringQueueFactory(int cap, String serviceName, String queueName, StatsDSender statsDSender, int metricsSendIntervalSec) {
+    this(cap, serviceName, queueName, statsDSender, metricsSendIntervalSec, true, null, QueueType.ARRAY);
+  }
+
+  /** @param nodeQueueSizes gets occupancy of queues of nodes, for example for load shedding */
+  MonitoringQueueFactory(int cap, String serviceName, String queueName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                         boolean sendMaxQueueSize, @Nullable NodeQueueSizes nodeQueueSizes, QueueType queueType) {
+    this(cap, serviceName, queueName, statsDSender, metricsSendIntervalSec, sendMaxQueueSize, nodeQueueSizes, queueType, null);
+  }
+
+  /** @param listener gets operations put to and taken from every created queue, for example for phases of operations */
+  MonitoringQueueFactory(int cap, String serviceName, String queueName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                         boolean sendMaxQueueSize, @Nullable NodeQueueSizes nodeQueueSizes, QueueType queueType,
+                         @Nullable OperationQueueListener listener) {
+    this(cap, serviceName, queueName, statsDSender, metricsSendIntervalSec, sendMaxQueueSize, nodeQueueSizes, queueType, listener, null);
+  }
+
+  /** @param poolTag tags metrics of queues of a pool of nodes that is not the main one, for example of the replica pool */
+  MonitoringQueueFactory(int cap, String serviceName, String queueName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                         boolean sendMaxQueueSize, @Nullable NodeQueueSizes nodeQueueSizes, QueueType queueType,
+                         @Nullable OperationQueueListener listener, @Nullable Tag poolTag) {
     this.capacity = cap;
     this.serviceName = serviceName;
     this.queueName = queueName;
     this.statsDSender = statsDSender;
     this.metricsSendIntervalSec = metricsSendIntervalSec;
+    this.sendMaxQueueSize = sendMaxQueueSize;
+    this.nodeQueueSizes = nodeQueueSizes;
+    this.queueType = queueType;
+    this.listener = listener;
+    this.poolTag = poolTag;
   }
 
   @Override
   public BlockingQueue<Operation> create() {
+    if (!sendMaxQueueSize) {
+      return createQueue(null);
+    }
+
     Max maxSizeCollector = new Max(0);
-    BlockingQueue<Operation> queue = new MonitoringArrayBlockingQueue<>(capacity, maxSizeCollector);
+    BlockingQueue<Operation> queue = createQueue(maxSizeCollector);
     String maxQueueSizeMetricName = serviceName + ".memcached.maxQueueSize";
     Tag queueNameTag = new Tag("queue", queueName);
     Tag idTag = new Tag("id", Integer.toString(idGenerator.getAndIncrement()));
+    Tag[] tags = poolTag == null ? new Tag[]{queueNameTag, idTag} : new Tag[]{queueNameTag, idTag, poolTag};
 
     statsDSender.sendPeriodically(
-      () -> statsDSender.sendMax(maxQueueSizeMetricName, maxSizeCollector, queueNameTag, idTag), metricsSendIntervalSec
+      () -> statsDSender.sendMax(maxQueueSizeMetricName, maxSizeCollector, tags), metricsSendIntervalSec
     );
 
     return queue;
   }
 
+  private BlockingQueue<Operation> createQueue(@Nullable Max maxSizeCollector) {
+    if (queueType == QueueType.MPSC) {
+      return new MpscArrayBlockingQueue<>(capacity, maxSizeCollector, nodeQueueSizes, listener);
+    }
+    return new MonitoringArrayBlockingQueue<>(capacity, maxSizeCollector, nodeQueueSizes, listener);
+  }
+
   static class MonitoringArrayBlockingQueue<E> extends ArrayBlockingQueue<E> {
 
+    @Nullable
     private final Max maxSizeCollector;
+    @Nullable
+    private final NodeQueueSizes nodeQueueSizes;
+    @Nullable
+    private final OperationQueueListener listener;
+    private volatile boolean boundToNode;
 
     MonitoringArrayBlockingQueue(int capacity, Max maxSizeCollector) {
+      this(capacity, maxSizeCollector, null, null);
+    }
+
+    MonitoringArrayBlockingQueue(int capacity, @Nullable Max maxSizeCollector, @Nullable NodeQueueSizes nodeQueueSizes) {
+      this(capacity, maxSizeCollector, nodeQueueSizes, null);
+    }
+
+    MonitoringArrayBlockingQueue(int capacity, @Nullable Max maxSizeCollector, @Nullable NodeQueueSizes nodeQueueSizes,
+                                 @Nullable OperationQueueListener listener) {
       super(capacity);
       this.maxSizeCollector = maxSizeCollector;
+      this.nodeQueueSizes = nodeQueueSizes;
+      this.listener = listener;
     }
 
     // we may not override 'add' because it calls 'offer'
@@ -58,7 +127,7 @@ class MonitoringQueueFactory implements OperationQueueFactory {
     public boolean offer(E e) {
       boolean offered = super.offer(e);
       if (offered) {
-        maxSizeCollector.save(size());
+        onOffered(e);
       }
       return offered;
     }
@@ -67,7 +136,7 @@ class MonitoringQueueFactory implements OperationQueueFactory {
     public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
       boolean offered = super.offer(e, timeout, unit);
       if (offered) {
-        maxSizeCollector.save(size());
+        onOffered(e);
       }
       return offered;
     }
@@ -75,9 +144,44 @@ class MonitoringQueueFactory implements OperationQueueFactory {
     @Override
     public void put(E e) throws InterruptedException {
       super.put(e);
-      maxSizeCollector.save(size());
+      onOffered(e);
     }
 
-    // we may not override 'addAll' because it calls 'add'
+    private void onOffered(E e) {
+      if (maxSizeCollector != null) {
+        maxSizeCollector.save(size());
+      }
+      if (nodeQueueSizes != null && !boundToNode) {
+        nodeQueueSizes.onOffer(this, e);
+        boundToNode = true;
+      }
+      if (listener != null) {
+        listener.onOffered(e);
+      }
+    }
+
+    // we may not override 'addAll' because it calls 'add', and 'remove' because it calls 'poll'
+
+    @Override
+    public E poll() {
+      return onPolled(super.poll());
+    }
+
+    @Override
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+      return onPolled(super.poll(timeout, unit));
+    }
+
+    @Override
+    public E take() throws InterruptedException {
+      return onPolled(super.take());
+    }
+
+    private E onPolled(@Nullable E e) {
+      if (listener != null && e != null) {
+        listener.onPolled(e);
+      }
+      return e;
+    }
   }
 }
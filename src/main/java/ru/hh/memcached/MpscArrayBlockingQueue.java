@@ -0,0 +1,227 @@
+package ru.hh.memcached;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import javax.annotation.Nullable;
+import ru.hh.nab.metrics.Max;
+
+/** Bounded lock-free queue for many producers and one consumer, a replacement of ArrayBlockingQueue for spy operation queues.<br/>
+ *  Producers claim a slot with one CAS instead of taking the lock of ArrayBlockingQueue,
+ *  the depth for maxSizeCollector is computed from indices that offer has already read, so it does not take a lock either.<br/>
+ *  Spy takes operations only from the MemcachedConnection thread of the node, so poll, peek, drainTo and the iterator
+ *  must be called by one thread at a time. Blocking methods wait by parking for short intervals. */
+class MpscArrayBlockingQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+  private static final long MAX_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final int capacity;
+  private final int mask;
+  private final AtomicReferenceArray<E> buffer;
+  private final AtomicLong producerIndex = new AtomicLong();
+  private final AtomicLong consumerIndex = new AtomicLong();
+  @Nullable
+  private final Max maxSizeCollector;
+  @Nullable
+  private final NodeQueueSizes nodeQueueSizes;
+  @Nullable
+  private final OperationQueueListener listener;
+  private volatile boolean boundToNode;
+
+  MpscArrayBlockingQueue(int capacity) {
+    this(capacity, null, null, null);
+  }
+
+  MpscArrayBlockingQueue(int capacity, @Nullable Max maxSizeCollector, @Nullable NodeQueueSizes nodeQueueSizes) {
+    this(capacity, maxSizeCollector, nodeQueueSizes, null);
+  }
+
+  MpscArrayBlockingQueue(int capacity, @Nullable Max maxSizeCollector, @Nullable NodeQueueSizes nodeQueueSizes,
+                         @Nullable OperationQueueListener listener) {
+    if (capacity < 1 || capacity > 1 << 30) {
+      throw new IllegalArgumentException("capacity must be in [1, 2^30], got " + capacity);
+    }
+    this.capacity = capacity;
+    int bufferSize = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+    this.mask = bufferSize - 1;
+    this.buffer = new AtomicReferenceArray<>(bufferSize);
+    this.maxSizeCollector = maxSizeCollector;
+    this.nodeQueueSizes = nodeQueueSizes;
+    this.listener = listener;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    Objects.requireNonNull(e);
+    long index;
+    long size;
+    do {
+      index = producerIndex.get();
+      size = index - consumerIndex.get();
+      if (size >= capacity) {
+        return false;
+      }
+    } while (!producerIndex.compareAndSet(index, index + 1));
+    // the consumer waits for the element of a claimed slot, so it must be set right after the claim
+    buffer.lazySet((int) index & mask, e);
+
+    if (maxSizeCollector != null) {
+      maxSizeCollector.save((int) size + 1);
+    }
+    if (nodeQueueSizes != null && !boundToNode) {
+      nodeQueueSizes.onOffer(this, e);
+      boundToNode = true;
+    }
+    if (listener != null) {
+      listener.onOffered(e);
+    }
+    return true;
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    while (!offer(e)) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        return false;
+      }
+      park(remainingNanos);
+    }
+    return true;
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    while (!offer(e)) {
+      park(MAX_PARK_NANOS);
+    }
+  }
+
+  @Override
+  public E poll() {
+    long index = consumerIndex.get();
+    int offset = (int) index & mask;
+    E e = buffer.get(offset);
+    if (e == null) {
+      if (index == producerIndex.get()) {
+        return null;
+      }
+      // a producer has claimed the slot but has not set the element yet
+      do {
+        Thread.onSpinWait();
+        e = buffer.get(offset);
+      } while (e == null);
+    }
+    buffer.lazySet(offset, null);
+    consumerIndex.lazySet(index + 1);
+    if (listener != null) {
+      listener.onPolled(e);
+    }
+    return e;
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadlineNanos = System.nanoTime() + unit.toNanos(timeout);
+    E e;
+    while ((e = poll()) == null) {
+      long remainingNanos = deadlineNanos - System.nanoTime();
+      if (remainingNanos <= 0) {
+        return null;
+      }
+      park(remainingNanos);
+    }
+    return e;
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    E e;
+    while ((e = poll()) == null) {
+      park(MAX_PARK_NANOS);
+    }
+    return e;
+  }
+
+  @Override
+  public E peek() {
+    long index = consumerIndex.get();
+    int offset = (int) index & mask;
+    E e = buffer.get(offset);
+    if (e == null && index != producerIndex.get()) {
+      do {
+        Thread.onSpinWait();
+        e = buffer.get(offset);
+      } while (e == null);
+    }
+    return e;
+  }
+
+  @Override
+  public int size() {
+    // the consumer index is read first, so the size is never negative
+    long consumed = consumerIndex.get();
+    long produced = producerIndex.get();
+    return (int) Math.min(produced - consumed, capacity);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return consumerIndex.get() == producerIndex.get();
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return capacity - size();
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    Objects.requireNonNull(c);
+    if (c == this) {
+      throw new IllegalArgumentException("can not drain to itself");
+    }
+    int drained = 0;
+    E e;
+    while (drained < maxElements && (e = poll()) != null) {
+      c.add(e);
+      drained++;
+    }
+    return drained;
+  }
+
+  /** @return iterator over a snapshot of the elements, it does not support remove */
+  @Override
+  public Iterator<E> iterator() {
+    List<E> elements = new ArrayList<>(size());
+    long producedIndex = producerIndex.get();
+    for (long index = consumerIndex.get(); index < producedIndex; index++) {
+      E e = buffer.get((int) index & mask);
+      if (e != null) {
+        elements.add(e);
+      }
+    }
+    return Collections.unmodifiableList(elements).iterator();
+  }
+
+  private static void park(long maxNanos) throws InterruptedException {
+    LockSupport.parkNanos(Math.min(maxNanos, MAX_PARK_NANOS));
+    if (Thread.interrupted()) {
+      throw new InterruptedException();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package ru.hh.memcached;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.Operation;
+
+/** Input queues of nodes, so the occupancy of the queue of a node can be found by the node.<br/>
+ *  Spy creates queues before nodes, so a queue is bound to its node when the first operation of the node is put to it. */
+class NodeQueueSizes {
+  private final Map<MemcachedNode, Queue<?>> nodeToQueue = new ConcurrentHashMap<>();
+
+  void onOffer(Queue<?> queue, Object operation) {
+    if (operation instanceof Operation) {
+      MemcachedNode node = ((Operation) operation).getHandlingNode();
+      if (node != null) {
+        nodeToQueue.putIfAbsent(node, queue);
+      }
+    }
+  }
+
+  /** @return number of operations in the queue of the node, 0 if the node has not got operations yet */
+  int getSize(MemcachedNode node) {
+    Queue<?> queue = nodeToQueue.get(node);
+    return queue == null ? 0 : queue.size();
+  }
+
+  /** Called after the nodes are shut down, for example when a pool is replaced. */
+  void remove(Collection<MemcachedNode> nodes) {
+    for (MemcachedNode node : nodes) {
+      nodeToQueue.remove(node);
+    }
+  }
+}
@@ -0,0 +1,189 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.annotation.Nullable;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.CASOperation;
+import net.spy.memcached.ops.DeleteOperation;
+import net.spy.memcached.ops.GetOperation;
+import net.spy.memcached.ops.GetsOperation;
+import net.spy.memcached.ops.MutatorOperation;
+import net.spy.memcached.ops.Operation;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.StoreOperation;
+import net.spy.memcached.ops.TouchOperation;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+/** Time of phases of operations per node and command, in microseconds:<br/>
+ *  queue - from putting the operation to the input queue of the node till the end of writing it to the socket,<br/>
+ *  network - from the end of writing till the response is read by the IO thread,<br/>
+ *  decode - decoding of the value of an asynchronous read in the listener thread.<br/>
+ *  Spy does not expose when an operation is created or answered, so queue and network are taken by listeners of the queues of nodes. */
+class OperationPhaseStats {
+  static final String QUEUE_PHASE = "queue";
+  static final String NETWORK_PHASE = "network";
+  static final String DECODE_PHASE = "decode";
+
+  // operations dropped from a queue without taking, e.g. of a destroyed node, or taken before the time of offer is saved
+  // are forgotten at this size
+  private static final int MAX_NUM_OF_ENQUEUED_OPERATIONS = 100_000;
+
+  private static final Tag QUEUE_PHASE_TAG = new Tag("phase", QUEUE_PHASE);
+  private static final Tag NETWORK_PHASE_TAG = new Tag("phase", NETWORK_PHASE);
+  private static final Tag DECODE_PHASE_TAG = new Tag("phase", DECODE_PHASE);
+  private static final Tag OTHER_COMMAND_TAG = new Tag("command", "other");
+
+  private final Histograms phaseTimeHistograms;
+  private final LongSupplier nanoClock;
+  private final Map<Operation, Long> operationToEnqueueNanos = new ConcurrentHashMap<>();
+  private final Map<MemcachedNode, Tag> nodeToTag = new ConcurrentHashMap<>();
+  private final Map<String, Tag> commandToTag = new ConcurrentHashMap<>();
+
+  private final OperationQueueListener inputQueueListener = new OperationQueueListener() {
+    @Override
+    public void onOffered(Object operation) {
+      onEnqueued(operation);
+    }
+  };
+  private final OperationQueueListener writeQueueListener = new OperationQueueListener() {
+    @Override
+    public void onPolled(Object operation) {
+      onWritten(operation);
+    }
+  };
+  private final OperationQueueListener readQueueListener = new OperationQueueListener() {
+    @Override
+    public void onPolled(Object operation) {
+      onResponseRead(operation);
+    }
+  };
+
+  OperationPhaseStats(String serviceName, StatsDSender statsDSender, int metricsSendIntervalSec,
+                      int maxHistogramSize, int maxNumOfHistograms) {
+    this(new Histograms(maxHistogramSize, maxNumOfHistograms), System::nanoTime);
+
+    statsDSender.sendPeriodically(
+      () -> statsDSender.sendHistograms(serviceName + ".memcached.operationPhaseTime", phaseTimeHistograms, StatsDSender.DEFAULT_PERCENTILES),
+      metricsSendIntervalSec
+    );
+  }
+
+  OperationPhaseStats(Histograms phaseTimeHistograms, LongSupplier nanoClock) {
+    this.phaseTimeHistograms = phaseTimeHistograms;
+    this.nanoClock = nanoClock;
+  }
+
+  OperationQueueListener getInputQueueListener() {
+    return inputQueueListener;
+  }
+
+  OperationQueueListener getWriteQueueListener() {
+    return writeQueueListener;
+  }
+
+  OperationQueueListener getReadQueueListener() {
+    return readQueueListener;
+  }
+
+  void saveDecode(MemcachedNode node, String command, long nanos) {
+    phaseTimeHistograms.save(toMicros(nanos), getNodeTag(node), getCommandTag(command), DECODE_PHASE_TAG);
+  }
+
+  private void onEnqueued(Object operation) {
+    if (!(operation instanceof Operation)) {
+      return;
+    }
+    if (operationToEnqueueNanos.size() >= MAX_NUM_OF_ENQUEUED_OPERATIONS) {
+      operationToEnqueueNanos.clear();
+    }
+    operationToEnqueueNanos.put((Operation) operation, nanoClock.getAsLong());
+  }
+
+  private void onWritten(Object operation) {
+    if (!(operation instanceof Operation)) {
+      return;
+    }
+    Operation op = (Operation) operation;
+    Long enqueueNanos = operationToEnqueueNanos.remove(op);
+    // cancelled and timed out operations are taken from the write queue without writing
+    if (enqueueNanos == null || op.getState() == OperationState.WRITE_QUEUED || op.getWriteCompleteTimestamp() == 0) {
+      return;
+    }
+    save(op, op.getWriteCompleteTimestamp() - enqueueNanos, QUEUE_PHASE_TAG);
+  }
+
+  private void onResponseRead(Object operation) {
+    if (!(operation instanceof Operation)) {
+      return;
+    }
+    Operation op = (Operation) operation;
+    if (op.getWriteCompleteTimestamp() == 0) {
+      return;
+    }
+    save(op, nanoClock.getAsLong() - op.getWriteCompleteTimestamp(), NETWORK_PHASE_TAG);
+  }
+
+  private void save(Operation op, long nanos, Tag phaseTag) {
+    MemcachedNode node = op.getHandlingNode();
+    if (node == null) {
+      return;
+    }
+    phaseTimeHistograms.save(toMicros(nanos), getNodeTag(node), getCommandTag(op), phaseTag);
+  }
+
+  private Tag getNodeTag(MemcachedNode node) {
+    Tag nodeTag = nodeToTag.get(node);
+    return nodeTag != null ? nodeTag : nodeToTag.computeIfAbsent(node, ignored -> new Tag("primaryNode", getHost(node.getSocketAddress())));
+  }
+
+  private Tag getCommandTag(Operation op) {
+    String command = getCommand(op);
+    return command == null ? OTHER_COMMAND_TAG : getCommandTag(command);
+  }
+
+  private Tag getCommandTag(String command) {
+    Tag commandTag = commandToTag.get(command);
+    return commandTag != null ? commandTag : commandToTag.computeIfAbsent(command, ignored -> new Tag("command", command));
+  }
+
+  @Nullable
+  private static String getCommand(Operation op) {
+    if (op instanceof GetsOperation) {
+      return "gets";
+    }
+    if (op instanceof GetOperation) {
+      return "get";
+    }
+    if (op instanceof StoreOperation) {
+      return ((StoreOperation) op).getStoreType().name();
+    }
+    if (op instanceof CASOperation) {
+      return "cas";
+    }
+    if (op instanceof DeleteOperation) {
+      return "delete";
+    }
+    if (op instanceof TouchOperation) {
+      return "touch";
+    }
+    if (op instanceof MutatorOperation) {
+      return ((MutatorOperation) op).getType().name();
+    }
+    return null;
+  }
+
+  private static String getHost(SocketAddress address) {
+    return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getHostString() : address.toString();
+  }
+
+  private static int toMicros(long nanos) {
+    return (int) Math.max(0, Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), Integer.MAX_VALUE));
+  }
+}
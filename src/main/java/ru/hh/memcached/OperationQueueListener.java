@@ -0,0 +1,11 @@
+package ru.hh.memcached;
+
+/** Gets elements put to and taken from an operation queue of spy, it is called by the thread that puts or takes. */
+interface OperationQueueListener {
+
+  default void onOffered(Object operation) {
+  }
+
+  default void onPolled(Object operation) {
+  }
+}
@@ -1,47 +1,53 @@
 package ru.hh.memcached;
 
-import java.util.concurrent.CancellationException;
-import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import net.spy.memcached.internal.OperationCompletionListener;
 import net.spy.memcached.internal.OperationFuture;
 
-class OperationToCompletableFutureAdapter<T> extends CompletableFuture<T> {
+class OperationToCompletableFutureAdapter<T> extends SpyFutureToCompletableFutureAdapter<T> {
   private final OperationFuture<T> origFuture;
+  private final OperationCompletionListener operationCompletionListener = this::completeWithResultOf;
 
-  @SuppressWarnings(value = "unchecked")
   OperationToCompletableFutureAdapter(OperationFuture<T> origFuture) {
-    this.origFuture = origFuture;
+    this(origFuture, NO_TIMEOUT);
+  }
 
-    OperationCompletionListener operationCompletionListener = future -> {
-      try {
-        super.complete((T) future.get());
-      } catch (Throwable throwable) {
-        if (throwable instanceof InterruptedException) {
-          Thread.currentThread().interrupt();
-        }
-        super.completeExceptionally(throwable);
-      }
-    };
+  /** Completes exceptionally when timeout has passed even if nobody calls 'get', 'get' waits no longer than the timeout. */
+  OperationToCompletableFutureAdapter(OperationFuture<T> origFuture, long timeoutMs) {
+    super(timeoutMs, null);
+    this.origFuture = origFuture;
     origFuture.addListener(operationCompletionListener);
+    scheduleTimeout();
+  }
 
-    super.whenComplete((completableFutureValue, exception) -> {
-      if (exception instanceof CancellationException) {
-        origFuture.removeListener(operationCompletionListener);
-        origFuture.cancel();
-      }
-    });
+  @Override
+  T getOnTimeout() throws Exception {
+    return origFuture.get(0, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  void cancelOrigFuture() {
+    origFuture.removeListener(operationCompletionListener);
+    origFuture.cancel();
   }
 
   // Call 'get' of the underlying future directly because:
-  // - it has default timeout
+  // - it has default timeout, a future with own timeout waits for the rest of it instead
   // - timeout doesn't work if get was not called
   // - it tracks timeouts to decide if node is healthy
   @Override
   public T get() throws InterruptedException, ExecutionException {
-    return origFuture.get();
+    if (!hasTimeout) {
+      return origFuture.get();
+    }
+    try {
+      return origFuture.get(Math.max(0, timeoutNanoTime - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      // the same as 'get' of spy after the default timeout
+      throw new RuntimeException("Timed out waiting for operation", e);
+    }
   }
 
   @Override
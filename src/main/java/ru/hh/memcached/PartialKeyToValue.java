@@ -0,0 +1,28 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/** Values of a bulk get that has timed out on some nodes.<br/>
+ *  Spy gives keys of a node that has not answered in time as misses, so the result of the read is the only place
+ *  where the timeout can be seen by decorators, for example by the circuit breaker.<br/>
+ *  The nodes are lost when a decorator copies the map. Decorators between the spy client and the circuit breaker must give the map
+ *  of the wrapped client as it is, as load shedding, in-flight counting and reconfigurable clients do,
+ *  or merge maps of several clients into this type, as the balancing client does.
+ *  Decorators above the circuit breaker, for example single flight and replicated clients, may copy the map. */
+class PartialKeyToValue extends HashMap<String, Object> {
+  private static final long serialVersionUID = 1L;
+
+  final Set<InetSocketAddress> timedOutNodes;
+
+  PartialKeyToValue(Map<String, Object> keyToValue, Set<InetSocketAddress> timedOutNodes) {
+    super(keyToValue);
+    this.timedOutNodes = timedOutNodes;
+  }
+
+  static Set<InetSocketAddress> getTimedOutNodes(Map<String, ?> keyToValue) {
+    return keyToValue instanceof PartialKeyToValue ? ((PartialKeyToValue) keyToValue).timedOutNodes : Set.of();
+  }
+}
@@ -0,0 +1,29 @@
+package ru.hh.memcached;
+
+import javax.annotation.Nullable;
+
+/** Settings shared by a group of regions, for example the regions of the critical render path or of background jobs.<br/>
+ *  The client applies the policy of the region to every operation of the region, monitoring tags metrics with the name of the policy. */
+final class RegionPolicy {
+  final String name;
+  /** timeout of operations of the region instead of opTimeoutMs, null to use opTimeoutMs */
+  @Nullable
+  final Integer timeoutMs;
+  /** exp of set, add and cas that are called with exp 0, so keys of the region can not be stored without expiration; 0 to keep exp 0 */
+  final int defaultExp;
+  /** codec of regions that have no codec.&lt;region&gt; property, null to use the default transcoder */
+  @Nullable
+  final String codec;
+  /** priority of writes of the region for load shedding, null for the priority by command */
+  @Nullable
+  final LoadSheddingPolicy.Priority writePriority;
+
+  RegionPolicy(String name, @Nullable Integer timeoutMs, int defaultExp, @Nullable String codec,
+               @Nullable LoadSheddingPolicy.Priority writePriority) {
+    this.name = name;
+    this.timeoutMs = timeoutMs;
+    this.defaultExp = defaultExp;
+    this.codec = codec;
+    this.writePriority = writePriority;
+  }
+}
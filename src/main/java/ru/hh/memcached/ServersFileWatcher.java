@@ -0,0 +1,77 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import net.spy.memcached.AddrUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Reads a file with servers every checkIntervalMs and gives the servers to the listener when they change.<br/>
+ *  The file has the format of the servers property: host:port separated by spaces, commas or new lines.<br/>
+ *  A change is applied when two checks in a row read the same content, so a file that is still being written is not applied.
+ *  The file should still be replaced by an atomic rename, a writer that pauses longer than checkIntervalMs is not detected. */
+class ServersFileWatcher {
+  private static final Logger logger = LoggerFactory.getLogger(ServersFileWatcher.class);
+
+  private final Path file;
+  private final Listener listener;
+  // content that was applied or failed to apply, it is not applied again
+  private String checkedServers;
+  // content read by the previous check that differs from checkedServers
+  @Nullable
+  private String pendingServers;
+  private boolean failed;
+
+  ServersFileWatcher(Path file, long checkIntervalMs, Listener listener) throws IOException {
+    this.file = file;
+    this.listener = listener;
+    this.checkedServers = Files.readString(file);
+
+    ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "memcached-servers-file-watcher");
+      thread.setDaemon(true);
+      return thread;
+    });
+    executor.scheduleWithFixedDelay(this::check, checkIntervalMs, checkIntervalMs, TimeUnit.MILLISECONDS);
+  }
+
+  static List<InetSocketAddress> readServers(Path file) throws IOException {
+    return AddrUtil.getAddresses(Files.readString(file));
+  }
+
+  void check() {
+    try {
+      String servers = Files.readString(file);
+      if (servers.equals(checkedServers)) {
+        pendingServers = null;
+        return;
+      }
+      if (!servers.equals(pendingServers)) {
+        // the file may be still being written, the modification time does not tell it when the writer finishes in the same tick
+        pendingServers = servers;
+        return;
+      }
+      pendingServers = null;
+      checkedServers = servers;
+      listener.onChange(AddrUtil.getAddresses(servers));
+      failed = false;
+    } catch (IOException | RuntimeException e) {
+      // an invalid file is applied again after the next change, a missing file is logged once
+      if (!failed) {
+        logger.warn("failed to apply servers from {}", file, e);
+      }
+      failed = true;
+    }
+  }
+
+  interface Listener {
+    void onChange(List<InetSocketAddress> servers) throws IOException;
+  }
+}
@@ -0,0 +1,112 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import javax.annotation.Nullable;
+
+/** Completes with the result of a future of spy when its listener is called,
+ *  cancels the future of spy when it is cancelled.<br/>
+ *  With a timeout it completes when the timeout has passed even if nobody calls 'get',
+ *  the timeout task is cancelled when the future completes earlier, so completed futures are not held until the timeout. */
+abstract class SpyFutureToCompletableFutureAdapter<T> extends CompletableFuture<T> {
+  static final long NO_TIMEOUT = -1;
+
+  // dependent stages of futures that time out or whose decode task is dropped run in this thread, the same as with CompletableFuture.orTimeout
+  private static final ScheduledThreadPoolExecutor timeoutScheduler = createTimeoutScheduler();
+
+  final boolean hasTimeout;
+  // System.nanoTime() when the timeout passes
+  final long timeoutNanoTime;
+  @Nullable
+  private final LongConsumer decodeTimeConsumer;
+  @Nullable
+  private volatile ScheduledFuture<?> timeoutTask;
+
+  /** @param decodeTimeConsumer gets nanoseconds of getting the value in the listener, that is of decoding it */
+  SpyFutureToCompletableFutureAdapter(long timeoutMs, @Nullable LongConsumer decodeTimeConsumer) {
+    this.hasTimeout = timeoutMs != NO_TIMEOUT;
+    this.timeoutNanoTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    this.decodeTimeConsumer = decodeTimeConsumer;
+
+    super.whenComplete((value, exception) -> {
+      ScheduledFuture<?> task = timeoutTask;
+      if (task != null) {
+        task.cancel(false);
+      }
+      if (exception instanceof CancellationException) {
+        cancelOrigFuture();
+      }
+    });
+  }
+
+  /** Called by the listener of the future of spy. */
+  @SuppressWarnings(value = "unchecked")
+  final void completeWithResultOf(Future<?> origFuture) {
+    if (DecodeOverflowPolicy.isDroppingTask()) {
+      // the decode pool is overloaded, the value is not decoded and dependent stages do not run in the thread of spy
+      timeoutScheduler.execute(() -> super.completeExceptionally(new RejectedExecutionException("decode pool is overloaded")));
+      return;
+    }
+    try {
+      long startNanos = decodeTimeConsumer == null ? 0 : System.nanoTime();
+      T value = (T) origFuture.get();
+      if (decodeTimeConsumer != null) {
+        decodeTimeConsumer.accept(System.nanoTime() - startNanos);
+      }
+      super.complete(value);
+    } catch (Throwable throwable) {
+      if (throwable instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      super.completeExceptionally(throwable);
+    }
+  }
+
+  /** Called at the end of constructors of subclasses, after the listener has been added. */
+  final void scheduleTimeout() {
+    if (!hasTimeout || isDone()) {
+      return;
+    }
+    timeoutTask = timeoutScheduler.schedule(this::completeAfterTimeout, timeoutNanoTime - System.nanoTime(), TimeUnit.NANOSECONDS);
+    // the future could complete before the task was set
+    if (isDone()) {
+      timeoutTask.cancel(false);
+    }
+  }
+
+  private void completeAfterTimeout() {
+    if (isDone()) {
+      return;
+    }
+    try {
+      super.complete(getOnTimeout());
+    } catch (Throwable throwable) {
+      if (throwable instanceof InterruptedException) {
+        Thread.currentThread().interrupt();
+      }
+      super.completeExceptionally(throwable);
+    }
+  }
+
+  /** @return the value of the future of spy without waiting, or throws the exception of its timeout */
+  abstract T getOnTimeout() throws Exception;
+
+  /** Removes the listener and cancels the future of spy. */
+  abstract void cancelOrigFuture();
+
+  private static ScheduledThreadPoolExecutor createTimeoutScheduler() {
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, runnable -> {
+      Thread thread = new Thread(runnable, "memcached-timeout");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+    return scheduler;
+  }
+}
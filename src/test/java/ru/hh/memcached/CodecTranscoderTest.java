@@ -0,0 +1,65 @@
+package ru.hh.memcached;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import net.spy.memcached.CachedData;
+import net.spy.memcached.transcoders.SerializingTranscoder;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class CodecTranscoderTest {
+  private static final String REGION = "region";
+  private static final int COMPRESSION_THRESHOLD = 100;
+
+  @Test
+  public void smallValueShouldNotBeCompressed() {
+    CodecTranscoder transcoder = new CodecTranscoder(REGION, MemcachedCodec.UTF8_STRING, COMPRESSION_THRESHOLD,
+                                                     CodecTranscoder.Compression.GZIP, null);
+
+    CachedData cachedData = transcoder.encode("value");
+
+    assertArrayEquals("value".getBytes(StandardCharsets.UTF_8), cachedData.getData());
+    assertEquals("value", transcoder.decode(cachedData));
+  }
+
+  @Test
+  public void largeValueShouldBeCompressed() {
+    for (CodecTranscoder.Compression compression : new CodecTranscoder.Compression[]{CodecTranscoder.Compression.GZIP,
+                                                                                     CodecTranscoder.Compression.DEFLATE}) {
+      CodecTranscoder transcoder = new CodecTranscoder(REGION, MemcachedCodec.UTF8_STRING, COMPRESSION_THRESHOLD, compression, null);
+      String value = "value".repeat(100);
+
+      CachedData cachedData = transcoder.encode(value);
+
+      assertTrue(cachedData.getData().length < value.length());
+      assertTrue(transcoder.asyncDecode(cachedData));
+      assertEquals(value, transcoder.decode(cachedData));
+    }
+  }
+
+  @Test
+  public void incompressibleValueShouldBeStoredAsIs() {
+    CodecTranscoder transcoder = new CodecTranscoder(REGION, MemcachedCodec.BYTES, COMPRESSION_THRESHOLD,
+                                                     CodecTranscoder.Compression.GZIP, null);
+    byte[] value = new byte[1000];
+    new Random(1).nextBytes(value);
+
+    CachedData cachedData = transcoder.encode(value);
+
+    assertArrayEquals(value, cachedData.getData());
+    assertArrayEquals(value, (byte[]) transcoder.decode(cachedData));
+  }
+
+  @Test
+  public void valueOfDefaultTranscoderShouldBeDecoded() {
+    CodecTranscoder transcoder = new CodecTranscoder(REGION, MemcachedCodec.UTF8_STRING, COMPRESSION_THRESHOLD,
+                                                     CodecTranscoder.Compression.GZIP, null);
+    Integer[] value = {1, 2, 3};
+
+    CachedData cachedData = new SerializingTranscoder().encode(value);
+
+    assertArrayEquals(value, (Integer[]) transcoder.decode(cachedData));
+  }
+}
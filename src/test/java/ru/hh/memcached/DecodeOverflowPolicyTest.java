@@ -0,0 +1,81 @@
+package ru.hh.memcached;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import ru.hh.nab.metrics.Counters;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DecodeOverflowPolicyTest {
+
+  @Test
+  public void rejectedTaskShouldNotRunInSubmittingThread() throws Exception {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                                                         new DecodeOverflowPolicy(1, new Counters(2)));
+    CountDownLatch releaseWorker = new CountDownLatch(1);
+    executor.execute(() -> {
+      try {
+        releaseWorker.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    executor.execute(() -> {});
+
+    CompletableFuture<String> rejectedTaskThread = new CompletableFuture<>();
+    executor.execute(() -> rejectedTaskThread.complete(Thread.currentThread().getName()));
+
+    assertEquals("memcached-decode-overflow", rejectedTaskThread.get(1, TimeUnit.SECONDS));
+    releaseWorker.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void taskThatDoesNotFitIntoOverflowQueueShouldBeDropped() throws Exception {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                                                         new DecodeOverflowPolicy(1, new Counters(2)));
+    CountDownLatch releaseWorkers = new CountDownLatch(1);
+    CountDownLatch workersBlocked = new CountDownLatch(2);
+    Runnable blockingTask = () -> {
+      workersBlocked.countDown();
+      try {
+        releaseWorkers.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    };
+    // the decode thread, the decode queue, the overflow thread and the overflow queue
+    executor.execute(blockingTask);
+    executor.execute(() -> {});
+    executor.execute(blockingTask);
+    assertTrue(workersBlocked.await(1, TimeUnit.SECONDS));
+    executor.execute(() -> {});
+
+    AtomicBoolean dropped = new AtomicBoolean();
+    executor.execute(() -> dropped.set(DecodeOverflowPolicy.isDroppingTask()));
+
+    assertTrue(dropped.get());
+    assertFalse(DecodeOverflowPolicy.isDroppingTask());
+    releaseWorkers.countDown();
+    executor.shutdown();
+  }
+
+  @Test
+  public void taskAfterShutdownShouldBeDropped() {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                                                         new DecodeOverflowPolicy(1, new Counters(2)));
+    executor.shutdown();
+
+    AtomicBoolean dropped = new AtomicBoolean();
+    executor.execute(() -> dropped.set(DecodeOverflowPolicy.isDroppingTask()));
+
+    assertTrue(dropped.get());
+  }
+}
@@ -0,0 +1,610 @@
+package ru.hh.memcached;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/** Memcached stand-in that speaks the binary protocol on a loopback port, so spy can be used without a real memcached.<br/>
+ *  Supports the commands spy sends: get, gets, multi-get, set, add, replace, cas, delete, incr, decr, touch, noop, version, flush.<br/>
+ *  Latency, stall, kill and restart let tests see how the client behaves when a node is slow or down.<br/>
+ *  All connections are served by one selector thread, which also owns the store, control methods run their changes on it. */
+class EmbeddedMemcachedServer implements Closeable {
+  private static final byte REQUEST_MAGIC = (byte) 0x80;
+  private static final byte RESPONSE_MAGIC = (byte) 0x81;
+  private static final int HEADER_LENGTH = 24;
+  private static final int MAX_VALUE_LENGTH = 1024 * 1024;
+  private static final int MAX_RELATIVE_EXP_SEC = 60 * 60 * 24 * 30;
+
+  private static final byte GET = 0x00;
+  private static final byte SET = 0x01;
+  private static final byte ADD = 0x02;
+  private static final byte REPLACE = 0x03;
+  private static final byte DELETE = 0x04;
+  private static final byte INCR = 0x05;
+  private static final byte DECR = 0x06;
+  private static final byte FLUSH = 0x08;
+  private static final byte GETQ = 0x09;
+  private static final byte NOOP = 0x0a;
+  private static final byte VERSION = 0x0b;
+  private static final byte GETK = 0x0c;
+  private static final byte GETKQ = 0x0d;
+  private static final byte TOUCH = 0x1c;
+
+  private static final short NO_ERROR = 0x0000;
+  private static final short KEY_NOT_FOUND = 0x0001;
+  private static final short KEY_EXISTS = 0x0002;
+  private static final short VALUE_TOO_LARGE = 0x0003;
+  private static final short NOT_STORED = 0x0005;
+  private static final short NON_NUMERIC_VALUE = 0x0006;
+  private static final short UNKNOWN_COMMAND = 0x0081;
+
+  private static final byte[] EMPTY = new byte[0];
+
+  private final InetSocketAddress address;
+  private final Selector selector;
+  private final Thread selectorThread;
+  private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean closed;
+
+  // fields below are accessed only from the selector thread
+  private ServerSocketChannel serverChannel;
+  private final Map<String, Item> store = new HashMap<>();
+  private long lastCas;
+  private long latencyNanos;
+  private boolean stalled;
+  // responses delayed by latency, due times do not decrease, so that responses are not reordered
+  private final ArrayDeque<DelayedResponse> delayedResponses = new ArrayDeque<>();
+
+  private EmbeddedMemcachedServer(int port) throws IOException {
+    selector = Selector.open();
+    serverChannel = openServerChannel(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    address = (InetSocketAddress) serverChannel.getLocalAddress();
+
+    selectorThread = new Thread(this::run, "embedded-memcached-" + address.getPort());
+    selectorThread.setDaemon(true);
+    selectorThread.start();
+  }
+
+  /** Starts a server on a free loopback port. */
+  static EmbeddedMemcachedServer start() throws IOException {
+    return new EmbeddedMemcachedServer(0);
+  }
+
+  /** Starts servers on different loopback ports, so that spy spreads keys between them as between memcached nodes. */
+  static List<EmbeddedMemcachedServer> start(int numOfServers) throws IOException {
+    List<EmbeddedMemcachedServer> servers = new ArrayList<>(numOfServers);
+    for (int i = 0; i < numOfServers; i++) {
+      servers.add(start());
+    }
+    return servers;
+  }
+
+  /** Addresses in the format of the "servers" property of {@link HHMemcachedClientFactory}. */
+  static String getServers(List<EmbeddedMemcachedServer> servers) {
+    return servers.stream().map(EmbeddedMemcachedServer::getServers).collect(Collectors.joining(" "));
+  }
+
+  InetSocketAddress getAddress() {
+    return address;
+  }
+
+  /** Address in the format of the "servers" property of {@link HHMemcachedClientFactory}. */
+  String getServers() {
+    return address.getAddress().getHostAddress() + ':' + address.getPort();
+  }
+
+  /** Delays every following response by the given time, as a slow node or network would. */
+  void setLatency(long latency, TimeUnit unit) {
+    execute(() -> latencyNanos = unit.toNanos(latency));
+  }
+
+  /** Stops reading requests and sending responses, but keeps connections open, as a hung node would. */
+  void stall() {
+    execute(() -> {
+      stalled = true;
+      updateInterestOps();
+    });
+  }
+
+  /** Continues to serve requests after {@link #stall()}, requests sent during the stall are served too. */
+  void resume() {
+    execute(() -> {
+      stalled = false;
+      updateInterestOps();
+    });
+  }
+
+  /** Closes all connections and stops accepting new ones, the data is lost as in a crashed node. */
+  void kill() {
+    execute(() -> {
+      for (SelectionKey selectionKey : selector.keys()) {
+        closeQuietly(selectionKey.channel());
+      }
+      serverChannel = null;
+      store.clear();
+      delayedResponses.clear();
+    });
+  }
+
+  /** Starts to accept connections on the same port after {@link #kill()}. */
+  void restart() {
+    execute(() -> {
+      if (serverChannel == null) {
+        try {
+          serverChannel = openServerChannel(address);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+    });
+  }
+
+  /** Removes all items, as flush_all does. */
+  void flush() {
+    execute(store::clear);
+  }
+
+  int getNumOfItems() {
+    CompletableFuture<Integer> numOfItems = new CompletableFuture<>();
+    execute(() -> numOfItems.complete(store.size()));
+    return numOfItems.join();
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    selector.wakeup();
+    try {
+      selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  // runs the action on the selector thread and waits for it
+  private void execute(Runnable action) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    tasks.add(() -> {
+      try {
+        action.run();
+        done.complete(null);
+      } catch (RuntimeException e) {
+        done.completeExceptionally(e);
+      }
+    });
+    selector.wakeup();
+    done.join();
+  }
+
+  private ServerSocketChannel openServerChannel(InetSocketAddress bindAddress) throws IOException {
+    ServerSocketChannel channel = ServerSocketChannel.open();
+    channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+    channel.bind(bindAddress);
+    channel.configureBlocking(false);
+    channel.register(selector, SelectionKey.OP_ACCEPT);
+    return channel;
+  }
+
+  private void run() {
+    try {
+      while (!closed) {
+        selector.select(getSelectTimeoutMs());
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+          task.run();
+        }
+        sendDueResponses();
+
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext()) {
+          SelectionKey selectionKey = selectedKeys.next();
+          selectedKeys.remove();
+          try {
+            if (!selectionKey.isValid()) {
+              continue;
+            }
+            if (selectionKey.isAcceptable()) {
+              accept();
+            } else {
+              Connection connection = (Connection) selectionKey.attachment();
+              if (selectionKey.isReadable()) {
+                connection.read();
+              }
+              if (selectionKey.isValid() && selectionKey.isWritable()) {
+                connection.write();
+              }
+            }
+          } catch (IOException e) {
+            closeQuietly(selectionKey.channel());
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      for (SelectionKey selectionKey : selector.keys()) {
+        closeQuietly(selectionKey.channel());
+      }
+      closeQuietly(selector);
+    }
+  }
+
+  private long getSelectTimeoutMs() {
+    if (stalled || delayedResponses.isEmpty()) {
+      return 0;
+    }
+    long nanosToWait = delayedResponses.peek().dueNanos - System.nanoTime();
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanosToWait));
+  }
+
+  private void sendDueResponses() {
+    if (stalled) {
+      return;
+    }
+    long now = System.nanoTime();
+    Set<Connection> connectionsToWrite = new HashSet<>();
+    while (!delayedResponses.isEmpty() && now - delayedResponses.peek().dueNanos >= 0) {
+      DelayedResponse delayedResponse = delayedResponses.poll();
+      delayedResponse.connection.output.add(delayedResponse.response);
+      connectionsToWrite.add(delayedResponse.connection);
+    }
+    for (Connection connection : connectionsToWrite) {
+      try {
+        connection.write();
+      } catch (IOException e) {
+        closeQuietly(connection.channel);
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = serverChannel.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    SelectionKey selectionKey = channel.register(selector, 0);
+    selectionKey.attach(new Connection(channel, selectionKey));
+    ((Connection) selectionKey.attachment()).updateInterestOps();
+  }
+
+  private void updateInterestOps() {
+    for (SelectionKey selectionKey : selector.keys()) {
+      if (selectionKey.isValid() && selectionKey.attachment() instanceof Connection) {
+        ((Connection) selectionKey.attachment()).updateInterestOps();
+      }
+    }
+  }
+
+  private static void closeQuietly(Closeable closeable) {
+    try {
+      closeable.close();
+    } catch (IOException e) {
+      // nothing to do, the channel is not used anymore
+    }
+  }
+
+  private void handle(Request request, Connection connection) {
+    switch (request.opcode) {
+      case GET:
+      case GETQ:
+      case GETK:
+      case GETKQ:
+        handleGet(request, connection);
+        break;
+      case SET:
+      case ADD:
+      case REPLACE:
+        handleStore(request, connection);
+        break;
+      case DELETE:
+        if (getLiveItem(request.key) == null) {
+          connection.respondError(request, KEY_NOT_FOUND);
+        } else {
+          store.remove(request.key);
+          connection.respond(request, NO_ERROR, 0, EMPTY, EMPTY, EMPTY);
+        }
+        break;
+      case INCR:
+      case DECR:
+        handleMutate(request, connection);
+        break;
+      case TOUCH:
+        Item item = getLiveItem(request.key);
+        if (item == null) {
+          connection.respondError(request, KEY_NOT_FOUND);
+        } else {
+          item.expireAtNanos = getExpireAtNanos(ByteBuffer.wrap(request.extras).getInt());
+          connection.respond(request, NO_ERROR, 0, EMPTY, EMPTY, EMPTY);
+        }
+        break;
+      case FLUSH:
+        store.clear();
+        connection.respond(request, NO_ERROR, 0, EMPTY, EMPTY, EMPTY);
+        break;
+      case NOOP:
+        connection.respond(request, NO_ERROR, 0, EMPTY, EMPTY, EMPTY);
+        break;
+      case VERSION:
+        connection.respond(request, NO_ERROR, 0, EMPTY, EMPTY, "1.6.0-embedded".getBytes(StandardCharsets.US_ASCII));
+        break;
+      default:
+        connection.respondError(request, UNKNOWN_COMMAND);
+    }
+  }
+
+  private void handleGet(Request request, Connection connection) {
+    boolean quiet = request.opcode == GETQ || request.opcode == GETKQ;
+    boolean withKey = request.opcode == GETK || request.opcode == GETKQ;
+    Item item = getLiveItem(request.key);
+    if (item == null) {
+      if (!quiet) {
+        connection.respondError(request, KEY_NOT_FOUND);
+      }
+      return;
+    }
+    byte[] flags = ByteBuffer.allocate(4).putInt(item.flags).array();
+    connection.respond(request, NO_ERROR, item.cas, flags, withKey ? request.keyBytes : EMPTY, item.value);
+  }
+
+  private void handleStore(Request request, Connection connection) {
+    if (request.value.length > MAX_VALUE_LENGTH) {
+      connection.respondError(request, VALUE_TOO_LARGE);
+      return;
+    }
+    Item item = getLiveItem(request.key);
+    if (request.cas != 0) {
+      if (item == null) {
+        connection.respondError(request, KEY_NOT_FOUND);
+        return;
+      }
+      if (item.cas != request.cas) {
+        connection.respondError(request, KEY_EXISTS);
+        return;
+      }
+    } else if (request.opcode == ADD && item != null) {
+      connection.respondError(request, KEY_EXISTS);
+      return;
+    } else if (request.opcode == REPLACE && item == null) {
+      connection.respondError(request, NOT_STORED);
+      return;
+    }
+
+    ByteBuffer extras = ByteBuffer.wrap(request.extras);
+    int flags = extras.getInt();
+    int exp = extras.getInt();
+    Item newItem = new Item(request.value, flags, getExpireAtNanos(exp), ++lastCas);
+    store.put(request.key, newItem);
+    connection.respond(request, NO_ERROR, newItem.cas, EMPTY, EMPTY, EMPTY);
+  }
+
+  private void handleMutate(Request request, Connection connection) {
+    ByteBuffer extras = ByteBuffer.wrap(request.extras);
+    long delta = extras.getLong();
+    long initial = extras.getLong();
+    int exp = extras.getInt();
+
+    Item item = getLiveItem(request.key);
+    long value;
+    if (item == null) {
+      // expiration of all ones means that the counter must not be created
+      if (exp == -1) {
+        connection.respondError(request, KEY_NOT_FOUND);
+        return;
+      }
+      value = initial;
+      item = new Item(EMPTY, 0, getExpireAtNanos(exp), 0);
+      store.put(request.key, item);
+    } else {
+      try {
+        long oldValue = Long.parseUnsignedLong(new String(item.value, StandardCharsets.US_ASCII).trim());
+        // decrement does not go below zero, increment wraps around as in memcached
+        value = request.opcode == INCR ? oldValue + delta : (Long.compareUnsigned(oldValue, delta) < 0 ? 0 : oldValue - delta);
+      } catch (NumberFormatException e) {
+        connection.respondError(request, NON_NUMERIC_VALUE);
+        return;
+      }
+    }
+    item.value = Long.toUnsignedString(value).getBytes(StandardCharsets.US_ASCII);
+    item.cas = ++lastCas;
+    connection.respond(request, NO_ERROR, item.cas, EMPTY, EMPTY, ByteBuffer.allocate(8).putLong(value).array());
+  }
+
+  private Item getLiveItem(String key) {
+    Item item = store.get(key);
+    if (item != null && System.nanoTime() - item.expireAtNanos >= 0) {
+      store.remove(key);
+      return null;
+    }
+    return item;
+  }
+
+  // exp up to 30 days is relative, otherwise it is unix time
+  private static long getExpireAtNanos(int exp) {
+    long now = System.nanoTime();
+    if (exp == 0) {
+      return now + TimeUnit.DAYS.toNanos(365 * 100);
+    }
+    if (exp < 0) {
+      return now;
+    }
+    if (exp <= MAX_RELATIVE_EXP_SEC) {
+      return now + TimeUnit.SECONDS.toNanos(exp);
+    }
+    return now + TimeUnit.MILLISECONDS.toNanos(TimeUnit.SECONDS.toMillis(exp) - System.currentTimeMillis());
+  }
+
+  private class Connection {
+    private final SocketChannel channel;
+    private final SelectionKey selectionKey;
+    private ByteBuffer input = ByteBuffer.allocate(16 * 1024);
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+
+    Connection(SocketChannel channel, SelectionKey selectionKey) {
+      this.channel = channel;
+      this.selectionKey = selectionKey;
+    }
+
+    void read() throws IOException {
+      if (channel.read(input) < 0) {
+        channel.close();
+        return;
+      }
+
+      input.flip();
+      while (input.remaining() >= HEADER_LENGTH) {
+        int bodyLength = input.getInt(input.position() + 8);
+        if (input.remaining() < HEADER_LENGTH + bodyLength) {
+          break;
+        }
+        handle(readRequest(), this);
+      }
+      input.compact();
+
+      int maxFrameLength = HEADER_LENGTH + MAX_VALUE_LENGTH + 1024;
+      if (!input.hasRemaining() && input.capacity() < maxFrameLength) {
+        ByteBuffer biggerInput = ByteBuffer.allocate(Math.min(input.capacity() * 2, maxFrameLength));
+        input.flip();
+        biggerInput.put(input);
+        input = biggerInput;
+      }
+
+      write();
+    }
+
+    void write() throws IOException {
+      if (!output.isEmpty()) {
+        // one gathering write for all responses to a multi-get
+        channel.write(output.toArray(new ByteBuffer[0]));
+        while (!output.isEmpty() && !output.peek().hasRemaining()) {
+          output.poll();
+        }
+      }
+      updateInterestOps();
+    }
+
+    void updateInterestOps() {
+      if (!selectionKey.isValid()) {
+        return;
+      }
+      if (stalled) {
+        selectionKey.interestOps(0);
+      } else {
+        selectionKey.interestOps(output.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+      }
+    }
+
+    void respondError(Request request, short status) {
+      respond(request, status, 0, EMPTY, EMPTY, EMPTY);
+    }
+
+    void respond(Request request, short status, long cas, byte[] extras, byte[] key, byte[] value) {
+      ByteBuffer response = ByteBuffer.allocate(HEADER_LENGTH + extras.length + key.length + value.length);
+      response.put(RESPONSE_MAGIC)
+          .put(request.opcode)
+          .putShort((short) key.length)
+          .put((byte) extras.length)
+          .put((byte) 0)
+          .putShort(status)
+          .putInt(extras.length + key.length + value.length)
+          .putInt(request.opaque)
+          .putLong(cas)
+          .put(extras)
+          .put(key)
+          .put(value)
+          .flip();
+
+      if (latencyNanos == 0 && delayedResponses.isEmpty()) {
+        output.add(response);
+        return;
+      }
+      long dueNanos = System.nanoTime() + latencyNanos;
+      if (!delayedResponses.isEmpty() && dueNanos - delayedResponses.peekLast().dueNanos < 0) {
+        dueNanos = delayedResponses.peekLast().dueNanos;
+      }
+      delayedResponses.add(new DelayedResponse(this, response, dueNanos));
+    }
+
+    private Request readRequest() throws IOException {
+      if (input.get() != REQUEST_MAGIC) {
+        throw new IOException("Bad request magic");
+      }
+      Request request = new Request();
+      request.opcode = input.get();
+      int keyLength = input.getShort() & 0xffff;
+      int extrasLength = input.get() & 0xff;
+      input.get(); // data type
+      input.getShort(); // vbucket
+      int bodyLength = input.getInt();
+      request.opaque = input.getInt();
+      request.cas = input.getLong();
+      request.extras = new byte[extrasLength];
+      input.get(request.extras);
+      request.keyBytes = new byte[keyLength];
+      input.get(request.keyBytes);
+      request.key = new String(request.keyBytes, StandardCharsets.UTF_8);
+      request.value = new byte[bodyLength - extrasLength - keyLength];
+      input.get(request.value);
+      return request;
+    }
+  }
+
+  private static class Request {
+    byte opcode;
+    int opaque;
+    long cas;
+    byte[] extras;
+    byte[] keyBytes;
+    String key;
+    byte[] value;
+  }
+
+  private static class DelayedResponse {
+    final Connection connection;
+    final ByteBuffer response;
+    final long dueNanos;
+
+    DelayedResponse(Connection connection, ByteBuffer response, long dueNanos) {
+      this.connection = connection;
+      this.response = response;
+      this.dueNanos = dueNanos;
+    }
+  }
+
+  private static class Item {
+    byte[] value;
+    final int flags;
+    long expireAtNanos;
+    long cas;
+
+    Item(byte[] value, int flags, long expireAtNanos, long cas) {
+      this.value = value;
+      this.flags = flags;
+      this.expireAtNanos = expireAtNanos;
+      this.cas = cas;
+    }
+  }
+}
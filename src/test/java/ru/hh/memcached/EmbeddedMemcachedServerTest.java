@@ -0,0 +1,96 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.MemcachedClient;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmbeddedMemcachedServerTest {
+  private static final String REGION = "region";
+
+  private EmbeddedMemcachedServer server;
+  private MemcachedClient spyClient;
+  private HHSpyMemcachedClient hhSpyClient;
+
+  @Before
+  public void setUp() throws IOException {
+    server = EmbeddedMemcachedServer.start();
+    spyClient = new MemcachedClient(
+        new ConnectionFactoryBuilder().setProtocol(ConnectionFactoryBuilder.Protocol.BINARY).setOpTimeout(1000).setDaemon(true).build(),
+        List.of(server.getAddress())
+    );
+    hhSpyClient = new HHSpyMemcachedClient(spyClient);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    spyClient.shutdown();
+    server.close();
+  }
+
+  @Test
+  public void setGetDelete() {
+    assertTrue(hhSpyClient.set(REGION, "key", 0, "value").join());
+    assertEquals("value", hhSpyClient.get(REGION, "key"));
+    assertEquals("value", hhSpyClient.asyncGet(REGION, "key").join());
+
+    assertTrue(hhSpyClient.delete(REGION, "key").join());
+    assertNull(hhSpyClient.get(REGION, "key"));
+    assertFalse(hhSpyClient.delete(REGION, "key").join());
+  }
+
+  @Test
+  public void getSomeShouldReturnOnlyHits() {
+    hhSpyClient.set(REGION, "key1", 0, "value1").join();
+    hhSpyClient.set(REGION, "key3", 0, 3).join();
+
+    Map<String, Object> keyToValue = hhSpyClient.getSome(REGION, new String[]{"key1", "key2", "key3"});
+
+    assertEquals(Map.of("key1", "value1", "key3", 3), keyToValue);
+  }
+
+  @Test
+  public void addShouldFailIfKeyExists() {
+    assertTrue(hhSpyClient.add(REGION, "key", 0, "value").join());
+    assertFalse(hhSpyClient.add(REGION, "key", 0, "otherValue").join());
+    assertEquals("value", hhSpyClient.get(REGION, "key"));
+  }
+
+  @Test
+  public void casShouldFailIfValueChanged() {
+    hhSpyClient.set(REGION, "key", 0, "value").join();
+    CASPair casPair = hhSpyClient.gets(REGION, "key");
+
+    hhSpyClient.set(REGION, "key", 0, "otherValue").join();
+
+    assertEquals(CASResponse.EXISTS, hhSpyClient.asyncCas(REGION, "key", casPair.casID, 0, "newValue").join());
+    CASPair newCasPair = hhSpyClient.asyncGets(REGION, "key").join();
+    assertEquals(CASResponse.OK, hhSpyClient.asyncCas(REGION, "key", newCasPair.casID, 0, "newValue").join());
+    assertEquals("newValue", hhSpyClient.get(REGION, "key"));
+  }
+
+  @Test
+  public void incrementShouldStartFromDefault() {
+    assertEquals(5, hhSpyClient.increment(REGION, "counter", 1, 5));
+    assertEquals(7, hhSpyClient.increment(REGION, "counter", 2, 5));
+  }
+
+  @Test
+  public void expiredKeyShouldBeMissing() throws InterruptedException {
+    hhSpyClient.set(REGION, "key", 1, "value").join();
+    assertEquals("value", hhSpyClient.get(REGION, "key"));
+
+    Thread.sleep(1100);
+
+    assertNull(hhSpyClient.get(REGION, "key"));
+    assertFalse(hhSpyClient.touch(REGION, "key", 10).join());
+  }
+}
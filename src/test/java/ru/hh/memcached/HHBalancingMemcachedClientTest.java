@@ -0,0 +1,102 @@
+package ru.hh.memcached;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import net.spy.memcached.OperationTimeoutException;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.atMost;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HHBalancingMemcachedClientTest {
+  private static final String REGION = "region";
+
+  private final HHMemcachedClient[] clients = {mock(HHMemcachedClient.class), mock(HHMemcachedClient.class), mock(HHMemcachedClient.class)};
+  private final HHBalancingMemcachedClient balancingClient = new HHBalancingMemcachedClient(clients, HHBalancingMemcachedClient.Mode.KEY_AFFINE);
+
+  @Test
+  public void keyAffineModeShouldRouteKeyToTheSameInstance() {
+    for (int i = 0; i < clients.length; i++) {
+      when(clients[i].get(REGION, "key")).thenReturn(i);
+    }
+
+    Object firstClientIndex = balancingClient.get(REGION, "key");
+    for (int i = 0; i < 10; i++) {
+      assertEquals(firstClientIndex, balancingClient.get(REGION, "key"));
+    }
+  }
+
+  @Test
+  public void keyAffineGetSomeShouldSplitKeysByInstanceAndMergeResults() {
+    String[] keys = new String[100];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "key" + i;
+    }
+    for (HHMemcachedClient client : clients) {
+      when(client.asyncGetSome(eq(REGION), any(String[].class))).thenAnswer(invocation -> {
+        Map<String, Object> keyToValue = new HashMap<>();
+        for (String key : (String[]) invocation.getArguments()[1]) {
+          keyToValue.put(key, key + "value");
+        }
+        return CompletableFuture.completedFuture(keyToValue);
+      });
+    }
+
+    Map<String, Object> keyToValue = balancingClient.getSome(REGION, keys);
+
+    assertEquals(keys.length, keyToValue.size());
+    for (String key : keys) {
+      assertEquals(key + "value", keyToValue.get(key));
+    }
+    for (HHMemcachedClient client : clients) {
+      verify(client).asyncGetSome(eq(REGION), any(String[].class));
+      verify(client, times(0)).get(anyString(), anyString());
+    }
+  }
+
+  @Test(expected = OperationTimeoutException.class)
+  public void keyAffineGetSomeShouldThrowExceptionOfInstance() {
+    for (HHMemcachedClient client : clients) {
+      when(client.asyncGetSome(eq(REGION), any(String[].class)))
+          .thenReturn(CompletableFuture.failedFuture(new OperationTimeoutException("timeout")));
+    }
+    String[] keys = new String[100];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = "key" + i;
+    }
+
+    balancingClient.getSome(REGION, keys);
+  }
+
+  @Test
+  public void leastLoadedModeShouldAvoidInstanceWithPendingOperations() {
+    HHMemcachedClient slowClient = mock(HHMemcachedClient.class);
+    HHMemcachedClient fastClient = mock(HHMemcachedClient.class);
+    CompletableFuture<Boolean> slowSetResult = new CompletableFuture<>();
+    when(slowClient.set(REGION, "key", 0, "value")).thenReturn(slowSetResult);
+    when(fastClient.set(REGION, "key", 0, "value")).thenReturn(CompletableFuture.completedFuture(true));
+    HHBalancingMemcachedClient leastLoadedClient =
+        new HHBalancingMemcachedClient(new HHMemcachedClient[]{slowClient, fastClient}, HHBalancingMemcachedClient.Mode.LEAST_LOADED);
+
+    for (int i = 0; i < 100; i++) {
+      leastLoadedClient.set(REGION, "key", 0, "value");
+    }
+
+    // the slow instance gets at most the first set, then it has more operations in flight than the fast one
+    verify(slowClient, atMost(1)).set(REGION, "key", 0, "value");
+    slowSetResult.complete(true);
+    when(fastClient.set(REGION, "key", 0, "value")).thenReturn(new CompletableFuture<>());
+    for (int i = 0; i < 100; i++) {
+      leastLoadedClient.set(REGION, "key", 0, "value");
+    }
+    verify(slowClient, atLeast(99)).set(REGION, "key", 0, "value");
+  }
+}
@@ -0,0 +1,154 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.OperationTimeoutException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+
+public class HHCircuitBreakerMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String KEY = "key";
+  private static final String OTHER_NODE_KEY = "otherNodeKey";
+  private static final InetSocketAddress NODE = InetSocketAddress.createUnresolved("node1", 11211);
+  private static final InetSocketAddress OTHER_NODE = InetSocketAddress.createUnresolved("node2", 11211);
+  private static final int MIN_NUM_OF_CALLS = 4;
+  private static final long OPEN_MS = 1000;
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private long nanos;
+  private final HHCircuitBreakerMemcachedClient circuitBreakerClient = new HHCircuitBreakerMemcachedClient(
+      hhMemcachedClient, new HHCircuitBreakerMemcachedClient.Settings(50, MIN_NUM_OF_CALLS, 10_000, OPEN_MS), () -> nanos, 100
+  );
+
+  @Before
+  public void setUp() {
+    when(hhMemcachedClient.getPrimaryNodeAddress(anyString())).thenReturn(NODE);
+    when(hhMemcachedClient.getPrimaryNodeAddress(getKey(REGION, OTHER_NODE_KEY))).thenReturn(OTHER_NODE);
+  }
+
+  @Test
+  public void breakerShouldOpenWhenFailureRateIsReached() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value").thenThrow(new OperationTimeoutException("timeout"));
+
+    assertEquals("value", circuitBreakerClient.get(REGION, KEY));
+    for (int i = 1; i < MIN_NUM_OF_CALLS; i++) {
+      getAndIgnoreException();
+    }
+    assertEquals(HHCircuitBreakerMemcachedClient.State.OPEN, circuitBreakerClient.getState(NODE));
+
+    assertNull(circuitBreakerClient.get(REGION, KEY));
+    assertFalse(circuitBreakerClient.set(REGION, KEY, 0, "value").join());
+    verify(hhMemcachedClient, times(MIN_NUM_OF_CALLS)).get(REGION, KEY);
+    verify(hhMemcachedClient, never()).set(anyString(), anyString(), any(Integer.class), any());
+  }
+
+  @Test
+  public void successfulProbeShouldCloseBreaker() {
+    openBreaker();
+    nanos += TimeUnit.MILLISECONDS.toNanos(OPEN_MS);
+    CompletableFuture<Object> probeFuture = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGet(REGION, KEY)).thenReturn(probeFuture);
+
+    CompletableFuture<Object> future = circuitBreakerClient.asyncGet(REGION, KEY);
+    assertEquals(HHCircuitBreakerMemcachedClient.State.HALF_OPEN, circuitBreakerClient.getState(NODE));
+    // only one probe at a time
+    assertNull(circuitBreakerClient.asyncGet(REGION, KEY).join());
+    probeFuture.complete("value");
+
+    assertEquals("value", future.join());
+    assertEquals(HHCircuitBreakerMemcachedClient.State.CLOSED, circuitBreakerClient.getState(NODE));
+    verify(hhMemcachedClient, times(1)).asyncGet(REGION, KEY);
+  }
+
+  @Test
+  public void failedProbeShouldOpenBreakerAgain() {
+    openBreaker();
+    nanos += TimeUnit.MILLISECONDS.toNanos(OPEN_MS);
+
+    getAndIgnoreException();
+
+    assertEquals(HHCircuitBreakerMemcachedClient.State.OPEN, circuitBreakerClient.getState(NODE));
+    assertNull(circuitBreakerClient.get(REGION, KEY));
+  }
+
+  @Test
+  public void cancellationShouldNotCountAsFailure() {
+    for (int i = 0; i < MIN_NUM_OF_CALLS; i++) {
+      CompletableFuture<Object> origFuture = new CompletableFuture<>();
+      when(hhMemcachedClient.asyncGet(REGION, KEY)).thenReturn(origFuture);
+      circuitBreakerClient.asyncGet(REGION, KEY).cancel(false);
+    }
+
+    assertEquals(HHCircuitBreakerMemcachedClient.State.CLOSED, circuitBreakerClient.getState(NODE));
+  }
+
+  @Test
+  public void getSomeShouldSkipKeysOfOpenNode() {
+    openBreaker();
+    String[] keys = {KEY, OTHER_NODE_KEY};
+    when(hhMemcachedClient.getSome(REGION, new String[]{OTHER_NODE_KEY})).thenReturn(Map.of(OTHER_NODE_KEY, "value"));
+
+    assertEquals(Map.of(OTHER_NODE_KEY, "value"), circuitBreakerClient.getSome(REGION, keys));
+  }
+
+  @Test
+  public void timeoutOfNodeInGetSomeShouldCountAsFailure() {
+    String[] keys = {KEY, OTHER_NODE_KEY};
+    // spy gives keys of a node that has timed out as misses
+    when(hhMemcachedClient.getSome(REGION, keys)).thenReturn(new PartialKeyToValue(Map.of(OTHER_NODE_KEY, "value"), Set.of(NODE)));
+    CompletableFuture<Map<String, Object>> origFuture = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGetSome(REGION, keys)).thenReturn(origFuture);
+
+    for (int i = 1; i < MIN_NUM_OF_CALLS; i++) {
+      assertEquals(Map.of(OTHER_NODE_KEY, "value"), circuitBreakerClient.getSome(REGION, keys));
+    }
+    circuitBreakerClient.asyncGetSome(REGION, keys);
+    origFuture.complete(new PartialKeyToValue(Map.of(), Set.of(NODE)));
+
+    assertEquals(HHCircuitBreakerMemcachedClient.State.OPEN, circuitBreakerClient.getState(NODE));
+    assertEquals(HHCircuitBreakerMemcachedClient.State.CLOSED, circuitBreakerClient.getState(OTHER_NODE));
+  }
+
+  @Test
+  public void primaryNodeShouldBeFoundByEveryCall() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+    circuitBreakerClient.get(REGION, KEY);
+    assertEquals(NODE, circuitBreakerClient.getPrimaryNodeAddress(getKey(REGION, KEY)));
+
+    // nodes were replaced, a node found before must not be given
+    when(hhMemcachedClient.getPrimaryNodeAddress(getKey(REGION, KEY))).thenReturn(OTHER_NODE);
+    circuitBreakerClient.get(REGION, KEY);
+    assertEquals(OTHER_NODE, circuitBreakerClient.getPrimaryNodeAddress(getKey(REGION, KEY)));
+    verify(hhMemcachedClient, times(4)).getPrimaryNodeAddress(getKey(REGION, KEY));
+  }
+
+  private void openBreaker() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenThrow(new OperationTimeoutException("timeout"));
+    for (int i = 0; i < MIN_NUM_OF_CALLS; i++) {
+      getAndIgnoreException();
+    }
+  }
+
+  private void getAndIgnoreException() {
+    try {
+      circuitBreakerClient.get(REGION, KEY);
+    } catch (OperationTimeoutException e) {
+      // counted by the breaker
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package ru.hh.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import ru.hh.nab.metrics.StatsDSender;
+
+public class HHCoalescingSetMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String NOT_COALESCED_REGION = "notCoalescedRegion";
+  private static final String KEY = "key";
+  private static final long NEVER_FLUSH_MS = 3_600_000;
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private final List<MemcachedBatch> executedBatches = new ArrayList<>();
+  private final HHCoalescingSetMemcachedClient coalescingClient = new HHCoalescingSetMemcachedClient(
+      hhMemcachedClient, Map.of(REGION, new HHCoalescingSetMemcachedClient.RegionSettings(NEVER_FLUSH_MS)), 100, "service",
+      mock(StatsDSender.class), 60
+  );
+
+  @Before
+  public void setUp() {
+    when(hhMemcachedClient.executeBatch(any(MemcachedBatch.class))).thenAnswer(invocation -> {
+      MemcachedBatch batch = (MemcachedBatch) invocation.getArguments()[0];
+      executedBatches.add(batch);
+      List<CompletableFuture<Boolean>> itemResults = new ArrayList<>();
+      for (int i = 0; i < batch.size(); i++) {
+        itemResults.add(CompletableFuture.completedFuture(true));
+      }
+      return new MemcachedBatchResult(itemResults);
+    });
+  }
+
+  @Test
+  public void onlyLatestValueOfKeyShouldBeSentOnFlush() {
+    CompletableFuture<Boolean> firstSetResult = coalescingClient.set(REGION, KEY, 60, "value1");
+    CompletableFuture<Boolean> secondSetResult = coalescingClient.set(REGION, KEY, 60, "value2");
+
+    assertFalse(firstSetResult.isDone());
+    assertEquals("value2", coalescingClient.get(REGION, KEY));
+    assertEquals("value2", coalescingClient.asyncGet(REGION, KEY).join());
+    verify(hhMemcachedClient, never()).get(anyString(), anyString());
+
+    assertTrue(coalescingClient.flush(REGION).join());
+    assertEquals(1, executedBatches.size());
+    assertEquals(1, executedBatches.get(0).size());
+    assertEquals("value2", executedBatches.get(0).getItems().get(0).value);
+    assertTrue(firstSetResult.join());
+    assertTrue(secondSetResult.join());
+  }
+
+  @Test
+  public void otherOperationsShouldSendPendingSetFirst() {
+    when(hhMemcachedClient.set(REGION, KEY, 60, "value")).thenReturn(CompletableFuture.completedFuture(true));
+    when(hhMemcachedClient.delete(REGION, KEY)).thenReturn(CompletableFuture.completedFuture(true));
+    CompletableFuture<Boolean> setResult = coalescingClient.set(REGION, KEY, 60, "value");
+
+    assertTrue(coalescingClient.delete(REGION, KEY).join());
+
+    InOrder inOrder = inOrder(hhMemcachedClient);
+    inOrder.verify(hhMemcachedClient).set(REGION, KEY, 60, "value");
+    inOrder.verify(hhMemcachedClient).delete(REGION, KEY);
+    assertTrue(setResult.join());
+    assertTrue(coalescingClient.flush(REGION).join());
+    assertTrue(executedBatches.isEmpty());
+  }
+
+  @Test
+  public void batchShouldSendPendingSetsOfItsKeysTogether() throws InterruptedException {
+    CompletableFuture<Boolean> firstSetResult = new CompletableFuture<>();
+    CompletableFuture<Boolean> secondSetResult = new CompletableFuture<>();
+    when(hhMemcachedClient.set(REGION, "key1", 60, "value1")).thenReturn(firstSetResult);
+    when(hhMemcachedClient.set(REGION, "key2", 60, "value2")).thenReturn(secondSetResult);
+    coalescingClient.set(REGION, "key1", 60, "value1");
+    coalescingClient.set(REGION, "key2", 60, "value2");
+    MemcachedBatch batch = new MemcachedBatch().delete(REGION, "key1").delete(REGION, "key2");
+
+    Thread batchThread = new Thread(() -> coalescingClient.executeBatch(batch));
+    batchThread.start();
+
+    // both sets are sent before the batch waits for them
+    verify(hhMemcachedClient, timeout(5000)).set(REGION, "key1", 60, "value1");
+    verify(hhMemcachedClient, timeout(5000)).set(REGION, "key2", 60, "value2");
+    assertTrue(executedBatches.isEmpty());
+    firstSetResult.complete(true);
+    secondSetResult.complete(true);
+    batchThread.join(5000);
+    assertEquals(List.of(batch), executedBatches);
+  }
+
+  @Test
+  public void setsOfNotCoalescedRegionsShouldBeSentAtOnce() {
+    when(hhMemcachedClient.set(NOT_COALESCED_REGION, KEY, 60, "value")).thenReturn(CompletableFuture.completedFuture(true));
+
+    assertTrue(coalescingClient.set(NOT_COALESCED_REGION, KEY, 60, "value").join());
+
+    verify(hhMemcachedClient).set(NOT_COALESCED_REGION, KEY, 60, "value");
+  }
+}
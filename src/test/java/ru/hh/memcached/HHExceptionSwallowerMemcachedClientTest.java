@@ -1,9 +1,12 @@
 package ru.hh.memcached;
 
 import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -11,7 +14,11 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -52,6 +59,54 @@ public class HHExceptionSwallowerMemcachedClientTest {
     verify(hhSpyClient).getSome(REGION, keys);
   }
 
+  @Test
+  public void asyncGetShouldSwallowException() throws Exception {
+    when(hhSpyClient.asyncGet(REGION, KEY)).thenThrow(RuntimeException.class);
+    assertNull(hhExceptionSwallowerMemcachedClient.asyncGet(REGION, KEY).get());
+
+    CompletableFuture<Object> failedFuture = new CompletableFuture<>();
+    failedFuture.completeExceptionally(new RuntimeException());
+    doReturn(failedFuture).when(hhSpyClient).asyncGet(REGION, KEY);
+    assertNull(hhExceptionSwallowerMemcachedClient.asyncGet(REGION, KEY).get());
+  }
+
+  @Test
+  public void asyncGetSomeShouldSwallowException() throws Exception {
+    String[] keys = {KEY};
+    CompletableFuture<Map<String, Object>> failedFuture = new CompletableFuture<>();
+    failedFuture.completeExceptionally(new RuntimeException());
+    when(hhSpyClient.asyncGetSome(REGION, keys)).thenReturn(failedFuture);
+
+    assertTrue(hhExceptionSwallowerMemcachedClient.asyncGetSome(REGION, keys).get().isEmpty());
+    verify(hhSpyClient).asyncGetSome(REGION, keys);
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void streamGetSomeShouldGiveKeysOfFailedPartsAsMisses() throws Exception {
+    String[] keys = {"key1", "key2"};
+    doAnswer(invocation -> {
+      BiConsumer<String[], Map<String, Object>> partConsumer = (BiConsumer<String[], Map<String, Object>>) invocation.getArguments()[2];
+      partConsumer.accept(new String[]{"key1"}, Map.of("key1", "value1"));
+      CompletableFuture<Void> failedFuture = new CompletableFuture<>();
+      failedFuture.completeExceptionally(new RuntimeException());
+      return failedFuture;
+    }).when(hhSpyClient).streamGetSome(eq(REGION), eq(keys), any(BiConsumer.class));
+
+    Map<String, Object> keyToValue = new HashMap<>();
+    hhExceptionSwallowerMemcachedClient.streamGetSome(REGION, keys, (partKeys, partKeyToValue) -> {
+      for (String partKey : partKeys) {
+        assertFalse(keyToValue.containsKey(partKey));
+        keyToValue.put(partKey, partKeyToValue.get(partKey));
+      }
+    }).get();
+
+    Map<String, Object> expectedKeyToValue = new HashMap<>();
+    expectedKeyToValue.put("key1", "value1");
+    expectedKeyToValue.put("key2", null);
+    assertEquals(expectedKeyToValue, keyToValue);
+  }
+
   @Test
   public void setShouldSwallowException() throws Exception {
     int exp = 3;
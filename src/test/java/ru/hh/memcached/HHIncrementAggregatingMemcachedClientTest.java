@@ -0,0 +1,95 @@
+package ru.hh.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import ru.hh.nab.metrics.StatsDSender;
+
+public class HHIncrementAggregatingMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String NOT_AGGREGATED_REGION = "notAggregatedRegion";
+  private static final long NEVER_FLUSH_MS = 3_600_000;
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private final List<MemcachedBatch> executedBatches = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    when(hhMemcachedClient.executeBatch(any(MemcachedBatch.class))).thenAnswer(invocation -> {
+      MemcachedBatch batch = (MemcachedBatch) invocation.getArguments()[0];
+      executedBatches.add(batch);
+      List<CompletableFuture<Boolean>> itemResults = new ArrayList<>();
+      for (int i = 0; i < batch.size(); i++) {
+        itemResults.add(CompletableFuture.completedFuture(true));
+      }
+      return new MemcachedBatchResult(itemResults);
+    });
+  }
+
+  @Test
+  public void incrementsOfKeyShouldBeSentAsOneSum() {
+    HHIncrementAggregatingMemcachedClient client = createClient(100);
+
+    assertEquals(-1, client.increment(REGION, "key1", 1, 1, 60));
+    client.increment(REGION, "key1", 2, 1, 60);
+    client.increment(REGION, "key1", 3, 1, 60);
+    client.increment(REGION, "key2", 5, 0);
+    assertTrue(client.flush().join());
+
+    verify(hhMemcachedClient, never()).increment(anyString(), anyString(), anyInt(), anyInt(), anyInt());
+    assertEquals(1, executedBatches.size());
+    MemcachedBatch.Item key1Item = getItem(executedBatches.get(0), "key1");
+    assertEquals(MemcachedBatch.Command.INCREMENT, key1Item.command);
+    assertEquals(6, key1Item.by);
+    // a missing key gets def of the first increment and the following increments
+    assertEquals(6, key1Item.def);
+    assertEquals(60, key1Item.exp);
+    assertEquals(5, getItem(executedBatches.get(0), "key2").by);
+
+    assertTrue(client.flush().join());
+    assertEquals(1, executedBatches.size());
+  }
+
+  @Test
+  public void notAggregatedRegionsShouldBeIncrementedAtOnce() {
+    HHIncrementAggregatingMemcachedClient client = createClient(100);
+    when(hhMemcachedClient.increment(NOT_AGGREGATED_REGION, "key", 1, 0, 60)).thenReturn(10L);
+
+    assertEquals(10, client.increment(NOT_AGGREGATED_REGION, "key", 1, 0, 60));
+    client.flush().join();
+
+    assertTrue(executedBatches.isEmpty());
+  }
+
+  @Test
+  public void keysAboveMaxKeysShouldBeIncrementedAtOnce() {
+    HHIncrementAggregatingMemcachedClient client = createClient(1);
+    when(hhMemcachedClient.increment(REGION, "key2", 1, 0, 60)).thenReturn(3L);
+
+    client.increment(REGION, "key1", 1, 0, 60);
+    assertEquals(3, client.increment(REGION, "key2", 1, 0, 60));
+    // the key that already has a sum is still aggregated
+    assertEquals(-1, client.increment(REGION, "key1", 1, 0, 60));
+  }
+
+  private HHIncrementAggregatingMemcachedClient createClient(int maxKeys) {
+    return new HHIncrementAggregatingMemcachedClient(hhMemcachedClient, Set.of(REGION), NEVER_FLUSH_MS, maxKeys, "service",
+                                                     mock(StatsDSender.class), 60, 100);
+  }
+
+  private static MemcachedBatch.Item getItem(MemcachedBatch batch, String key) {
+    return batch.getItems().stream().filter(item -> item.key.equals(key)).findFirst().orElseThrow();
+  }
+}
@@ -0,0 +1,98 @@
+package ru.hh.memcached;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.Operation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HHLoadSheddingMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String BEST_EFFORT_REGION = "bestEffortRegion";
+  private static final String KEY = "key";
+  private static final int BEST_EFFORT_WATERMARK = 2;
+  private static final int NORMAL_WATERMARK = 4;
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private final MemcachedNode node = mock(MemcachedNode.class);
+  private final BlockingQueue<Operation> queue = new ArrayBlockingQueue<>(10);
+  private final NodeQueueSizes nodeQueueSizes = new NodeQueueSizes();
+  private final HHLoadSheddingMemcachedClient loadSheddingClient = new HHLoadSheddingMemcachedClient(
+      hhMemcachedClient, keyWithRegion -> node,
+      new LoadSheddingPolicy(nodeQueueSizes, BEST_EFFORT_WATERMARK, NORMAL_WATERMARK, Set.of(BEST_EFFORT_REGION), 100)
+  );
+
+  @Before
+  public void setUp() {
+    when(hhMemcachedClient.set(anyString(), anyString(), anyInt(), any())).thenReturn(CompletableFuture.completedFuture(true));
+    when(hhMemcachedClient.touch(anyString(), anyString(), anyInt())).thenReturn(CompletableFuture.completedFuture(true));
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+  }
+
+  @Test
+  public void nothingShouldBeDroppedBelowWatermarks() {
+    fillQueue(BEST_EFFORT_WATERMARK - 1);
+
+    assertTrue(loadSheddingClient.touch(REGION, KEY, 0).join());
+    assertTrue(loadSheddingClient.set(BEST_EFFORT_REGION, KEY, 0, "value").join());
+  }
+
+  @Test
+  public void bestEffortOperationsShouldBeDroppedAboveBestEffortWatermark() {
+    fillQueue(BEST_EFFORT_WATERMARK);
+
+    assertFalse(loadSheddingClient.touch(REGION, KEY, 0).join());
+    assertFalse(loadSheddingClient.set(BEST_EFFORT_REGION, KEY, 0, "value").join());
+    assertTrue(loadSheddingClient.set(REGION, KEY, 0, "value").join());
+    verify(hhMemcachedClient, never()).touch(anyString(), anyString(), anyInt());
+    verify(hhMemcachedClient, never()).set(BEST_EFFORT_REGION, KEY, 0, "value");
+  }
+
+  @Test
+  public void readsShouldNotBeDroppedAboveNormalWatermark() {
+    fillQueue(NORMAL_WATERMARK);
+
+    assertFalse(loadSheddingClient.set(REGION, KEY, 0, "value").join());
+    assertEquals("value", loadSheddingClient.get(REGION, KEY));
+    verify(hhMemcachedClient, never()).set(anyString(), anyString(), anyInt(), any());
+  }
+
+  @Test
+  public void droppedOperationsOfBatchShouldReturnFalse() {
+    fillQueue(BEST_EFFORT_WATERMARK);
+    MemcachedBatch batch = new MemcachedBatch().touch(REGION, KEY, 0).set(REGION, KEY, 0, "value");
+    when(hhMemcachedClient.executeBatch(any(MemcachedBatch.class))).thenAnswer(invocation -> {
+      MemcachedBatch notDroppedBatch = (MemcachedBatch) invocation.getArguments()[0];
+      assertEquals(1, notDroppedBatch.size());
+      return new MemcachedBatchResult(List.of(CompletableFuture.completedFuture(true)));
+    });
+
+    MemcachedBatchResult batchResult = loadSheddingClient.executeBatch(batch);
+
+    assertFalse(batchResult.getItemResult(0).join());
+    assertTrue(batchResult.getItemResult(1).join());
+  }
+
+  private void fillQueue(int size) {
+    Operation operation = mock(Operation.class);
+    when(operation.getHandlingNode()).thenReturn(node);
+    for (int i = 0; i < size; i++) {
+      queue.add(operation);
+    }
+    nodeQueueSizes.onOffer(queue, operation);
+  }
+}
@@ -0,0 +1,317 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import ru.hh.nab.metrics.StatsDSender;
+
+public class HHMemcachedClientFactoryTest {
+  private static final String REGION = "region";
+  private static final int NUM_OF_KEYS = 100;
+
+  private List<EmbeddedMemcachedServer> servers;
+  private HHMemcachedClient hhMemcachedClient;
+
+  @Before
+  public void setUp() throws IOException {
+    servers = EmbeddedMemcachedServer.start(2);
+    hhMemcachedClient = HHMemcachedClientFactory.create(createProperties(EmbeddedMemcachedServer.getServers(servers)), "test",
+                                                        mock(StatsDSender.class));
+    for (EmbeddedMemcachedServer server : servers) {
+      waitForConnection(server);
+    }
+    for (EmbeddedMemcachedServer server : servers) {
+      server.flush();
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (EmbeddedMemcachedServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void keysShouldBeSpreadBetweenServers() {
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertTrue(hhMemcachedClient.set(REGION, "key" + i, 0, "value" + i).join());
+    }
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertEquals("value" + i, hhMemcachedClient.get(REGION, "key" + i));
+    }
+
+    assertEquals(NUM_OF_KEYS, servers.get(0).getNumOfItems() + servers.get(1).getNumOfItems());
+    assertTrue(servers.get(0).getNumOfItems() > 0);
+    assertTrue(servers.get(1).getNumOfItems() > 0);
+  }
+
+  @Test
+  public void stalledServerShouldTimeOutOnlyItsKeys() {
+    String stalledKey = getKeyOf(servers.get(0));
+    String aliveKey = getKeyOf(servers.get(1));
+    hhMemcachedClient.set(REGION, stalledKey, 0, "stalledValue").join();
+    hhMemcachedClient.set(REGION, aliveKey, 0, "aliveValue").join();
+
+    servers.get(0).stall();
+
+    assertNull(hhMemcachedClient.get(REGION, stalledKey));
+    assertEquals("aliveValue", hhMemcachedClient.get(REGION, aliveKey));
+
+    servers.get(0).resume();
+  }
+
+  @Test
+  public void slowServerShouldTimeOut() {
+    String key = getKeyOf(servers.get(0));
+    hhMemcachedClient.set(REGION, key, 0, "value").join();
+
+    servers.get(0).setLatency(50, TimeUnit.MILLISECONDS);
+    assertEquals("value", hhMemcachedClient.get(REGION, key));
+
+    servers.get(0).setLatency(500, TimeUnit.MILLISECONDS);
+    assertNull(hhMemcachedClient.get(REGION, key));
+  }
+
+  @Test
+  public void keysOfKilledServerShouldBeRedistributed() throws InterruptedException {
+    String key = getKeyOf(servers.get(0));
+
+    servers.get(0).kill();
+
+    // spy notices the lost connection asynchronously,
+    // a set queued to the node before that waits for reconnection, because writes are not bounded by opTimeoutMs
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!hhMemcachedClient.set(REGION, key, 0, "value").completeOnTimeout(false, 500, TimeUnit.MILLISECONDS).join()
+           && System.nanoTime() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals("value", hhMemcachedClient.get(REGION, key));
+    assertEquals(1, servers.get(1).getNumOfItems());
+  }
+
+  @Test
+  public void regionsShouldUseTheirCodecs() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("codecRegions", "strings,bytes");
+    properties.setProperty("codec.strings", "string");
+    properties.setProperty("codec.strings.compressionThreshold", "100");
+    properties.setProperty("codec.bytes", "bytes");
+    properties.setProperty("codec.bytes.compression", "none");
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+    String longString = "value".repeat(1000);
+    byte[] bytes = {1, 2, 3};
+
+    assertTrue(client.set("strings", "key", 0, longString).join());
+    assertTrue(client.set("bytes", "key", 0, bytes).join());
+    assertTrue(client.set(REGION, "key", 0, 1).join());
+
+    assertEquals(longString, client.get("strings", "key"));
+    assertArrayEquals(bytes, (byte[]) client.get("bytes", "key"));
+    assertEquals(1, client.get(REGION, "key"));
+    assertEquals(Map.of("key", longString), client.getSome("strings", new String[]{"key"}));
+  }
+
+  // spy connects to nodes in background, operations to a node that is not connected yet are redistributed to other nodes
+  @Test
+  public void valuesShouldBeDecodedInDecodeThreadsOrByCaller() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("decodeThreads", "2");
+    properties.setProperty("codecRegions", "threads");
+    properties.setProperty("codec.threads", ThreadNameCodec.class.getName());
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+    assertTrue(client.set("threads", "key", 0, "value").join());
+
+    assertEquals(Thread.currentThread().getName(), client.get("threads", "key"));
+    assertTrue(((String) client.asyncGet("threads", "key").join()).startsWith("memcached-decode-"));
+    assertTrue(((String) client.asyncGetSome("threads", new String[]{"key"}).join().get("key")).startsWith("memcached-decode-"));
+  }
+
+  @Test
+  public void writesOfNotLoadedNodesShouldNotBeDropped() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("numOfInstances", "2");
+    properties.setProperty("loadShedding", "true");
+    properties.setProperty("loadShedding.bestEffortRegions", REGION);
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertTrue(client.set(REGION, "key" + i, 0, i).join());
+      assertTrue(client.touch(REGION, "key" + i, 0).join());
+    }
+  }
+
+  @Test
+  public void clientWithMpscQueuesShouldWork() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("queueType", "mpsc");
+    properties.setProperty("sendQueuesStats", "true");
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertTrue(client.set(REGION, "key" + i, 0, i).join());
+    }
+    String[] keys = new String[NUM_OF_KEYS];
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertEquals(i, client.get(REGION, "key" + i));
+      keys[i] = "key" + i;
+    }
+    assertEquals(NUM_OF_KEYS, client.getSome(REGION, keys).size());
+  }
+
+  @Test
+  public void getSomeOfManyKeysShouldBeReadByChunks() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("getSome.chunkSize", "7");
+    properties.setProperty("getSome.maxChunksInFlight", "2");
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+
+    String[] keys = new String[NUM_OF_KEYS];
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      keys[i] = "key" + i;
+      assertTrue(client.set(REGION, keys[i], 0, i).join());
+    }
+    Map<String, Object> keyToValue = client.getSome(REGION, keys);
+    assertEquals(NUM_OF_KEYS, keyToValue.size());
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertEquals(i, keyToValue.get(keys[i]));
+    }
+  }
+
+  @Test
+  public void clientWithPhaseStatsShouldWork() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("sendPhaseStats", "true");
+    properties.setProperty("decodeThreads", "2");
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+
+    String[] keys = new String[NUM_OF_KEYS];
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertTrue(client.set(REGION, "key" + i, 0, i).join());
+      keys[i] = "key" + i;
+    }
+    for (int i = 0; i < NUM_OF_KEYS; i++) {
+      assertEquals(i, client.asyncGet(REGION, "key" + i).join());
+    }
+    Map<String, Object> keyToValue = new ConcurrentHashMap<>();
+    client.streamGetSome(REGION, keys, (partKeys, partKeyToValue) -> keyToValue.putAll(partKeyToValue)).join();
+    assertEquals(NUM_OF_KEYS, keyToValue.size());
+  }
+
+  @Test
+  public void regionsShouldUsePoliciesOfTheirGroups() throws IOException {
+    Properties properties = createProperties(EmbeddedMemcachedServer.getServers(servers));
+    properties.setProperty("sendStats", "true");
+    properties.setProperty("loadShedding", "true");
+    properties.setProperty("regionPolicies", "critical,background");
+    properties.setProperty("regionPolicy.critical.regions", REGION);
+    properties.setProperty("regionPolicy.critical.timeoutMs", "20");
+    properties.setProperty("regionPolicy.critical.codec", "string");
+    properties.setProperty("regionPolicy.critical.priority", "critical");
+    properties.setProperty("regionPolicy.background.regions", "background");
+    properties.setProperty("regionPolicy.background.defaultExp", "3600");
+    properties.setProperty("regionPolicy.background.priority", "best_effort");
+    HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+    assertTrue(client.set(REGION, "key", 0, "value").join());
+    assertTrue(client.set("background", "key", 0, "value").join());
+
+    for (EmbeddedMemcachedServer server : servers) {
+      server.setLatency(100, TimeUnit.MILLISECONDS);
+    }
+
+    assertNull(client.get(REGION, "key"));
+    assertEquals("value", client.get("background", "key"));
+  }
+
+  @Test
+  public void nodesShouldBeReplacedWhenServersFileChanges() throws Exception {
+    EmbeddedMemcachedServer newServer = EmbeddedMemcachedServer.start();
+    Path serversFile = Files.createTempFile("memcached", "servers");
+    try {
+      Files.writeString(serversFile, EmbeddedMemcachedServer.getServers(servers));
+      Properties properties = createProperties("");
+      properties.setProperty("serversFile", serversFile.toString());
+      properties.setProperty("serversFile.checkIntervalMs", "10");
+      HHMemcachedClient client = HHMemcachedClientFactory.create(properties, "test", mock(StatsDSender.class));
+      assertTrue(client.set(REGION, "key", 0, "value").join());
+
+      Files.writeString(serversFile, newServer.getServers());
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (!client.getPrimaryNodeAddress("key").equals(newServer.getAddress())) {
+        assertTrue(System.nanoTime() < deadline);
+        Thread.sleep(10);
+      }
+
+      assertNull(client.get(REGION, "key"));
+      assertTrue(client.set(REGION, "key", 0, "newValue").join());
+      assertEquals("newValue", client.get(REGION, "key"));
+      assertEquals(1, newServer.getNumOfItems());
+    } finally {
+      Files.delete(serversFile);
+      newServer.close();
+    }
+  }
+
+  /** Decodes any value to the name of the decoding thread. */
+  public static class ThreadNameCodec implements MemcachedCodec {
+    @Override
+    public byte[] encode(Object value) {
+      return ((String) value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public Object decode(byte[] data) {
+      return Thread.currentThread().getName();
+    }
+  }
+
+  private void waitForConnection(EmbeddedMemcachedServer server) {
+    String key = getKeyOf(server);
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (server.getNumOfItems() == 0) {
+      if (System.nanoTime() > deadline) {
+        throw new IllegalStateException("not connected to " + server.getAddress());
+      }
+      hhMemcachedClient.set(REGION, key, 0, "warmUp").join();
+    }
+  }
+
+  private String getKeyOf(EmbeddedMemcachedServer server) {
+    for (int i = 0; ; i++) {
+      String key = "key" + i;
+      InetSocketAddress address = hhMemcachedClient.getPrimaryNodeAddress(HHSpyMemcachedClient.getKey(REGION, key));
+      if (address.getPort() == server.getAddress().getPort()) {
+        return key;
+      }
+    }
+  }
+
+  private static Properties createProperties(String servers) {
+    Properties properties = new Properties();
+    properties.setProperty("servers", servers);
+    properties.setProperty("numOfInstances", "1");
+    properties.setProperty("opTimeoutMs", "200");
+    properties.setProperty("opQueueMaxBlockTime", "100");
+    properties.setProperty("opQueueCapacity", "1000");
+    properties.setProperty("readOpQueueCapacity", "1000");
+    properties.setProperty("writeOpQueueCapacity", "1000");
+    properties.setProperty("maxReconnectDelay", "1");
+    properties.setProperty("timeoutExceptionThreshold", "1000");
+    return properties;
+  }
+}
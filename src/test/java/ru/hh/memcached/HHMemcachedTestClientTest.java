@@ -6,9 +6,11 @@ import org.junit.Test;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
@@ -125,4 +127,61 @@ public class HHMemcachedTestClientTest {
     assertNull(hhMemcachedClient.get("region", "key"));
   }
 
+  @Test
+  public void expiredKeyShouldBeMissing() {
+    AtomicLong currentTimeMillis = new AtomicLong(1_000_000);
+    HHMemcachedTestClient client = new HHMemcachedTestClient(1024 * 1024, currentTimeMillis::get);
+
+    client.set("region", "key", 10, "val");
+    currentTimeMillis.addAndGet(9_999);
+    assertEquals("val", client.get("region", "key"));
+
+    assertTrue(client.touch("region", "key", 10).join());
+    currentTimeMillis.addAndGet(9_999);
+    assertEquals("val", client.get("region", "key"));
+
+    currentTimeMillis.addAndGet(1);
+    assertNull(client.get("region", "key"));
+    assertFalse(client.touch("region", "key", 10).join());
+    assertTrue(client.add("region", "key", 0, "newVal").join());
+  }
+
+  @Test
+  public void casIdShouldChangeOnEveryChange() {
+    hhMemcachedClient.set("region", "key", 300, "val");
+    long firstCasId = hhMemcachedClient.gets("region", "key").casID;
+
+    hhMemcachedClient.set("region", "key", 300, "val");
+    long secondCasId = hhMemcachedClient.gets("region", "key").casID;
+
+    assertTrue(secondCasId > firstCasId);
+    assertEquals(CASResponse.EXISTS, hhMemcachedClient.asyncCas("region", "key", firstCasId, 300, "newVal").join());
+  }
+
+  @Test
+  public void leastRecentlyUsedKeyShouldBeEvicted() {
+    HHMemcachedTestClient client = new HHMemcachedTestClient(1000);
+    byte[] value = new byte[200];
+
+    client.set("region", "key1", 0, value);
+    client.set("region", "key2", 0, value);
+    client.set("region", "key3", 0, value);
+    client.get("region", "key1");
+    client.set("region", "key4", 0, value);
+
+    assertNull(client.get("region", "key2"));
+    assertNotNull(client.get("region", "key1"));
+    assertNotNull(client.get("region", "key3"));
+    assertNotNull(client.get("region", "key4"));
+    assertTrue(client.getSizeInBytes() <= 1000);
+  }
+
+  @Test
+  public void instancesShouldNotShareStore() {
+    HHMemcachedTestClient otherClient = new HHMemcachedTestClient();
+
+    hhMemcachedClient.set("region", "key", 300, "val");
+
+    assertNull(otherClient.get("region", "key"));
+  }
 }
@@ -0,0 +1,85 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import ru.hh.nab.metrics.StatsDSender;
+
+public class HHMonitoringMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String KEY = "key";
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private final HHMonitoringMemcachedClient monitoringClient =
+      new HHMonitoringMemcachedClient(hhMemcachedClient, "service", mock(StatsDSender.class), 60, 500, 1000, 20, 500);
+
+  @Before
+  public void setUp() {
+    when(hhMemcachedClient.getPrimaryNodeAddress(anyString())).thenReturn(InetSocketAddress.createUnresolved("127.0.0.1", 11211));
+  }
+
+  @Test
+  public void getShouldFindPrimaryNodeOnce() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+
+    assertEquals("value", monitoringClient.get(REGION, KEY));
+
+    verify(hhMemcachedClient, times(1)).getPrimaryNodeAddress(anyString());
+  }
+
+  @Test
+  public void getSomeShouldFindPrimaryNodeOncePerKey() {
+    String[] keys = {"key1", "key2", "key3"};
+    when(hhMemcachedClient.getSome(REGION, keys)).thenReturn(Map.of("key1", "value1"));
+
+    assertEquals(Map.of("key1", "value1"), monitoringClient.getSome(REGION, keys));
+
+    verify(hhMemcachedClient, times(keys.length)).getPrimaryNodeAddress(anyString());
+  }
+
+  @Test
+  public void asyncGetShouldFindPrimaryNodeOnce() {
+    CompletableFuture<Object> origFuture = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGet(REGION, KEY)).thenReturn(origFuture);
+
+    CompletableFuture<Object> future = monitoringClient.asyncGet(REGION, KEY);
+    origFuture.complete("value");
+
+    assertEquals("value", future.join());
+    verify(hhMemcachedClient, times(1)).getPrimaryNodeAddress(anyString());
+  }
+
+  @Test
+  public void readsAndWritesShouldBeCountedForHotKeys() {
+    HotKeyTracker hotKeyTracker = new HotKeyTracker(10, 1);
+    HHMonitoringMemcachedClient client =
+        new HHMonitoringMemcachedClient(hhMemcachedClient, "service", mock(StatsDSender.class), 60, 500, 1000, 20, 500, hotKeyTracker);
+    when(hhMemcachedClient.set(REGION, KEY, 0, "value")).thenReturn(CompletableFuture.completedFuture(true));
+
+    client.get(REGION, KEY);
+    client.getSome(REGION, new String[]{KEY, "otherKey"});
+    client.set(REGION, KEY, 0, "value");
+    hotKeyTracker.endInterval();
+
+    assertEquals(KEY, hotKeyTracker.getHotKeys(REGION).get(0).key);
+    assertEquals(3, hotKeyTracker.getHotKeys(REGION).get(0).count);
+    assertEquals(1, hotKeyTracker.getHotKeys(REGION).get(1).count);
+  }
+
+  @Test
+  public void hotKeyTagShouldNotContainCharactersOfKey() {
+    String hotKeyHash = HHMonitoringMemcachedClient.getHotKeyHash("user:42|name.first last");
+
+    assertTrue(hotKeyHash.matches("[0-9a-f]{8}"));
+    assertEquals(hotKeyHash, HHMonitoringMemcachedClient.getHotKeyHash("user:42|name.first last"));
+  }
+}
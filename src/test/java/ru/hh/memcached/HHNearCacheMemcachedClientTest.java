@@ -0,0 +1,153 @@
+package ru.hh.memcached;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HHNearCacheMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String OTHER_REGION = "otherRegion";
+  private static final String KEY = "key";
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private final AtomicLong nanoTime = new AtomicLong();
+  private final HHNearCacheMemcachedClient nearCacheClient = new HHNearCacheMemcachedClient(
+      hhMemcachedClient, Map.of(REGION, new HHNearCacheMemcachedClient.RegionSettings(2, 1000)), nanoTime::get
+  );
+
+  @Test
+  public void getShouldBeServedLocallyUntilTtlExpires() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+
+    assertEquals("value", nearCacheClient.get(REGION, KEY));
+    assertEquals("value", nearCacheClient.get(REGION, KEY));
+    verify(hhMemcachedClient, times(1)).get(REGION, KEY);
+
+    nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+    assertEquals("value", nearCacheClient.get(REGION, KEY));
+    verify(hhMemcachedClient, times(2)).get(REGION, KEY);
+  }
+
+  @Test
+  public void missShouldNotBeCached() {
+    assertNull(nearCacheClient.get(REGION, KEY));
+    assertNull(nearCacheClient.get(REGION, KEY));
+
+    verify(hhMemcachedClient, times(2)).get(REGION, KEY);
+  }
+
+  @Test
+  public void notConfiguredRegionShouldNotBeCached() {
+    when(hhMemcachedClient.get(OTHER_REGION, KEY)).thenReturn("value");
+
+    assertEquals("value", nearCacheClient.get(OTHER_REGION, KEY));
+    assertEquals("value", nearCacheClient.get(OTHER_REGION, KEY));
+
+    verify(hhMemcachedClient, times(2)).get(OTHER_REGION, KEY);
+  }
+
+  @Test
+  public void oldestEntryShouldBeEvicted() {
+    when(hhMemcachedClient.get(REGION, "key1")).thenReturn("value1");
+    when(hhMemcachedClient.get(REGION, "key2")).thenReturn("value2");
+    when(hhMemcachedClient.get(REGION, "key3")).thenReturn("value3");
+
+    nearCacheClient.get(REGION, "key1");
+    nearCacheClient.get(REGION, "key2");
+    nearCacheClient.get(REGION, "key3");
+    nearCacheClient.get(REGION, "key1");
+    nearCacheClient.get(REGION, "key3");
+
+    verify(hhMemcachedClient, times(2)).get(REGION, "key1");
+    verify(hhMemcachedClient, times(1)).get(REGION, "key3");
+  }
+
+  @Test
+  public void setShouldInvalidateLocalEntry() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+    when(hhMemcachedClient.set(REGION, KEY, 3, "newValue")).thenReturn(CompletableFuture.completedFuture(true));
+    nearCacheClient.get(REGION, KEY);
+
+    nearCacheClient.set(REGION, KEY, 3, "newValue");
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("newValue");
+
+    assertEquals("newValue", nearCacheClient.get(REGION, KEY));
+  }
+
+  @Test
+  public void deleteShouldInvalidateLocalEntry() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+    when(hhMemcachedClient.delete(REGION, KEY)).thenReturn(CompletableFuture.completedFuture(true));
+    nearCacheClient.get(REGION, KEY);
+
+    nearCacheClient.delete(REGION, KEY);
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn(null);
+
+    assertNull(nearCacheClient.get(REGION, KEY));
+  }
+
+  @Test
+  public void getDuringIncrementShouldNotCacheOldValue() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("1");
+    when(hhMemcachedClient.increment(REGION, KEY, 1, 0)).thenAnswer(invocation -> {
+      // a get of another thread misses and loads the old value before the increment is done
+      nearCacheClient.get(REGION, KEY);
+      when(hhMemcachedClient.get(REGION, KEY)).thenReturn("2");
+      return 2L;
+    });
+
+    assertEquals(2L, nearCacheClient.increment(REGION, KEY, 1, 0));
+
+    assertEquals("2", nearCacheClient.get(REGION, KEY));
+  }
+
+  @Test
+  public void getSomeShouldLoadOnlyMissedKeys() {
+    when(hhMemcachedClient.get(REGION, "key1")).thenReturn("value1");
+    nearCacheClient.get(REGION, "key1");
+
+    Map<String, Object> loaded = new HashMap<>();
+    loaded.put("key2", "value2");
+    String[] missedKeys = {"key2", "key3"};
+    when(hhMemcachedClient.getSome(REGION, missedKeys)).thenReturn(loaded);
+
+    Map<String, Object> keyToValue = nearCacheClient.getSome(REGION, new String[]{"key1", "key2", "key3"});
+
+    assertEquals(2, keyToValue.size());
+    assertEquals("value1", keyToValue.get("key1"));
+    assertEquals("value2", keyToValue.get("key2"));
+    verify(hhMemcachedClient).getSome(REGION, missedKeys);
+
+    assertEquals("value2", nearCacheClient.get(REGION, "key2"));
+    verify(hhMemcachedClient, times(0)).get(REGION, "key2");
+  }
+
+  @Test
+  public void writeDuringLoadShouldNotStopCachingOfOtherKeys() {
+    String[] keys = {"key1", "key2"};
+    CompletableFuture<Map<String, Object>> loadFuture = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGetSome(REGION, keys)).thenReturn(loadFuture);
+    when(hhMemcachedClient.set(REGION, "key1", 3, "newValue1")).thenReturn(CompletableFuture.completedFuture(true));
+
+    CompletableFuture<Map<String, Object>> future = nearCacheClient.asyncGetSome(REGION, keys);
+    nearCacheClient.set(REGION, "key1", 3, "newValue1");
+    loadFuture.complete(Map.of("key1", "value1", "key2", "value2"));
+    future.join();
+    when(hhMemcachedClient.get(REGION, "key1")).thenReturn("newValue1");
+
+    // the value of key1 loaded before the set may be stale
+    assertEquals("newValue1", nearCacheClient.get(REGION, "key1"));
+    assertEquals("value2", nearCacheClient.get(REGION, "key2"));
+    verify(hhMemcachedClient, times(0)).get(REGION, "key2");
+  }
+}
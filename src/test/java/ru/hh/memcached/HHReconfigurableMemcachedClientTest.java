@@ -0,0 +1,105 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.Operation;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import ru.hh.nab.metrics.StatsDSender;
+
+public class HHReconfigurableMemcachedClientTest {
+
+  private List<EmbeddedMemcachedServer> servers;
+  private final List<MemcachedClient> createdSpyClients = new ArrayList<>();
+  private final NodeQueueSizes nodeQueueSizes = new NodeQueueSizes();
+  private HHReconfigurableMemcachedClient reconfigurableClient;
+
+  @Before
+  public void setUp() throws IOException {
+    servers = EmbeddedMemcachedServer.start(3);
+    reconfigurableClient = new HHReconfigurableMemcachedClient(
+        this::createPool, List.of(servers.get(0).getAddress(), servers.get(1).getAddress()), 5000, 1000, "service",
+        mock(StatsDSender.class), 60
+    );
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    for (MemcachedClient spyClient : createdSpyClients) {
+      spyClient.shutdown();
+    }
+    for (EmbeddedMemcachedServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void addedNodeShouldGetItsShareOfKeys() throws IOException {
+    MemcachedClient oldSpyClient = createdSpyClients.get(0);
+
+    int movedKeysPercent = reconfigurableClient.reconfigure(
+        List.of(servers.get(0).getAddress(), servers.get(1).getAddress(), servers.get(2).getAddress())
+    );
+
+    // ketama moves about a third of keys to the third node
+    assertTrue(String.valueOf(movedKeysPercent), movedKeysPercent > 20 && movedKeysPercent < 50);
+    for (int i = 0; i < 100; i++) {
+      assertTrue(reconfigurableClient.set("region", "key" + i, 0, "value" + i).join());
+      assertEquals("value" + i, reconfigurableClient.get("region", "key" + i));
+    }
+    assertTrue(servers.get(2).getNumOfItems() > 0);
+    try {
+      oldSpyClient.set("key", 0, "value");
+      fail("the old pool must be shut down");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void queuesOfOldNodesShouldNotCountForLoadShedding() throws IOException {
+    MemcachedNode oldNode = createdSpyClients.get(0).getConnection().getLocator().getAll().iterator().next();
+    Operation operation = mock(Operation.class);
+    when(operation.getHandlingNode()).thenReturn(oldNode);
+    nodeQueueSizes.onOffer(new ArrayDeque<>(List.of(1, 2, 3)), operation);
+    assertEquals(3, nodeQueueSizes.getSize(oldNode));
+
+    reconfigurableClient.reconfigure(List.of(servers.get(0).getAddress(), servers.get(2).getAddress()));
+
+    assertEquals(0, nodeQueueSizes.getSize(oldNode));
+  }
+
+  @Test
+  public void sameNodesShouldNotBeReconnected() throws IOException {
+    assertEquals(0, reconfigurableClient.reconfigure(List.of(servers.get(1).getAddress(), servers.get(0).getAddress())));
+
+    assertEquals(1, createdSpyClients.size());
+  }
+
+  private HHReconfigurableMemcachedClient.Pool createPool(List<InetSocketAddress> nodes) throws IOException {
+    MemcachedClient spyClient = new MemcachedClient(
+        new ConnectionFactoryBuilder()
+            .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+            .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+            .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+            .setOpTimeout(1000)
+            .setDaemon(true)
+            .build(),
+        nodes
+    );
+    createdSpyClients.add(spyClient);
+    return new HHReconfigurableMemcachedClient.Pool(nodes, new HHSpyMemcachedClient(spyClient), List.of(spyClient), nodeQueueSizes);
+  }
+}
@@ -0,0 +1,148 @@
+package ru.hh.memcached;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+public class HHReplicatedMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String OTHER_REGION = "otherRegion";
+  private static final long HEDGE_DELAY_MS = 20;
+
+  private final HHMemcachedTestClient primaryClient = new HHMemcachedTestClient();
+  private final HHMemcachedTestClient replicaClient = new HHMemcachedTestClient();
+  private final HHMemcachedClient replicatedClient = new HHReplicatedMemcachedClient(
+      primaryClient, replicaClient, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(HEDGE_DELAY_MS))
+  );
+
+  @Test
+  public void writesOfReplicatedRegionShouldGoToBothPools() {
+    assertTrue(replicatedClient.set(REGION, "key", 0, "value").join());
+    assertTrue(replicatedClient.set(OTHER_REGION, "key", 0, "value").join());
+
+    assertEquals("value", primaryClient.get(REGION, "key"));
+    assertEquals("value", replicaClient.get(REGION, "key"));
+    assertEquals("value", primaryClient.get(OTHER_REGION, "key"));
+    assertNull(replicaClient.get(OTHER_REGION, "key"));
+
+    replicatedClient.delete(REGION, "key").join();
+    assertNull(primaryClient.get(REGION, "key"));
+    assertNull(replicaClient.get(REGION, "key"));
+  }
+
+  @Test
+  public void failedWritesToReplicaShouldNotFailWrites() {
+    HHMemcachedClient failingReplica = mock(HHMemcachedClient.class);
+    when(failingReplica.set(REGION, "key", 0, "value")).thenReturn(CompletableFuture.failedFuture(new IllegalStateException()));
+    when(failingReplica.delete(REGION, "key")).thenThrow(new IllegalStateException());
+    when(failingReplica.executeBatch(any(MemcachedBatch.class))).thenThrow(new IllegalStateException());
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        primaryClient, failingReplica, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(HEDGE_DELAY_MS))
+    );
+
+    assertTrue(client.set(REGION, "key", 0, "value").join());
+    assertEquals("value", primaryClient.get(REGION, "key"));
+    assertTrue(client.delete(REGION, "key").join());
+    assertTrue(client.executeBatch(new MemcachedBatch().set(REGION, "key", 0, "value")).getResult().join());
+    assertEquals("value", primaryClient.get(REGION, "key"));
+  }
+
+  @Test
+  public void fastPrimaryShouldNotBeHedged() throws Exception {
+    HHMemcachedClient replicaMock = mock(HHMemcachedClient.class);
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        primaryClient, replicaMock, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(HEDGE_DELAY_MS))
+    );
+    primaryClient.set(REGION, "key", 0, "value").join();
+
+    assertEquals("value", client.get(REGION, "key"));
+    Thread.sleep(HEDGE_DELAY_MS * 3);
+
+    verifyZeroInteractions(replicaMock);
+  }
+
+  @Test
+  public void missOfPrimaryShouldBeReadFromReplicaWithoutDelay() throws Exception {
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        primaryClient, replicaClient, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(TimeUnit.HOURS.toMillis(1), true))
+    );
+    // the primary pool has lost the keys after a restart
+    replicaClient.set(REGION, "key1", 0, "value1").join();
+    replicaClient.set(REGION, "key2", 0, "value2").join();
+    primaryClient.set(REGION, "key2", 0, "value2").join();
+
+    assertEquals("value1", client.asyncGet(REGION, "key1").get(1, TimeUnit.SECONDS));
+    assertEquals(Map.of("key1", "value1", "key2", "value2"),
+                 client.asyncGetSome(REGION, new String[]{"key1", "key2"}).get(1, TimeUnit.SECONDS));
+    assertNull(client.asyncGet(REGION, "missingKey").get(1, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void missOfPrimaryShouldNotBeReadFromReplicaByDefault() throws Exception {
+    HHMemcachedClient replicaMock = mock(HHMemcachedClient.class);
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        primaryClient, replicaMock, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(TimeUnit.HOURS.toMillis(1)))
+    );
+
+    assertNull(client.asyncGet(REGION, "missingKey").get(1, TimeUnit.SECONDS));
+    assertEquals(Map.of(), client.asyncGetSome(REGION, new String[]{"missingKey"}).get(1, TimeUnit.SECONDS));
+    verifyZeroInteractions(replicaMock);
+  }
+
+  @Test
+  public void slowPrimaryShouldBeHedgedToReplica() throws Exception {
+    HHMemcachedClient slowPrimary = mock(HHMemcachedClient.class);
+    CompletableFuture<Object> slowFuture = new CompletableFuture<>();
+    when(slowPrimary.asyncGet(REGION, "key")).thenReturn(slowFuture);
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        slowPrimary, replicaClient, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(HEDGE_DELAY_MS))
+    );
+    replicaClient.set(REGION, "key", 0, "value").join();
+
+    assertEquals("value", client.asyncGet(REGION, "key").get(1, TimeUnit.SECONDS));
+    assertTrue(slowFuture.isCancelled());
+  }
+
+  @Test
+  public void failedPrimaryShouldBeHedgedWithoutDelay() throws Exception {
+    HHMemcachedClient failingPrimary = mock(HHMemcachedClient.class);
+    when(failingPrimary.asyncGet(REGION, "key")).thenThrow(new IllegalStateException());
+    HHMemcachedClient replica = spy(replicaClient);
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        failingPrimary, replica, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(TimeUnit.HOURS.toMillis(1)))
+    );
+    replicaClient.set(REGION, "key", 0, "value").join();
+
+    assertEquals("value", client.asyncGet(REGION, "key").get(1, TimeUnit.SECONDS));
+    verify(replica).asyncGet(REGION, "key");
+  }
+
+  @Test
+  public void getSomeShouldMergeKeysOfBothPools() throws Exception {
+    HHMemcachedClient slowPrimary = mock(HHMemcachedClient.class);
+    String[] keys = {"key1", "key2"};
+    CompletableFuture<Map<String, Object>> slowFuture = new CompletableFuture<>();
+    when(slowPrimary.asyncGetSome(REGION, keys)).thenReturn(slowFuture);
+    HHMemcachedClient client = new HHReplicatedMemcachedClient(
+        slowPrimary, replicaClient, Map.of(REGION, new HHReplicatedMemcachedClient.RegionSettings(HEDGE_DELAY_MS))
+    );
+    // the replica has lost key1 after a restart
+    replicaClient.set(REGION, "key2", 0, "value2").join();
+
+    CompletableFuture<Map<String, Object>> future = client.asyncGetSome(REGION, keys);
+    Thread.sleep(HEDGE_DELAY_MS * 3);
+    slowFuture.complete(Map.of("key1", "value1"));
+
+    assertEquals(Map.of("key1", "value1", "key2", "value2"), future.get(1, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,188 @@
+package ru.hh.memcached;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.OperationTimeoutException;
+import org.junit.AfterClass;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import ru.hh.nab.metrics.StatsDSender;
+import ru.hh.nab.metrics.Tag;
+
+public class HHSingleFlightMemcachedClientTest {
+  private static final String REGION = "region";
+  private static final String KEY = "key";
+  private static final ExecutorService executorService = Executors.newCachedThreadPool();
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+  private final CountDownLatch syncFollowerJoined = new CountDownLatch(1);
+  private final HHSingleFlightMemcachedClient singleFlightClient =
+      new HHSingleFlightMemcachedClient(hhMemcachedClient, 1000, "service", mock(StatsDSender.class), 60, 100) {
+        @Override
+        void sendCoalescedStats(String region, Tag commandTag) {
+          super.sendCoalescedStats(region, commandTag);
+          syncFollowerJoined.countDown();
+        }
+      };
+
+  @AfterClass
+  public static void afterHHSingleFlightMemcachedClientTestClass() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void concurrentGetsShouldShareOneRead() throws Exception {
+    CountDownLatch readStarted = new CountDownLatch(1);
+    CountDownLatch releaseRead = new CountDownLatch(1);
+    when(hhMemcachedClient.get(REGION, KEY)).thenAnswer(invocation -> {
+      readStarted.countDown();
+      releaseRead.await();
+      return "value";
+    });
+
+    Future<Object> leader = executorService.submit(() -> singleFlightClient.get(REGION, KEY));
+    readStarted.await();
+    Future<Object> follower = executorService.submit(() -> singleFlightClient.get(REGION, KEY));
+    // the follower must join the read before it is released, otherwise it starts its own read
+    assertTrue(syncFollowerJoined.await(1, TimeUnit.SECONDS));
+    CompletableFuture<Object> asyncFollower = singleFlightClient.asyncGet(REGION, KEY);
+    releaseRead.countDown();
+
+    assertEquals("value", leader.get(1, TimeUnit.SECONDS));
+    assertEquals("value", follower.get(1, TimeUnit.SECONDS));
+    assertEquals("value", asyncFollower.get(1, TimeUnit.SECONDS));
+    verify(hhMemcachedClient, times(1)).get(REGION, KEY);
+  }
+
+  @Test
+  public void errorOfReadShouldCompleteItForFollowers() throws Exception {
+    CountDownLatch readStarted = new CountDownLatch(1);
+    CountDownLatch releaseRead = new CountDownLatch(1);
+    when(hhMemcachedClient.get(REGION, KEY)).thenAnswer(invocation -> {
+      readStarted.countDown();
+      releaseRead.await();
+      throw new LinkageError("class of value is not found");
+    }).thenReturn("value");
+
+    Future<Object> leader = executorService.submit(() -> singleFlightClient.get(REGION, KEY));
+    readStarted.await();
+    CompletableFuture<Object> asyncFollower = singleFlightClient.asyncGet(REGION, KEY);
+    releaseRead.countDown();
+
+    try {
+      leader.get(1, TimeUnit.SECONDS);
+      fail("error expected");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof LinkageError);
+    }
+    assertTrue(asyncFollower.isCompletedExceptionally());
+    assertEquals("value", singleFlightClient.get(REGION, KEY));
+  }
+
+  @Test
+  public void followerShouldNotWaitLongerThanTimeout() {
+    when(hhMemcachedClient.asyncGet(REGION, KEY)).thenReturn(new CompletableFuture<>());
+    singleFlightClient.asyncGet(REGION, KEY);
+
+    try (MemcachedDeadline.Scope ignored = MemcachedDeadline.in(20, TimeUnit.MILLISECONDS)) {
+      singleFlightClient.get(REGION, KEY);
+      fail("timeout expected");
+    } catch (OperationTimeoutException expected) {
+    }
+  }
+
+  @Test
+  public void readAfterCompletionShouldGoToMemcached() {
+    when(hhMemcachedClient.get(REGION, KEY)).thenReturn("value");
+
+    singleFlightClient.get(REGION, KEY);
+    singleFlightClient.get(REGION, KEY);
+
+    verify(hhMemcachedClient, times(2)).get(REGION, KEY);
+  }
+
+  @Test
+  public void readShouldBeCancelledOnlyWhenAllCallersCancel() {
+    CompletableFuture<Object> origFuture = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGet(REGION, KEY)).thenReturn(origFuture);
+
+    CompletableFuture<Object> first = singleFlightClient.asyncGet(REGION, KEY);
+    CompletableFuture<Object> second = singleFlightClient.asyncGet(REGION, KEY);
+
+    first.cancel(false);
+    assertFalse(origFuture.isCancelled());
+    assertFalse(second.isDone());
+
+    second.cancel(false);
+    assertTrue(origFuture.isCancelled());
+  }
+
+  @Test
+  public void readAfterAllCallersCancelledShouldStartNewRead() {
+    CompletableFuture<Object> cancelledFuture = new CompletableFuture<>();
+    CompletableFuture<Object> newFuture = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGet(REGION, KEY)).thenReturn(cancelledFuture, newFuture);
+
+    singleFlightClient.asyncGet(REGION, KEY).cancel(false);
+    CompletableFuture<Object> next = singleFlightClient.asyncGet(REGION, KEY);
+
+    assertFalse(next.isDone());
+    newFuture.complete("value");
+    assertEquals("value", next.join());
+  }
+
+  @Test
+  public void getSomeShouldLoadOnlyKeysThatAreNotInFlight() throws Exception {
+    CompletableFuture<Object> inFlightRead = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGet(REGION, "key1")).thenReturn(inFlightRead);
+    singleFlightClient.asyncGet(REGION, "key1");
+
+    String[] keysToLoad = {"key2"};
+    Map<String, Object> loaded = new HashMap<>();
+    loaded.put("key2", "value2");
+    when(hhMemcachedClient.asyncGetSome(REGION, keysToLoad)).thenReturn(CompletableFuture.completedFuture(loaded));
+
+    CompletableFuture<Map<String, Object>> getSomeFuture = singleFlightClient.asyncGetSome(REGION, new String[]{"key1", "key2"});
+    inFlightRead.complete("value1");
+
+    Map<String, Object> keyToValue = getSomeFuture.get(1, TimeUnit.SECONDS);
+    assertEquals(2, keyToValue.size());
+    assertEquals("value1", keyToValue.get("key1"));
+    assertEquals("value2", keyToValue.get("key2"));
+    verify(hhMemcachedClient).asyncGetSome(REGION, keysToLoad);
+  }
+
+  @Test
+  public void getSomeShouldBeCancelledOnlyWhenNoCallerHasJoinedItsReads() {
+    String[] keys = {"key1", "key2"};
+    CompletableFuture<Map<String, Object>> firstLoad = new CompletableFuture<>();
+    CompletableFuture<Map<String, Object>> secondLoad = new CompletableFuture<>();
+    when(hhMemcachedClient.asyncGetSome(REGION, keys)).thenReturn(firstLoad, secondLoad);
+
+    singleFlightClient.asyncGetSome(REGION, keys).cancel(false);
+    assertTrue(firstLoad.isCancelled());
+
+    CompletableFuture<Map<String, Object>> getSomeFuture = singleFlightClient.asyncGetSome(REGION, keys);
+    verify(hhMemcachedClient, times(2)).asyncGetSome(REGION, keys);
+    CompletableFuture<Object> follower = singleFlightClient.asyncGet(REGION, "key1");
+
+    getSomeFuture.cancel(false);
+    assertFalse(secondLoad.isCancelled());
+    secondLoad.complete(Map.of("key1", "value1"));
+    assertEquals("value1", follower.join());
+  }
+}
@@ -0,0 +1,70 @@
+package ru.hh.memcached;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.BulkGetFuture;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
+
+public class HHSpyClientAsyncGetSomeTest {
+
+  private final MemcachedClient spyClientMock = TestUtils.createSpyClientMock();
+  private final HHSpyMemcachedClient hhSpyClient = new HHSpyMemcachedClient(spyClientMock);
+  private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+  @AfterClass
+  public static void afterHHSpyClientAsyncGetSomeTestClass() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void hitMiss() throws Exception {
+    String[] keys = new String[]{"KeyHit", "KeyMiss", "KeyNull"};
+    String[] keysWithRegion = new String[keys.length];
+    for (int i=0; i<keys.length; i++) {
+      keysWithRegion[i] = getKey("region", keys[i]);
+    }
+
+    BulkGetFuture<Object> bulkFuture = spy(new BulkGetFuture<>(new HashMap<>(), List.of(), new CountDownLatch(0), executorService));
+    when(spyClientMock.asyncGetBulk(keysWithRegion)).thenReturn(bulkFuture);
+    when(spyClientMock.getOperationTimeout()).thenReturn(1000L);
+
+    Map<String, Object> bulkFutureResult = new HashMap<>();
+    bulkFutureResult.put("regionKeyHit", "value");
+    bulkFutureResult.put("regionKeyNull", null);
+    doReturn(bulkFutureResult).when(bulkFuture).get();
+
+    CompletableFuture<Map<String, Object>> future = hhSpyClient.asyncGetSome("region", keys);
+    bulkFuture.signalComplete();
+
+    Map<String, Object> keyToValue = future.get();
+    assertEquals(1, keyToValue.size());
+    assertEquals("value", keyToValue.get("KeyHit"));
+  }
+
+  @Test
+  public void cancellationShouldReachSpyOperation() {
+    String[] keys = new String[]{"key"};
+    BulkGetFuture<Object> bulkFuture = spy(new BulkGetFuture<>(new HashMap<>(), List.of(), new CountDownLatch(1), executorService));
+    when(spyClientMock.asyncGetBulk(getKey("region", "key"))).thenReturn(bulkFuture);
+    when(spyClientMock.getOperationTimeout()).thenReturn(1000L);
+
+    hhSpyClient.asyncGetSome("region", keys).cancel(false);
+
+    verify(bulkFuture).cancel(false);
+  }
+}
@@ -0,0 +1,66 @@
+package ru.hh.memcached;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.ops.Operation;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+public class HHSpyClientAsyncGetTest {
+
+  private final MemcachedClient spyClientMock = TestUtils.createSpyClientMock();
+  private final HHSpyMemcachedClient hhSpyClient = new HHSpyMemcachedClient(spyClientMock);
+  private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+  @AfterClass
+  public static void afterHHSpyClientAsyncGetTestClass() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void hit() throws Exception {
+    String keyWithRegion = HHSpyMemcachedClient.getKey("region", "key");
+    GetFuture<Object> getFuture = spy(new GetFuture<>(new CountDownLatch(0), 1000, keyWithRegion, executorService));
+    when(spyClientMock.asyncGet(keyWithRegion)).thenReturn(getFuture);
+    when(spyClientMock.getOperationTimeout()).thenReturn(1000L);
+    doReturn("value").when(getFuture).get();
+
+    CompletableFuture<Object> future = hhSpyClient.asyncGet("region", "key");
+    getFuture.signalComplete();
+
+    assertEquals("value", future.join());
+  }
+
+  @Test
+  public void timeout() throws Exception {
+    String keyWithRegion = HHSpyMemcachedClient.getKey("region", "key");
+    GetFuture<Object> getFuture = new GetFuture<>(new CountDownLatch(1), 1000, keyWithRegion, executorService);
+    getFuture.setOperation(mock(Operation.class));
+    when(spyClientMock.asyncGet(keyWithRegion)).thenReturn(getFuture);
+    when(spyClientMock.getOperationTimeout()).thenReturn(10L);
+
+    CompletableFuture<Object> future = hhSpyClient.asyncGet("region", "key");
+
+    try {
+      future.join();
+      fail("timeout expected");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package ru.hh.memcached;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.ops.Operation;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class HHSpyClientDeadlineTest {
+
+  private final MemcachedClient spyClientMock = TestUtils.createSpyClientMock();
+  private final HHSpyMemcachedClient hhSpyClient = new HHSpyMemcachedClient(spyClientMock);
+  private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+  @AfterClass
+  public static void afterHHSpyClientDeadlineTestClass() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void operationsAfterDeadlineShouldNotBeQueued() {
+    try (MemcachedDeadline.Scope ignored = MemcachedDeadline.at(System.nanoTime() - 1)) {
+      try {
+        hhSpyClient.set("region", "key", 0, "value");
+        fail("deadline passed");
+      } catch (OperationTimeoutException expected) {
+      }
+    }
+
+    verify(spyClientMock, never()).set(anyString(), anyInt(), any());
+  }
+
+  @Test
+  public void readsShouldWaitForTimeLeftToDeadline() {
+    when(spyClientMock.getOperationTimeout()).thenReturn(60_000L);
+    String keyWithRegion = HHSpyMemcachedClient.getKey("region", "key");
+    GetFuture<Object> getFuture = new GetFuture<>(new CountDownLatch(1), 60_000, keyWithRegion, executorService);
+    getFuture.setOperation(mock(Operation.class));
+    when(spyClientMock.asyncGet(keyWithRegion)).thenReturn(getFuture);
+
+    CompletableFuture<Object> future;
+    try (MemcachedDeadline.Scope ignored = MemcachedDeadline.in(20, TimeUnit.MILLISECONDS)) {
+      // a nested deadline does not extend the outer one
+      try (MemcachedDeadline.Scope ignoredNested = MemcachedDeadline.in(60, TimeUnit.SECONDS)) {
+        future = hhSpyClient.asyncGet("region", "key");
+      }
+    }
+
+    try {
+      future.join();
+      fail("timeout expected");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+  }
+}
@@ -0,0 +1,96 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.util.List;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedClient;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HHSpyClientExecuteBatchTest {
+
+  private List<EmbeddedMemcachedServer> servers;
+  private MemcachedClient spyClient;
+  private HHSpyMemcachedClient hhSpyClient;
+
+  @Before
+  public void setUp() throws IOException {
+    servers = EmbeddedMemcachedServer.start(2);
+    spyClient = new MemcachedClient(
+        new ConnectionFactoryBuilder()
+            .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+            .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+            .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+            .setOpTimeout(1000)
+            .setDaemon(true)
+            .build(),
+        List.of(servers.get(0).getAddress(), servers.get(1).getAddress())
+    );
+    TestUtils.waitForConnections(spyClient);
+    hhSpyClient = new HHSpyMemcachedClient(spyClient);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    spyClient.shutdown();
+    for (EmbeddedMemcachedServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void resultsShouldBeInOrderOfOperations() {
+    hhSpyClient.set("region", "existing", 0, "value").join();
+    MemcachedBatch batch = new MemcachedBatch();
+    for (int i = 0; i < 20; i++) {
+      batch.set("region", "key" + i, 0, "value" + i);
+    }
+    batch.add("region", "existing", 0, "newValue")
+        .touch("otherRegion", "missing", 10)
+        .delete("region", "existing")
+        .add("region", "existing", 0, "newValue");
+
+    MemcachedBatchResult batchResult = hhSpyClient.executeBatch(batch);
+
+    assertFalse(batchResult.getResult().join());
+    for (int i = 0; i < 20; i++) {
+      assertTrue(batchResult.getItemResult(i).join());
+      assertEquals("value" + i, hhSpyClient.get("region", "key" + i));
+    }
+    assertFalse(batchResult.getItemResult(20).join());
+    assertFalse(batchResult.getItemResult(21).join());
+    assertTrue(batchResult.getItemResult(22).join());
+    assertTrue(batchResult.getItemResult(23).join());
+    assertEquals("newValue", hhSpyClient.get("region", "existing"));
+    assertTrue(servers.get(0).getNumOfItems() > 0);
+    assertTrue(servers.get(1).getNumOfItems() > 0);
+  }
+
+  @Test
+  public void incrementsShouldBeSentWithoutWaiting() {
+    hhSpyClient.increment("region", "counter", 1, 10);
+    MemcachedBatch batch = new MemcachedBatch()
+        .increment("region", "counter", 5, 0, 0)
+        .increment("region", "missingCounter", 5, 7, 0);
+
+    MemcachedBatchResult batchResult = hhSpyClient.executeBatch(batch);
+
+    assertTrue(batchResult.getResult().join());
+    assertEquals(16, hhSpyClient.increment("region", "counter", 1, 0));
+    assertEquals(8, hhSpyClient.increment("region", "missingCounter", 1, 0));
+  }
+
+  @Test
+  public void emptyBatchShouldSucceed() {
+    MemcachedBatchResult batchResult = hhSpyClient.executeBatch(new MemcachedBatch());
+
+    assertTrue(batchResult.getResult().join());
+    assertNull(hhSpyClient.get("region", "key"));
+  }
+}
@@ -1,16 +1,27 @@
 package ru.hh.memcached;
 
 import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.MemcachedNode;
 import net.spy.memcached.internal.BulkFuture;
 import org.junit.Test;
+import org.mockito.InOrder;
 
+import java.net.InetSocketAddress;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static ru.hh.memcached.HHSpyMemcachedClient.getKey;
 
@@ -18,6 +29,9 @@ public class HHSpyClientGetSomeTest {
 
   private final MemcachedClient spyClientMock = TestUtils.createSpyClientMock();
   private final HHSpyMemcachedClient hhSpyClient = new HHSpyMemcachedClient(spyClientMock);
+  private final HHSpyMemcachedClient chunkingHHSpyClient = new HHSpyMemcachedClient(
+      spyClientMock, Map.of(), null, Map.of(), new HHSpyMemcachedClient.GetSomeChunking(2, 2)
+  );
 
   @Test
   public void hitMiss() throws ExecutionException, InterruptedException {
@@ -42,4 +56,74 @@ public class HHSpyClientGetSomeTest {
     assertEquals(1, keyToValue.size());
     assertEquals("value", keyToValue.get("KeyHit"));
   }
+
+  @Test
+  public void chunksShouldBeBoundedAndKeepPartialResults() throws ExecutionException, InterruptedException {
+    BulkFuture<Map<String, Object>> firstChunkFuture = mockBulkGet(new String[]{"key1", "key2"}, Map.of("regionkey1", "value1"));
+    // the chunk has timed out, spy gives the values received before the timeout
+    BulkFuture<Map<String, Object>> secondChunkFuture = mockBulkGet(new String[]{"key3", "key4"}, Map.of("regionkey4", "value4"));
+    BulkFuture<Map<String, Object>> thirdChunkFuture = mockBulkGet(new String[]{"key5"}, Map.of("regionkey5", "value5"));
+    when(spyClientMock.getOperationTimeout()).thenReturn(20L);
+
+    Map<String, Object> keyToValue = chunkingHHSpyClient.getSome("region", new String[]{"key1", "key2", "key3", "key4", "key5"});
+
+    assertEquals(Map.of("key1", "value1", "key4", "value4", "key5", "value5"), keyToValue);
+    InOrder inOrder = inOrder(spyClientMock, firstChunkFuture, secondChunkFuture, thirdChunkFuture);
+    inOrder.verify(spyClientMock).asyncGetBulk(getKey("region", "key1"), getKey("region", "key2"));
+    inOrder.verify(spyClientMock).asyncGetBulk(getKey("region", "key3"), getKey("region", "key4"));
+    inOrder.verify(firstChunkFuture).getSome(anyLong(), any(TimeUnit.class));
+    inOrder.verify(spyClientMock).asyncGetBulk(getKey("region", "key5"));
+    inOrder.verify(secondChunkFuture).getSome(anyLong(), any(TimeUnit.class));
+    inOrder.verify(thirdChunkFuture).getSome(anyLong(), any(TimeUnit.class));
+  }
+
+  @Test
+  public void chunksOfNodeShouldNotBeQueuedAfterItsChunkTimedOut() throws ExecutionException, InterruptedException {
+    HHSpyMemcachedClient client = new HHSpyMemcachedClient(
+        spyClientMock, Map.of(), null, Map.of(), new HHSpyMemcachedClient.GetSomeChunking(1, 1)
+    );
+    BulkFuture<Map<String, Object>> timedOutChunkFuture = mockBulkGet(new String[]{"key1"}, Map.of());
+    when(timedOutChunkFuture.isTimeout()).thenReturn(true);
+    when(spyClientMock.getOperationTimeout()).thenReturn(20L);
+
+    assertTrue(client.getSome("region", new String[]{"key1", "key2"}).isEmpty());
+    verify(spyClientMock, never()).asyncGetBulk(getKey("region", "key2"));
+  }
+
+  @Test
+  public void nodesThatTimedOutShouldBeGivenWithValues() throws ExecutionException, InterruptedException {
+    BulkFuture<Map<String, Object>> bulkFuture = mockBulkGet(new String[]{"key1", "key2"}, Map.of("regionkey1", "value1"));
+    when(bulkFuture.isTimeout()).thenReturn(true);
+    when(spyClientMock.getOperationTimeout()).thenReturn(20L);
+    InetSocketAddress timedOutAddress = InetSocketAddress.createUnresolved("node1", 11211);
+    MemcachedNode timedOutNode = mock(MemcachedNode.class);
+    when(timedOutNode.getSocketAddress()).thenReturn(timedOutAddress);
+    when(timedOutNode.getContinuousTimeout()).thenReturn(1);
+    MemcachedNode otherNode = mock(MemcachedNode.class);
+    when(otherNode.getSocketAddress()).thenReturn(InetSocketAddress.createUnresolved("node2", 11211));
+    // timed out in another operation, it has no keys of this one
+    MemcachedNode unrelatedNode = mock(MemcachedNode.class);
+    when(unrelatedNode.getSocketAddress()).thenReturn(InetSocketAddress.createUnresolved("node3", 11211));
+    when(unrelatedNode.getContinuousTimeout()).thenReturn(1);
+    when(spyClientMock.getConnection().getLocator().getAll()).thenReturn(List.of(timedOutNode, otherNode, unrelatedNode));
+    when(spyClientMock.getConnection().getLocator().getPrimary("regionkey1")).thenReturn(otherNode);
+    when(spyClientMock.getConnection().getLocator().getPrimary("regionkey2")).thenReturn(timedOutNode);
+
+    Map<String, Object> keyToValue = hhSpyClient.getSome("region", new String[]{"key1", "key2"});
+
+    assertEquals(Map.of("key1", "value1"), keyToValue);
+    assertEquals(Set.of(timedOutAddress), PartialKeyToValue.getTimedOutNodes(keyToValue));
+  }
+
+  private BulkFuture<Map<String, Object>> mockBulkGet(String[] keys, Map<String, Object> result)
+      throws ExecutionException, InterruptedException {
+    String[] keysWithRegion = new String[keys.length];
+    for (int i=0; i<keys.length; i++) {
+      keysWithRegion[i] = getKey("region", keys[i]);
+    }
+    BulkFuture<Map<String, Object>> bulkFutureMock = mock(BulkFuture.class);
+    when(spyClientMock.asyncGetBulk(keysWithRegion)).thenReturn(bulkFutureMock);
+    when(bulkFutureMock.getSome(anyLong(), any(TimeUnit.class))).thenReturn(result);
+    return bulkFutureMock;
+  }
 }
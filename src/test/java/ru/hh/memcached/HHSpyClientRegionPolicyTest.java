@@ -0,0 +1,78 @@
+package ru.hh.memcached;
+
+import net.spy.memcached.MemcachedClient;
+import net.spy.memcached.OperationTimeoutException;
+import net.spy.memcached.internal.GetFuture;
+import net.spy.memcached.internal.OperationFuture;
+import net.spy.memcached.ops.Operation;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class HHSpyClientRegionPolicyTest {
+  private static final String CRITICAL_REGION = "criticalRegion";
+  private static final String OTHER_REGION = "otherRegion";
+
+  private final MemcachedClient spyClientMock = TestUtils.createSpyClientMock();
+  private final HHSpyMemcachedClient hhSpyClient = new HHSpyMemcachedClient(
+      spyClientMock, Map.of(), null, Map.of(CRITICAL_REGION, new RegionPolicy("critical", 10, 300, null, null))
+  );
+  private static final ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+  @AfterClass
+  public static void afterHHSpyClientRegionPolicyTestClass() {
+    executorService.shutdown();
+  }
+
+  @Test
+  public void readsOfRegionShouldFailAfterTimeoutOfPolicy() {
+    when(spyClientMock.getOperationTimeout()).thenReturn(60_000L);
+    String keyWithRegion = HHSpyMemcachedClient.getKey(CRITICAL_REGION, "key");
+    GetFuture<Object> getFuture = new GetFuture<>(new CountDownLatch(1), 60_000, keyWithRegion, executorService);
+    getFuture.setOperation(mock(Operation.class));
+    when(spyClientMock.asyncGet(keyWithRegion)).thenReturn(getFuture);
+
+    try {
+      hhSpyClient.asyncGet(CRITICAL_REGION, "key").join();
+      fail("timeout expected");
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+    try {
+      hhSpyClient.get(CRITICAL_REGION, "key");
+      fail("timeout expected");
+    } catch (OperationTimeoutException expected) {
+    }
+  }
+
+  @Test
+  public void setsOfRegionWithoutExpShouldGetDefaultExpOfPolicy() throws Exception {
+    OperationFuture<Boolean> criticalSetFuture = TestUtils.createOperationFutureMock(executorService);
+    when(spyClientMock.set(HHSpyMemcachedClient.getKey(CRITICAL_REGION, "key"), 300, "value")).thenReturn(criticalSetFuture);
+    doReturn(true).when(criticalSetFuture).get();
+    OperationFuture<Boolean> otherSetFuture = TestUtils.createOperationFutureMock(executorService);
+    when(spyClientMock.set(HHSpyMemcachedClient.getKey(OTHER_REGION, "key"), 0, "value")).thenReturn(otherSetFuture);
+    doReturn(true).when(otherSetFuture).get();
+
+    CompletableFuture<Boolean> criticalSetResult = hhSpyClient.set(CRITICAL_REGION, "key", 0, "value");
+    CompletableFuture<Boolean> otherSetResult = hhSpyClient.set(OTHER_REGION, "key", 0, "value");
+    criticalSetFuture.signalComplete();
+    otherSetFuture.signalComplete();
+
+    assertTrue(criticalSetResult.join());
+    assertTrue(otherSetResult.join());
+  }
+}
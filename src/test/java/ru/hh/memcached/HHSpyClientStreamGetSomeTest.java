@@ -0,0 +1,103 @@
+package ru.hh.memcached;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import net.spy.memcached.ConnectionFactoryBuilder;
+import net.spy.memcached.DefaultHashAlgorithm;
+import net.spy.memcached.MemcachedClient;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HHSpyClientStreamGetSomeTest {
+  private static final String REGION = "region";
+
+  private List<EmbeddedMemcachedServer> servers;
+  private MemcachedClient spyClient;
+  private HHSpyMemcachedClient hhSpyClient;
+
+  @Before
+  public void setUp() throws IOException {
+    servers = EmbeddedMemcachedServer.start(2);
+    spyClient = new MemcachedClient(
+        new ConnectionFactoryBuilder()
+            .setProtocol(ConnectionFactoryBuilder.Protocol.BINARY)
+            .setLocatorType(ConnectionFactoryBuilder.Locator.CONSISTENT)
+            .setHashAlg(DefaultHashAlgorithm.KETAMA_HASH)
+            .setOpTimeout(1000)
+            .setDaemon(true)
+            .build(),
+        List.of(servers.get(0).getAddress(), servers.get(1).getAddress())
+    );
+    TestUtils.waitForConnections(spyClient);
+    hhSpyClient = new HHSpyMemcachedClient(spyClient);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    spyClient.shutdown();
+    for (EmbeddedMemcachedServer server : servers) {
+      server.close();
+    }
+  }
+
+  @Test
+  public void partOfFastNodeShouldNotWaitForSlowNode() throws Exception {
+    String slowKey = getKeyOf(servers.get(0));
+    String fastKey = getKeyOf(servers.get(1));
+    hhSpyClient.set(REGION, slowKey, 0, "slowValue").join();
+    hhSpyClient.set(REGION, fastKey, 0, "fastValue").join();
+    servers.get(0).setLatency(300, TimeUnit.MILLISECONDS);
+
+    List<String[]> parts = new CopyOnWriteArrayList<>();
+    Map<String, Object> keyToValue = new ConcurrentHashMap<>();
+    hhSpyClient.streamGetSome(REGION, new String[]{slowKey, fastKey, "missingKey"}, (partKeys, partKeyToValue) -> {
+      parts.add(partKeys);
+      keyToValue.putAll(partKeyToValue);
+    }).get(5, TimeUnit.SECONDS);
+
+    assertEquals(2, parts.size());
+    assertTrue(List.of(parts.get(0)).contains(fastKey));
+    assertTrue(List.of(parts.get(1)).contains(slowKey));
+    assertEquals(3, parts.get(0).length + parts.get(1).length);
+    assertEquals(Map.of(slowKey, "slowValue", fastKey, "fastValue"), keyToValue);
+  }
+
+  @Test
+  public void keysOfStalledNodeShouldBeGivenAsMissesAfterTimeout() throws Exception {
+    String stalledKey = getKeyOf(servers.get(0));
+    hhSpyClient.set(REGION, stalledKey, 0, "value").join();
+    servers.get(0).stall();
+
+    List<String[]> parts = new CopyOnWriteArrayList<>();
+    Map<String, Object> keyToValue = new ConcurrentHashMap<>();
+    hhSpyClient.streamGetSome(REGION, new String[]{stalledKey}, (partKeys, partKeyToValue) -> {
+      parts.add(partKeys);
+      keyToValue.putAll(partKeyToValue);
+    }).get(5, TimeUnit.SECONDS);
+
+    assertEquals(1, parts.size());
+    assertArrayEquals(new String[]{stalledKey}, parts.get(0));
+    assertTrue(keyToValue.isEmpty());
+
+    servers.get(0).resume();
+  }
+
+  private String getKeyOf(EmbeddedMemcachedServer server) {
+    for (int i = 0; ; i++) {
+      String key = "key" + i;
+      InetSocketAddress address = hhSpyClient.getPrimaryNodeAddress(HHSpyMemcachedClient.getKey(REGION, key));
+      if (address.getPort() == server.getAddress().getPort()) {
+        return key;
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package ru.hh.memcached;
+
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HotKeyTrackerTest {
+  private static final String REGION = "region";
+
+  @Test
+  public void hotKeyShouldBeFoundAmongManyColdKeys() {
+    HotKeyTracker hotKeyTracker = new HotKeyTracker(3, 1);
+    for (int i = 0; i < 1000; i++) {
+      hotKeyTracker.record(REGION, "hotKey");
+      hotKeyTracker.record(REGION, "coldKey" + i);
+      if (i % 2 == 0) {
+        hotKeyTracker.record(REGION, "warmKey");
+      }
+    }
+
+    hotKeyTracker.endInterval();
+    List<HotKeyTracker.HotKey> hotKeys = hotKeyTracker.getHotKeys(REGION);
+
+    assertEquals(3, hotKeys.size());
+    assertEquals("hotKey", hotKeys.get(0).key);
+    assertTrue(hotKeys.get(0).count - hotKeys.get(0).maxError <= 1000);
+    assertTrue(hotKeys.get(0).count >= 1000);
+    assertEquals("warmKey", hotKeys.get(1).key);
+  }
+
+  @Test
+  public void countsShouldStartFromZeroInNewInterval() {
+    HotKeyTracker hotKeyTracker = new HotKeyTracker(3, 1);
+    hotKeyTracker.record(REGION, "key1");
+    hotKeyTracker.endInterval();
+    assertEquals(1, hotKeyTracker.getHotKeys(REGION).size());
+
+    hotKeyTracker.record(REGION, "key2");
+    hotKeyTracker.record(REGION, "key2");
+    assertEquals("key1", hotKeyTracker.getHotKeys(REGION).get(0).key);
+
+    hotKeyTracker.endInterval();
+    assertEquals(1, hotKeyTracker.getHotKeys(REGION).size());
+    assertEquals("key2", hotKeyTracker.getHotKeys(REGION).get(0).key);
+    assertEquals(2, hotKeyTracker.getHotKeys(REGION).get(0).count);
+    assertTrue(hotKeyTracker.getHotKeys("otherRegion").isEmpty());
+  }
+
+  @Test
+  public void countsShouldBeScaledBySampleRate() {
+    HotKeyTracker hotKeyTracker = new HotKeyTracker(1, 10);
+    for (int i = 0; i < 100_000; i++) {
+      hotKeyTracker.record(REGION, "key");
+    }
+    hotKeyTracker.endInterval();
+
+    long count = hotKeyTracker.getHotKeys(REGION).get(0).count;
+    assertTrue(String.valueOf(count), count > 90_000 && count < 110_000);
+  }
+}
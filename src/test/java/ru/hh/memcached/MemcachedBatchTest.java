@@ -0,0 +1,28 @@
+package ru.hh.memcached;
+
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class MemcachedBatchTest {
+  private static final String REGION = "region";
+  private static final String KEY = "key";
+
+  private final HHMemcachedClient hhMemcachedClient = mock(HHMemcachedClient.class);
+
+  @Test
+  public void incrementAboveMaxIntShouldBeSentInParts() {
+    long by = 2L * Integer.MAX_VALUE + 5;
+    when(hhMemcachedClient.increment(REGION, KEY, Integer.MAX_VALUE, Integer.MAX_VALUE, 60)).thenReturn(1L);
+    when(hhMemcachedClient.increment(REGION, KEY, 5, Integer.MAX_VALUE, 60)).thenReturn(1L);
+
+    MemcachedBatchResult batchResult = new MemcachedBatch().increment(REGION, KEY, by, by, 60).executeOneByOne(hhMemcachedClient);
+
+    assertTrue(batchResult.getResult().join());
+    verify(hhMemcachedClient, times(2)).increment(REGION, KEY, Integer.MAX_VALUE, Integer.MAX_VALUE, 60);
+    verify(hhMemcachedClient).increment(REGION, KEY, 5, Integer.MAX_VALUE, 60);
+  }
+}
@@ -0,0 +1,87 @@
+package ru.hh.memcached;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MpscArrayBlockingQueueTest {
+
+  @Test
+  public void queueShouldBeBoundedByCapacity() {
+    MpscArrayBlockingQueue<Integer> queue = new MpscArrayBlockingQueue<>(3);
+
+    assertTrue(queue.offer(1));
+    assertTrue(queue.offer(2));
+    assertTrue(queue.offer(3));
+    assertFalse(queue.offer(4));
+    assertEquals(3, queue.size());
+    assertEquals(0, queue.remainingCapacity());
+
+    assertEquals(1, (int) queue.poll());
+    assertTrue(queue.offer(4));
+    List<Integer> drained = new ArrayList<>();
+    assertEquals(2, queue.drainTo(drained, 2));
+    assertEquals(List.of(2, 3), drained);
+    assertEquals(List.of(4), new ArrayList<>(queue));
+    assertEquals(4, (int) queue.peek());
+    assertEquals(4, (int) queue.poll());
+    assertNull(queue.poll());
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  public void offerShouldWaitForPlace() throws Exception {
+    MpscArrayBlockingQueue<Integer> queue = new MpscArrayBlockingQueue<>(1);
+    queue.offer(1);
+
+    assertFalse(queue.offer(2, 10, TimeUnit.MILLISECONDS));
+
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    try {
+      Future<Boolean> offered = executorService.submit(() -> queue.offer(2, 10, TimeUnit.SECONDS));
+      Thread.sleep(10);
+      assertEquals(1, (int) queue.poll());
+      assertTrue(offered.get(1, TimeUnit.SECONDS));
+      assertEquals(2, (int) queue.poll(1, TimeUnit.SECONDS));
+    } finally {
+      executorService.shutdown();
+    }
+  }
+
+  @Test
+  public void elementsOfConcurrentProducersShouldBeTakenInOrderOfEachProducer() throws Exception {
+    int numOfProducers = 4;
+    int numOfElementsPerProducer = 100_000;
+    MpscArrayBlockingQueue<long[]> queue = new MpscArrayBlockingQueue<>(100);
+    ExecutorService executorService = Executors.newFixedThreadPool(numOfProducers);
+    try {
+      for (int producer = 0; producer < numOfProducers; producer++) {
+        int producerId = producer;
+        executorService.submit(() -> {
+          for (long i = 0; i < numOfElementsPerProducer; i++) {
+            queue.put(new long[]{producerId, i});
+          }
+          return null;
+        });
+      }
+
+      long[] producerToNextElement = new long[numOfProducers];
+      for (int i = 0; i < numOfProducers * numOfElementsPerProducer; i++) {
+        long[] element = queue.poll(10, TimeUnit.SECONDS);
+        int producerId = (int) element[0];
+        assertEquals(producerToNextElement[producerId]++, element[1]);
+      }
+      assertNull(queue.poll());
+    } finally {
+      executorService.shutdown();
+    }
+  }
+}
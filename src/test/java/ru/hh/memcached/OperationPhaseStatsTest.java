@@ -0,0 +1,71 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import net.spy.memcached.MemcachedNode;
+import net.spy.memcached.ops.OperationState;
+import net.spy.memcached.ops.StoreOperation;
+import net.spy.memcached.ops.StoreType;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyVararg;
+import static org.mockito.Matchers.argThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import ru.hh.nab.metrics.Histograms;
+import ru.hh.nab.metrics.Tag;
+
+public class OperationPhaseStatsTest {
+  private final Histograms histograms = mock(Histograms.class);
+  private final AtomicLong nanoClock = new AtomicLong();
+  private final OperationPhaseStats phaseStats = new OperationPhaseStats(histograms, nanoClock::get);
+  private final MemcachedNode node = mock(MemcachedNode.class);
+  private final StoreOperation operation = mock(StoreOperation.class);
+
+  @Before
+  public void setUp() {
+    when(node.getSocketAddress()).thenReturn(InetSocketAddress.createUnresolved("node1", 11211));
+    when(operation.getHandlingNode()).thenReturn(node);
+    when(operation.getStoreType()).thenReturn(StoreType.set);
+  }
+
+  @Test
+  public void queueAndNetworkPhasesShouldBeTakenFromQueuesOfNode() {
+    nanoClock.set(1_000_000);
+    phaseStats.getInputQueueListener().onOffered(operation);
+
+    when(operation.getState()).thenReturn(OperationState.READING);
+    when(operation.getWriteCompleteTimestamp()).thenReturn(4_000_000L);
+    phaseStats.getWriteQueueListener().onPolled(operation);
+
+    nanoClock.set(10_000_000);
+    phaseStats.getReadQueueListener().onPolled(operation);
+
+    verify(histograms).save(eq(3000), argThat(tag("primaryNode", "node1")), argThat(tag("command", "set")), argThat(tag("phase", "queue")));
+    verify(histograms).save(eq(6000), argThat(tag("primaryNode", "node1")), argThat(tag("command", "set")), argThat(tag("phase", "network")));
+  }
+
+  @Test
+  public void notWrittenOperationsShouldNotBeTimed() {
+    phaseStats.getInputQueueListener().onOffered(operation);
+
+    when(operation.getState()).thenReturn(OperationState.WRITE_QUEUED);
+    phaseStats.getWriteQueueListener().onPolled(operation);
+
+    verify(histograms, never()).save(anyInt(), (Tag[]) anyVararg());
+  }
+
+  private static ArgumentMatcher<Tag> tag(String name, String value) {
+    return new ArgumentMatcher<>() {
+      @Override
+      public boolean matches(Object argument) {
+        return argument instanceof Tag && name.equals(((Tag) argument).name) && value.equals(((Tag) argument).value);
+      }
+    };
+  }
+}
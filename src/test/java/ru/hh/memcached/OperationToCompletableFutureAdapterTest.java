@@ -1,14 +1,22 @@
 package ru.hh.memcached;
 
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import net.spy.memcached.internal.OperationFuture;
 import org.junit.AfterClass;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import ru.hh.nab.metrics.Counters;
 
 public class OperationToCompletableFutureAdapterTest {
 
@@ -30,6 +38,26 @@ public class OperationToCompletableFutureAdapterTest {
     assertTrue(completableFuture.get());
   }
 
+  @Test
+  public void droppedDecodeTaskShouldFailFutureWithoutDecoding() throws Exception {
+    ThreadPoolExecutor decodeExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1),
+                                                               new DecodeOverflowPolicy(1, new Counters(2)));
+    decodeExecutor.shutdown();
+    OperationFuture<Boolean> operationFutureMock = TestUtils.createOperationFutureMock(decodeExecutor);
+
+    CompletableFuture<Boolean> completableFuture = new OperationToCompletableFutureAdapter<>(operationFutureMock);
+    operationFutureMock.signalComplete();
+
+    try {
+      // get of the adapter waits for the future of spy
+      completableFuture.join();
+      fail();
+    } catch (CompletionException e) {
+      assertTrue(e.getCause() instanceof RejectedExecutionException);
+    }
+    verify(operationFutureMock, never()).get();
+  }
+
   @Test
   public void cancelCompletableFuture() throws Exception {
     OperationFuture<Boolean> operationFutureMock = TestUtils.createOperationFutureMock(executorService);
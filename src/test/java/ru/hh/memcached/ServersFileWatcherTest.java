@@ -0,0 +1,50 @@
+package ru.hh.memcached;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ServersFileWatcherTest {
+  private final Path serversFile;
+  private final List<List<InetSocketAddress>> changes = new ArrayList<>();
+  private final ServersFileWatcher watcher;
+
+  public ServersFileWatcherTest() throws Exception {
+    serversFile = Files.createTempFile("memcached", "servers");
+    Files.writeString(serversFile, "127.0.0.1:11211");
+    // checks are run by the test
+    watcher = new ServersFileWatcher(serversFile, TimeUnit.DAYS.toMillis(1), changes::add);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    Files.delete(serversFile);
+  }
+
+  @Test
+  public void changeShouldBeAppliedWhenTwoChecksReadTheSameServers() throws Exception {
+    watcher.check();
+    assertTrue(changes.isEmpty());
+
+    // the writer has written a part of the file
+    Files.writeString(serversFile, "127.0.0.1:11212");
+    watcher.check();
+    assertTrue(changes.isEmpty());
+
+    Files.writeString(serversFile, "127.0.0.1:11212 127.0.0.1:11213");
+    watcher.check();
+    assertTrue(changes.isEmpty());
+    watcher.check();
+    assertEquals(List.of(List.of(new InetSocketAddress("127.0.0.1", 11212), new InetSocketAddress("127.0.0.1", 11213))), changes);
+
+    watcher.check();
+    assertEquals(1, changes.size());
+  }
+}
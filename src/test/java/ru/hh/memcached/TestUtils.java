@@ -9,6 +9,7 @@ import net.spy.memcached.internal.OperationFuture;
 import java.net.InetSocketAddress;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.doReturn;
@@ -18,6 +19,19 @@ import static org.mockito.Mockito.when;
 
 public class TestUtils {
 
+  /** spy connects to nodes in background, operations to a node that is not connected yet are redistributed to other nodes */
+  static void waitForConnections(MemcachedClient spyClient) {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    for (MemcachedNode node : spyClient.getNodeLocator().getAll()) {
+      while (!node.isActive()) {
+        if (System.nanoTime() > deadline) {
+          throw new IllegalStateException("not connected to " + node.getSocketAddress());
+        }
+        Thread.onSpinWait();
+      }
+    }
+  }
+
   static MemcachedClient createSpyClientMock() {
     MemcachedNode nodeMock = mock(MemcachedNode.class);
     when(nodeMock.getSocketAddress()).thenReturn(InetSocketAddress.createUnresolved("127.0.0.1", 11211));